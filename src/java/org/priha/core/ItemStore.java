@@ -19,6 +19,7 @@ package org.priha.core;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Credentials;
 import javax.jcr.NoSuchWorkspaceException;
@@ -46,6 +47,21 @@ public interface ItemStore
 
     List<? extends Path> listNodes(WorkspaceImpl m_workspace, Path parentpath) throws RepositoryException;
 
+    /**
+     *  Loads a subtree in one go, if the provider supports it, and puts the Items
+     *  in the item cache of the Session.
+     *  
+     *  @param ws The workspace.
+     *  @param path The topmost Node.
+     *  @param depth How many levels below the topmost Node are loaded.
+     *  @param children The child Nodes of each loaded Node whose children were 
+     *                  loaded too are put here.
+     *  @param properties The property names of each loaded Node are put here.
+     *  @throws RepositoryException
+     */
+    void prefetch(WorkspaceImpl ws, Path path, int depth, Map<Path,List<Path>> children, Map<Path,List<QName>> properties) 
+        throws RepositoryException;
+
     Collection<? extends String> listWorkspaces() throws RepositoryException;
 
     boolean itemExists(WorkspaceImpl m_workspace, Path path, ItemType type) throws RepositoryException;
@@ -53,6 +69,26 @@ public interface ItemStore
 
     void remove(StoreTransaction tx, Path path) throws RepositoryException;
 
+    /**
+     *  Removes a Node and everything under it in one go, if the provider
+     *  supports it.
+     *  
+     *  @return True, if the subtree was removed.  False, if the provider cannot
+     *          do it, in which case each item must be removed separately.
+     *  @throws RepositoryException
+     */
+    boolean removeSubtree(StoreTransaction tx, Path path) throws RepositoryException;
+
+    /**
+     *  Moves a Node and everything under it in one go, if the provider
+     *  supports it.
+     *  
+     *  @return True, if the subtree was moved.  False, if the provider cannot
+     *          do it, in which case each item must be copied separately.
+     *  @throws RepositoryException
+     */
+    boolean moveSubtree(StoreTransaction tx, Path srcpath, Path destpath) throws RepositoryException;
+
     void addNode(StoreTransaction tx, NodeImpl ni) throws RepositoryException;
 
     void putProperty(StoreTransaction tx, Path path, ValueContainer value) throws RepositoryException;
@@ -75,5 +111,11 @@ public interface ItemStore
 
     public void storeCancelled(StoreTransaction tx) throws RepositoryException;
 
+    /**
+     *  Waits until the changes of a finished save are durable.  The save has
+     *  already been finished, so it must not be cancelled if this fails.
+     */
+    public void sync(StoreTransaction tx) throws RepositoryException;
+
     void reorderNodes(StoreTransaction tx, Path internalPath, List<Path> childOrder) throws RepositoryException;
 }
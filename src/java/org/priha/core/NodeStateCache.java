@@ -0,0 +1,431 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.core;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.PropertyType;
+import javax.jcr.ValueFormatException;
+
+import org.priha.core.values.StreamValueImpl;
+import org.priha.path.Path;
+import org.priha.providers.StoreTransaction;
+import org.priha.providers.ValueContainer;
+import org.priha.util.QName;
+import org.priha.util.WeightedCache;
+
+/**
+ *  Keeps the saved state of Nodes in memory for all the Sessions of a Repository.
+ *  The state of a Node consists of the values of its properties, the names of its
+ *  properties and the paths of its child Nodes, any of which may be missing if 
+ *  they have not been read yet.  The states are never modified; reading more of a
+ *  Node replaces its state with a new one.  The Sessions create their own
+ *  ItemImpls out of the states, so nothing which a Session can change is shared.
+ *  <p>
+ *  A state is only created out of property values which the provider returned,
+ *  so a cached state means that the Node exists.  The providers list nothing for
+ *  a path which does not exist, so the listings are only added to the states 
+ *  which are already there.
+ *  <p>
+ *  The cache is limited by the approximate size of the states in bytes, and uses
+ *  the same W-TinyLFU policy as the {@link org.priha.providers.CachingProvider}.
+ *  Large values are not cached; they are read from the provider every time.
+ *  <p>
+ *  Every save removes the states it touches, both when it writes them and again 
+ *  when it is finished or cancelled.  To keep a reader from putting back a state
+ *  it read just before a save, each removal increments a generation counter.  A 
+ *  reader takes the generation before asking the provider, and a state which was
+ *  read in an older generation is thrown away.
+ *  <p>
+ *  Nothing under /jcr:system is cached.  Some providers share it between their
+ *  workspaces, and a save in one workspace removes only the states of its own.
+ */
+class NodeStateCache
+{
+    /** A rough guess of the memory used by the key, the state and the cache entry. */
+    private static final int ENTRY_OVERHEAD = 128;
+    
+    /** A rough guess of the average state size, used to size the frequency sketch. */
+    private static final int AVERAGE_WEIGHT = 1024;
+    
+    private final WeightedCache<Key,NodeState> m_cache;
+    private final long                         m_maxItemSize;
+    private final AtomicLong                   m_generation = new AtomicLong();
+    
+    /** The workspaces which are not cached.  Not changed after startup. */
+    private final Set<String>                  m_excluded = new HashSet<String>();
+    
+    /** What each ongoing save has removed. */
+    private final Map<StoreTransaction,Touched> m_touched = new HashMap<StoreTransaction,Touched>();
+    
+    /**
+     *  Creates a new cache.
+     *  
+     *  @param maxBytes The size of the cache in bytes.  Zero disables caching.
+     *  @param maxItemSize Values larger than this are not cached.
+     */
+    NodeStateCache( long maxBytes, long maxItemSize )
+    {
+        m_cache       = new WeightedCache<Key,NodeState>( maxBytes, 
+                                                          (int)Math.min( maxBytes / AVERAGE_WEIGHT, Integer.MAX_VALUE ) );
+        m_maxItemSize = maxItemSize;
+    }
+    
+    /**
+     *  Stops caching a workspace.  Call this before the workspace is used.
+     */
+    void exclude( String workspace )
+    {
+        m_excluded.add( workspace );
+    }
+    
+    /**
+     *  Returns the current generation.  Take this before reading anything from
+     *  the provider which you are going to cache.
+     */
+    long getGeneration()
+    {
+        return m_generation.get();
+    }
+    
+    /**
+     *  Returns the cached state of a Node.
+     *  
+     *  @return The state, or null, if nothing is known about the Node.
+     */
+    NodeState get( WorkspaceImpl ws, Path path )
+    {
+        if( m_excluded.contains( ws.getName() ) ) return null;
+        
+        return m_cache.get( new Key( ws, path ) );
+    }
+    
+    /**
+     *  Caches the value of a single property.
+     *  
+     *  @param path The path of the Node.
+     *  @param name The name of the property.
+     */
+    void putValue( WorkspaceImpl ws, Path path, QName name, ValueContainer value, long generation )
+    {
+        if( !isCacheable( value ) ) return;
+        
+        Key key = new Key( ws, path );
+        
+        NodeState old = m_cache.get( key );
+        
+        Map<QName,ValueContainer> values = new HashMap<QName,ValueContainer>();
+        if( old != null ) values.putAll( old.m_values );
+        values.put( name, value );
+        
+        put( key, 
+             new NodeState( values, 
+                            old != null ? old.m_propertyNames : null, 
+                            old != null ? old.m_children : null ), 
+             generation );
+    }
+    
+    /**
+     *  Caches the values and the names of all the properties of a Node.
+     */
+    void putProperties( WorkspaceImpl ws, Path path, Map<QName,ValueContainer> all, long generation )
+    {
+        Key key = new Key( ws, path );
+        
+        NodeState old = m_cache.get( key );
+        
+        Map<QName,ValueContainer> values = new HashMap<QName,ValueContainer>();
+        
+        for( Map.Entry<QName,ValueContainer> e : all.entrySet() )
+        {
+            if( isCacheable( e.getValue() ) ) values.put( e.getKey(), e.getValue() );
+        }
+        
+        put( key, 
+             new NodeState( values, new ArrayList<QName>( all.keySet() ), old != null ? old.m_children : null ), 
+             generation );
+    }
+    
+    /**
+     *  Caches the names of the properties of a Node, if its state is cached.
+     */
+    void putPropertyNames( WorkspaceImpl ws, Path path, List<QName> names, long generation )
+    {
+        Key key = new Key( ws, path );
+        
+        NodeState old = m_cache.get( key );
+        
+        if( old == null ) return;
+        
+        put( key, 
+             new NodeState( old.m_values, new ArrayList<QName>( names ), old.m_children ), 
+             generation );
+    }
+    
+    /**
+     *  Caches the paths of the child Nodes of a Node, if its state is cached.
+     */
+    void putChildren( WorkspaceImpl ws, Path path, List<? extends Path> children, long generation )
+    {
+        Key key = new Key( ws, path );
+        
+        NodeState old = m_cache.get( key );
+        
+        if( old == null ) return;
+        
+        put( key, 
+             new NodeState( old.m_values, old.m_propertyNames, new ArrayList<Path>( children ) ), 
+             generation );
+    }
+    
+    private void put( Key key, NodeState state, long generation )
+    {
+        if( generation != m_generation.get() || m_excluded.contains( key.m_workspace ) || 
+            ProviderManager.isSystemPath( key.m_path ) ) return;
+        
+        m_cache.put( key, state, state.m_weight );
+        
+        //
+        //  A save may have removed the old state while we were putting this in.
+        //
+        if( generation != m_generation.get() ) m_cache.remove( key );
+    }
+    
+    /**
+     *  Removes the state of a Node, which a save is about to change.
+     *  
+     *  @param tx The save.
+     *  @param path The path of the Node.
+     */
+    void invalidate( StoreTransaction tx, Path path )
+    {
+        Key key = new Key( tx.getWorkspace(), path );
+        
+        m_generation.incrementAndGet();
+        m_cache.remove( key );
+        
+        synchronized( m_touched )
+        {
+            getTouched( tx ).m_keys.add( key );
+        }
+    }
+    
+    /**
+     *  Removes all the states, when a save changes a whole subtree at once.
+     *  
+     *  @param tx The save, or null, if the change is not part of a save.
+     */
+    void invalidateAll( StoreTransaction tx )
+    {
+        m_generation.incrementAndGet();
+        m_cache.clear();
+        
+        if( tx != null )
+        {
+            synchronized( m_touched )
+            {
+                getTouched( tx ).m_all = true;
+            }
+        }
+    }
+    
+    /**
+     *  Removes once more everything which a save touched, in case someone read 
+     *  them while the save was going on.  Call this after the save has been
+     *  finished or cancelled.
+     */
+    void finished( StoreTransaction tx )
+    {
+        Touched touched;
+        
+        synchronized( m_touched )
+        {
+            touched = m_touched.remove( tx );
+        }
+        
+        if( touched == null ) return;
+        
+        m_generation.incrementAndGet();
+        
+        if( touched.m_all )
+        {
+            m_cache.clear();
+        }
+        else
+        {
+            for( Key key : touched.m_keys ) m_cache.remove( key );
+        }
+    }
+    
+    void clear()
+    {
+        m_generation.incrementAndGet();
+        m_cache.clear();
+    }
+    
+    private Touched getTouched( StoreTransaction tx )
+    {
+        Touched touched = m_touched.get( tx );
+        
+        if( touched == null )
+        {
+            touched = new Touched();
+            m_touched.put( tx, touched );
+        }
+        
+        return touched;
+    }
+    
+    //
+    //  Binary objects are only cached if they are small and in memory.
+    //
+    private boolean isCacheable( ValueContainer vc )
+    {
+        try
+        {
+            if( vc.getType() == PropertyType.BINARY && 
+                (vc.isMultiple() || !(vc.getValue() instanceof StreamValueImpl)) )
+                return false;
+        }
+        catch( ValueFormatException e )
+        {
+            return false;
+        }
+        
+        long size = vc.getSize();
+        
+        return size >= 0 && size <= m_maxItemSize;
+    }
+    
+    /**
+     *  Returns the cache itself, for testing.
+     */
+    WeightedCache<?,?> getCache()
+    {
+        return m_cache;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return m_cache.toString();
+    }
+    
+    /**
+     *  The saved state of a Node.  Immutable.
+     */
+    static final class NodeState
+    {
+        private final Map<QName,ValueContainer> m_values;
+        private final List<QName>               m_propertyNames;
+        private final List<Path>                m_children;
+        private final int                       m_weight;
+        
+        private NodeState( Map<QName,ValueContainer> values, List<QName> propertyNames, List<Path> children )
+        {
+            m_values        = values;
+            m_propertyNames = propertyNames;
+            m_children      = children;
+            
+            long weight = ENTRY_OVERHEAD;
+            
+            for( ValueContainer vc : values.values() ) weight += 32 + vc.getSize();
+            
+            if( propertyNames != null ) weight += 16 * propertyNames.size();
+            if( children != null )      weight += 48 * children.size();
+            
+            m_weight = (int)Math.min( weight, Integer.MAX_VALUE );
+        }
+        
+        /**
+         *  Returns the value of a property, which must not be modified.  Use
+         *  {@link ValueContainer#sessionInstance(SessionImpl)} before giving it
+         *  to a Session.
+         *  
+         *  @return The value, or null, if it has not been cached.
+         */
+        ValueContainer getValue( QName name )
+        {
+            return m_values.get( name );
+        }
+        
+        /**
+         *  Returns the names of all the properties, or null, if they are not known.
+         */
+        List<QName> getPropertyNames()
+        {
+            return m_propertyNames != null ? Collections.unmodifiableList( m_propertyNames ) : null;
+        }
+        
+        /**
+         *  Returns the paths of all the child Nodes, or null, if they are not known.
+         */
+        List<Path> getChildren()
+        {
+            return m_children != null ? Collections.unmodifiableList( m_children ) : null;
+        }
+    }
+    
+    /**
+     *  What a save has removed from the cache.
+     */
+    private static final class Touched
+    {
+        private final Set<Key> m_keys = new HashSet<Key>();
+        private boolean        m_all;
+    }
+    
+    /**
+     *  Identifies a Node without building a String out of it.
+     */
+    private static final class Key
+    {
+        private final String m_workspace;
+        private final Path   m_path;
+        private final int    m_hash;
+        
+        Key( WorkspaceImpl ws, Path path )
+        {
+            m_workspace = ws.getName();
+            m_path      = path;
+            m_hash      = m_path.hashCode() * 31 + m_workspace.hashCode();
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return m_hash;
+        }
+        
+        @Override
+        public boolean equals( Object o )
+        {
+            if( o == this ) return true;
+            
+            if( o instanceof Key )
+            {
+                Key k = (Key)o;
+                
+                return k.m_hash == m_hash && k.m_path.equals( m_path ) && k.m_workspace.equals( m_workspace );
+            }
+            
+            return false;
+        }
+    }
+}
@@ -18,6 +18,10 @@
 package org.priha.core;
 
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
@@ -35,9 +39,17 @@ import org.priha.nodetype.QNodeTypeManager;
 import org.priha.nodetype.QPropertyDefinition;
 import org.priha.path.InvalidPathException;
 import org.priha.path.Path;
+import org.priha.query.aqt.QueryRootNode;
+import org.priha.providers.BulkRead;
+import org.priha.providers.ConcurrentProvider;
+import org.priha.providers.ExternalChanges;
 import org.priha.providers.RepositoryProvider;
 import org.priha.providers.StoreTransaction;
+import org.priha.providers.MoveOperations;
+import org.priha.providers.QueryPushdown;
+import org.priha.providers.SubtreeOperations;
 import org.priha.providers.ValueContainer;
+import org.priha.util.BloomFilter;
 import org.priha.util.ConfigurationException;
 import org.priha.util.QName;
 
@@ -46,6 +58,24 @@ import org.priha.util.QName;
  *  for a single repository.
  *  <p>
  *  The ProviderManager is a singleton per Repository.
+ *  <p>
+ *  For each workspace, the ProviderManager keeps a Bloom filter of the paths which
+ *  exist, so that most lookups of items which do not exist can be answered without
+ *  asking the provider.  The filter is filled by walking through the workspace in
+ *  the background when the workspace is first used, and all the items added after
+ *  the repository was started are added to it as they are saved.  Removed items
+ *  stay in the filter, and are checked from the provider as before.  If the 
+ *  content can change without going through this repository (e.g. several
+ *  repositories share a database), set the provider property
+ *  <code>existenceFilter</code> to "false".
+ *  <p>
+ *  The saved state of the Nodes is cached for all the Sessions in a
+ *  {@link NodeStateCache}, whose size is set with the repository properties
+ *  <code>priha.cache.maxBytes</code> and <code>priha.cache.maxItemSize</code>.
+ *  The same rule applies: it only sees the changes made through this repository.
+ *  If that is not the case, or if the provider may return older content than what
+ *  has been saved (e.g. it reads from a replica database), set the provider 
+ *  property <code>sharedCache</code> to "false".
  */
 public class ProviderManager implements ItemStore
 {
@@ -58,6 +88,11 @@ public class ProviderManager implements ItemStore
     
     private String               m_defaultWorkspaceName;
     
+    /** Maps workspace names to their existence filters.  Not changed after initialize(). */
+    private HashMap<String,ExistenceFilter> m_filters;
+    
+    private NodeStateCache       m_states;
+    
     public ProviderManager( RepositoryImpl repository ) throws ConfigurationException
     {
         m_repository = repository;
@@ -67,6 +102,10 @@ public class ProviderManager implements ItemStore
 
     public static final String PROP_PRIHA_PROVIDERS       = "priha.providers";
     public static final String PROP_PRIHA_PROVIDER_PREFIX = "priha.provider.";
+    public static final String PROP_EXISTENCE_FILTER      = "existenceFilter";
+    public static final String PROP_SHARED_CACHE          = "sharedCache";
+    public static final String PROP_CACHE_MAXBYTES        = "priha.cache.maxBytes";
+    public static final String PROP_CACHE_MAXITEMSIZE     = "priha.cache.maxItemSize";
     public static final String DEFAULT_PROVIDERLIST       = "defaultProvider";
     
     /**
@@ -77,6 +116,20 @@ public class ProviderManager implements ItemStore
     private void initialize() throws ConfigurationException
     {
         m_workspaceAccess = new HashMap<String,ProviderInfo>();
+        m_filters         = new HashMap<String,ExistenceFilter>();
+        
+        try
+        {
+            //
+            //  The defaults are really read from priha_default.properties.
+            //
+            m_states = new NodeStateCache( Long.parseLong( m_repository.getProperty( PROP_CACHE_MAXBYTES, "16777216" ) ),
+                                           Long.parseLong( m_repository.getProperty( PROP_CACHE_MAXITEMSIZE, "10240" ) ) );
+        }
+        catch( NumberFormatException e )
+        {
+            throw new ConfigurationException("Unparseable cache size: "+e.getMessage());
+        }
 
         String providerList = m_repository.getProperty( PROP_PRIHA_PROVIDERS );
         
@@ -119,7 +172,11 @@ public class ProviderManager implements ItemStore
             m_providers[i] = new ProviderInfo();
             m_providers[i].provider   = p;
             m_providers[i].workspaces = workspaces;
-            m_providers[i].lock       = new ReentrantReadWriteLock();
+            m_providers[i].lock       = p instanceof ConcurrentProvider ? new NoLock() : new ReentrantReadWriteLock();
+            
+            boolean external = p instanceof ExternalChanges && ((ExternalChanges)p).hasExternalChanges();
+            
+            if( external ) log.fine("Provider "+providers[i]+" sees external changes, so its workspaces are neither filtered nor cached");
             
             for( String ws : workspaces )
             {
@@ -127,6 +184,12 @@ public class ProviderManager implements ItemStore
                     throw new ConfigurationException("Workspace "+ws+" is defined multiple times.  Very likely you have forgotten to declare a workspace property for a Provider declaration.");
                 
                 m_workspaceAccess.put(ws, m_providers[i]);
+                
+                if( !external && "true".equals( props.getProperty(PROP_EXISTENCE_FILTER, "true") ) )
+                    m_filters.put(ws, new ExistenceFilter(m_providers[i], ws));
+                
+                if( external || !"true".equals( props.getProperty(PROP_SHARED_CACHE, "true") ) )
+                    m_states.exclude(ws);
             }
         }
     }
@@ -251,6 +314,17 @@ public class ProviderManager implements ItemStore
 
     private ValueContainer getPropertyValue(WorkspaceImpl impl, Path ptPath) throws RepositoryException
     {
+        long generation = m_states.getGeneration();
+        
+        NodeStateCache.NodeState state = m_states.get( impl, ptPath.getParentPath() );
+        
+        if( state != null )
+        {
+            ValueContainer cached = state.getValue( ptPath.getLastComponent() );
+            
+            if( cached != null ) return cached.sessionInstance( impl.getSession() );
+        }
+        
         ProviderInfo pi = getProviderInfo(impl,ptPath);
         
         try
@@ -259,6 +333,8 @@ public class ProviderManager implements ItemStore
         
             ValueContainer stored = pi.provider.getPropertyValue( impl, ptPath );
             
+            if( stored != null ) m_states.putValue( impl, ptPath.getParentPath(), ptPath.getLastComponent(), stored, generation );
+            
             return stored;
         }
         finally
@@ -279,13 +355,23 @@ public class ProviderManager implements ItemStore
 
     public List<Path>listNodes(WorkspaceImpl impl, Path path) throws RepositoryException
     {
+        long generation = m_states.getGeneration();
+        
+        NodeStateCache.NodeState state = m_states.get( impl, path );
+        
+        if( state != null && state.getChildren() != null ) return state.getChildren();
+        
         ProviderInfo pi = getProviderInfo( impl, path );
         
         try
         {
             pi.lock.readLock().lock();
         
-            return pi.provider.listNodes( impl, path );
+            List<Path> children = pi.provider.listNodes( impl, path );
+            
+            m_states.putChildren( impl, path, children, generation );
+            
+            return children;
         }
         finally
         {
@@ -321,6 +407,9 @@ public class ProviderManager implements ItemStore
     {
         ProviderInfo pi = getProviderInfo( tx.getWorkspace(), path );
         
+        m_states.invalidate( tx, path );
+        if( !path.isRoot() ) m_states.invalidate( tx, path.getParentPath() );
+        
         try
         {
             pi.lock.writeLock().lock();
@@ -334,7 +423,192 @@ public class ProviderManager implements ItemStore
     }
 
     /**
-     * Loads the state of a node from the repository.
+     *  Removes a Node with its whole subtree, if the provider implements
+     *  {@link SubtreeOperations}.
+     *  
+     *  @return True, if the subtree was removed, false, if the provider does not support it.
+     */
+    public boolean removeSubtree(StoreTransaction tx, Path path) throws RepositoryException
+    {
+        ProviderInfo pi = getProviderInfo( tx.getWorkspace(), path );
+        
+        if( !(pi.provider instanceof SubtreeOperations) ) return false;
+        
+        m_states.invalidateAll( tx );
+        
+        try
+        {
+            pi.lock.writeLock().lock();
+        
+            ((SubtreeOperations)pi.provider).removeSubtree( tx, path );
+        }
+        finally
+        {
+            pi.lock.writeLock().unlock();
+        }
+        
+        return true;
+    }
+
+    /**
+     *  Moves a Node with its whole subtree, if the provider implements
+     *  {@link MoveOperations}.
+     *  
+     *  @return True, if the subtree was moved, false, if the provider does not support it.
+     */
+    public boolean moveSubtree(StoreTransaction tx, Path srcpath, Path destpath) throws RepositoryException
+    {
+        ProviderInfo pi = getProviderInfo( tx.getWorkspace(), srcpath );
+        
+        if( !(pi.provider instanceof MoveOperations) ) return false;
+        
+        ExistenceFilter f = m_filters.get( tx.getWorkspace().getName() );
+        if( f != null ) f.addAlias( destpath, srcpath );
+        
+        m_states.invalidateAll( tx );
+        
+        try
+        {
+            pi.lock.writeLock().lock();
+        
+            ((MoveOperations)pi.provider).move( tx, srcpath, destpath );
+        }
+        finally
+        {
+            pi.lock.writeLock().unlock();
+        }
+        
+        return true;
+    }
+
+    /**
+     *  Reads all the properties of a Node from a provider which implements
+     *  {@link BulkRead}.
+     */
+    private Map<QName,ValueContainer> getProperties( ProviderInfo pi, WorkspaceImpl ws, Path path ) throws RepositoryException
+    {
+        long generation = m_states.getGeneration();
+        
+        NodeStateCache.NodeState state = m_states.get( ws, path );
+        
+        if( state != null && state.getPropertyNames() != null )
+        {
+            //
+            //  The values which were too large to be cached are read one by one.
+            //
+            Map<QName,ValueContainer> values = new LinkedHashMap<QName,ValueContainer>();
+            
+            for( QName name : state.getPropertyNames() )
+            {
+                ValueContainer vc = state.getValue( name );
+                
+                values.put( name, vc != null ? vc.sessionInstance( ws.getSession() ) : getPropertyValue( ws, path.resolve( name ) ) );
+            }
+            
+            return values;
+        }
+        
+        try
+        {
+            pi.lock.readLock().lock();
+        
+            Map<QName,ValueContainer> values = ((BulkRead)pi.provider).getProperties( ws, path );
+            
+            m_states.putProperties( ws, path, values, generation );
+            
+            return values;
+        }
+        finally
+        {
+            pi.lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     *  Loads a whole subtree from a provider which implements {@link BulkRead},
+     *  and puts its Nodes and properties in the item cache of the Session.
+     */
+    public void prefetch( WorkspaceImpl ws, 
+                          Path path, 
+                          int depth, 
+                          Map<Path,List<Path>> children, 
+                          Map<Path,List<QName>> properties ) 
+        throws RepositoryException
+    {
+        ProviderInfo pi = getProviderInfo( ws, path );
+        
+        if( !(pi.provider instanceof BulkRead) ) return;
+        
+        Map<Path,Map<QName,ValueContainer>> subtree;
+        
+        long generation = m_states.getGeneration();
+        
+        try
+        {
+            pi.lock.readLock().lock();
+        
+            subtree = ((BulkRead)pi.provider).getSubtree( ws, path, depth );
+        }
+        finally
+        {
+            pi.lock.readLock().unlock();
+        }
+        
+        if( subtree == null ) return;
+        
+        for( Map.Entry<Path,Map<QName,ValueContainer>> e : subtree.entrySet() )
+        {
+            Path p = e.getKey();
+            
+            ws.getSession().m_provider.prefetched( loadNode( ws, p, e.getValue(), null ) );
+            
+            properties.put( p, new ArrayList<QName>( e.getValue().keySet() ) );
+            
+            m_states.putProperties( ws, p, e.getValue(), generation );
+            
+            //
+            //  The children of the deepest Nodes were not read.
+            //
+            if( p.depth() - path.depth() < depth ) children.put( p, new ArrayList<Path>() );
+            
+            if( !p.equals( path ) ) children.get( p.getParentPath() ).add( p );
+        }
+        
+        for( Path p : subtree.keySet() )
+        {
+            if( p.depth() - path.depth() < depth ) m_states.putChildren( ws, p, children.get( p ), generation );
+        }
+    }
+    
+    /**
+     *  Finds the candidate Nodes for a query from a provider which implements
+     *  {@link QueryPushdown}.
+     *  
+     *  @return The paths in document order, or null, if the provider cannot
+     *          search the workspace.
+     */
+    public List<Path> findNodes( WorkspaceImpl ws, QueryRootNode query ) throws RepositoryException
+    {
+        ProviderInfo pi = getProviderInfo( ws, Path.ROOT );
+        
+        if( !(pi.provider instanceof QueryPushdown) ) return null;
+        
+        try
+        {
+            pi.lock.readLock().lock();
+        
+            return ((QueryPushdown)pi.provider).findNodes( ws, query );
+        }
+        finally
+        {
+            pi.lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Loads the state of a node from the repository.  If the provider implements
+     * {@link BulkRead}, the properties of the Node are loaded at the same time and
+     * put in the item cache of the Session.
      *
      * @param ws TODO
      * @param path
@@ -344,27 +618,78 @@ public class ProviderManager implements ItemStore
      */
     public NodeImpl loadNode( WorkspaceImpl ws, Path path ) throws RepositoryException
     {
-        NodeImpl ni = null;
+        ProviderInfo pi = getProviderInfo( ws, path );
+        
+        if( pi.provider instanceof BulkRead )
+            return loadNode( ws, path, getProperties( pi, ws, path ), null );
         
         Path ptPath = path.resolve( JCRConstants.Q_JCR_PRIMARYTYPE );
-        PropertyImpl primaryType = ws.createPropertyImpl( ptPath );
     
         ValueContainer v = getPropertyValue( ws, ptPath );
         
         if( v == null )
             throw new RepositoryException("Repository did not return a primary type for path "+path);
     
-        primaryType.loadValue( v.getValue() );
+        return createNode( ws, path, v );
+    }
+    
+    /**
+     *  Creates a Node and all of its properties out of values which have been
+     *  read in one go.  The properties are put in the item cache of the Session.
+     *  
+     *  @param values The values of all the properties of the Node.
+     *  @param properties If not null, the created properties are put here as well.
+     */
+    private NodeImpl loadNode( WorkspaceImpl ws, 
+                               Path path, 
+                               Map<QName,ValueContainer> values, 
+                               Map<QName,PropertyImpl> properties ) 
+        throws RepositoryException
+    {
+        ValueContainer v = values.get( JCRConstants.Q_JCR_PRIMARYTYPE );
+        
+        if( v == null )
+            throw new RepositoryException("Repository did not return a primary type for path "+path);
+        
+        NodeImpl ni = createNode( ws, path, v );
         
-        QName pt = ((QNameValue.Impl)v.getValue()).getQValue().getValue();
+        //
+        //  The node types go first, since the definitions of the other 
+        //  properties may come from the mixins.
+        //
+        List<QName> names = new ArrayList<QName>( values.size() );
+        names.add( JCRConstants.Q_JCR_PRIMARYTYPE );
+        if( values.containsKey( JCRConstants.Q_JCR_MIXINTYPES ) ) names.add( JCRConstants.Q_JCR_MIXINTYPES );
+        
+        for( QName name : values.keySet() )
+        {
+            if( !names.contains( name ) ) names.add( name );
+        }
+        
+        for( QName name : names )
+        {
+            PropertyImpl p = createProperty( ws, ni, path.resolve( name ), name, values.get( name ) );
+            
+            ws.getSession().m_provider.prefetched( p );
+            
+            if( properties != null ) properties.put( name, p );
+        }
+        
+        return ni;
+    }
+    
+    /**
+     *  Creates a NodeImpl whose primary type is given.
+     */
+    private NodeImpl createNode( WorkspaceImpl ws, Path path, ValueContainer primaryType ) throws RepositoryException
+    {
+        QName pt = ((QNameValue.Impl)primaryType.getValue()).getQValue().getValue();
         QNodeTypeManager ntm = QNodeTypeManager.getInstance();
         QNodeType type = ntm.getNodeType( pt );
     
         QNodeDefinition nd = type.findNodeDefinition( pt );
     
-        ni = ws.getSession().createNode( path, type, nd, false );
-        
-        return ni;
+        return ws.getSession().createNode( path, type, nd, false );
     }
 
     /**
@@ -390,6 +715,15 @@ public class ProviderManager implements ItemStore
     {
         ValueContainer values = getPropertyValue( ws, ptPath );
    
+        return createProperty( ws, ni, ptPath, name, values );
+    }
+    
+    /**
+     *  Creates a PropertyImpl with the given values under a Node.
+     */
+    private PropertyImpl createProperty(WorkspaceImpl ws, NodeImpl ni, Path ptPath, QName name, ValueContainer values)
+        throws RepositoryException
+    {
         PropertyImpl p = ws.createPropertyImpl( ptPath );
            
         //
@@ -428,6 +762,11 @@ public class ProviderManager implements ItemStore
         
         ProviderInfo pi = getProviderInfo(tx.getWorkspace(),path);
         
+        added( tx.getWorkspace(), path );
+        
+        m_states.invalidate( tx, path );
+        if( !path.isRoot() ) m_states.invalidate( tx, path.getParentPath() );
+        
         try
         {
             pi.lock.writeLock().lock();
@@ -440,9 +779,36 @@ public class ProviderManager implements ItemStore
         }
     }
 
-    public void copy(WorkspaceImpl m_workspace, Path srcpath, Path destpath) throws RepositoryException
+    /**
+     *  Copies a subtree within a workspace, if the provider implements
+     *  {@link SubtreeOperations}.
+     */
+    public void copy(WorkspaceImpl ws, Path srcpath, Path destpath) throws RepositoryException
     {
-        throw new UnsupportedRepositoryOperationException();
+        ProviderInfo pi = getProviderInfo( ws, srcpath );
+        
+        if( !(pi.provider instanceof SubtreeOperations) ) 
+            throw new UnsupportedRepositoryOperationException();
+        
+        ExistenceFilter f = m_filters.get( ws.getName() );
+        if( f != null ) f.addAlias( destpath, srcpath );
+        
+        //
+        //  Nothing read during the copy may stay in the cache.
+        //
+        m_states.invalidateAll( null );
+        
+        try
+        {
+            pi.lock.writeLock().lock();
+        
+            ((SubtreeOperations)pi.provider).copy( ws, srcpath, destpath );
+        }
+        finally
+        {
+            pi.lock.writeLock().unlock();
+            m_states.invalidateAll( null );
+        }
     }
 
     public NodeImpl findByUUID(WorkspaceImpl ws, String uuid) throws RepositoryException
@@ -502,6 +868,25 @@ public class ProviderManager implements ItemStore
             if( path.isRoot() )
                 throw new PathNotFoundException();
         
+            if( !mightExist( ws, path ) )
+                throw new PathNotFoundException("No such item "+path);
+            
+            ProviderInfo pi = getProviderInfo( ws, path );
+            
+            if( pi.provider instanceof BulkRead )
+            {
+                Map<QName,PropertyImpl> properties = new HashMap<QName,PropertyImpl>();
+                
+                loadNode( ws, path.getParentPath(), getProperties( pi, ws, path.getParentPath() ), properties );
+                
+                PropertyImpl p = properties.get( path.getLastComponent() );
+                
+                if( p == null ) 
+                    throw new PathNotFoundException("No such property "+path);
+                
+                return p;
+            }
+            
             NodeImpl ni = loadNode( ws, path.getParentPath() );
         
             return loadProperty( ws, ni, path, path.getLastComponent() );
@@ -510,6 +895,24 @@ public class ProviderManager implements ItemStore
 
     public boolean itemExists(WorkspaceImpl ws, Path path, ItemType type) throws RepositoryException
     {
+        if( !mightExist( ws, path ) ) return false;
+        
+        //
+        //  Only Nodes which the provider has returned values for have a state,
+        //  so the missing ones are always asked from the provider.
+        //
+        if( type == ItemType.NODE )
+        {
+            if( m_states.get( ws, path ) != null ) return true;
+        }
+        else if( !path.isRoot() )
+        {
+            NodeStateCache.NodeState state = m_states.get( ws, path.getParentPath() );
+            
+            if( state != null && state.getPropertyNames() != null ) 
+                return state.getPropertyNames().contains( path.getLastComponent() );
+        }
+        
         ProviderInfo pi = getProviderInfo( ws, path );
         
         try
@@ -535,6 +938,11 @@ public class ProviderManager implements ItemStore
             throw new ValueFormatException("Trying to save an UNDEFINED property type: "+path.toString(tx.getWorkspace().getSession()));
         
         ValueContainer vc = value.deepClone(tx.getWorkspace().getSession());
+        
+        added( tx.getWorkspace(), path );
+        
+        m_states.invalidate( tx, path.getParentPath() );
+        
         try
         {
             pi.lock.writeLock().lock();
@@ -550,6 +958,12 @@ public class ProviderManager implements ItemStore
     public void stop()
     {
         log.fine("Shutting down all providers...");
+        
+        for( ExistenceFilter f : m_filters.values() ) f.stop();
+        
+        log.fine("Node state cache at shutdown: "+m_states);
+        m_states.clear();
+        
         for( ProviderInfo pi : m_providers )
         {
             try
@@ -601,13 +1015,23 @@ public class ProviderManager implements ItemStore
 
     public List<QName> listProperties(WorkspaceImpl ws, Path path) throws RepositoryException
     {
+        long generation = m_states.getGeneration();
+        
+        NodeStateCache.NodeState state = m_states.get( ws, path );
+        
+        if( state != null && state.getPropertyNames() != null ) return state.getPropertyNames();
+        
         ProviderInfo pi = getProviderInfo( ws, path );
         
         try
         {
             pi.lock.readLock().lock();
         
-            return pi.provider.listProperties(ws, path);
+            List<QName> names = pi.provider.listProperties(ws, path);
+            
+            m_states.putPropertyNames( ws, path, names, generation );
+            
+            return names;
         }
         finally
         {
@@ -644,8 +1068,24 @@ public class ProviderManager implements ItemStore
         finally
         {
             pi.lock.writeLock().unlock();
+            m_states.finished( tx );
         }
+    }
 
+    /**
+     *  Waits for durability outside of the lock, so that concurrent saves can
+     *  share the flush.
+     */
+    public void sync(StoreTransaction tx) throws RepositoryException
+    {
+        try
+        {
+            tx.sync();
+        }
+        catch( RepositoryException e )
+        {
+            throw new RepositoryException("The changes were saved, but they may not survive a crash: "+e.getMessage(), e);
+        }
     }
 
     public void storeCancelled(StoreTransaction tx) throws RepositoryException
@@ -661,10 +1101,274 @@ public class ProviderManager implements ItemStore
         finally
         {
             pi.lock.writeLock().unlock();
+            m_states.finished( tx );
         }
 
     }
 
+    /**
+     *  Returns false, if the existence filter knows that nothing exists at the path.
+     */
+    private boolean mightExist( WorkspaceImpl ws, Path path )
+    {
+        ExistenceFilter f = m_filters.get( ws.getName() );
+        
+        return f == null || isSystemPath( path ) || f.mightContain( path );
+    }
+    
+    /**
+     *  Returns true, if the path is /jcr:system or under it.  Some providers share
+     *  /jcr:system between all of their workspaces, so the changes made there in
+     *  one workspace show up in the others.
+     */
+    static boolean isSystemPath( Path path )
+    {
+        return JCRConstants.Q_JCR_SYSTEM_PATH.equals( path ) || JCRConstants.Q_JCR_SYSTEM_PATH.isParentOf( path );
+    }
+    
+    /**
+     *  Returns true, if the existence filter of the workspace has been built.
+     *  Used for testing.
+     */
+    boolean isExistenceFilterReady( WorkspaceImpl ws )
+    {
+        ExistenceFilter f = m_filters.get( ws.getName() );
+        
+        return f != null && f.isReady();
+    }
+    
+    /**
+     *  Returns the cache of Node states.  Used for testing.
+     */
+    NodeStateCache getNodeStateCache()
+    {
+        return m_states;
+    }
+    
+    /**
+     *  Records a new item in the existence filter.  This must happen before the
+     *  item is given to the provider, so that the filter never misses it.
+     */
+    private void added( WorkspaceImpl ws, Path path )
+    {
+        ExistenceFilter f = m_filters.get( ws.getName() );
+        
+        if( f != null && !isSystemPath( path ) ) f.m_paths.add( path );
+    }
+    
+    /**
+     *  Knows which paths may exist in a workspace.  Until the whole workspace has
+     *  been walked through, it does not know anything.
+     *  <p>
+     *  When a provider moves or copies a subtree by itself, the paths under the
+     *  destination are not added one by one.  Instead, an alias is recorded, so
+     *  that a path under the destination may exist if the corresponding path under 
+     *  the source may exist.  Since this gets slow with lots of aliases, the filter
+     *  gives up after MAX_ALIASES of them, until the repository is restarted.
+     *  <p>
+     *  Nothing under /jcr:system is filtered, since the other workspaces of the
+     *  provider may add items there without this filter ever hearing of them.
+     */
+    private class ExistenceFilter
+    {
+        private static final int      INITIAL_CAPACITY = 16*1024;
+        private static final double   FALSE_POSITIVES  = 0.005;
+        private static final int      MAX_ALIASES      = 64;
+        
+        private static final int      NEW      = 0;
+        private static final int      BUILDING = 1;
+        private static final int      READY    = 2;
+        private static final int      FAILED   = 3;
+        
+        final BloomFilter             m_paths    = new BloomFilter( INITIAL_CAPACITY, FALSE_POSITIVES );
+        private final ProviderInfo    m_provider;
+        private final String          m_workspace;
+        private final List<Path[]>    m_aliases  = new CopyOnWriteArrayList<Path[]>();
+        private volatile int          m_state    = NEW;
+        
+        ExistenceFilter( ProviderInfo pi, String workspace )
+        {
+            m_provider  = pi;
+            m_workspace = workspace;
+        }
+        
+        boolean mightContain( Path path )
+        {
+            int state = m_state;
+            
+            if( state == READY ) return contains( path, 0 );
+            
+            if( state == NEW ) startBuilding();
+            
+            return true;
+        }
+        
+        private boolean contains( Path path, int depth )
+        {
+            if( m_paths.mightContain( path ) ) return true;
+            
+            if( depth >= MAX_ALIASES ) return true;
+            
+            for( Path[] alias : m_aliases )
+            {
+                Path dest = alias[0];
+                
+                if( dest.equals( path ) || dest.isParentOf( path ) )
+                {
+                    Path src = alias[1];
+                    
+                    for( int i = dest.depth(); i < path.depth(); i++ )
+                    {
+                        src = src.resolve( path.getComponent(i) );
+                    }
+                    
+                    if( contains( src, depth+1 ) ) return true;
+                }
+            }
+            
+            return false;
+        }
+        
+        synchronized void addAlias( Path dest, Path src )
+        {
+            m_aliases.add( new Path[] { dest, src } );
+            
+            if( m_aliases.size() > MAX_ALIASES && m_state != FAILED )
+            {
+                log.info("Too many subtree moves in workspace "+m_workspace+", not using the existence filter until restart");
+                m_state = FAILED;
+            }
+        }
+        
+        /**
+         *  Returns true, once the filter can tell that something does not exist.
+         */
+        boolean isReady()
+        {
+            return m_state == READY;
+        }
+        
+        synchronized void stop()
+        {
+            m_state = FAILED;
+        }
+        
+        private synchronized void startBuilding()
+        {
+            if( m_state != NEW ) return;
+            
+            m_state = BUILDING;
+            
+            Thread t = new Thread("Priha existence filter for workspace "+m_workspace)
+            {
+                @Override
+                public void run()
+                {
+                    build();
+                }
+            };
+            
+            t.setDaemon( true );
+            t.start();
+        }
+        
+        /**
+         *  Walks through the workspace in a Session of its own, since the one
+         *  which started the walk may be closed at any time.  The items which are
+         *  removed during the walk are skipped, and the ones which are added are 
+         *  added by the writers.
+         */
+        private void build()
+        {
+            long        start   = System.currentTimeMillis();
+            SessionImpl session = null;
+            
+            try
+            {
+                session = m_repository.login( m_workspace );
+                
+                WorkspaceImpl ws = session.getWorkspace();
+                
+                ArrayList<Path> stack = new ArrayList<Path>();
+                stack.add( Path.ROOT );
+                
+                while( !stack.isEmpty() && m_state == BUILDING )
+                {
+                    Path path = stack.remove( stack.size()-1 );
+                    
+                    try
+                    {
+                        List<QName> properties = listProperties( ws, path );
+                        
+                        m_paths.add( path );
+                        
+                        for( QName name : properties ) m_paths.add( path.resolve( name ) );
+                        
+                        for( Path child : listNodes( ws, path ) )
+                        {
+                            if( !isSystemPath( child ) ) stack.add( child );
+                        }
+                    }
+                    catch( PathNotFoundException e )
+                    {
+                        // Removed while we were walking.
+                    }
+                    catch( ItemNotFoundException e )
+                    {
+                        // Some providers say this instead.
+                    }
+                }
+                
+                synchronized( this )
+                {
+                    if( m_state == BUILDING ) m_state = READY;
+                }
+                
+                log.fine("Existence filter for workspace "+m_workspace+" has "+m_paths.size()+" paths in "+
+                         m_paths.getSizeInBytes()+" bytes, built in "+(System.currentTimeMillis()-start)+" ms");
+            }
+            catch( Exception e )
+            {
+                if( m_state == BUILDING )
+                    log.info("Unable to build the existence filter for workspace "+m_workspace+", not using it: "+e.getMessage());
+                
+                stop();
+            }
+            finally
+            {
+                if( session != null ) session.logout();
+            }
+        }
+        
+        private List<QName> listProperties( WorkspaceImpl ws, Path path ) throws RepositoryException
+        {
+            try
+            {
+                m_provider.lock.readLock().lock();
+                
+                return m_provider.provider.listProperties( ws, path );
+            }
+            finally
+            {
+                m_provider.lock.readLock().unlock();
+            }
+        }
+        
+        private List<Path> listNodes( WorkspaceImpl ws, Path path ) throws RepositoryException
+        {
+            try
+            {
+                m_provider.lock.readLock().lock();
+                
+                return m_provider.provider.listNodes( ws, path );
+            }
+            finally
+            {
+                m_provider.lock.readLock().unlock();
+            }
+        }
+    }
+    
     /**
      *  Stores information about a provider.
      */
@@ -675,6 +1379,50 @@ public class ProviderManager implements ItemStore
         public ReadWriteLock      lock;
     }
 
+    /**
+     *  A ReadWriteLock which does not lock anything.  Used for the providers which
+     *  implement {@link ConcurrentProvider} and do their own locking.
+     */
+    private static class NoLock implements ReadWriteLock, Lock
+    {
+        public Lock readLock()
+        {
+            return this;
+        }
+
+        public Lock writeLock()
+        {
+            return this;
+        }
+
+        public void lock()
+        {
+        }
+
+        public void lockInterruptibly()
+        {
+        }
+
+        public boolean tryLock()
+        {
+            return true;
+        }
+
+        public boolean tryLock( long time, TimeUnit unit )
+        {
+            return true;
+        }
+
+        public void unlock()
+        {
+        }
+
+        public Condition newCondition()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     /**
      *  Returns the name of the default workspace.  This is usually "default", but
      *  it may change depending on how you configure Priha.
@@ -690,6 +1438,8 @@ public class ProviderManager implements ItemStore
     {
         ProviderInfo pi = m_workspaceAccess.get( tx.getWorkspace().getName() );
         
+        m_states.invalidate( tx, internalPath );
+        
         try
         {
             pi.lock.writeLock().lock();
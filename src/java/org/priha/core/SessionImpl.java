@@ -134,6 +134,18 @@ public class SessionImpl implements Session, NamespaceMapper
         return m_provider.listNodes(parentpath);
     }
     
+    /**
+     *  Tells the Session that the subtree under a Node is about to be traversed,
+     *  so that it may be loaded in one go.
+     *  
+     *  @param path The path of the Node.
+     *  @throws RepositoryException If the subtree cannot be loaded.
+     */
+    public void prefetch( Path path ) throws RepositoryException
+    {
+        m_provider.prefetch(path);
+    }
+    
     boolean hasNode( String absPath ) throws RepositoryException
     {
         return hasNode( PathFactory.getPath(this,absPath) );
@@ -335,8 +347,27 @@ public class SessionImpl implements Session, NamespaceMapper
      *  <li>The Path of the old Node (and all other Nodes which refer to it) is changed to point at the new location
      *  <li>The Node is marked as being MOVED instead of REMOVED.
      *  </ol>
+     *  The changes made by a move which obeys the constraints are remembered, so that
+     *  a provider which can move a whole subtree at once does not need to copy every
+     *  item when they are saved.  The internal moves which renumber same-name siblings
+     *  are still saved one item at a time.
      */
     public void internalMove(String srcAbsPath, String destAbsPath, boolean obeyConstraints) throws ItemExistsException, PathNotFoundException, VersionException, ConstraintViolationException, LockException, RepositoryException
+    {
+        Path srcPath     = PathFactory.getPath( this, srcAbsPath );
+        int  firstChange = m_provider.m_changedItems.size();
+        
+        Path destPath = moveItems( srcAbsPath, destAbsPath, obeyConstraints );
+        
+        if( obeyConstraints ) m_provider.moved( srcPath, destPath, firstChange );
+    }
+    
+    /**
+     *  Moves a Node and its descendants one at a time.
+     *  
+     *  @return The path of the Node at its new location.
+     */
+    private Path moveItems(String srcAbsPath, String destAbsPath, boolean obeyConstraints) throws ItemExistsException, PathNotFoundException, VersionException, ConstraintViolationException, LockException, RepositoryException
     {
         System.out.println("Moving "+srcAbsPath+" to "+destAbsPath);
 
@@ -381,7 +412,7 @@ public class SessionImpl implements Session, NamespaceMapper
 
                 String newPath = destAbsPath + "/" + relPath;
                 System.out.println("Child path move "+child.getPath()+" => "+newPath );
-                internalMove( child.getPath(), newPath, obeyConstraints );
+                moveItems( child.getPath(), newPath, obeyConstraints );
             }
         
             for( PropertyIterator pi = srcnode.getProperties(); pi.hasNext(); )
@@ -431,6 +462,8 @@ public class SessionImpl implements Session, NamespaceMapper
 //            m_provider.remove( srcnode ); // FIXME: Make sure this is ok
             
             getPathManager().move( srcnode.getInternalPath(), destnode.getInternalPath() ); // FIXME: OK with new ChangeStore?
+            
+            return destnode.getInternalPath();
         }
         finally
         {
@@ -47,11 +47,19 @@ public class SessionProvider
     
     private static final String PROP_SESSIONCACHESIZE = "priha.session.cacheSize";
     private static final String PROP_MAXITEMSIZE = "priha.session.maxCachedItemSize";
+    private static final String PROP_PREFETCHDEPTH = "priha.session.prefetchDepth";
     
     private int m_maxItemSize;
+    private int m_prefetchDepth;
     
     private Map<PathRef,ItemImpl> m_fetchedItems;
     private Map<String,NodeImpl>  m_uuidMap;
+    private Map<Path,List<Path>>  m_childLists;
+    private Map<Path,List<QName>> m_propertyLists;
+    
+    /* The Session.move() which made each of the unsaved changes, if any. */
+    private Map<Change,Move>      m_moves = new IdentityHashMap<Change,Move>();
+    
     private Logger             log = Logger.getLogger(SessionProvider.class.getName());
     
     public SessionProvider( SessionImpl session, ItemStore source )
@@ -67,9 +75,12 @@ public class SessionProvider
         //
         int cacheSize = Integer.parseInt(session.getRepository().getProperty( PROP_SESSIONCACHESIZE, "1000" ));
         m_maxItemSize = Integer.parseInt(session.getRepository().getProperty( PROP_MAXITEMSIZE, "2048") );
+        m_prefetchDepth = Integer.parseInt(session.getRepository().getProperty( PROP_PREFETCHDEPTH, "3") );
         
         m_fetchedItems = new SizeLimitedHashMap<PathRef,ItemImpl>(cacheSize);
         m_uuidMap      = new SizeLimitedHashMap<String,NodeImpl>(cacheSize);
+        m_childLists   = new SizeLimitedHashMap<Path,List<Path>>(cacheSize);
+        m_propertyLists = new SizeLimitedHashMap<Path,List<QName>>(cacheSize);
         
         log.fine("Initialized SessionProvider with session cache size of "+cacheSize+" items, of max "+m_maxItemSize+" bytes");
     }
@@ -111,6 +122,58 @@ public class SessionProvider
         }
     }
     
+    /**
+     *  Caches an Item which the ItemStore loaded along with another one, unless
+     *  a copy of it has already been cached.
+     *  
+     *  @param ii Item to cache.
+     */
+    void prefetched( final ItemImpl ii )
+    {
+        if( !m_fetchedItems.containsKey( ii.getPathReference() ) ) cache( ii, null );
+    }
+    
+    /**
+     *  Loads the subtree under a Node in one go, if the ItemStore supports it.
+     *  Call this before traversing the subtree.  The lists of child Nodes and 
+     *  properties which are loaded along with the Items are used until something 
+     *  is saved in the Repository.  Does nothing, if the children of the Node have
+     *  already been loaded.
+     *  
+     *  @param path The topmost Node.
+     *  @throws RepositoryException If the loading fails.
+     */
+    public void prefetch( Path path ) throws RepositoryException
+    {
+        if( m_prefetchDepth <= 0 || m_childLists.containsKey( path ) ) return;
+        
+        try
+        {
+            m_source.prefetch( m_workspace, path, m_prefetchDepth, m_childLists, m_propertyLists );
+        }
+        catch( PathNotFoundException e )
+        {
+            // Fine, the Node has not been saved yet.
+        }
+    }
+    
+    /**
+     *  Visits all Sessions from this particular Repository and clears the
+     *  prefetched lists, since a save may have changed any of them.
+     */
+    private void clearAllChildLists()
+    {
+        m_workspace.getSession().getRepository().visit( new RepositoryImpl.SessionVisitor() {
+
+            public void visit( SessionImpl session )
+            {
+                session.m_provider.m_childLists.clear();
+                session.m_provider.m_propertyLists.clear();
+            }
+            
+        });
+    }
+    
     /**
      *  Visits all Sessions from this particular Repository and clears local caches.
      *  
@@ -174,8 +237,11 @@ public class SessionProvider
     public void logout()
     {
         m_changedItems.clear();
+        m_moves.clear();
         m_fetchedItems.clear();
         m_uuidMap.clear();
+        m_childLists.clear();
+        m_propertyLists.clear();
         m_workspace = null;
         m_source = null;
     }
@@ -291,7 +357,9 @@ public class SessionProvider
         
         try
         {
-            List<? extends Path> existingNodes = m_source.listNodes(m_workspace, parentpath);
+            List<? extends Path> existingNodes = m_childLists.get(parentpath);
+            
+            if( existingNodes == null ) existingNodes = m_source.listNodes(m_workspace, parentpath);
             
             for( Path p : existingNodes )
             {
@@ -350,6 +418,26 @@ public class SessionProvider
     public void clear()
     {
         m_changedItems.clear();
+        m_moves.clear();
+    }
+    
+    /**
+     *  Records that the changes from the given position of the change list onwards
+     *  were made by moving a Node.  When they are saved, the provider may move the
+     *  whole subtree at once instead.
+     *  
+     *  @param src The old path of the Node.
+     *  @param dest The new path of the Node.
+     *  @param firstChange The size of the change list before the move.
+     */
+    void moved( Path src, Path dest, int firstChange )
+    {
+        Move move = new Move( src, dest );
+        
+        for( Change c : m_changedItems.getChangesSince( firstChange ) )
+        {
+            m_moves.put( c, move );
+        }
     }
 
 //    @SuppressWarnings("fallthrough")
@@ -362,6 +450,7 @@ public class SessionProvider
 //        m_changedItems.dump();
         
         List<Path> toberemoved = new ArrayList<Path>();
+        List<Path> removedNodes = new ArrayList<Path>();
         
         ChangeStore unsaved = new ChangeStore();
         
@@ -380,6 +469,8 @@ public class SessionProvider
         
         ChangeStore changesDone = new ChangeStore();
         
+        Map<Move,Boolean> movesDone = new HashMap<Move,Boolean>();
+        
         try
         {
             Change change;
@@ -390,10 +481,24 @@ public class SessionProvider
                     
                 if( path.isParentOf(ii.getInternalPath()) || path.equals( ii.getInternalPath() ))
                 {
+                    //
+                    //  If the provider moved the whole subtree, the copies made by
+                    //  the move are already in place.
+                    //
+                    Move    move  = m_moves.remove( change );
+                    boolean moved = move != null && moveSubtree( tx, path, move, movesDone, toberemoved, removedNodes );
+                    Path    changePath = moved ? move.relocate( change.getPath() ) : change.getPath();
+                    
                     if( ii.isNode() )
                     {
                         NodeImpl ni = (NodeImpl) ii;
-                        checkSanity(change.getState(), change.getPath(), ni);
+                        
+                        //
+                        //  The Nodes created by a move the provider did are already complete,
+                        //  and might have been moved again since.
+                        //
+                        if( !moved || change.getState() != ItemState.NEW )
+                            checkSanity(change.getState(), changePath, ni);
                     
                         switch( change.getState() )
                         {
@@ -411,7 +516,7 @@ public class SessionProvider
                                 {
                                     System.out.println("Reordering children...");
                                     
-                                    m_source.reorderNodes( tx, change.getPath(), childOrder );
+                                    m_source.reorderNodes( tx, changePath, childOrder );
                                     ni.setChildOrder(null); // Rely again on the repository order.
                                     
                                     
@@ -423,7 +528,8 @@ public class SessionProvider
                             case NEW:
                                 ni.preSave();
                                 toberemoved.remove( change.getPath() ); // In case it's there
-                                m_source.addNode( tx, ni );
+                                removedNodes.remove( change.getPath() );
+                                if( !moved ) m_source.addNode( tx, ni );
                                 ni.postSave();
                                 cache(ni,null);
                                 break;
@@ -441,12 +547,13 @@ public class SessionProvider
                                 catch( UnsupportedRepositoryOperationException e ) {} // Fine, no uuid
                                 
                                 toberemoved.add( change.getPath() );
+                                removedNodes.add( change.getPath() );
 //                                m_source.remove(tx, change.getPath());
                                 clearAllCaches( ni, uuid );
                                 break;
                                 
                             case MOVED:                                
-                                toberemoved.add( change.getPath() );
+                                if( !moved ) toberemoved.add( change.getPath() );
 //                                m_source.remove(tx, change.getPath());
                                 clearAllCaches( ni, null );
                                 break;
@@ -492,14 +599,14 @@ public class SessionProvider
                                     break;
                                 }
                                 pi.preSave();
-                                m_source.putProperty( tx, change.getPath(), change.getValue() );
+                                if( !moved ) m_source.putProperty( tx, change.getPath(), change.getValue() );
                                 pi.postSave();
                                 cache(pi,null);
                                 toberemoved.remove( change.getPath() ); // In case it's there
                                 break;
                                 
                             case REMOVED:
-                                if( !pi.isTransient() )
+                                if( !pi.isTransient() && !moved )
                                 {
                                     toberemoved.add(change.getPath());
 //                                m_source.remove(tx, change.getPath());
@@ -544,10 +651,37 @@ public class SessionProvider
             
             });
         
+            //
+            //  If the provider can remove a whole subtree at once, the items under
+            //  a removed Node need not be removed one by one.  The topmost Nodes
+            //  go first.
+            //
+            Collections.sort( removedNodes, new Comparator<Path>() {
+
+                public int compare(Path o1, Path o2)
+                {
+                    return o1.depth() - o2.depth();
+                }
+            
+            });
+            
+            Set<Path> subtrees = new HashSet<Path>();
+            
+            for( Path p : removedNodes )
+            {
+                if( isInSubtree( p, subtrees ) ) continue;
+                
+                log.finest("Removing subtree "+p);
+                if( m_source.removeSubtree( tx, p ) ) subtrees.add( p );
+            }
+            
             for( Path p : toberemoved )
             {
-                log.finest("Removing "+p);
-                m_source.remove(tx, p);
+                if( !subtrees.contains( p ) && !isInSubtree( p, subtrees ) )
+                {
+                    log.finest("Removing "+p);
+                    m_source.remove(tx, p);
+                }
                 //
                 // Some accesses may trigger local cache hits, so we do remove any items at this
                 // stage as well.
@@ -565,6 +699,8 @@ public class SessionProvider
             m_source.storeFinished( tx );
             succeeded = true;
             
+            clearAllChildLists();
+            
             m_workspace.getObservationManager().fireEvents( changesDone );
             
         }
@@ -572,8 +708,114 @@ public class SessionProvider
         {
             if(!succeeded) m_source.storeCancelled( tx );
         }
+        
+        //
+        //  The provider has committed the save, so a failure from here on
+        //  must not cancel it.
+        //
+        m_source.sync( tx );
     }
 
+    /**
+     *  Asks the provider to move the subtree when the first change made by a move
+     *  is saved.  The provider cannot do it if the save does not cover both ends of
+     *  the move, or if the Node was moved on top of a Node which is still waiting
+     *  to be removed.  The removals which are waiting for the moved Nodes are
+     *  redirected to their new paths.
+     *  
+     *  @return True, if the provider moved the subtree.
+     */
+    private boolean moveSubtree( StoreTransaction tx, 
+                                 Path scope, 
+                                 Move move, 
+                                 Map<Move,Boolean> movesDone, 
+                                 List<Path> toberemoved, 
+                                 List<Path> removedNodes ) 
+        throws RepositoryException
+    {
+        Boolean done = movesDone.get( move );
+        
+        if( done == null )
+        {
+            done = (scope.equals( move.m_src ) || scope.isParentOf( move.m_src )) &&
+                   (scope.equals( move.m_dest ) || scope.isParentOf( move.m_dest )) &&
+                   m_source.itemExists( m_workspace, move.m_src, ItemType.NODE ) &&
+                   !m_source.itemExists( m_workspace, move.m_dest, ItemType.NODE ) &&
+                   m_source.itemExists( m_workspace, move.m_dest.getParentPath(), ItemType.NODE ) &&
+                   m_source.moveSubtree( tx, move.m_src, move.m_dest );
+            
+            if( done )
+            {
+                log.finest("Moved subtree "+move.m_src+" to "+move.m_dest);
+                move.relocate( toberemoved );
+                move.relocate( removedNodes );
+            }
+            
+            movesDone.put( move, done );
+        }
+        
+        return done;
+    }
+    
+    /**
+     *  A Node moved by Session.move().
+     */
+    private static class Move
+    {
+        private final Path m_src;
+        private final Path m_dest;
+        
+        public Move( Path src, Path dest )
+        {
+            m_src  = src;
+            m_dest = dest;
+        }
+        
+        /**
+         *  Changes the paths at or under the old path of the Node to point at
+         *  the new one.
+         */
+        public void relocate( List<Path> paths )
+        {
+            for( ListIterator<Path> i = paths.listIterator(); i.hasNext(); )
+            {
+                i.set( relocate( i.next() ) );
+            }
+        }
+        
+        /**
+         *  Returns the new path of an Item at or under the old path of the Node.
+         *  Other paths are returned as they are.
+         */
+        public Path relocate( Path p )
+        {
+            if( !p.equals( m_src ) && !m_src.isParentOf( p ) ) return p;
+            
+            Path np = m_dest;
+            
+            for( int j = m_src.depth(); j < p.depth(); j++ ) np = np.resolve( p.getComponent( j ) );
+            
+            return np;
+        }
+    }
+    
+    /**
+     *  Returns true, if any of the parents of the given path is in the set.
+     */
+    private static boolean isInSubtree( Path path, Set<Path> subtrees ) throws RepositoryException
+    {
+        if( subtrees.isEmpty() ) return false;
+        
+        for( Path p = path; !p.isRoot(); )
+        {
+            p = p.getParentPath();
+            
+            if( subtrees.contains( p ) ) return true;
+        }
+        
+        return false;
+    }
+    
     private void checkMoveConstraint(Path path)
                                                throws RepositoryException,
                                                    ValueFormatException,
@@ -744,9 +986,18 @@ public class SessionProvider
         
         try
         {
-            ni = (NodeImpl) m_source.getItem( m_workspace, path );
+            List<QName> propertyNames = m_propertyLists.get( path );
             
-            List<QName> propertyNames = m_source.listProperties( m_workspace, path );
+            if( propertyNames != null )
+            {
+                ni = (NodeImpl) getItem( path );
+            }
+            else
+            {
+                ni = (NodeImpl) m_source.getItem( m_workspace, path );
+            
+                propertyNames = m_source.listProperties( m_workspace, path );
+            }
             
             for( QName pName : propertyNames )
             {
@@ -809,9 +1060,13 @@ public class SessionProvider
         //
         if( keepChanges ) return;
         
+        m_childLists.clear();
+        m_propertyLists.clear();
+        
         if( path.isRoot() ) 
         {
             m_changedItems.clear(); // Shortcut
+            m_moves.clear();
             return;
         }
         
@@ -822,6 +1077,7 @@ public class SessionProvider
             if( path.isParentOf(change.getItem().getInternalPath()) )
             {
                 c.remove();
+                m_moves.remove( change );
             }
         }
  
@@ -20,6 +20,7 @@ package org.priha.core;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 import java.util.logging.Logger;
 
@@ -39,6 +40,7 @@ import org.priha.path.InvalidPathException;
 import org.priha.path.Path;
 import org.priha.path.PathFactory;
 import org.priha.query.PrihaQueryManager;
+import org.priha.query.aqt.QueryRootNode;
 import org.priha.util.LazyPropertyIteratorImpl;
 import org.priha.xml.XMLImport;
 import org.xml.sax.ContentHandler;
@@ -135,6 +137,8 @@ public class WorkspaceImpl
             // Fine, expected as well.
         }
         
+        srcNode.getSession().prefetch( srcNode.getInternalPath() );
+        
         for( NodeIterator ni = srcNode.getNodes(); ni.hasNext(); )
         {
             checkUUIDs( (NodeImpl)ni.nextNode(), removeExisting );
@@ -302,6 +306,8 @@ public class WorkspaceImpl
             throw new VersionException("Destination node "+destnode.getPath()+" (or one of its parent nodes) is checked in, and therefore unmodifiable.");
         }
         
+        srcSession.prefetch( srcnode.getInternalPath() );
+        
         for( NodeIterator ni = srcnode.getNodes(); ni.hasNext(); )
         {
             Node child = ni.nextNode();
@@ -509,6 +515,20 @@ public class WorkspaceImpl
         lm.logout();
     }
 
+    /**
+     *  Asks the provider for the Nodes which may match the query.  Unsaved changes
+     *  are not seen.
+     *  
+     *  @param query The query.
+     *  @return The paths of the candidate Nodes in document order, or null, if the
+     *          provider cannot run queries.
+     *  @throws RepositoryException If the provider fails.
+     */
+    public List<Path> findNodes( QueryRootNode query ) throws RepositoryException
+    {
+        return m_providerManager.findNodes( this, query );
+    }
+    
     /**
      *  Checks directly from the repository if an item exists.
      *  
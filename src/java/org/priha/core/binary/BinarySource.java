@@ -19,6 +19,7 @@ package org.priha.core.binary;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
 
 
 /**
@@ -49,6 +50,17 @@ public interface BinarySource
      */
     public long getLength() throws IOException;
 
+    /**
+     *  Writes the whole contents of the BinarySource to the given channel.
+     *  Sources which are backed by a file can do this without copying the
+     *  data through the Java heap.
+     *  
+     *  @param out The channel to write to.
+     *  @return The number of bytes written.
+     *  @throws IOException If reading or writing fails.
+     */
+    public long transferTo( WritableByteChannel out ) throws IOException;
+
     /**
      *  Duplicates the BinarySource object.
      *  
@@ -0,0 +1,80 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.core.binary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ *  A BinarySource which reads from a ByteBuffer.  The buffer may be a direct one, 
+ *  so the binary need not be on the Java heap at all.  The contents of the buffer
+ *  must not change while the source is in use.
+ */
+public class BufferBinarySource implements BinarySource
+{
+    protected ByteBuffer m_buffer;
+
+    /**
+     *  Creates a source which reads the bytes between the position and 
+     *  the limit of the given buffer.
+     *  
+     *  @param buffer The buffer.  Its position and limit are not changed.
+     */
+    public BufferBinarySource( ByteBuffer buffer )
+    {
+        m_buffer = buffer.slice();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public long getLength()
+    {
+        return m_buffer.capacity();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public InputStream getStream()
+    {
+        return new ByteBufferInputStream( m_buffer.duplicate() );
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public long transferTo( WritableByteChannel out ) throws IOException
+    {
+        ByteBuffer buf = m_buffer.duplicate();
+
+        while( buf.hasRemaining() ) out.write( buf );
+
+        return m_buffer.capacity();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public BufferBinarySource clone()
+    {
+        return new BufferBinarySource( m_buffer );
+    }
+}
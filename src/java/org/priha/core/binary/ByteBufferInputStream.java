@@ -0,0 +1,90 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.core.binary;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ *  An InputStream which reads from a ByteBuffer, starting at its current
+ *  position.  Reading moves the position of the buffer, so give it a
+ *  duplicate if the buffer is shared.
+ */
+public class ByteBufferInputStream extends InputStream
+{
+    private ByteBuffer m_buf;
+
+    public ByteBufferInputStream( ByteBuffer buf )
+    {
+        m_buf = buf;
+    }
+
+    /**
+     *  Returns the next bytes as a buffer of their own without copying them, 
+     *  and skips over them.
+     *  
+     *  @param length The number of bytes.
+     *  @return A ByteBuffer which shares the contents with the original one.
+     *  @throws IllegalArgumentException If there are fewer bytes left.
+     */
+    public ByteBuffer slice( int length )
+    {
+        if( length > m_buf.remaining() ) throw new IllegalArgumentException("Only "+m_buf.remaining()+" bytes left");
+        
+        ByteBuffer b = m_buf.duplicate();
+        b.limit( b.position()+length );
+        
+        m_buf.position( m_buf.position()+length );
+        
+        return b.slice();
+    }
+    
+    @Override
+    public int read()
+    {
+        return m_buf.hasRemaining() ? m_buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len )
+    {
+        if( len == 0 ) return 0;
+        if( !m_buf.hasRemaining() ) return -1;
+
+        len = Math.min( len, m_buf.remaining() );
+        m_buf.get( b, off, len );
+
+        return len;
+    }
+
+    @Override
+    public long skip( long n )
+    {
+        int skipped = (int)Math.max( 0, Math.min( n, m_buf.remaining() ) );
+
+        m_buf.position( m_buf.position()+skipped );
+
+        return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+        return m_buf.remaining();
+    }
+}
@@ -18,6 +18,8 @@
 package org.priha.core.binary;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.priha.util.FileUtil;
 
@@ -48,16 +50,53 @@ public class FileBinarySource implements BinarySource
         m_file = f;
     }
     
+    /**
+     *  Returns the File which backs this source.
+     *  
+     *  @return The File.
+     */
+    public File getFile()
+    {
+        return m_file;
+    }
+    
     public long getLength()
     {
         return m_file.length();
     }
 
-    public InputStream getStream() throws FileNotFoundException
+    public InputStream getStream() throws IOException
     {
         return new FileInputStream( m_file );
     }
     
+    /**
+     *  Uses FileChannel.transferTo(), which lets the operating system copy
+     *  the data directly whenever it can.
+     */
+    public long transferTo( WritableByteChannel out ) throws IOException
+    {
+        FileInputStream in = new FileInputStream( m_file );
+        
+        try
+        {
+            FileChannel ch   = in.getChannel();
+            long        size = ch.size();
+            long        pos  = 0;
+            
+            while( pos < size )
+            {
+                pos += ch.transferTo( pos, size-pos, out );
+            }
+            
+            return pos;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
     public FileBinarySource clone()
     {
         return new FileBinarySource(m_file);
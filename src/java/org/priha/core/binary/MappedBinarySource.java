@@ -0,0 +1,76 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.core.binary;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *  A BinarySource which is backed by a memory-mapped file.  Reading from
+ *  it does not need any system calls once the pages are in memory.
+ *  <p>
+ *  The mapping stays valid until this object is garbage collected, so the
+ *  file must not be truncated while the source is in use.  Replace the file
+ *  by renaming a new one over it instead.
+ */
+public class MappedBinarySource extends BufferBinarySource
+{
+    /**
+     *  Maps the given file in read-only mode.
+     *
+     *  @param f The file to map.
+     *  @throws IOException If the file cannot be mapped.
+     */
+    public MappedBinarySource( File f ) throws IOException
+    {
+        super( map( f ) );
+    }
+
+    private MappedBinarySource( ByteBuffer buffer )
+    {
+        super( buffer );
+    }
+
+    private static ByteBuffer map( File f ) throws IOException
+    {
+        FileInputStream in = new FileInputStream( f );
+
+        try
+        {
+            FileChannel ch = in.getChannel();
+
+            return ch.map( FileChannel.MapMode.READ_ONLY, 0, ch.size() );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public MappedBinarySource clone()
+    {
+        return new MappedBinarySource( m_buffer );
+    }
+}
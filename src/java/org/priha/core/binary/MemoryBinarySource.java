@@ -21,6 +21,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 import org.priha.util.FileUtil;
 
@@ -86,6 +88,18 @@ public class MemoryBinarySource implements BinarySource
         return new ByteArrayInputStream( m_bytes );
     }
 
+    /**
+     *  {@inheritDoc}
+     */
+    public long transferTo( WritableByteChannel out ) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap( m_bytes );
+        
+        while( buf.hasRemaining() ) out.write( buf );
+        
+        return m_bytes.length;
+    }
+
     /**
      *  {@inheritDoc}
      */
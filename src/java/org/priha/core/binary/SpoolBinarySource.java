@@ -0,0 +1,195 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.core.binary;
+
+import java.io.*;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *  A FileBinarySource which copies a stream into a temporary file, so
+ *  large binaries can be read out of a database without keeping them in
+ *  the heap.
+ *  <p>
+ *  The file is deleted once {@link #dispose()} has been called on this source
+ *  and all of its clones.  A source which is never disposed is noticed once it
+ *  is no longer reachable, and the file is deleted the next time a source is
+ *  created.
+ */
+public class SpoolBinarySource extends FileBinarySource
+{
+    private static final int BUFFER_SIZE = 8192;
+    
+    /* The sources which became unreachable without being disposed. */
+    private static final ReferenceQueue<SpoolBinarySource> c_unreachable = new ReferenceQueue<SpoolBinarySource>();
+    
+    /* Keeps the Releases reachable until they have been enqueued. */
+    private static final Set<Release> c_releases = Collections.synchronizedSet( new HashSet<Release>() );
+    
+    private final Spool m_spool;
+    private Release     m_release;
+    
+    /**
+     *  Copies the given number of bytes from the stream into a temporary
+     *  file.  The stream is not closed.
+     *  
+     *  @param in The stream to copy.
+     *  @param length How many bytes to copy, or -1 to copy everything up to the
+     *                end of the stream.
+     *  @param dir The directory for the file, or null for the default temporary directory.
+     *  @throws IOException If the stream ends too early or the file cannot be written.
+     */
+    public SpoolBinarySource( InputStream in, long length, File dir ) throws IOException
+    {
+        this( new Spool( in, length, dir ) );
+    }
+    
+    private SpoolBinarySource( Spool spool )
+    {
+        super( spool.m_file );
+        m_spool = spool;
+        
+        expunge();
+        
+        spool.acquire();
+        m_release = new Release( this, spool );
+        c_releases.add( m_release );
+    }
+    
+    /**
+     *  Releases the sources which were never disposed.
+     */
+    private static void expunge()
+    {
+        Release r;
+        
+        while( (r = (Release)c_unreachable.poll()) != null )
+        {
+            c_releases.remove( r );
+            r.m_spool.release();
+        }
+    }
+    
+    /**
+     *  Tells that this source is no longer used.  The file is deleted once all
+     *  the clones have been disposed as well.  Calling this more than once does
+     *  nothing.
+     */
+    public synchronized void dispose()
+    {
+        if( m_release == null ) return;
+        
+        c_releases.remove( m_release );
+        m_release.clear();
+        m_release = null;
+        
+        m_spool.release();
+    }
+    
+    @Override
+    public long getLength()
+    {
+        return m_spool.m_length;
+    }
+    
+    /**
+     *  Returns a new source which shares the same file.
+     */
+    @Override
+    public SpoolBinarySource clone()
+    {
+        return new SpoolBinarySource( m_spool );
+    }
+    
+    /**
+     *  Releases the Spool of a source which became unreachable.  It does not
+     *  refer to the source, or the source would never become unreachable.
+     */
+    private static class Release extends PhantomReference<SpoolBinarySource>
+    {
+        private final Spool m_spool;
+        
+        public Release( SpoolBinarySource source, Spool spool )
+        {
+            super( source, c_unreachable );
+            m_spool = spool;
+        }
+    }
+    
+    /**
+     *  The temporary file, which all the clones of a source share.
+     */
+    private static class Spool
+    {
+        private final File m_file;
+        private final long m_length;
+        private int        m_users;
+        
+        public Spool( InputStream in, long length, File dir ) throws IOException
+        {
+            m_file = File.createTempFile( "priha", ".spool", dir );
+            
+            OutputStream out = new FileOutputStream( m_file );
+            
+            try
+            {
+                byte[] buf  = new byte[BUFFER_SIZE];
+                long   left = length;
+                long   size = 0;
+                
+                while( left != 0 )
+                {
+                    int n = in.read( buf, 0, left < 0 || left > buf.length ? buf.length : (int)left );
+                    
+                    if( n < 0 )
+                    {
+                        if( left > 0 ) throw new EOFException("Stream ended "+left+" bytes too early");
+                        break;
+                    }
+                    
+                    out.write( buf, 0, n );
+                    size += n;
+                    if( left > 0 ) left -= n;
+                }
+                
+                m_length = size;
+            }
+            catch( IOException e )
+            {
+                out.close();
+                m_file.delete();
+                throw e;
+            }
+            
+            out.close();
+        }
+        
+        public synchronized void acquire()
+        {
+            m_users++;
+        }
+        
+        public synchronized void release()
+        {
+            if( --m_users == 0 ) m_file.delete();
+        }
+    }
+}
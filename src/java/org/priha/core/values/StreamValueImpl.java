@@ -19,6 +19,7 @@ package org.priha.core.values;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.Calendar;
 
 import javax.jcr.PropertyType;
@@ -103,6 +104,23 @@ public class StreamValueImpl extends ValueImpl implements Value
         }
     }
     
+    /**
+     *  Writes the binary to the given channel.  This is the same as reading
+     *  getStream() to the end, but when the binary is stored in a file, the
+     *  data can be transferred without copying it through the heap.
+     *  
+     *  @param out The channel to write to.
+     *  @return The number of bytes written.
+     *  @throws IllegalStateException If the stream has already been consumed.
+     *  @throws IOException If the transfer fails.
+     */
+    public long transferTo( WritableByteChannel out ) throws IllegalStateException, IOException
+    {
+        checkStream();
+        
+        return m_value.transferTo( out );
+    }
+    
     @Override
     public String getString() throws ValueFormatException
     {
@@ -17,6 +17,8 @@
  */
 package org.priha.providers;
 
+import javax.jcr.RepositoryException;
+
 import org.priha.core.WorkspaceImpl;
 
 /**
@@ -36,4 +38,12 @@ public class BaseStoreTransaction implements StoreTransaction
         return m_workspace;
     }
 
+    /**
+     *  By default, the changes are durable as soon as storeFinished() returns,
+     *  so this does nothing.
+     */
+    public void sync() throws RepositoryException
+    {
+    }
+
 }
@@ -0,0 +1,74 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.providers;
+
+import java.util.Map;
+
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+
+import org.priha.core.WorkspaceImpl;
+import org.priha.path.Path;
+import org.priha.util.QName;
+
+/**
+ *  A RepositoryProvider may implement this interface if it can read all the
+ *  properties of a Node at once more cheaply than one by one.  Priha then
+ *  loads a Node and its properties with a single call to getProperties()
+ *  instead of calling getPropertyValue() for each property separately.
+ *  <p>
+ *  Before a traversal, such as an export or a query, Priha may also ask for a
+ *  whole subtree with getSubtree(), so that the Nodes below need not be read
+ *  one at a time.
+ *  <p>
+ *  Like the other reading methods, this is called while holding the read
+ *  lock of the provider.
+ */
+public interface BulkRead
+{
+    /**
+     *  Returns the names and values of all the properties of a Node.
+     *  
+     *  @param ws The workspace.
+     *  @param path The path of the Node.
+     *  @return A Map of property names to their values, in the same order as
+     *          listProperties() would return them.
+     *  @throws PathNotFoundException If there is no Node at the path.
+     *  @throws RepositoryException If something goes wrong.
+     */
+    public Map<QName,ValueContainer> getProperties( WorkspaceImpl ws, Path path ) 
+        throws PathNotFoundException, RepositoryException;
+    
+    /**
+     *  Returns all the Nodes in a subtree down to the given depth, with the values
+     *  of their properties.  The Nodes are in document order: each Node comes before
+     *  its children, and the children are in the same order as listNodes() would
+     *  return them.
+     *  
+     *  @param ws The workspace.
+     *  @param path The path of the topmost Node, which is also returned.
+     *  @param depth How many levels below the topmost Node are read.  Zero returns
+     *               just the topmost Node.
+     *  @return A Map of Node paths to the values of their properties, or null, if
+     *          the provider cannot read the subtree at the moment.
+     *  @throws PathNotFoundException If there is no Node at the path.
+     *  @throws RepositoryException If something goes wrong.
+     */
+    public Map<Path,Map<QName,ValueContainer>> getSubtree( WorkspaceImpl ws, Path path, int depth )
+        throws PathNotFoundException, RepositoryException;
+}
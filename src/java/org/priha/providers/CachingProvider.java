@@ -0,0 +1,501 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.providers;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.jcr.*;
+
+import org.priha.core.ItemType;
+import org.priha.core.JCRConstants;
+import org.priha.core.ProviderManager;
+import org.priha.core.RepositoryImpl;
+import org.priha.core.WorkspaceImpl;
+import org.priha.core.values.StreamValueImpl;
+import org.priha.nodetype.QNodeDefinition;
+import org.priha.path.Path;
+import org.priha.util.ConfigurationException;
+import org.priha.util.QName;
+import org.priha.util.WeightedCache;
+
+/**
+ *  A cache which lies on top of a real provider, like FileProvider or JdbcProvider,
+ *  and keeps the property values, the lists of child nodes and properties, and the
+ *  UUID mappings in memory.  It needs no external libraries.
+ *  <p>
+ *  The cache is limited by the approximate size of the cached items in bytes, 
+ *  and it uses the W-TinyLFU policy (see {@link WeightedCache}), so large scans
+ *  through the repository do not throw out the items which are used all the time.
+ *  Cache hits do not take any locks.
+ *  <p>
+ *  Nothing from an unfinished save is cached.  Every item which a save touches is
+ *  removed from the cache as it is written, and once more when the save is finished
+ *  or cancelled.  The rest of the cache stays intact.  To keep a reader from putting
+ *  back an item it read just before a save, each removal increments a generation
+ *  counter, and an item which was read in an older generation is not cached.
+ *  <p>
+ *  Configurable properties are:
+ *  <ul>
+ *    <li><b>realProvider</b> - The nickname of the underlying provider to use.</li>
+ *    <li><b>maxBytes</b> - The size of the cache in bytes.  Default is 16 MB.</li>
+ *    <li><b>maxSize</b> - The maximum size of the binary values which are cached.  
+ *        Default is 10 kB.</li>
+ *  </ul>
+ */
+public class CachingProvider implements RepositoryProvider
+{
+    private static final long   DEFAULT_MAXBYTES         = 16*1024*1024;
+    private static final long   DEFAULT_MAXCACHEABLESIZE = 10*1024;
+    
+    /** A rough guess of the average item size, used to size the frequency sketch. */
+    private static final int    AVERAGE_WEIGHT           = 256;
+    
+    /** A rough guess of the memory used by the key and the cache entry. */
+    private static final int    ENTRY_OVERHEAD           = 96;
+    
+    public static final String  PROP_MAXBYTES         = "maxBytes";
+    public static final String  PROP_MAXCACHEABLESIZE = "maxSize";
+    public static final String  PROP_REALPROVIDER     = "realProvider";
+    
+    private static final byte   VALUE      = 0;
+    private static final byte   PROPERTIES = 1;
+    private static final byte   NODES      = 2;
+    private static final byte   UUID       = 3;
+    
+    private Logger log = Logger.getLogger(CachingProvider.class.getName());
+    
+    private RepositoryProvider             m_realProvider;
+    private WeightedCache<Key,Object>      m_cache;
+    private long                           m_maxCacheableSize = DEFAULT_MAXCACHEABLESIZE;
+    
+    /** The keys touched by each ongoing save. */
+    private final Map<StoreTransaction,List<Key>> m_touched = new HashMap<StoreTransaction,List<Key>>();
+    
+    /** Incremented whenever something is removed from the cache. */
+    private final AtomicLong                      m_generation = new AtomicLong();
+    
+    public CachingProvider()
+    {
+    }
+
+    public void start(RepositoryImpl repository, Properties properties) throws ConfigurationException
+    {
+        String realProviderNick = properties.getProperty(PROP_REALPROVIDER);
+        
+        if( realProviderNick == null ) throw new ConfigurationException("Missing property "+PROP_REALPROVIDER);
+        
+        Properties props = ProviderManager.filterProperties(repository, realProviderNick);
+        
+        String className = props.getProperty("class");
+        
+        String workspaceList = properties.getProperty("workspaces");
+        if( workspaceList != null ) props.setProperty("workspaces", workspaceList);
+        
+        m_realProvider = ProviderManager.instantiateProvider(repository, className, props);
+
+        long maxBytes;
+        
+        try
+        {
+            maxBytes = Long.parseLong( properties.getProperty(PROP_MAXBYTES, Long.toString(DEFAULT_MAXBYTES)) );
+        
+            m_maxCacheableSize = Long.parseLong( properties.getProperty(PROP_MAXCACHEABLESIZE,
+                                                                        Long.toString(DEFAULT_MAXCACHEABLESIZE) ) );
+        }
+        catch( NumberFormatException e )
+        {
+            throw new ConfigurationException("Unparseable cache size: "+e.getMessage());
+        }
+        
+        m_cache = new WeightedCache<Key,Object>( maxBytes, (int)Math.min( maxBytes / AVERAGE_WEIGHT, Integer.MAX_VALUE ) );
+        
+        log.fine("Started cache of "+maxBytes+" bytes with real provider class "+m_realProvider.getClass().getName());
+    }
+
+    public void stop(RepositoryImpl rep)
+    {
+        m_realProvider.stop(rep);
+        
+        log.fine("Stopped cache: "+m_cache);
+        m_cache.clear();
+    }
+
+    public void open(RepositoryImpl rep, Credentials credentials, String workspaceName) throws RepositoryException, NoSuchWorkspaceException
+    {
+        m_realProvider.open(rep, credentials, workspaceName);
+    }
+
+    public void close(WorkspaceImpl ws)
+    {
+        log.finer("Cache statistics at close(): "+m_cache);
+        
+        m_realProvider.close(ws);
+    }
+
+    public Collection<String> listWorkspaces() throws RepositoryException
+    {
+        return m_realProvider.listWorkspaces();
+    }
+
+    //
+    //  READING
+    //
+    
+    public ValueContainer getPropertyValue(WorkspaceImpl ws, Path path) throws RepositoryException
+    {
+        Key key = new Key( ws, path, VALUE );
+        
+        ValueContainer vc = (ValueContainer)m_cache.get( key );
+        
+        if( vc != null ) return vc.sessionInstance( ws.getSession() );
+        
+        long generation = m_generation.get();
+        
+        vc = m_realProvider.getPropertyValue(ws, path);
+        
+        if( isCacheable(vc) ) put( key, vc, weigh(vc), generation );
+        
+        return vc;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<Path> listNodes(WorkspaceImpl ws, Path parentpath) throws RepositoryException
+    {
+        Key key = new Key( ws, parentpath, NODES );
+        
+        List<Path> list = (List<Path>)m_cache.get( key );
+        
+        if( list == null )
+        {
+            long generation = m_generation.get();
+            
+            list = m_realProvider.listNodes(ws, parentpath);
+            
+            put( key, list, ENTRY_OVERHEAD + 48*list.size(), generation );
+        }
+        
+        return list;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<QName> listProperties(WorkspaceImpl ws, Path path) throws RepositoryException
+    {
+        Key key = new Key( ws, path, PROPERTIES );
+        
+        List<QName> list = (List<QName>)m_cache.get( key );
+        
+        if( list == null )
+        {
+            long generation = m_generation.get();
+            
+            list = m_realProvider.listProperties(ws, path);
+            
+            put( key, list, ENTRY_OVERHEAD + 16*list.size(), generation );
+        }
+        
+        return list;
+    }
+
+    public boolean itemExists(WorkspaceImpl ws, Path path, ItemType type) throws RepositoryException
+    {
+        if( type == ItemType.NODE )
+        {
+            if( m_cache.containsKey( new Key( ws, path, PROPERTIES ) ) || 
+                m_cache.containsKey( new Key( ws, path, NODES ) ) )
+                return true;
+        }
+        else
+        {
+            if( m_cache.containsKey( new Key( ws, path, VALUE ) ) )
+                return true;
+        }
+        
+        return m_realProvider.itemExists(ws, path, type);
+    }
+
+    /*
+     *  The mappings only change when the jcr:uuid property is written or removed,
+     *  and then they are invalidated.
+     */
+    public Path findByUUID(WorkspaceImpl ws, String uuid) throws RepositoryException
+    {
+        Key key = new Key( ws, uuid, UUID );
+        
+        Path p = (Path)m_cache.get( key );
+        
+        if( p == null )
+        {
+            long generation = m_generation.get();
+            
+            p = m_realProvider.findByUUID(ws, uuid);
+            
+            put( key, p, ENTRY_OVERHEAD + 64, generation );
+        }
+        
+        return p;
+    }
+
+    public List<Path> findReferences(WorkspaceImpl ws, String uuid) throws RepositoryException
+    {
+        return m_realProvider.findReferences(ws, uuid);
+    }
+    
+    //
+    //  Binary objects are not cached, unless they are smaller than the max cacheable size.
+    //
+    private boolean isCacheable(ValueContainer o) throws ValueFormatException
+    {
+        if( o.getType() == PropertyType.BINARY )
+        {
+            if( !o.isMultiple() && o.getValue() instanceof StreamValueImpl )
+            {
+                StreamValueImpl svi = (StreamValueImpl)o.getValue();
+                
+                try
+                {
+                    return svi.getLength() <= m_maxCacheableSize;
+                }
+                catch( IOException e ) {} // Fine, can be ignored.
+            }
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     *  Caches an item, unless something has been removed from the cache since
+     *  the item was read.
+     */
+    private void put( Key key, Object item, int weight, long generation )
+    {
+        if( generation != m_generation.get() ) return;
+        
+        m_cache.put( key, item, weight );
+        
+        //
+        //  A save may have removed the old item while we were putting this in.
+        //
+        if( generation != m_generation.get() ) m_cache.remove( key );
+    }
+    
+    private static int weigh( ValueContainer vc )
+    {
+        long size = vc.getSize();
+        
+        return ENTRY_OVERHEAD + (int)Math.min( Math.max( size, 16 ), Integer.MAX_VALUE - ENTRY_OVERHEAD );
+    }
+    
+    /**
+     *  Returns the cache itself, for testing.
+     */
+    WeightedCache<?,?> getCache()
+    {
+        return m_cache;
+    }
+    
+    //
+    //  WRITING
+    //
+    
+    public StoreTransaction storeStarted( WorkspaceImpl ws ) throws RepositoryException
+    {
+        StoreTransaction tx = m_realProvider.storeStarted( ws );
+        
+        synchronized( m_touched )
+        {
+            m_touched.put( tx, new ArrayList<Key>() );
+        }
+        
+        return tx;
+    }
+
+    public void addNode(StoreTransaction tx, Path path, QNodeDefinition def) throws RepositoryException
+    {
+        WorkspaceImpl ws = tx.getWorkspace();
+        
+        if( !path.isRoot() )
+            invalidate( tx, new Key( ws, path.getParentPath(), NODES ) );
+        
+        invalidate( tx, new Key( ws, path, NODES ) );
+        invalidate( tx, new Key( ws, path, PROPERTIES ) );
+        
+        m_realProvider.addNode(tx, path, def);
+    }
+
+    public void putPropertyValue(StoreTransaction tx, Path path, ValueContainer vc ) throws RepositoryException
+    {
+        WorkspaceImpl ws = tx.getWorkspace();
+        
+        invalidate( tx, new Key( ws, path, VALUE ) );
+        invalidate( tx, new Key( ws, path.getParentPath(), PROPERTIES ) );
+        
+        if( path.getLastComponent().equals( JCRConstants.Q_JCR_UUID ) )
+        {
+            invalidateUUID( tx, path );
+            invalidate( tx, new Key( ws, vc.getValue().valueAsString(), UUID ) );
+        }
+        
+        m_realProvider.putPropertyValue(tx, path, vc);
+    }
+
+    public void remove(StoreTransaction tx, Path path) throws RepositoryException
+    {
+        WorkspaceImpl ws = tx.getWorkspace();
+        
+        if( !path.isRoot() )
+        {
+            if( path.getLastComponent().equals( JCRConstants.Q_JCR_UUID ) ) invalidateUUID( tx, path );
+            
+            invalidate( tx, new Key( ws, path.getParentPath(), NODES ) );
+            invalidate( tx, new Key( ws, path.getParentPath(), PROPERTIES ) );
+        }
+        
+        invalidate( tx, new Key( ws, path, VALUE ) );
+        invalidate( tx, new Key( ws, path, PROPERTIES ) );
+        invalidate( tx, new Key( ws, path, NODES ) );
+        
+        m_realProvider.remove(tx, path);
+    }
+
+    public void reorderNodes(StoreTransaction tx, Path internalPath, List<Path> childOrder) throws RepositoryException
+    {
+        invalidate( tx, new Key( tx.getWorkspace(), internalPath, NODES ) );
+        
+        m_realProvider.reorderNodes(tx, internalPath, childOrder);
+    }
+
+    public void storeFinished( StoreTransaction tx ) throws RepositoryException
+    {
+        try
+        {
+            m_realProvider.storeFinished( tx );
+        }
+        finally
+        {
+            invalidateAll( tx );
+        }
+    }
+
+    public void storeCancelled( StoreTransaction tx ) throws RepositoryException
+    {
+        try
+        {
+            m_realProvider.storeCancelled( tx );
+        }
+        finally
+        {
+            invalidateAll( tx );
+        }
+    }
+
+    /**
+     *  Removes an item from the cache, and remembers to remove it again at the
+     *  end of the save, in case someone read it in the meantime.
+     */
+    private void invalidate( StoreTransaction tx, Key key )
+    {
+        m_generation.incrementAndGet();
+        m_cache.remove( key );
+        
+        synchronized( m_touched )
+        {
+            List<Key> keys = m_touched.get( tx );
+            
+            if( keys != null ) keys.add( key );
+        }
+    }
+    
+    /**
+     *  Removes the mapping of the UUID which a jcr:uuid property currently has.
+     */
+    private void invalidateUUID( StoreTransaction tx, Path path ) throws RepositoryException
+    {
+        try
+        {
+            ValueContainer old = m_realProvider.getPropertyValue( tx.getWorkspace(), path );
+            
+            invalidate( tx, new Key( tx.getWorkspace(), old.getValue().valueAsString(), UUID ) );
+        }
+        catch( PathNotFoundException e )
+        {
+            // Fine, it's a new one.
+        }
+    }
+    
+    private void invalidateAll( StoreTransaction tx )
+    {
+        List<Key> keys;
+        
+        synchronized( m_touched )
+        {
+            keys = m_touched.remove( tx );
+        }
+        
+        if( keys != null )
+        {
+            m_generation.incrementAndGet();
+            
+            for( Key key : keys ) m_cache.remove( key );
+        }
+    }
+    
+    /**
+     *  Identifies a cached item without building a String out of it.
+     */
+    private static final class Key
+    {
+        private final String m_workspace;
+        private final Object m_item;
+        private final byte   m_kind;
+        private final int    m_hash;
+        
+        Key( WorkspaceImpl ws, Object item, byte kind )
+        {
+            m_workspace = ws.getName();
+            m_item      = item;
+            m_kind      = kind;
+            m_hash      = (m_item.hashCode() * 31 + m_workspace.hashCode()) * 4 + kind;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return m_hash;
+        }
+        
+        @Override
+        public boolean equals( Object o )
+        {
+            if( o == this ) return true;
+            
+            if( o instanceof Key )
+            {
+                Key k = (Key)o;
+                
+                return k.m_hash == m_hash && k.m_kind == m_kind && 
+                       k.m_item.equals( m_item ) && k.m_workspace.equals( m_workspace );
+            }
+            
+            return false;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.providers;
+
+/**
+ *  A marker interface for a RepositoryProvider which is safe to call from
+ *  several threads at the same time.  Normally the ProviderManager guards each
+ *  provider with a read-write lock, so that a write blocks all readers of the
+ *  same provider.  A provider which implements this interface is called without
+ *  that lock, and it is responsible for its own concurrency control.
+ *  <p>
+ *  In particular, the provider must not let two saves interleave.  Since the
+ *  ProviderManager does not serialize the saves, the provider may block in
+ *  storeStarted() until the previous save has finished.  The other threads must
+ *  never see a single call half done, but they may see the items of a save which
+ *  is still going on, just like they do between the calls to a locked provider.
+ */
+public interface ConcurrentProvider
+{
+}
@@ -55,7 +55,12 @@ import org.priha.util.QName;
  *    <li><b>maxSize</b> - The maximum size of the objects which are cached.  Default is 10 kB.
  *  </ul>
  *  Priha creates a memory only cache.
+ *  
+ *  @deprecated Use {@link CachingProvider}, which needs no external libraries, 
+ *              is limited by bytes instead of items and does not empty the whole
+ *              cache when a save is cancelled.
  */
+@Deprecated
 public class EhCachingProvider implements RepositoryProvider
 {
     private static final int    DEFAULT_CACHESIZE = 5000;
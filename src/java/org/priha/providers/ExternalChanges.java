@@ -0,0 +1,35 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.providers;
+
+/**
+ *  A RepositoryProvider may implement this interface if the items it stores can
+ *  change without a save going through the Repository, for example because
+ *  someone edits the files by hand, or because the reads go to a replica which
+ *  catches up later.  Priha keeps neither the existence filter nor the shared 
+ *  cache of Node states for the workspaces of such a provider, since they would
+ *  not know about those changes.
+ */
+public interface ExternalChanges
+{
+    /**
+     *  Returns true, if the provider may return items which were not saved through
+     *  the Repository.  This is called once, after the provider has been started.
+     */
+    public boolean hasExternalChanges();
+}
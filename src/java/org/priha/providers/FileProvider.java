@@ -21,7 +21,10 @@ import static org.priha.core.JCRConstants.Q_JCR_PRIMARYTYPE;
 import static org.priha.core.JCRConstants.Q_JCR_UUID;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 import javax.jcr.*;
@@ -30,7 +33,11 @@ import org.priha.core.ItemType;
 import org.priha.core.RepositoryImpl;
 import org.priha.core.WorkspaceImpl;
 import org.priha.core.binary.FileBinarySource;
+import org.priha.core.binary.MappedBinarySource;
+import org.priha.core.binary.MemoryBinarySource;
+import org.priha.core.namespace.NamespaceRegistryImpl;
 import org.priha.core.values.QValue;
+import org.priha.core.values.StreamValueImpl;
 import org.priha.core.values.ValueFactoryImpl;
 import org.priha.core.values.ValueImpl;
 import org.priha.nodetype.QNodeDefinition;
@@ -49,8 +56,65 @@ import org.priha.util.*;
  *  <p>
  *  The FileProvider does not support failure recovery at the moment.  So it's probably not
  *  the best provider for production systems.
+ *  <p>
+ *  The small files written during a save (property metadata, values and the child
+ *  order) are buffered in memory until the save is finished, and then written in
+ *  one go.  Until then, the buffered contents are what is read back from this
+ *  provider.  Values larger than 64 kB are written directly to the disk.
+ *  <p>
+ *  Property settings:
+ *  <ul>
+ *   <li><b>directory</b> - The directory in which the repository is stored.</li>
+ *   <li><b>workspaces</b> - The list of workspaces separated by whitespace. Default is "default".</li>
+ *   <li><b>sync</b> - If "true", the written files are forced to the disk before save() returns.
+ *       Saves which finish at the same time share a single sync.  Default is "true".</li>
+ *   <li><b>layout</b> - Either "files" (the default), which stores each property in its own
+ *       .info -file, or "packed", which stores the whole property table of a Node in a single
+ *       file with the small values inlined.  Reading a Node from the packed layout needs just
+ *       one read.  The layout must be chosen when the repository is created; it is
+ *       recorded in the workspace directory, and a workspace is not opened with the
+ *       other one.</li>
+ *   <li><b>mappedFiles</b> - How many of the most recently read binary files (of 64 kB or more)
+ *       are kept memory-mapped.  When this is on, the binary files are replaced by renaming
+ *       instead of rewriting them, which does not work on Windows if the file is still mapped.
+ *       Default is 0, i.e. no mapping.</li>
+ *   <li><b>fanout</b> - If larger than zero, the child Nodes are spread into this many
+ *       subdirectories of their parent by the hash of their name, so that a Node with
+ *       tens of thousands of children does not become a single huge directory.  Must be
+ *       chosen when the repository is created, and is recorded like the layout.
+ *       Default is 0, i.e. no subdirectories.</li>
+ *   <li><b>blobThreshold</b> - Binary values of at least this many bytes are stored in a
+ *       content-addressed {@link BlobStore} under the "blobs" directory, so that identical
+ *       binaries (e.g. the copies made by checkin()) are stored only once.  Default is 0,
+ *       which keeps every binary in its own file.</li>
+ *   <li><b>parallelism</b> - How many threads walk the directories and read, copy and
+ *       delete the files when a whole subtree is removed or copied.  Default is the
+ *       number of processors.  1 does everything in the calling thread.</li>
+ *   <li><b>listingCacheSize</b> - How many Nodes have their child and property listings
+ *       cached in memory.  Default is 1024.</li>
+ *   <li><b>listingCheckInterval</b> - How often, in milliseconds, a cached listing is
+ *       checked against the modification time of its directory, in case someone has
+ *       changed the files behind our back.  0 checks every time, and -1 never.
+ *       Default is 1000.  Unless it is -1, Priha keeps neither an existence filter
+ *       nor the repository-wide cache for the workspaces, since they would not see
+ *       the changes made behind our back.</li>
+ *  </ul>
+ *  <p>
+ *  The child Nodes are listed from the .order -file of the parent, which is cached
+ *  in memory and written once per save, so a Node with lots of children is never
+ *  listed from the directory itself.  The properties of a Node are cached in the same
+ *  way, so walking the same tree again does not need to touch the disk, apart from
+ *  the occasional modification time check.  The caches are updated by the writes of
+ *  this provider.
+ *  <p>
+ *  Binary values returned by this provider support
+ *  {@link org.priha.core.values.StreamValueImpl#transferTo(WritableByteChannel)},
+ *  which sends the file directly from its FileChannel.
+ *  <p>
+ *  A moved or renamed Node is moved by renaming its directory.  Only the .info -files
+ *  which store the paths of the properties are rewritten.
  */
-public class FileProvider implements RepositoryProvider, PerformanceReporter
+public class FileProvider implements RepositoryProvider, SubtreeOperations, MoveOperations, ExternalChanges, PerformanceReporter
 {
     private static final String PROP_NUM_PROPERTIES = "numProperties";
     private static final String PROP_MULTIPLE       = "multiple";
@@ -58,6 +122,38 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
     private static final String PROP_PATH           = "path";
     private static final int    BUFFER_SIZE         = 4096;
     private static final String LOCKFILE            = ".prihalock";
+    private static final String PROP_SYNC           = "sync";
+    private static final String PROP_MAPPED_FILES   = "mappedFiles";
+    private static final String PROP_LAYOUT         = "layout";
+    private static final String LAYOUT_PACKED       = "packed";
+    private static final String PACKED_FILE         = ".props";
+    private static final String LAYOUT_FILE         = ".layout";
+    private static final String PROP_BLOB_THRESHOLD = "blobThreshold";
+    private static final String BLOB_DIR            = "blobs";
+    private static final String BLOB_SUFFIX         = ".blob";
+    private static final String PROP_FANOUT         = "fanout";
+    private static final String ORDER_FILE          = ".order";
+    private static final String PROP_PARALLELISM    = "parallelism";
+    private static final String PROP_LISTING_CACHE  = "listingCacheSize";
+    private static final String PROP_LISTING_CHECK  = "listingCheckInterval";
+    
+    /* Prefix of the fan-out subdirectories; never produced by mangleName(). */
+    private static final String BUCKET_PREFIX       = "#";
+    
+    /* Values larger than this are not inlined in the packed property table. */
+    private static final int    MAX_INLINE_SIZE     = 1024;
+    
+    /* How many packed property tables are kept in memory. */
+    private static final int    TABLE_CACHE_SIZE    = 256;
+    
+    /* Values larger than this are written directly instead of being buffered. */
+    private static final int    MAX_BUFFERED_SIZE   = 64*1024;
+    
+    /* Binary files smaller than this are never memory-mapped. */
+    private static final int    MIN_MAPPED_SIZE     = 64*1024;
+    
+    /* Directory timestamps younger than this (in ms) may not reflect later changes. */
+    private static final long   RACY_WINDOW         = 2000;
     
     private String m_root;
     private String m_workspaceRoot;
@@ -68,13 +164,87 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
     
     private Path m_systemPath;
     
-    private Map<String,UUIDObjectStore<Path[]>> m_references = new HashMap<String, UUIDObjectStore<Path[]>>();
-    private Map<String,UUIDObjectStore<Path>>   m_uuids      = new HashMap<String, UUIDObjectStore<Path>>();
+    private Map<String,PathIndex> m_references = new HashMap<String,PathIndex>();
+    private Map<String,PathIndex> m_uuids      = new HashMap<String,PathIndex>();
         
     private Map<String,String> m_mangledNames = new Hashtable<String, String>();
     private long m_cacheMisses = 0;
     private long m_cacheHits   = 0;
 
+    /* Contents of the files which have not yet been written, keyed by directory and filename. */
+    private Map<File,Map<String,byte[]>> m_pendingFiles = new HashMap<File,Map<String,byte[]>>();
+
+    private boolean   m_sync      = true;
+    private SyncQueue m_syncQueue = new SyncQueue();
+
+    private boolean   m_packed    = false;
+    
+    private int       m_fanout    = 0;
+    
+    /* The threads for subtree operations, or null, if they are done by the calling thread. */
+    private ExecutorService m_executor;
+    
+    /* The most recently used child lists, in access order.  Lists with unsaved changes are never evicted. */
+    private LinkedHashMap<File,ChildList> m_children =
+        new LinkedHashMap<File,ChildList>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<File,ChildList> eldest )
+            {
+                return size() > m_listingCacheSize && !eldest.getValue().isDirty();
+            }
+        };
+    
+    /* How many listings are cached, and how often they are checked against the disk. */
+    private int  m_listingCacheSize     = 1024;
+    private long m_listingCheckInterval = 1000;
+    
+    /* The most recently used directory listings, in access order. */
+    private LinkedHashMap<File,DirListing> m_listings =
+        new LinkedHashMap<File,DirListing>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<File,DirListing> eldest )
+            {
+                return size() > m_listingCacheSize;
+            }
+        };
+    
+    /* The store for large binaries, or null, if it's not in use. */
+    private BlobStore m_blobs;
+    private long      m_blobThreshold = 0;
+    
+    /* The most recently used packed property tables, in access order. */
+    private LinkedHashMap<File,PackedTable> m_tables =
+        new LinkedHashMap<File,PackedTable>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<File,PackedTable> eldest )
+            {
+                return size() > TABLE_CACHE_SIZE;
+            }
+        };
+
+    /* The most recently used memory-mapped binaries, in access order. */
+    private int                              m_mappedFiles = 0;
+    private LinkedHashMap<File,MappedBinarySource> m_mapped =
+        new LinkedHashMap<File,MappedBinarySource>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<File,MappedBinarySource> eldest )
+            {
+                return size() > m_mappedFiles;
+            }
+        };
+
     public FileProvider() throws RepositoryException
     {
         resetCounts();
@@ -169,15 +339,36 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
      */
     private File getNodeDir( Workspace ws, Path path ) throws NamespaceException, RepositoryException
     {
+        String baseDir;
+        
         if( m_systemPath.isParentOf( path ) || m_systemPath.equals( path ) ) 
+            baseDir = m_root;
+        else
+            baseDir = getWorkspaceDir( getWorkspaceFilename(ws) );
+        
+        if( m_fanout > 0 ) return getShardedDir( new File(baseDir), path );
+        
+        return new File( baseDir, getPathFilename(path) );
+    }
+    
+    /**
+     *  Returns the directory of a Node when the child Nodes are spread over
+     *  subdirectories, i.e. base/#b1/name1/#b2/name2/...
+     */
+    private File getShardedDir( File base, Path path ) throws NamespaceException
+    {
+        File dir = base;
+        NamespaceRegistryImpl ns = RepositoryImpl.getGlobalNamespaceRegistry();
+        
+        for( int i = 0; i < path.depth(); i++ )
         {
-            return new File( m_root, getPathFilename(path) );
+            String name   = path.getComponent( i ).toString( ns );
+            int    bucket = (name.hashCode() & 0x7fffffff) % m_fanout;
+            
+            dir = new File( new File( dir, BUCKET_PREFIX+Integer.toHexString( bucket ) ), mangleName( name ) );
         }
         
-        String wsDir = getWorkspaceDir( getWorkspaceFilename(ws) );
-        File nodeDir = new File( wsDir, getPathFilename(path) );
-        
-        return nodeDir;
+        return dir;
     }
     
     public void addNode(StoreTransaction tx, Path path, QNodeDefinition def) throws RepositoryException
@@ -188,16 +379,15 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
         File nodeDir = getNodeDir( ws, path );
 
         nodeDir.mkdirs();
+        forgetListing( nodeDir );
         
         if( !path.isRoot() )
         {
-            List<String> order = getOrder(ws,path.getParentPath());
-
-            if( !order.contains( path.getLastComponent().toString() ) )
-            {
-                order.add( path.getLastComponent().toString() );
+            ChildList children = getChildren( ws, path.getParentPath() );
             
-                saveOrder( ws, path.getParentPath(), order );
+            if( children.add( path.getLastComponent().toString() ) )
+            {
+                markDirty( (FileTransaction)tx, children );
             }
         }
         
@@ -312,6 +502,17 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
 
         String wsList = props.getProperty("workspaces", "default");
         m_root = props.getProperty("directory");
+        m_sync = Boolean.parseBoolean( props.getProperty( PROP_SYNC, "true" ) );
+        m_mappedFiles = Integer.parseInt( props.getProperty( PROP_MAPPED_FILES, "0" ) );
+        m_packed = LAYOUT_PACKED.equals( props.getProperty( PROP_LAYOUT, "files" ) );
+        m_blobThreshold = Long.parseLong( props.getProperty( PROP_BLOB_THRESHOLD, "0" ) );
+        m_fanout = Integer.parseInt( props.getProperty( PROP_FANOUT, "0" ) );
+        
+        m_listingCacheSize = Integer.parseInt( props.getProperty( PROP_LISTING_CACHE, "1024" ) );
+        m_listingCheckInterval = Long.parseLong( props.getProperty( PROP_LISTING_CHECK, "1000" ) );
+        
+        int parallelism = Integer.parseInt( props.getProperty( PROP_PARALLELISM, 
+                                                               Integer.toString( Runtime.getRuntime().availableProcessors() ) ) );
 
         //
         //  Make sure that root exists.
@@ -347,6 +548,30 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
             throw new ConfigurationException("Cannot start Priha ",e);
         }
         
+        //
+        //  The blob store is opened also when it's no longer written to, since
+        //  there may still be values in it.
+        //
+        File blobDir = new File(m_root, BLOB_DIR);
+        
+        if( m_blobThreshold > 0 || blobDir.exists() )
+        {
+            try
+            {
+                m_blobs = new BlobStore( blobDir, m_sync );
+                m_blobs.collectGarbage();
+            }
+            catch( IOException e )
+            {
+                throw new ConfigurationException("Unable to open the blob store",e);
+            }
+        }
+        
+        if( parallelism > 1 )
+        {
+            m_executor = Executors.newFixedThreadPool( parallelism, new WorkerThreadFactory() );
+        }
+        
         //
         //  Initializing the workspaces.
         //
@@ -363,14 +588,91 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
                 wsroot.mkdirs();
                 log.finer("Created workspace directory "+wsroot);
             }
+            
+            try
+            {
+                checkLayout( wsroot );
+            }
+            catch( ConfigurationException e )
+            {
+                stop( rep );
+                throw e;
+            }
 
             //
             //  Reset the workspaces.
             //
-            m_references.put( wsname, 
-                              new UUIDObjectStore<Path[]>(mangleName(wsname)+"-references.ser") );
-            m_uuids.put( wsname, 
-                         new UUIDObjectStore<Path>(mangleName(wsname)+"-uuid.ser") );
+            try
+            {
+                m_references.put( wsname, new PathIndex(mangleName(wsname)+"-references") );
+                m_uuids.put( wsname, new PathIndex(mangleName(wsname)+"-uuid") );
+            }
+            catch( IOException e )
+            {
+                throw new ConfigurationException( "Unable to open the UUID index for workspace "+wsname, e );
+            }
+        }
+    }
+
+    /**
+     *  Checks that the workspace was created with the same layout and fanout as
+     *  the ones configured, since the files would not be found otherwise.  They
+     *  are recorded in the workspace directory the first time it is opened.
+     */
+    private void checkLayout( File wsroot ) throws ConfigurationException
+    {
+        String layout     = m_packed ? LAYOUT_PACKED : "files";
+        File   layoutFile = new File( wsroot, LAYOUT_FILE );
+        
+        try
+        {
+            if( layoutFile.exists() )
+            {
+                InputStream in = new FileInputStream( layoutFile );
+                Properties  props;
+                
+                try
+                {
+                    props = FastPropertyStore.load( in );
+                }
+                finally
+                {
+                    in.close();
+                }
+                
+                String stored = props.getProperty( PROP_LAYOUT, "files" );
+                
+                if( !stored.equals( layout ) )
+                    throw new ConfigurationException( "The workspace "+wsroot+" uses the "+stored+
+                                                      " layout, but "+layout+" has been configured", PROP_LAYOUT );
+                
+                int fanout = Integer.parseInt( props.getProperty( PROP_FANOUT, "0" ) );
+                
+                if( fanout != m_fanout )
+                    throw new ConfigurationException( "The workspace "+wsroot+" uses a fanout of "+fanout+
+                                                      ", but "+m_fanout+" has been configured", PROP_FANOUT );
+                
+                return;
+            }
+            
+            Properties props = new Properties();
+            props.setProperty( PROP_LAYOUT, layout );
+            props.setProperty( PROP_FANOUT, Integer.toString( m_fanout ) );
+            
+            OutputStream out = new FileOutputStream( layoutFile );
+            
+            try
+            {
+                FastPropertyStore.store( out, props );
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch( IOException e )
+        {
+            throw new ConfigurationException( "Unable to check the layout of the workspace "+wsroot, e );
         }
     }
 
@@ -380,19 +682,25 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
      
         log.fine("Shutting down FileProvider...");
         
-        for( UUIDObjectStore<Path[]> s : m_references.values() )
+        for( PathIndex s : m_references.values() )
         {
-            s.shutdown();
+            s.close();
         }
         
-        for( UUIDObjectStore<Path> s : m_uuids.values() )
+        for( PathIndex s : m_uuids.values() )
         {
-            s.shutdown();
+            s.close();
         }
         
         m_references.clear();
         m_uuids.clear();
         
+        if( m_executor != null )
+        {
+            m_executor.shutdown();
+            m_executor = null;
+        }
+        
         //
         //  Clean up the lockfile, in case we're e.g. switching repos mid-flight.
         //
@@ -401,12 +709,51 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
         
         log.finer("Manglename cache hits = "+m_cacheHits+", misses = "+m_cacheMisses);
     }
+    
+    /**
+     *  Returns true, unless the listings have been told never to check the
+     *  modification times.
+     */
+    public boolean hasExternalChanges()
+    {
+        return m_listingCheckInterval >= 0;
+    }
 
+    /**
+     *  Copies the directories of the subtree in parallel.  The paths in the .info -files
+     *  and the UUIDs are rewritten on the way, and the copied UUIDs and references are
+     *  added to the indexes once all the files are in place.
+     */
     public void copy(WorkspaceImpl ws, Path srcpath, Path destpath) throws RepositoryException
     {
         m_hitCount[Count.Copy.ordinal()]++;
 
-        throw new UnsupportedRepositoryOperationException("copy()");
+        if( !itemExists( ws, srcpath, ItemType.NODE ) ) 
+            throw new PathNotFoundException( "No such Node: "+srcpath );
+        
+        if( itemExists( ws, destpath, ItemType.NODE ) ) 
+            throw new ItemExistsException( "Destination already exists: "+destpath );
+        
+        if( !itemExists( ws, destpath.getParentPath(), ItemType.NODE ) ) 
+            throw new PathNotFoundException( "Parent of the destination does not exist: "+destpath );
+        
+        if( srcpath.isParentOf( destpath ) ) 
+            throw new RepositoryException( "Cannot copy "+srcpath+" under itself" );
+        
+        SubtreeCopy copy = new SubtreeCopy( ws, srcpath, destpath );
+        
+        forgetListings( getNodeDir( ws, destpath ) );
+        
+        walkTree( ws, getNodeDir( ws, srcpath ), srcpath, copy );
+        
+        try
+        {
+            copy.finish();
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException( "Unable to copy "+srcpath+" to "+destpath, e );
+        }
     }
 
     public List<Path> listNodes(WorkspaceImpl ws, Path parentpath) throws NamespaceException, RepositoryException
@@ -417,13 +764,11 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
 
         File startPath = getNodeDir( ws, parentpath );
         
-        if( !startPath.exists() ) throw new PathNotFoundException("No such path found: "+parentpath);
+        if( !getListing( startPath ).exists() ) throw new PathNotFoundException("No such path found: "+parentpath);
         
         //acquirePaths( parentpath, startPath, list, false );
         
-        List<String> orderArray = getOrder( ws, parentpath );
-        
-        for( String s : orderArray )
+        for( String s : getChildren( ws, parentpath ).toList() )
         {
             Path childPath = parentpath.resolve( Path.Component.valueOf( s ) );
             list.add( childPath );
@@ -448,33 +793,46 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
         File nodeDir = getNodeDir( ws, path );
         List<QName> proplist = new ArrayList<QName>();
         
+        //
+        //  Also makes sure that the cached table is still valid.
+        //
+        DirListing listing = getListing( nodeDir );
+        
         try
         {
+            if( m_packed )
+            {
+                PackedTable table = readTable( nodeDir );
+                
+                if( table != null ) proplist.addAll( table.m_properties.keySet() );
+                
+                return proplist;
+            }
+            
+            List<QName> cached = listing.getProperties();
+            
+            if( cached != null ) return cached;
+            
             File[] files = nodeDir.listFiles( new PropertyTypeFilter() );
+            Set<String> infoFiles = new LinkedHashSet<String>();
             
             if( files != null )
             {
-                for( File propertyFile : files )
-                {
-                    Properties props;
-                    FileInputStream in = null;
-                    
-                    try
-                    {
-                        in = new FileInputStream(propertyFile);
-                
-                        props = FastPropertyStore.load(in);
+                for( File f : files ) infoFiles.add( f.getName() );
+            }
+            
+            infoFiles.addAll( listPendingFiles( nodeDir, ".info" ) );
+            
+            for( String name : infoFiles )
+            {
+                Properties props = FastPropertyStore.load( readFile( new File(nodeDir, name) ) );
+
+                String qname = props.getProperty(PROP_PATH);
         
-                        String qname = props.getProperty(PROP_PATH);
-                
-                        proplist.add( PathFactory.getPath( qname ).getLastComponent() );
-                    }
-                    finally
-                    {
-                        if( in != null ) in.close();
-                    }
-                }
+                proplist.add( PathFactory.getPath( qname ).getLastComponent() );
             }
+            
+            listing.setProperties( proplist );
         }
         catch( IOException e )
         {
@@ -484,11 +842,85 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
         return proplist;
     }
 
-    public void move(WorkspaceImpl ws, Path srcpath, Path destpath) throws RepositoryException
+    /**
+     *  Moves a Node by renaming its directory.  The files which are still buffered 
+     *  move along, and the paths in the .info -files and the indexes are rewritten,
+     *  but the values themselves are not touched.  Since the rename cannot wait
+     *  for the end of the save, it is recorded in the transaction, and undone if 
+     *  the save is cancelled.
+     */
+    public void move( StoreTransaction tx, Path srcpath, Path destpath ) throws RepositoryException
+    {
+        move( (FileTransaction)tx, srcpath, destpath, false );
+    }
+    
+    private void move( FileTransaction tx, Path srcpath, Path destpath, boolean keepOrder ) throws RepositoryException
     {
         m_hitCount[Count.Move.ordinal()]++;
 
-        throw new UnsupportedRepositoryOperationException("move()");
+        WorkspaceImpl ws = tx.getWorkspace();
+        
+        if( !itemExists( ws, srcpath, ItemType.NODE ) ) 
+            throw new PathNotFoundException( "No such Node: "+srcpath );
+        
+        if( itemExists( ws, destpath, ItemType.NODE ) ) 
+            throw new ItemExistsException( "Destination already exists: "+destpath );
+        
+        if( !itemExists( ws, destpath.getParentPath(), ItemType.NODE ) ) 
+            throw new PathNotFoundException( "Parent of the destination does not exist: "+destpath );
+        
+        if( srcpath.isParentOf( destpath ) ) 
+            throw new RepositoryException( "Cannot move "+srcpath+" under itself" );
+        
+        File srcDir  = getNodeDir( ws, srcpath );
+        File destDir = getNodeDir( ws, destpath );
+        
+        //
+        //  The changed child lists are put in the buffer, so that everything the
+        //  save has not yet written can be moved along with the directory.
+        //
+        bufferChildListsUnder( tx, srcDir );
+        unmapUnder( srcDir );
+        forgetTables( srcDir );
+        forgetListings( srcDir );
+        forgetChildren( srcDir );
+        
+        destDir.getParentFile().mkdirs();
+        
+        if( !srcDir.renameTo( destDir ) )
+            throw new RepositoryException( "Unable to move "+srcDir+" to "+destDir );
+        
+        // Removes the fan-out directory, if it became empty.
+        if( m_fanout > 0 ) srcDir.getParentFile().delete();
+        
+        movePendingUnder( tx, srcDir, destDir );
+        
+        SubtreeMove move = new SubtreeMove( srcpath, destpath, srcDir, destDir );
+        
+        tx.m_moves.add( move );
+        
+        walkTree( ws, destDir, destpath, move );
+        
+        move.finish( tx );
+        
+        ChildList from    = getChildren( ws, srcpath.getParentPath() );
+        ChildList to      = getChildren( ws, destpath.getParentPath() );
+        String    oldName = srcpath.getLastComponent().toString();
+        String    newName = destpath.getLastComponent().toString();
+        
+        if( keepOrder && from == to )
+        {
+            List<String> names = from.toList();
+            
+            names.set( names.indexOf( oldName ), newName );
+            from.setAll( names );
+            markDirty( tx, from );
+        }
+        else
+        {
+            if( from.remove( oldName ) ) markDirty( tx, from );
+            if( to.add( newName ) ) markDirty( tx, to );
+        }
     }
 
     /**
@@ -503,6 +935,11 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
         {
             File propFile;
             
+            if( m_packed )
+            {
+                return packedItemExists( ws, path, type );
+            }
+            
             if( type == ItemType.NODE )
             {
                 nodeDir = getNodeDir( ws, path );
@@ -520,7 +957,7 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
                 throw new IllegalArgumentException("Type "+type.name()+" not supported");
             }
             
-            return propFile.exists();
+            return fileExists( propFile );
         }
         catch( NamespaceException e )
         {
@@ -532,6 +969,10 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
+        catch( IOException e )
+        {
+            log.warning( "Unable to read the property table for "+path+": "+e.getMessage() );
+        }
 
         return false;
     }
@@ -578,7 +1019,11 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
         */
     }
     
-    private void writeValue( File f, ValueImpl v ) throws IOException, IllegalStateException, RepositoryException
+    /**
+     *  Writes a value.  Small values are buffered in the transaction, larger ones
+     *  are written directly to the file.
+     */
+    private void writeValue( FileTransaction tx, File f, ValueImpl v ) throws IOException, IllegalStateException, RepositoryException
     {
         OutputStream out = null;
         InputStream in   = null;      
@@ -588,32 +1033,73 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
             if( v instanceof QValue.QValueInner )
             {
                 byte[] ba = ((QValue.QValueInner)v).getQValue().getString().getBytes("UTF-8");
-                in = new ByteArrayInputStream(ba);
+                releaseBlob( tx, f );
+                bufferWrite( tx, f, ba );
+                return;
             }
-            else
+
+            if( m_blobThreshold > 0 && v instanceof StreamValueImpl && 
+                ((StreamValueImpl)v).getLength() >= m_blobThreshold )
             {
-                in = v.getStream();
+                String hash = m_blobs.put( v.getStream() );
+                tx.m_blobChanges.added( hash );
+                
+                deleteValue( tx, f );
+                bufferWrite( tx, blobFile( f ), hash.getBytes("UTF-8") );
+                return;
             }
             
-            out = new FileOutputStream( f );
-        
+            releaseBlob( tx, f );
+            
+            in = v.getStream();
+            
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            
+            while( (n = in.read( buf )) != -1 )
+            {
+                buffer.write( buf, 0, n );
+                
+                if( buffer.size() > MAX_BUFFERED_SIZE ) break;
+            }
+            
+            if( buffer.size() <= MAX_BUFFERED_SIZE )
+            {
+                bufferWrite( tx, f, buffer.toByteArray() );
+                return;
+            }
+            
+            //
+            //  Too large to keep in memory, so this one goes directly to the disk.
+            //
+            discardPending( f, null );
+            
+            File target = replacementFor( f );
+            
+            out = new FileOutputStream( target );
+            
+            buffer.writeTo( out );
             FileUtil.copyContents( in, out );
+            out.close();
+            out = null;
+            
+            replace( target, f );
+            
+            tx.m_written.add( f );
         }
         finally
         {
             //
             //  ...and close all the streams.
             //
-            if( out != null ) 
+            try
             {
-                try
-                {
-                    out.close();
-                }
-                finally
-                {
-                    if( in != null ) in.close();
-                }
+                if( out != null ) out.close();
+            }
+            finally
+            {
+                if( in != null ) in.close();
             }
         }
     }
@@ -622,11 +1108,18 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
     {
         m_hitCount[Count.PutPropertyValue.ordinal()]++;
 
+        FileTransaction ftx = (FileTransaction) tx;
         WorkspaceImpl ws = tx.getWorkspace();
         File nodeDir = getNodeDir( ws, path.getParentPath() );
 
         saveUuidShortcut(ws,path,vc);
         
+        if( m_packed )
+        {
+            putPackedValue( ftx, nodeDir, path, vc );
+            return;
+        }
+        
         QName qname = path.getLastComponent();
         
         File inf = new File( nodeDir, makeFilename( qname, ".info" ) );
@@ -637,8 +1130,6 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
         props.setProperty( PROP_TYPE,  PropertyType.nameFromValue( vc.getType() ) );
         props.setProperty( PROP_MULTIPLE, vc.isMultiple() ? "true" : "false" );
 
-        OutputStream out = null;
-        
         try
         {
             if( vc.isMultiple() )
@@ -669,15 +1160,14 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
                 {
                     File df = new File( nodeDir, makeFilename( qname, "."+i+".data" ) );
                     saveRefShortcut( ws, path, (ValueImpl)values[i] );
-                    writeValue( df, (ValueImpl)values[i] );
+                    writeValue( ftx, df, (ValueImpl)values[i] );
                 }
                 // Remove the rest of old values
                 
-                int i = values.length;
-                while(true)
+                for( int i = values.length; ; i++ )
                 {
                     File df = new File( nodeDir, makeFilename( qname, "."+i+".data" ) );
-                    if( df.exists() ) df.delete();
+                    if( fileExists( df ) || fileExists( blobFile( df ) ) ) deleteValue( ftx, df );
                     else break;
                 }
             }
@@ -696,37 +1186,23 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
                 }
 
                 File df = new File( nodeDir, makeFilename( qname, ".data" ) );
-                writeValue( df, vc.getValue() );
+                writeValue( ftx, df, vc.getValue() );
             }
-            out = new FileOutputStream(inf);
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
             
             FastPropertyStore.store( out, props );
-        }
-        catch (FileNotFoundException e)
-        {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            
+            bufferWrite( ftx, inf, out.toByteArray() );
+            
+            DirListing listing = getCachedListing( nodeDir );
+            if( listing != null ) listing.addProperty( qname );
         }
         catch (IOException e)
         {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
-        finally
-        {
-            if( out != null )
-            {
-                try
-                {
-                    out.close();
-                }
-                catch (IOException e)
-                {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-            }
-        }
     }
 
     /**
@@ -737,8 +1213,8 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
     {
         if( path.getLastComponent().equals(Q_JCR_UUID) )
         {
-            UUIDObjectStore<Path> uuids = m_uuids.get( ws.getName() );
-            uuids.setObject( vc.getValue().valueAsString(), path.getParentPath() );
+            PathIndex uuids = m_uuids.get( ws.getName() );
+            uuids.setPaths( vc.getValue().valueAsString(), new Path[] { path.getParentPath() } );
         }
     }
     
@@ -746,49 +1222,71 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
         throws IOException, RepositoryException
     {
         ValueFactoryImpl vf = ws.getSession().getValueFactory();
+        
+        if( propType.equals(PropertyType.TYPENAME_BINARY) )
+        {
+            File blob = blobFile( propFile );
+            
+            if( m_blobs != null && fileExists( blob ) )
+                return vf.createValue( m_blobs.get( readContentsAsString( blob ) ) );
+            
+            byte[] pending = getPendingContents( propFile );
+            
+            if( pending != null )
+                return vf.createValue( new MemoryBinarySource(pending) );
+            else if( m_mappedFiles > 0 )
+                return vf.createValue( new HotFileSource(propFile) );
+            else
+                return vf.createValue( new FileBinarySource(propFile) );
+        }
+
+        return prepareValue( ws, readContentsAsString(propFile), propType );
+    }
+    
+    /**
+     *  Creates a non-binary value from its serialized form.
+     */
+    private ValueImpl prepareValue( WorkspaceImpl ws, String content, String propType )
+        throws RepositoryException
+    {
+        ValueFactoryImpl vf = ws.getSession().getValueFactory();
         ValueImpl value;
         
         if( propType.equals(PropertyType.TYPENAME_STRING) )
         {
-            value = vf.createValue( readContentsAsString(propFile) );
+            value = vf.createValue( content );
         }
         else if( propType.equals(PropertyType.TYPENAME_BOOLEAN) )
         {
-            value = vf.createValue( "true".equals(readContentsAsString(propFile)) );
+            value = vf.createValue( "true".equals(content) );
         }
         else if( propType.equals(PropertyType.TYPENAME_DOUBLE) )
         {
-            value = vf.createValue( Double.parseDouble(readContentsAsString(propFile)) );
+            value = vf.createValue( Double.parseDouble(content) );
         }
         else if( propType.equals(PropertyType.TYPENAME_LONG) )
         {
-            value = vf.createValue( Long.parseLong(readContentsAsString(propFile)) );
+            value = vf.createValue( Long.parseLong(content) );
         }
         else if( propType.equals(PropertyType.TYPENAME_DATE) )
         {
-            value = vf.createValue( readContentsAsString( propFile ), PropertyType.DATE );
+            value = vf.createValue( content, PropertyType.DATE );
         }
         else if( propType.equals(PropertyType.TYPENAME_NAME) )
         {
-            String qnameStr = readContentsAsString(propFile);
-            QName qn = QName.valueOf( qnameStr );
+            QName qn = QName.valueOf( content );
             value = vf.createValue( qn, PropertyType.NAME );
         }
         else if( propType.equals(PropertyType.TYPENAME_PATH ))
         {
-            String val = readContentsAsString(propFile);
-            value = vf.createValue( val, PropertyType.PATH );
+            value = vf.createValue( content, PropertyType.PATH );
         }
         else if( propType.equals(PropertyType.TYPENAME_REFERENCE ) )
         {
-            value = vf.createValue( readContentsAsString(propFile), PropertyType.REFERENCE );
-        }
-        else if( propType.equals(PropertyType.TYPENAME_BINARY) )
-        {
-            value = vf.createValue( new FileBinarySource(propFile) );
+            value = vf.createValue( content, PropertyType.REFERENCE );
         }
         else
-            throw new RepositoryException("Cannot deserialize property type "+propType+" for file "+propFile.getAbsolutePath());
+            throw new RepositoryException("Cannot deserialize property type "+propType);
 
         return value;
     }
@@ -805,24 +1303,11 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
     {
         File inf = new File( nodeDir, makeFilename( name, ".info" ) );
         
-        if( !inf.exists() )
+        if( !fileExists( inf ) )
         {
             throw new PathNotFoundException("The property metadata file was not found: "+inf.getAbsolutePath());
         }
-        Properties props;
-        FileInputStream in = null;
-        
-        try
-        {
-            in = new FileInputStream( inf );
-            props = FastPropertyStore.load(in);
-        }
-        finally
-        {
-            if( in != null ) in.close();
-        }
-        
-        return props;
+        return FastPropertyStore.load( readFile( inf ) );
     }
     
     public ValueContainer getPropertyValue(WorkspaceImpl ws, Path path) throws RepositoryException
@@ -833,6 +1318,8 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
        
         try
         {
+            if( m_packed ) return getPackedValue( ws, nodeDir, path );
+            
             Properties props = getPropertyInfo( nodeDir, path.getLastComponent() );
             
             String propType = props.getProperty(PROP_TYPE);
@@ -864,75 +1351,197 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
         }
     }
 
-    private List<String> getOrder( WorkspaceImpl ws, Path path )
+    /**
+     *  Returns the child list of a Node from the cache, or reads it from the .order -file.
+     */
+    private ChildList getChildren( WorkspaceImpl ws, Path path ) throws RepositoryException
     {
-        File order;
-        ArrayList<String> result = new ArrayList<String>();
-        try
+        File nodeDir = getNodeDir( ws, path );
+        
+        synchronized( m_children )
         {
-            order = new File(getNodeDir(ws,path), ".order");
-            String o = FileUtil.readContents( new FileInputStream(order), "UTF-8" );
-            String[] oo = o.split( "\n" );
+            ChildList children = m_children.get( nodeDir );
             
-            //
-            //  Clean away any empty Strings.
-            //
-            List<String> res = Arrays.asList( oo );
-            for( String s : res )
+            if( children != null ) return children;
+        }
+        
+        File order = new File( nodeDir, ORDER_FILE );
+        ChildList children = new ChildList( order );
+        
+        try
+        {
+            if( fileExists( order ) )
             {
-                if( s.length() > 0 ) result.add( s );
+                for( String s : readContentsAsString( order ).split( "\n" ) )
+                {
+                    if( s.length() > 0 ) children.add( s );
+                }
             }
-            return result;
         }
         catch( IOException e )
         {
+            throw new RepositoryException( "Unable to read the child list of "+path, e );
+        }
+        
+        synchronized( m_children )
+        {
+            //
+            //  Someone else may have been quicker, and even changed it already.
+            //
+            ChildList other = m_children.get( nodeDir );
+            
+            if( other != null ) return other;
             
+            m_children.put( nodeDir, children );
         }
-        catch( NamespaceException e )
+        
+        return children;
+    }
+    
+    /**
+     *  Marks a child list to be written when the transaction is finished.
+     */
+    private void markDirty( FileTransaction tx, ChildList children )
+    {
+        children.setDirty( true );
+        tx.m_children.add( children );
+    }
+    
+    /**
+     *  Puts the changed child lists of the given directory and everything under it
+     *  in the write buffer of the transaction right away.
+     */
+    private void bufferChildListsUnder( FileTransaction tx, File dir ) throws RepositoryException
+    {
+        String prefix = dir.getPath() + File.separator;
+        
+        try
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            for( Iterator<ChildList> i = tx.m_children.iterator(); i.hasNext(); )
+            {
+                ChildList children = i.next();
+                File      d        = children.m_file.getParentFile();
+                
+                if( !children.m_removed && (d.equals( dir ) || d.getPath().startsWith( prefix )) )
+                {
+                    bufferWrite( tx, children.m_file, children.toBytes() );
+                    children.setDirty( false );
+                    i.remove();
+                }
+            }
         }
-        catch( RepositoryException e )
+        catch( IOException e )
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            throw new RepositoryException( "Unable to write the child list", e );
         }
-        return result;
     }
     
-    private void saveOrder( WorkspaceImpl ws, Path path, List<String> list)
+    /**
+     *  Drops the cached child lists of the given directory and everything under it.
+     *  Their unsaved changes will not be written any more.
+     */
+    private void forgetChildren( File dir )
     {
-        FileOutputStream out = null;
-        try
+        String prefix = dir.getPath() + File.separator;
+        
+        synchronized( m_children )
+        {
+            for( Iterator<Map.Entry<File,ChildList>> i = m_children.entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry<File,ChildList> e = i.next();
+                File d = e.getKey();
+                
+                if( d.equals( dir ) || d.getPath().startsWith( prefix ) )
+                {
+                    e.getValue().m_removed = true;
+                    i.remove();
+                }
+            }
+        }
+    }
+    
+    /**
+     *  Returns the cached listing of a Node directory.  If the directory has been
+     *  changed by someone else since it was listed, the cached child list and
+     *  property table are dropped too.
+     */
+    private DirListing getListing( File dir )
+    {
+        DirListing listing = getCachedListing( dir );
+        
+        if( listing != null && !listing.isStale() ) return listing;
+        
+        if( listing != null )
         {
-            File order = new File(getNodeDir(ws,path),".order");
+            log.fine( "Directory "+dir+" was changed outside Priha, reading it again" );
             
-            out = new FileOutputStream(order);
+            synchronized( m_children )
+            {
+                ChildList children = m_children.get( dir );
+                
+                if( children != null && !children.isDirty() ) m_children.remove( dir );
+            }
             
-            for( String s : list )
+            synchronized( m_tables )
             {
-                out.write( s.getBytes("UTF-8") );
-                out.write( '\n' );
+                m_tables.remove( dir );
             }
         }
-        catch(Exception e)
+        
+        listing = new DirListing( dir );
+        
+        synchronized( m_listings )
         {
-            e.printStackTrace();
+            m_listings.put( dir, listing );
         }
-        finally
+        
+        return listing;
+    }
+    
+    /**
+     *  Updates the modification time of a cached listing after we have
+     *  changed the directory ourselves.
+     */
+    private void touchListing( File dir )
+    {
+        DirListing listing = getCachedListing( dir );
+        
+        if( listing != null ) listing.touch();
+    }
+    
+    /**
+     *  Returns the cached listing, or null, if there is none.  Does not check it.
+     */
+    private DirListing getCachedListing( File dir )
+    {
+        synchronized( m_listings )
+        {
+            return m_listings.get( dir );
+        }
+    }
+    
+    private void forgetListing( File dir )
+    {
+        synchronized( m_listings )
+        {
+            m_listings.remove( dir );
+        }
+    }
+    
+    /**
+     *  Drops the cached listings of the given directory and everything under it.
+     */
+    private void forgetListings( File dir )
+    {
+        String prefix = dir.getPath() + File.separator;
+        
+        synchronized( m_listings )
         {
-            if( out != null ) 
+            for( Iterator<File> i = m_listings.keySet().iterator(); i.hasNext(); )
             {
-                try
-                {
-                    out.close();
-                }
-                catch( IOException e )
-                {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
+                File d = i.next();
+                
+                if( d.equals( dir ) || d.getPath().startsWith( prefix ) ) i.remove();
             }
         }
     }
@@ -950,36 +1559,24 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
             {
                 // OK, so this is a Node (i.e. a subdir) and we can just remove everything
                 // from underneath it
-                if( deleteContents( nodeFile ) )
-                {
-                    if( !nodeFile.delete() )
-                    {
-                        log.warning("Unable to delete path "+path);
-                    }
-                }
-                else
-                {
-                    log.warning("Failed to delete contents of path "+path);
-                }
-                
-                List<String> order = getOrder(ws,path.getParentPath());
-               
-                order.remove( path.getLastComponent().toString() );
-                
-                saveOrder(ws, path.getParentPath(), order);
+                removeNode( (FileTransaction)tx, path, nodeFile );
+            }
+            else if( m_packed )
+            {
+                removePackedProperty( (FileTransaction)tx, getNodeDir( ws, path.getParentPath() ), path );
             }
             else
             {
                 // Must be a property
+                File nodeDir  = getNodeDir( ws, path.getParentPath() );
+                File infoFile = new File( nodeDir, makeFilename(path.getLastComponent(),".info") );
 
-                File infoFile = new File( nodeFile.getParentFile(), makeFilename(path.getLastComponent(),".info") );
-
-                DataContent dc = new DataContent( path, nodeFile.getParentFile(), path.getLastComponent() );
+                DataContent dc = new DataContent( path, nodeDir, path.getLastComponent() );
                 
                 try
                 {
                     dc.iterate( new DataVisitor(){
-                        public void visit(Path p, Properties props, File dataFile) throws IOException
+                        public void visit(Path p, Properties props, File dataFile) throws IOException, RepositoryException
                         {
                             int type = PropertyType.valueFromName( props.getProperty( PROP_TYPE ) );
                         
@@ -1006,11 +1603,14 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
                             }
                         
                             //System.out.println("Deleting datafile "+dataFile.getAbsolutePath());
-                            dataFile.delete();
+                            deleteValue( (FileTransaction)tx, dataFile );
                         }
                     } );
                     
-                    infoFile.delete();
+                    deleteFile( infoFile );
+                    
+                    DirListing listing = getCachedListing( nodeDir );
+                    if( listing != null ) listing.removeProperty( path.getLastComponent() );
                 }
                 catch( Exception ex )
                 {
@@ -1021,9 +1621,67 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
 
     }
 
+    /**
+     *  Removes a Node with everything under it in one go.
+     */
+    public void removeSubtree( StoreTransaction tx, Path path ) throws RepositoryException
+    {
+        m_hitCount[Count.Remove.ordinal()]++;
+
+        File nodeFile = getNodeDir( tx.getWorkspace(), path );
+        
+        if( nodeFile.exists() ) removeNode( (FileTransaction)tx, path, nodeFile );
+    }
+    
+    /**
+     *  Removes the directory of a Node and everything under it.  The directories are
+     *  walked and the files deleted in parallel; the UUIDs, references and blobs found
+     *  on the way are released once the walk is done.
+     */
+    private void removeNode( FileTransaction tx, Path path, File nodeFile ) throws RepositoryException
+    {
+        WorkspaceImpl ws = tx.getWorkspace();
+        
+        releasePendingBlobsUnder( tx, nodeFile );
+        unmapUnder( nodeFile );
+        forgetTables( nodeFile );
+        forgetListings( nodeFile );
+        
+        SubtreeRemoval removal = new SubtreeRemoval();
+        
+        walkTree( ws, nodeFile, path, removal );
+        
+        forgetChildren( nodeFile );
+        discardPendingUnder( nodeFile );
+        
+        removal.finish( tx );
+        
+        if( deleteContents( nodeFile ) )
+        {
+            if( !nodeFile.delete() )
+            {
+                log.warning("Unable to delete path "+path);
+            }
+            
+            // Removes the fan-out directory, if it became empty.
+            if( m_fanout > 0 ) nodeFile.getParentFile().delete();
+        }
+        else
+        {
+            log.warning("Failed to delete contents of path "+path);
+        }
+        
+        ChildList children = getChildren( ws, path.getParentPath() );
+       
+        if( children.remove( path.getLastComponent().toString() ) )
+        {
+            markDirty( tx, children );
+        }
+    }
+    
     private interface DataVisitor
     {
-        public void visit(Path path, Properties properties, File dataFile) throws IOException;
+        public void visit(Path path, Properties properties, File dataFile) throws IOException, RepositoryException;
     }
     
     private class DataContent
@@ -1046,7 +1704,7 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
          *  @throws PathNotFoundException
          *  @throws IOException
          */
-        public void iterate( DataVisitor visitor ) throws PathNotFoundException, IOException
+        public void iterate( DataVisitor visitor ) throws RepositoryException, IOException
         {
             Properties props = getPropertyInfo( m_dir, m_basename );
             
@@ -1079,14 +1737,14 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
      *  
      *  @param uuid
      */
-    private void cleanUuidMapping( WorkspaceImpl ws, String uuid )
+    private void cleanUuidMapping( WorkspaceImpl ws, String uuid ) throws RepositoryException
     {
-        m_uuids.get(ws.getName()).setObject( uuid, null );
+        m_uuids.get(ws.getName()).setPaths( uuid, null );
     }
 
-    private void cleanRefMapping( WorkspaceImpl ws, Path path, String uuid ) throws IOException
+    private void cleanRefMapping( WorkspaceImpl ws, Path path, String uuid ) throws RepositoryException
     {
-        Path[] refs = m_references.get(ws.getName()).getObject( uuid );
+        Path[] refs = m_references.get(ws.getName()).getPaths( uuid );
             
         //System.out.println("Removing "+path+" ==> "+uuid );
         
@@ -1110,31 +1768,31 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
             }
         }
         
-        m_references.get(ws.getName()).setObject( uuid, 
-                                                  newrefs.size() > 0 ? 
-                                                      newrefs.toArray( new Path[newrefs.size()] ) :
-                                                          null );
+        m_references.get(ws.getName()).setPaths( uuid, newrefs.toArray( new Path[newrefs.size()] ) );
     }
 
     private void saveRefShortcut( WorkspaceImpl ws, Path path, ValueImpl v ) throws ValueFormatException, IllegalStateException, RepositoryException, IOException
     {
         if( v.getType() == PropertyType.REFERENCE )
         {
-            String uuid = v.getString();
-
-            Path[] refs = m_references.get(ws.getName()).getObject( uuid );
-            if( refs == null ) refs = new Path[0];
-            
-            Path[] newrefs = new Path[refs.length+1];
-            
-            for( int i = 0; i < refs.length; i++ ) newrefs[i] = refs[i];
-            
-            newrefs[newrefs.length-1] = path;
-
-            m_references.get(ws.getName()).setObject( uuid, newrefs );
+            addRefMapping( ws, path, v.getString() );
         }
     }
     
+    private void addRefMapping( WorkspaceImpl ws, Path path, String uuid ) throws RepositoryException
+    {
+        Path[] refs = m_references.get(ws.getName()).getPaths( uuid );
+        if( refs == null ) refs = new Path[0];
+        
+        Path[] newrefs = new Path[refs.length+1];
+        
+        for( int i = 0; i < refs.length; i++ ) newrefs[i] = refs[i];
+        
+        newrefs[newrefs.length-1] = path;
+
+        m_references.get(ws.getName()).setPaths( uuid, newrefs );
+    }
+    
 
 
 /*
@@ -1176,7 +1834,7 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
     {
         m_hitCount[Count.FindByUUID.ordinal()]++;
 
-        Path cachedPath = m_uuids.get(ws.getName()).getObject( uuid );
+        Path cachedPath = m_uuids.get(ws.getName()).getPath( uuid );
         
         if( cachedPath == null )
         {
@@ -1251,7 +1909,7 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
     {
         m_hitCount[Count.FindReferences.ordinal()]++;
 
-        Path[] refs = m_references.get(ws.getName()).getObject( uuid );
+        Path[] refs = m_references.get(ws.getName()).getPaths( uuid );
         
         if( refs != null )
         {
@@ -1355,282 +2013,2217 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
         return result;
     }
 
-    // FIXME: FileProvider does not support recovery.  Bummer.
-    public void storeFinished( StoreTransaction tx )
-    {
-    }
-
-    public void storeCancelled( StoreTransaction tx )
-    {
-    }
-
-    public StoreTransaction storeStarted( WorkspaceImpl ws )
-    {
-        return new BaseStoreTransaction(ws);
-    }
-
-
-    private String readContentsAsString( File file )
-        throws IOException
-    {
-        FileInputStream fis = new FileInputStream(file);
-        try
-        {
-            return FileUtil.readContents(fis, "UTF-8");
-        }
-        finally
-        {
-            if( fis != null ) fis.close();
-        }
-    }
-    
-
-
-    /*---------------------------------------------------------------------------*/
-    
     /**
-     *  Stores something based on UUIDs in an internal map, and
-     *  always serializes the map on disk upon addition of new objects.
-     *  
-     *  @param <T> A class to store - MUST implement Serializable.
+     *  Writes out all the files buffered by the transaction.  The files are forced
+     *  to the disk later in FileTransaction.sync().
      */
-    // FIXME: Should be faster by storing the map in a separate thread to collect multiple changes.
-    // FIXME: Should create a new file each time and not overwrite a previous one; then remove
-    //        the old one.
-    private class UUIDObjectStore<T extends Serializable>
+    // FIXME: FileProvider does not support recovery.  Bummer.
+    public void storeFinished( StoreTransaction tx ) throws RepositoryException
     {
-        private String           m_name;
-        private Map<String,T>    m_map;
-        private ObjectOutputStream m_journal;
-        private int              m_writeCount;
-        private long             m_lastWrite = System.currentTimeMillis();
-        
-        /* After this many writes the store is compacted. */
-        private static final int  COMPACT_LIMIT = 100;
+        FileTransaction ftx = (FileTransaction) tx;
         
-        /* But compacting is not done more often than this limit (in ms) */
-        private static final long COMPACT_TIME_LIMIT = 30*1000L;
-        
-        public UUIDObjectStore( String name )
+        try
         {
-            m_name = name;
+            //
+            //  The new blobs must be referenced before anything points at them,
+            //  and the old ones released only after nothing does any more.
+            //
+            if( m_blobs != null ) m_blobs.acquire( ftx.m_blobChanges );
             
-            try
-            {
-                m_journal = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream( new File(m_root, m_name), true )));
-            }
-            catch( FileNotFoundException e )
-            {
-                // FIXME: Should do something sane.
-                e.printStackTrace();
-            }
-            catch( IOException e )
+            for( ChildList children : ftx.m_children )
             {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                if( children.m_removed ) continue;
+                
+                bufferWrite( ftx, children.m_file, children.toBytes() );
+                children.setDirty( false );
             }
-        }
-        
-        public synchronized void shutdown()
-        {
-            try
+            
+            ftx.m_children.clear();
+            
+            for( Map.Entry<File,byte[]> e : ftx.m_writes.entrySet() )
             {
-                if( m_journal != null )
+                File f = e.getKey();
+                
+                //
+                //  Skip the files which have been removed or rewritten by someone
+                //  else since.
+                //
+                if( getPendingContents( f ) != e.getValue() ) continue;
+                
+                File target = replacementFor( f );
+                FileOutputStream out = new FileOutputStream( target );
+                
+                try
                 {
-                    serialize();
-                    m_journal.close();
-                    m_journal = null;
+                    out.write( e.getValue() );
                 }
-            }
-            catch( IOException e )
+                finally
+                {
+                    out.close();
+                }
+                
+                replace( target, f );
+                
+                discardPending( f, e.getValue() );
+                ftx.m_written.add( f );
+            }
+            
+            ftx.m_writes.clear();
+            
+            //
+            //  The child lists pointing at the moved subtrees are now on disk,
+            //  so the moves must never be undone.
+            //
+            ftx.m_moves.clear();
+            
+            //
+            //  Our own writes are already in the cached listings, so they
+            //  must not look like external changes.
+            //
+            Set<File> dirs = new HashSet<File>();
+            
+            for( File f : ftx.m_written ) dirs.add( f.getParentFile() );
+            
+            for( File dir : dirs ) touchListing( dir );
+            
+            if( m_blobs != null ) m_blobs.release( ftx.m_blobChanges );
+            
+            ftx.m_blobChanges = new BlobStore.Changes();
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException( "Unable to write the changes to disk", e );
+        }
+    }
+
+    /**
+     *  Throws away anything that the transaction has buffered and not yet written.
+     */
+    public void storeCancelled( StoreTransaction tx )
+    {
+        FileTransaction ftx = (FileTransaction) tx;
+        
+        for( Map.Entry<File,byte[]> e : ftx.m_writes.entrySet() )
+        {
+            discardPending( e.getKey(), e.getValue() );
+            
+            if( e.getKey().getName().equals( PACKED_FILE ) ) forgetTables( e.getKey().getParentFile() );
+            if( e.getKey().getName().endsWith( ".info" ) ) forgetListing( e.getKey().getParentFile() );
+        }
+        
+        ftx.m_writes.clear();
+        ftx.m_written.clear();
+        
+        //
+        //  The child lists were changed in place, so they must be read again.
+        //
+        synchronized( m_children )
+        {
+            for( ChildList children : ftx.m_children )
+            {
+                File dir = children.m_file.getParentFile();
+                
+                if( m_children.get( dir ) == children ) m_children.remove( dir );
+            }
+        }
+        
+        ftx.m_children.clear();
+        
+        //
+        //  The renamed directories are the only thing written before the end
+        //  of the save, so they are moved back, latest first.
+        //
+        for( int i = ftx.m_moves.size()-1; i >= 0; i-- )
+        {
+            try
+            {
+                ftx.m_moves.get( i ).undo( ftx );
+            }
+            catch( RepositoryException e )
+            {
+                log.warning( "Unable to undo a move of a subtree: "+e.getMessage() );
+            }
+        }
+        
+        ftx.m_moves.clear();
+        
+        if( m_blobs != null ) m_blobs.cancel( ftx.m_blobChanges );
+    }
+
+    public StoreTransaction storeStarted( WorkspaceImpl ws )
+    {
+        return new FileTransaction(ws);
+    }
+
+    /**
+     *  Stores the contents of a file in the transaction.  Until the transaction
+     *  is finished, the contents are visible through readFile() and fileExists().
+     */
+    private void bufferWrite( FileTransaction tx, File f, byte[] contents )
+    {
+        synchronized( m_pendingFiles )
+        {
+            Map<String,byte[]> dir = m_pendingFiles.get( f.getParentFile() );
+            
+            if( dir == null )
+            {
+                dir = new HashMap<String,byte[]>();
+                m_pendingFiles.put( f.getParentFile(), dir );
+            }
+            
+            dir.put( f.getName(), contents );
+        }
+        
+        tx.m_writes.put( f, contents );
+    }
+    
+    /**
+     *  Returns the buffered contents of a file, or null, if nothing is buffered.
+     */
+    private byte[] getPendingContents( File f )
+    {
+        synchronized( m_pendingFiles )
+        {
+            Map<String,byte[]> dir = m_pendingFiles.get( f.getParentFile() );
+            
+            return dir != null ? dir.get( f.getName() ) : null;
+        }
+    }
+    
+    /**
+     *  Lists the names of the buffered files in a directory which end with the given suffix.
+     */
+    private List<String> listPendingFiles( File dir, String suffix )
+    {
+        ArrayList<String> result = new ArrayList<String>();
+        
+        synchronized( m_pendingFiles )
+        {
+            Map<String,byte[]> files = m_pendingFiles.get( dir );
+            
+            if( files != null )
+            {
+                for( String name : files.keySet() )
+                {
+                    if( name.endsWith( suffix ) ) result.add( name );
+                }
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     *  Removes the buffered contents of a file.
+     *  
+     *  @param f The file
+     *  @param contents If not null, the contents are removed only if they are still these.
+     */
+    private void discardPending( File f, byte[] contents )
+    {
+        synchronized( m_pendingFiles )
+        {
+            Map<String,byte[]> dir = m_pendingFiles.get( f.getParentFile() );
+            
+            if( dir != null && (contents == null || dir.get( f.getName() ) == contents) )
+            {
+                dir.remove( f.getName() );
+                
+                if( dir.isEmpty() ) m_pendingFiles.remove( f.getParentFile() );
+            }
+        }
+    }
+    
+    /**
+     *  Removes everything buffered in the given directory and its subdirectories.
+     */
+    private void discardPendingUnder( File dir )
+    {
+        String prefix = dir.getPath() + File.separator;
+        
+        synchronized( m_pendingFiles )
+        {
+            for( Iterator<File> i = m_pendingFiles.keySet().iterator(); i.hasNext(); )
+            {
+                File d = i.next();
+                
+                if( d.equals( dir ) || d.getPath().startsWith( prefix ) ) i.remove();
+            }
+        }
+    }
+    
+    /**
+     *  Returns the file which is at the same place under the directory "to" as the
+     *  given file is under the directory "from".
+     */
+    private static File relocate( File f, File from, File to )
+    {
+        if( f.equals( from ) ) return to;
+        
+        return new File( to.getPath() + f.getPath().substring( from.getPath().length() ) );
+    }
+    
+    /**
+     *  Moves everything buffered in the given directory and its subdirectories to
+     *  the same place under another directory.
+     */
+    private void movePendingUnder( FileTransaction tx, File from, File to )
+    {
+        String prefix = from.getPath() + File.separator;
+        
+        synchronized( m_pendingFiles )
+        {
+            Map<File,Map<String,byte[]>> moved = new HashMap<File,Map<String,byte[]>>();
+            
+            for( Iterator<Map.Entry<File,Map<String,byte[]>>> i = m_pendingFiles.entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry<File,Map<String,byte[]>> e = i.next();
+                File d = e.getKey();
+                
+                if( d.equals( from ) || d.getPath().startsWith( prefix ) )
+                {
+                    moved.put( relocate( d, from, to ), e.getValue() );
+                    i.remove();
+                }
+            }
+            
+            m_pendingFiles.putAll( moved );
+        }
+        
+        Map<File,byte[]> writes = new LinkedHashMap<File,byte[]>();
+        
+        for( Map.Entry<File,byte[]> e : tx.m_writes.entrySet() )
+        {
+            File d = e.getKey().getParentFile();
+            
+            writes.put( d.equals( from ) || d.getPath().startsWith( prefix ) ? relocate( e.getKey(), from, to ) : e.getKey(), 
+                        e.getValue() );
+        }
+        
+        tx.m_writes = writes;
+        
+        Set<File> written = new LinkedHashSet<File>();
+        
+        for( File f : tx.m_written )
+        {
+            written.add( f.getPath().startsWith( prefix ) ? relocate( f, from, to ) : f );
+        }
+        
+        tx.m_written = written;
+    }
+    
+    private boolean fileExists( File f )
+    {
+        return getPendingContents( f ) != null || f.exists();
+    }
+    
+    private void deleteFile( File f )
+    {
+        discardPending( f, null );
+        unmap( f );
+        f.delete();
+    }
+    
+    /**
+     *  Returns the file which holds the blob hash of a value stored in the BlobStore
+     *  instead of the given .data -file.
+     */
+    private File blobFile( File dataFile )
+    {
+        String name = dataFile.getName();
+        
+        return new File( dataFile.getParentFile(), name.substring( 0, name.length()-".data".length() )+BLOB_SUFFIX );
+    }
+    
+    /**
+     *  Deletes a value, whether it's stored in a .data -file or in the BlobStore.
+     */
+    private void deleteValue( FileTransaction tx, File dataFile ) throws IOException
+    {
+        releaseBlob( tx, dataFile );
+        deleteFile( dataFile );
+    }
+    
+    /**
+     *  If the value is stored in the BlobStore, removes the pointer to it.  The blob
+     *  itself is released when the transaction is finished.
+     */
+    private void releaseBlob( FileTransaction tx, File dataFile ) throws IOException
+    {
+        if( m_blobs == null ) return;
+        
+        File blob = blobFile( dataFile );
+        
+        if( fileExists( blob ) )
+        {
+            tx.m_blobChanges.removed( readContentsAsString( blob ) );
+            deleteFile( blob );
+        }
+    }
+    
+    /**
+     *  Releases the blobs referred to from the pointers which are buffered in the given
+     *  directory or its subdirectories.  The pointers on the disk are released when
+     *  the directories are walked.
+     */
+    private void releasePendingBlobsUnder( FileTransaction tx, File dir ) throws RepositoryException
+    {
+        if( m_blobs == null ) return;
+        
+        String prefix = dir.getPath() + File.separator;
+        
+        try
+        {
+            synchronized( m_pendingFiles )
+            {
+                for( Map.Entry<File,Map<String,byte[]>> e : m_pendingFiles.entrySet() )
+                {
+                    if( !e.getKey().equals( dir ) && !e.getKey().getPath().startsWith( prefix ) ) continue;
+                
+                    for( Map.Entry<String,byte[]> f : e.getValue().entrySet() )
+                    {
+                        if( f.getKey().endsWith( BLOB_SUFFIX ) ) 
+                            tx.m_blobChanges.removed( new String( f.getValue(), "UTF-8" ) );
+                    }
+                }
+            }
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            throw new RepositoryException( "Unable to read the blob pointers under "+dir, e );
+        }
+    }
+    
+    /**
+     *  Reads the whole file (or its buffered contents) with a single read.
+     */
+    private byte[] readFile( File f ) throws IOException
+    {
+        byte[] pending = getPendingContents( f );
+        
+        if( pending != null ) return pending;
+        
+        FileInputStream in = new FileInputStream( f );
+        
+        try
+        {
+            byte[] result = new byte[(int)in.getChannel().size()];
+            int    pos    = 0;
+            
+            while( pos < result.length )
+            {
+                int n = in.read( result, pos, result.length-pos );
+                
+                if( n < 0 ) throw new EOFException( "File "+f+" was truncated while reading" );
+                
+                pos += n;
+            }
+            
+            return result;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private String readContentsAsString( File file )
+        throws IOException
+    {
+        return new String( readFile( file ), "UTF-8" );
+    }
+    
+    /**
+     *  Returns the file to which the new contents of the given file should be written.
+     *  Memory-mapped files must never be overwritten in place, since truncating a
+     *  file while someone is reading its mapping crashes the whole JVM.  So if mapping
+     *  is on, binary files are written to a temporary file first.
+     */
+    private File replacementFor( File f )
+    {
+        if( m_mappedFiles > 0 && f.getName().endsWith( ".data" ) )
+        {
+            return new File( f.getParentFile(), f.getName()+".tmp" );
+        }
+        
+        return f;
+    }
+    
+    /**
+     *  Puts the file returned by replacementFor() in place.
+     */
+    private void replace( File replacement, File f ) throws IOException
+    {
+        unmap( f );
+        
+        if( replacement.equals( f ) ) return;
+        
+        if( !replacement.renameTo( f ) )
+        {
+            //
+            //  Windows does not allow renaming over an existing file.
+            //
+            f.delete();
+            
+            if( !replacement.renameTo( f ) )
+            {
+                throw new IOException( "Unable to rename "+replacement+" to "+f );
+            }
+        }
+    }
+    
+    /**
+     *  Returns a memory-mapped source for the file, mapping it if it isn't already.
+     */
+    private MappedBinarySource getMapped( File f ) throws IOException
+    {
+        synchronized( m_mapped )
+        {
+            MappedBinarySource m = m_mapped.get( f );
+            
+            if( m == null )
+            {
+                m = new MappedBinarySource( f );
+                m_mapped.put( f, m );
+            }
+            
+            return m;
+        }
+    }
+    
+    private void unmap( File f )
+    {
+        if( m_mappedFiles == 0 ) return;
+        
+        synchronized( m_mapped )
+        {
+            m_mapped.remove( f );
+        }
+    }
+    
+    private void unmapUnder( File dir )
+    {
+        if( m_mappedFiles == 0 ) return;
+        
+        String prefix = dir.getPath() + File.separator;
+        
+        synchronized( m_mapped )
+        {
+            for( Iterator<File> i = m_mapped.keySet().iterator(); i.hasNext(); )
+            {
+                if( i.next().getPath().startsWith( prefix ) ) i.remove();
+            }
+        }
+    }
+    
+    /**
+     *  A binary file which is memory-mapped when it is read, if it is large
+     *  enough.  The mappings are shared through the provider, so the
+     *  frequently read files stay mapped.
+     */
+    private class HotFileSource extends FileBinarySource
+    {
+        public HotFileSource( File f )
+        {
+            super( f );
+        }
+        
+        private boolean isMappable()
+        {
+            return getLength() >= MIN_MAPPED_SIZE;
+        }
+        
+        @Override
+        public InputStream getStream() throws IOException
+        {
+            if( isMappable() ) return getMapped( getFile() ).getStream();
+            
+            return super.getStream();
+        }
+        
+        @Override
+        public long transferTo( WritableByteChannel out ) throws IOException
+        {
+            if( isMappable() ) return getMapped( getFile() ).transferTo( out );
+            
+            return super.transferTo( out );
+        }
+        
+        @Override
+        public HotFileSource clone()
+        {
+            return new HotFileSource( getFile() );
+        }
+    }
+    
+
+
+    /*---------------------------------------------------------------------------*/
+    /*  Subtree operations                                                       */
+    /*---------------------------------------------------------------------------*/
+    
+    /**
+     *  Gets called for each Node directory in a subtree, possibly in several threads
+     *  at the same time, but only once per directory.
+     */
+    private interface TreeVisitor
+    {
+        /**
+         *  Visits a single Node directory.
+         *  
+         *  @param dir The directory.
+         *  @param path The path of the Node, or null, if the directory is not listed
+         *              as a child by its parent.
+         *  @param files The plain files in the directory.
+         */
+        public void visit( File dir, Path path, List<File> files ) throws IOException, RepositoryException;
+    }
+    
+    /**
+     *  Walks through a Node directory and all the directories under it, handing
+     *  each one to the worker threads as soon as it has been found.  Returns when
+     *  all of them have been visited.
+     */
+    private void walkTree( WorkspaceImpl ws, File dir, Path path, TreeVisitor visitor ) throws RepositoryException
+    {
+        TreeWalk walk = new TreeWalk( ws, visitor );
+        
+        walk.submit( dir, path );
+        walk.await();
+    }
+    
+    /**
+     *  Returns the names of the child Nodes of a Node directory, using the cached child
+     *  list if there is one.  Unlike getChildren(), does not add anything to the cache.
+     */
+    private List<String> listChildNames( File dir ) throws IOException
+    {
+        synchronized( m_children )
+        {
+            ChildList children = m_children.get( dir );
+            
+            if( children != null ) return children.toList();
+        }
+        
+        ArrayList<String> result = new ArrayList<String>();
+        File order = new File( dir, ORDER_FILE );
+        
+        if( fileExists( order ) )
+        {
+            for( String s : readContentsAsString( order ).split( "\n" ) )
+            {
+                if( s.length() > 0 ) result.add( s );
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     *  A single walk over a subtree.  The tasks never wait for each other, so they
+     *  cannot starve the pool; each task just submits a new one for every subdirectory
+     *  it finds.
+     */
+    private class TreeWalk
+    {
+        private final WorkspaceImpl m_ws;
+        private final TreeVisitor   m_visitor;
+        private int                 m_pending;
+        private Exception           m_failure;
+        
+        public TreeWalk( WorkspaceImpl ws, TreeVisitor visitor )
+        {
+            m_ws      = ws;
+            m_visitor = visitor;
+        }
+        
+        public void submit( final File dir, final Path path )
+        {
+            synchronized( this )
+            {
+                m_pending++;
+            }
+            
+            Runnable task = new Runnable() 
+            {
+                public void run()
+                {
+                    try
+                    {
+                        visit( dir, path );
+                    }
+                    catch( Exception e )
+                    {
+                        fail( e );
+                    }
+                    finally
+                    {
+                        done();
+                    }
+                }
+            };
+            
+            ExecutorService executor = m_executor;
+            
+            try
+            {
+                if( executor != null ) 
+                {
+                    executor.execute( task );
+                    return;
+                }
+            }
+            catch( RejectedExecutionException e )
+            {
+                // Shutting down, so we'll just do it ourselves.
+            }
+            
+            task.run();
+        }
+        
+        private void visit( File dir, Path path ) throws IOException, RepositoryException
+        {
+            synchronized( this )
+            {
+                if( m_failure != null ) return;
+            }
+            
+            File[] entries = dir.listFiles();
+            
+            if( entries == null ) return;
+            
+            //
+            //  The child directories are matched by their name, which is the
+            //  mangled name of the Node.
+            //
+            Map<String,Path> children = new HashMap<String,Path>();
+            
+            if( path != null )
+            {
+                for( String name : listChildNames( dir ) )
+                {
+                    Path childPath = path.resolve( Path.Component.valueOf( name ) );
+                    
+                    children.put( getNodeDir( m_ws, childPath ).getName(), childPath );
+                }
+            }
+            
+            List<File> files = new ArrayList<File>();
+            
+            for( File f : entries )
+            {
+                if( !f.isDirectory() )
+                {
+                    files.add( f );
+                }
+                else if( f.getName().startsWith( BUCKET_PREFIX ) )
+                {
+                    File[] bucket = f.listFiles();
+                    
+                    if( bucket == null ) continue;
+                    
+                    for( File c : bucket )
+                    {
+                        if( c.isDirectory() ) submit( c, children.get( c.getName() ) );
+                    }
+                }
+                else
+                {
+                    submit( f, children.get( f.getName() ) );
+                }
+            }
+            
+            m_visitor.visit( dir, path, files );
+        }
+        
+        private synchronized void fail( Exception e )
+        {
+            if( m_failure == null ) m_failure = e;
+        }
+        
+        private synchronized void done()
+        {
+            if( --m_pending == 0 ) notifyAll();
+        }
+        
+        public synchronized void await() throws RepositoryException
+        {
+            boolean interrupted = false;
+            
+            while( m_pending > 0 )
+            {
+                try
+                {
+                    wait();
+                }
+                catch( InterruptedException e )
+                {
+                    // The workers are still using the files, so we must wait for them anyway.
+                    interrupted = true;
+                }
+            }
+            
+            if( interrupted ) Thread.currentThread().interrupt();
+            
+            if( m_failure instanceof RepositoryException ) throw (RepositoryException) m_failure;
+            if( m_failure != null ) throw new RepositoryException( "Subtree walk failed", m_failure );
+        }
+    }
+    
+    /**
+     *  Reads the UUIDs, references and blob pointers from each directory and deletes
+     *  the files.  The indexes are updated by finish() in the calling thread.
+     */
+    private class SubtreeRemoval implements TreeVisitor
+    {
+        private final Map<String,Path> m_nodes    = new HashMap<String,Path>();
+        private final List<Path>       m_refPaths = new ArrayList<Path>();
+        private final List<String>     m_refUuids = new ArrayList<String>();
+        private final List<String>     m_blobs    = new ArrayList<String>();
+        
+        public void visit( File dir, Path path, List<File> files ) throws IOException, RepositoryException
+        {
+            for( File f : files )
+            {
+                String name = f.getName();
+                
+                //
+                //  A buffered pointer has been released already.
+                //
+                if( name.endsWith( BLOB_SUFFIX ) && getPendingContents( f ) == null )
+                {
+                    addBlob( readContentsAsString( f ) );
+                }
+                else if( name.endsWith( ".info" ) )
+                {
+                    readInfo( dir, f );
+                }
+                else if( name.equals( PACKED_FILE ) && path != null )
+                {
+                    readTable( dir, path, f );
+                }
+            }
+            
+            for( File f : files )
+            {
+                f.delete();
+            }
+        }
+        
+        private void readInfo( File dir, File f ) throws IOException, RepositoryException
+        {
+            Properties props = FastPropertyStore.load( readFile( f ) );
+            Path       p     = PathFactory.getPath( props.getProperty( PROP_PATH ) );
+            int        type  = PropertyType.valueFromName( props.getProperty( PROP_TYPE ) );
+            boolean    uuid  = p.getLastComponent().equals( Q_JCR_UUID );
+            
+            if( type != PropertyType.REFERENCE && !uuid ) return;
+            
+            List<File> dataFiles = new ArrayList<File>();
+            
+            if( Boolean.parseBoolean( props.getProperty( PROP_MULTIPLE ) ) )
+            {
+                int items = Integer.parseInt( props.getProperty( PROP_NUM_PROPERTIES ) );
+                
+                for( int i = 0; i < items; i++ )
+                    dataFiles.add( new File( dir, makeFilename( p.getLastComponent(), "."+i+".data" ) ) );
+            }
+            else
+            {
+                dataFiles.add( new File( dir, makeFilename( p.getLastComponent(), ".data" ) ) );
+            }
+            
+            for( File df : dataFiles )
+            {
+                // It might be that the file does not exist for some reason.
+                if( !fileExists( df ) ) continue;
+                
+                String value = readContentsAsString( df );
+                
+                if( uuid ) addUuid( value, p.getParentPath() );
+                if( type == PropertyType.REFERENCE ) addRef( p, value );
+            }
+        }
+        
+        private void readTable( File dir, Path path, File f ) throws IOException
+        {
+            PackedTable table = PackedTable.parse( readFile( f ) );
+            
+            for( Map.Entry<QName,PackedProperty> e : table.m_properties.entrySet() )
+            {
+                QName          name = e.getKey();
+                PackedProperty p    = e.getValue();
+                boolean        uuid = name.equals( Q_JCR_UUID );
+                
+                if( p.m_type != PropertyType.REFERENCE && !uuid ) continue;
+                
+                for( int i = 0; i < p.m_values.length; i++ )
+                {
+                    byte[] value = p.m_values[i];
+                    
+                    if( value == null )
+                    {
+                        File df = packedDataFile( dir, name, p, i );
+                        
+                        if( !fileExists( df ) ) continue;
+                        
+                        value = readFile( df );
+                    }
+                    
+                    String s = new String( value, "UTF-8" );
+                    
+                    if( uuid ) addUuid( s, path );
+                    if( p.m_type == PropertyType.REFERENCE ) addRef( path.resolve( name ), s );
+                }
+            }
+        }
+        
+        private synchronized void addUuid( String uuid, Path node )
+        {
+            m_nodes.put( uuid, node );
+        }
+        
+        private synchronized void addRef( Path path, String uuid )
+        {
+            m_refPaths.add( path );
+            m_refUuids.add( uuid );
+        }
+        
+        private synchronized void addBlob( String hash )
+        {
+            m_blobs.add( hash );
+        }
+        
+        /**
+         *  Updates the indexes.  A UUID is removed only if it still points at the
+         *  removed Node, since a moved Node has already been registered at its new path.
+         */
+        public synchronized void finish( FileTransaction tx ) throws RepositoryException
+        {
+            WorkspaceImpl ws    = tx.getWorkspace();
+            PathIndex     uuids = m_uuids.get( ws.getName() );
+            
+            for( Map.Entry<String,Path> e : m_nodes.entrySet() )
+            {
+                if( e.getValue().equals( uuids.getPath( e.getKey() ) ) ) cleanUuidMapping( ws, e.getKey() );
+            }
+            
+            for( int i = 0; i < m_refPaths.size(); i++ )
+            {
+                cleanRefMapping( ws, m_refPaths.get( i ), m_refUuids.get( i ) );
+            }
+            
+            for( String hash : m_blobs )
+            {
+                tx.m_blobChanges.removed( hash );
+            }
+        }
+    }
+    
+    /**
+     *  Copies each directory to its new place.  The copied Nodes are registered in
+     *  the indexes by finish() in the calling thread.
+     */
+    private class SubtreeCopy implements TreeVisitor
+    {
+        private final WorkspaceImpl    m_ws;
+        private final Path             m_src;
+        private final Path             m_dest;
+        private final Map<String,Path> m_nodes    = new HashMap<String,Path>();
+        private final List<Path>       m_refPaths = new ArrayList<Path>();
+        private final List<String>     m_refUuids = new ArrayList<String>();
+        private final List<File>       m_written  = new ArrayList<File>();
+        
+        public SubtreeCopy( WorkspaceImpl ws, Path src, Path dest )
+        {
+            m_ws   = ws;
+            m_src  = src;
+            m_dest = dest;
+        }
+        
+        /**
+         *  Returns the path of the copy of the given Node.
+         */
+        private Path destinationOf( Path path )
+        {
+            Path result = m_dest;
+            
+            for( int i = m_src.depth(); i < path.depth(); i++ )
+            {
+                result = result.resolve( path.getComponent( i ) );
+            }
+            
+            return result;
+        }
+        
+        public void visit( File dir, Path path, List<File> files ) throws IOException, RepositoryException
+        {
+            //
+            //  Leftovers which are not part of the tree are not copied.
+            //
+            if( path == null ) return;
+            
+            Path   dest     = destinationOf( path );
+            File   destDir  = getNodeDir( m_ws, dest );
+            String uuidData = makeFilename( Q_JCR_UUID, ".data" );
+            
+            destDir.mkdirs();
+            
+            for( File f : files )
+            {
+                String name   = f.getName();
+                File   target = new File( destDir, name );
+                
+                if( name.endsWith( ".tmp" ) || name.equals( uuidData ) ) 
+                {
+                    // The UUID is written along with its .info -file.
+                    continue;
+                }
+                else if( name.endsWith( ".info" ) )
+                {
+                    copyInfo( dir, f, destDir, dest );
+                }
+                else if( name.equals( PACKED_FILE ) )
+                {
+                    copyTable( dir, f, destDir, dest );
+                }
+                else
+                {
+                    if( name.endsWith( BLOB_SUFFIX ) && m_blobs != null )
+                    {
+                        BlobStore.Changes changes = new BlobStore.Changes();
+                        changes.added( readContentsAsString( f ) );
+                        m_blobs.acquire( changes );
+                    }
+                    
+                    copyFile( f, target );
+                }
+            }
+        }
+        
+        private void copyInfo( File dir, File f, File destDir, Path dest ) throws IOException, RepositoryException
+        {
+            Properties props = FastPropertyStore.load( readFile( f ) );
+            Path       p     = PathFactory.getPath( props.getProperty( PROP_PATH ) );
+            Path       np    = dest.resolve( p.getLastComponent() );
+            int        type  = PropertyType.valueFromName( props.getProperty( PROP_TYPE ) );
+            
+            props.setProperty( PROP_PATH, np.toString() );
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            FastPropertyStore.store( out, props );
+            writeFile( new File( destDir, f.getName() ), out.toByteArray() );
+            
+            if( p.getLastComponent().equals( Q_JCR_UUID ) )
+            {
+                String uuid = UUID.randomUUID().toString();
+                
+                writeFile( new File( destDir, makeFilename( Q_JCR_UUID, ".data" ) ), uuid.getBytes( "UTF-8" ) );
+                addUuid( uuid, dest );
+            }
+            else if( type == PropertyType.REFERENCE )
+            {
+                if( Boolean.parseBoolean( props.getProperty( PROP_MULTIPLE ) ) )
+                {
+                    int items = Integer.parseInt( props.getProperty( PROP_NUM_PROPERTIES ) );
+                    
+                    for( int i = 0; i < items; i++ )
+                        addRef( np, readContentsAsString( new File( dir, makeFilename( p.getLastComponent(), "."+i+".data" ) ) ) );
+                }
+                else
+                {
+                    addRef( np, readContentsAsString( new File( dir, makeFilename( p.getLastComponent(), ".data" ) ) ) );
+                }
+            }
+        }
+        
+        private void copyTable( File dir, File f, File destDir, Path dest ) throws IOException
+        {
+            PackedTable table = PackedTable.parse( readFile( f ) );
+            
+            for( Map.Entry<QName,PackedProperty> e : table.m_properties.entrySet() )
+            {
+                QName          name = e.getKey();
+                PackedProperty p    = e.getValue();
+                
+                if( name.equals( Q_JCR_UUID ) )
+                {
+                    String uuid = UUID.randomUUID().toString();
+                    
+                    PackedProperty np = new PackedProperty();
+                    np.m_type     = p.m_type;
+                    np.m_multiple = false;
+                    np.m_values   = new byte[][] { uuid.getBytes( "UTF-8" ) };
+                    
+                    e.setValue( np );
+                    addUuid( uuid, dest );
+                }
+                else if( p.m_type == PropertyType.REFERENCE )
+                {
+                    for( int i = 0; i < p.m_values.length; i++ )
+                    {
+                        byte[] value = p.m_values[i];
+                        
+                        if( value == null ) value = readFile( packedDataFile( dir, name, p, i ) );
+                        
+                        addRef( dest.resolve( name ), new String( value, "UTF-8" ) );
+                    }
+                }
+            }
+            
+            writeFile( new File( destDir, PACKED_FILE ), table.toBytes() );
+        }
+        
+        /**
+         *  Copies a file, or its buffered contents.
+         */
+        private void copyFile( File f, File target ) throws IOException
+        {
+            byte[] pending = getPendingContents( f );
+            
+            if( pending != null )
+            {
+                writeFile( target, pending );
+                return;
+            }
+            
+            FileInputStream  in  = new FileInputStream( f );
+            FileOutputStream out = null;
+            
+            try
+            {
+                out = new FileOutputStream( target );
+                
+                FileChannel src  = in.getChannel();
+                FileChannel dest = out.getChannel();
+                long        size = src.size();
+                
+                for( long pos = 0; pos < size; )
+                {
+                    pos += src.transferTo( pos, size-pos, dest );
+                }
+            }
+            finally
+            {
+                try
+                {
+                    if( out != null ) out.close();
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            
+            written( target );
+        }
+        
+        private void writeFile( File f, byte[] contents ) throws IOException
+        {
+            FileOutputStream out = new FileOutputStream( f );
+            
+            try
+            {
+                out.write( contents );
+            }
+            finally
+            {
+                out.close();
+            }
+            
+            written( f );
+        }
+        
+        private synchronized void written( File f )
+        {
+            m_written.add( f );
+        }
+        
+        private synchronized void addUuid( String uuid, Path node )
+        {
+            m_nodes.put( uuid, node );
+        }
+        
+        private synchronized void addRef( Path path, String uuid )
+        {
+            m_refPaths.add( path );
+            m_refUuids.add( uuid );
+        }
+        
+        /**
+         *  Registers the copy in the indexes and in the child list of its parent,
+         *  and syncs everything to the disk.
+         */
+        public synchronized void finish() throws IOException, RepositoryException
+        {
+            PathIndex uuids = m_uuids.get( m_ws.getName() );
+            
+            for( Map.Entry<String,Path> e : m_nodes.entrySet() )
+            {
+                uuids.setPaths( e.getKey(), new Path[] { e.getValue() } );
+            }
+            
+            for( int i = 0; i < m_refPaths.size(); i++ )
+            {
+                addRefMapping( m_ws, m_refPaths.get( i ), m_refUuids.get( i ) );
+            }
+            
+            ChildList children = getChildren( m_ws, m_dest.getParentPath() );
+            
+            if( children.add( m_dest.getLastComponent().toString() ) )
+            {
+                writeFile( children.m_file, children.toBytes() );
+            }
+            
+            FileTransaction tx = new FileTransaction( m_ws );
+            tx.m_written.addAll( m_written );
+            tx.sync();
+        }
+    }
+    
+    /**
+     *  Rewrites the paths in the .info -files of a moved subtree, and collects the
+     *  UUIDs and references found on the way.  The directories have already been
+     *  moved, so the visited paths are the new ones.  The indexes are updated and
+     *  the rewritten files buffered by finish() in the calling thread.
+     */
+    private class SubtreeMove implements TreeVisitor
+    {
+        private final Path             m_src;
+        private final Path             m_dest;
+        private final Map<String,Path> m_nodes    = new HashMap<String,Path>();
+        private final List<Path>       m_oldRefs  = new ArrayList<Path>();
+        private final List<Path>       m_newRefs  = new ArrayList<Path>();
+        private final List<String>     m_refUuids = new ArrayList<String>();
+        private final Map<File,byte[]> m_infos    = new HashMap<File,byte[]>();
+        private final File             m_srcDir;
+        private final File             m_destDir;
+        
+        public SubtreeMove( Path src, Path dest, File srcDir, File destDir )
+        {
+            m_src     = src;
+            m_dest    = dest;
+            m_srcDir  = srcDir;
+            m_destDir = destDir;
+        }
+        
+        /**
+         *  Returns the old path of the given moved Node.
+         */
+        private Path sourceOf( Path path )
+        {
+            Path result = m_src;
+            
+            for( int i = m_dest.depth(); i < path.depth(); i++ )
+            {
+                result = result.resolve( path.getComponent( i ) );
+            }
+            
+            return result;
+        }
+        
+        public void visit( File dir, Path path, List<File> files ) throws IOException, RepositoryException
+        {
+            if( path == null ) return;
+            
+            Set<String> names = new LinkedHashSet<String>();
+            
+            for( File f : files ) names.add( f.getName() );
+            
+            names.addAll( listPendingFiles( dir, ".info" ) );
+            names.addAll( listPendingFiles( dir, PACKED_FILE ) );
+            
+            for( String name : names )
+            {
+                if( name.endsWith( ".info" ) )
+                {
+                    moveInfo( dir, new File( dir, name ), path );
+                }
+                else if( name.equals( PACKED_FILE ) )
+                {
+                    moveTable( dir, new File( dir, name ), path );
+                }
+            }
+        }
+        
+        private void moveInfo( File dir, File f, Path path ) throws IOException, RepositoryException
+        {
+            Properties props = FastPropertyStore.load( readFile( f ) );
+            Path       p     = PathFactory.getPath( props.getProperty( PROP_PATH ) );
+            Path       np    = path.resolve( p.getLastComponent() );
+            int        type  = PropertyType.valueFromName( props.getProperty( PROP_TYPE ) );
+            
+            props.setProperty( PROP_PATH, np.toString() );
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            FastPropertyStore.store( out, props );
+            addInfo( f, out.toByteArray() );
+            
+            if( p.getLastComponent().equals( Q_JCR_UUID ) )
+            {
+                addUuid( readContentsAsString( new File( dir, makeFilename( Q_JCR_UUID, ".data" ) ) ), path );
+            }
+            else if( type == PropertyType.REFERENCE )
+            {
+                if( Boolean.parseBoolean( props.getProperty( PROP_MULTIPLE ) ) )
+                {
+                    int items = Integer.parseInt( props.getProperty( PROP_NUM_PROPERTIES ) );
+                    
+                    for( int i = 0; i < items; i++ )
+                        addRef( p, np, readContentsAsString( new File( dir, makeFilename( p.getLastComponent(), "."+i+".data" ) ) ) );
+                }
+                else
+                {
+                    addRef( p, np, readContentsAsString( new File( dir, makeFilename( p.getLastComponent(), ".data" ) ) ) );
+                }
+            }
+        }
+        
+        /**
+         *  The packed table has no paths in it, so only the indexes need updating.
+         */
+        private void moveTable( File dir, File f, Path path ) throws IOException
+        {
+            PackedTable table = PackedTable.parse( readFile( f ) );
+            
+            for( Map.Entry<QName,PackedProperty> e : table.m_properties.entrySet() )
+            {
+                QName          name = e.getKey();
+                PackedProperty p    = e.getValue();
+                
+                if( name.equals( Q_JCR_UUID ) || p.m_type == PropertyType.REFERENCE )
+                {
+                    for( int i = 0; i < p.m_values.length; i++ )
+                    {
+                        byte[] value = p.m_values[i];
+                        
+                        if( value == null ) value = readFile( packedDataFile( dir, name, p, i ) );
+                        
+                        if( name.equals( Q_JCR_UUID ) )
+                            addUuid( new String( value, "UTF-8" ), path );
+                        else
+                            addRef( sourceOf( path ).resolve( name ), path.resolve( name ), new String( value, "UTF-8" ) );
+                    }
+                }
+            }
+        }
+        
+        private synchronized void addInfo( File f, byte[] contents )
+        {
+            m_infos.put( f, contents );
+        }
+        
+        private synchronized void addUuid( String uuid, Path node )
+        {
+            m_nodes.put( uuid, node );
+        }
+        
+        private synchronized void addRef( Path oldPath, Path newPath, String uuid )
+        {
+            m_oldRefs.add( oldPath );
+            m_newRefs.add( newPath );
+            m_refUuids.add( uuid );
+        }
+        
+        /**
+         *  Points the UUIDs and references at the new paths, and buffers the
+         *  rewritten .info -files.
+         */
+        public synchronized void finish( FileTransaction tx ) throws RepositoryException
+        {
+            WorkspaceImpl ws    = tx.getWorkspace();
+            PathIndex     uuids = m_uuids.get( ws.getName() );
+            
+            for( Map.Entry<String,Path> e : m_nodes.entrySet() )
+            {
+                uuids.setPaths( e.getKey(), new Path[] { e.getValue() } );
+            }
+            
+            for( int i = 0; i < m_refUuids.size(); i++ )
+            {
+                cleanRefMapping( ws, m_oldRefs.get( i ), m_refUuids.get( i ) );
+                addRefMapping( ws, m_newRefs.get( i ), m_refUuids.get( i ) );
+            }
+            
+            for( Map.Entry<File,byte[]> e : m_infos.entrySet() )
+            {
+                bufferWrite( tx, e.getKey(), e.getValue() );
+            }
+        }
+        
+        /**
+         *  Renames the directory back, and points the UUIDs and references at the
+         *  old paths again.  The rewritten .info -files were never written, so 
+         *  the files under the directory are as they were.
+         */
+        public synchronized void undo( FileTransaction tx ) throws RepositoryException
+        {
+            WorkspaceImpl ws    = tx.getWorkspace();
+            PathIndex     uuids = m_uuids.get( ws.getName() );
+            
+            unmapUnder( m_destDir );
+            forgetTables( m_destDir );
+            forgetListings( m_destDir );
+            forgetChildren( m_destDir );
+            forgetListings( m_srcDir );
+            forgetChildren( m_srcDir );
+            
+            m_srcDir.getParentFile().mkdirs();
+            
+            if( !m_destDir.renameTo( m_srcDir ) )
+                throw new RepositoryException( "Unable to move "+m_destDir+" back to "+m_srcDir );
+            
+            if( m_fanout > 0 ) m_destDir.getParentFile().delete();
+            
+            movePendingUnder( tx, m_destDir, m_srcDir );
+            
+            for( Map.Entry<String,Path> e : m_nodes.entrySet() )
+            {
+                uuids.setPaths( e.getKey(), new Path[] { sourceOf( e.getValue() ) } );
+            }
+            
+            for( int i = 0; i < m_refUuids.size(); i++ )
+            {
+                cleanRefMapping( ws, m_newRefs.get( i ), m_refUuids.get( i ) );
+                addRefMapping( ws, m_oldRefs.get( i ), m_refUuids.get( i ) );
+            }
+        }
+    }
+    
+    /**
+     *  Creates daemon threads for the subtree operations, so that they never keep
+     *  the JVM running.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory
+    {
+        private int m_count = 0;
+        
+        public synchronized Thread newThread( Runnable r )
+        {
+            Thread t = new Thread( r, "Priha FileProvider worker "+(++m_count) );
+            t.setDaemon( true );
+            
+            return t;
+        }
+    }
+    
+    /*---------------------------------------------------------------------------*/
+    /*  The packed layout                                                        */
+    /*---------------------------------------------------------------------------*/
+    
+    /**
+     *  Returns the property table of a Node, or null, if the Node does not exist.
+     */
+    private PackedTable readTable( File nodeDir ) throws IOException
+    {
+        synchronized( m_tables )
+        {
+            PackedTable table = m_tables.get( nodeDir );
+            
+            if( table != null ) return table;
+        }
+        
+        File f = new File( nodeDir, PACKED_FILE );
+        
+        if( !fileExists( f ) ) return null;
+        
+        PackedTable table = PackedTable.parse( readFile( f ) );
+        
+        synchronized( m_tables )
+        {
+            m_tables.put( nodeDir, table );
+        }
+        
+        return table;
+    }
+    
+    private void writeTable( FileTransaction tx, File nodeDir, PackedTable table ) throws IOException
+    {
+        bufferWrite( tx, new File( nodeDir, PACKED_FILE ), table.toBytes() );
+        
+        synchronized( m_tables )
+        {
+            m_tables.put( nodeDir, table );
+        }
+    }
+    
+    /**
+     *  Drops the cached tables of the given directory and everything under it.
+     */
+    private void forgetTables( File dir )
+    {
+        String prefix = dir.getPath() + File.separator;
+        
+        synchronized( m_tables )
+        {
+            for( Iterator<File> i = m_tables.keySet().iterator(); i.hasNext(); )
+            {
+                File d = i.next();
+                
+                if( d.equals( dir ) || d.getPath().startsWith( prefix ) ) i.remove();
+            }
+        }
+    }
+    
+    private File packedDataFile( File nodeDir, QName name, PackedProperty p, int i )
+    {
+        return new File( nodeDir, makeFilename( name, p.m_multiple ? "."+i+".data" : ".data" ) );
+    }
+    
+    private boolean packedItemExists( WorkspaceImpl ws, Path path, ItemType type ) throws RepositoryException, IOException
+    {
+        if( type == ItemType.NODE )
+        {
+            PackedTable table = readTable( getNodeDir( ws, path ) );
+            
+            return table != null && table.m_properties.containsKey( Q_JCR_PRIMARYTYPE );
+        }
+        else if( type == ItemType.PROPERTY )
+        {
+            PackedTable table = readTable( getNodeDir( ws, path.getParentPath() ) );
+            
+            return table != null && table.m_properties.containsKey( path.getLastComponent() );
+        }
+        
+        throw new IllegalArgumentException("Type "+type.name()+" not supported");
+    }
+    
+    private ValueContainer getPackedValue( WorkspaceImpl ws, File nodeDir, Path path ) throws IOException, RepositoryException
+    {
+        PackedTable    table = readTable( nodeDir );
+        PackedProperty p     = table != null ? table.m_properties.get( path.getLastComponent() ) : null;
+        
+        if( p == null ) throw new PathNotFoundException( "No such property: "+path );
+        
+        String      propType = PropertyType.nameFromValue( p.m_type );
+        ValueImpl[] result   = new ValueImpl[p.m_values.length];
+        
+        for( int i = 0; i < result.length; i++ )
+        {
+            byte[] inline = p.m_values[i];
+            
+            if( inline == null )
+                result[i] = prepareValue( ws, packedDataFile( nodeDir, path.getLastComponent(), p, i ), propType );
+            else if( p.m_type == PropertyType.BINARY )
+                result[i] = ws.getSession().getValueFactory().createValue( new MemoryBinarySource(inline) );
+            else
+                result[i] = prepareValue( ws, new String( inline, "UTF-8" ), propType );
+        }
+        
+        if( p.m_multiple ) return new ValueContainer( result, p.m_type );
+        
+        return new ValueContainer( result[0] );
+    }
+    
+    private void putPackedValue( FileTransaction tx, File nodeDir, Path path, ValueContainer vc ) throws RepositoryException
+    {
+        QName name = path.getLastComponent();
+        WorkspaceImpl ws = tx.getWorkspace();
+        
+        try
+        {
+            PackedTable    old   = readTable( nodeDir );
+            PackedTable    table = old != null ? new PackedTable( old ) : new PackedTable();
+            PackedProperty oldp  = old != null ? old.m_properties.get( name ) : null;
+            
+            if( vc.getType() == PropertyType.REFERENCE && oldp != null )
+            {
+                for( ValueImpl v : allValues( getPackedValue( ws, nodeDir, path ) ) )
+                {
+                    cleanRefMapping( ws, path, v.getString() );
+                }
+            }
+            
+            ValueImpl[] values = allValues( vc );
+            
+            PackedProperty p = new PackedProperty();
+            p.m_type     = vc.getType();
+            p.m_multiple = vc.isMultiple();
+            p.m_values   = new byte[values.length][];
+            
+            //
+            //  The old external values go first, so that they cannot clobber the new ones.
+            //
+            if( oldp != null ) deleteExternalValues( tx, nodeDir, name, oldp );
+            
+            for( int i = 0; i < values.length; i++ )
+            {
+                if( vc.getType() == PropertyType.REFERENCE ) saveRefShortcut( ws, path, values[i] );
+                
+                p.m_values[i] = inlineValue( tx, packedDataFile( nodeDir, name, p, i ), values[i] );
+            }
+            
+            table.m_properties.put( name, p );
+            
+            writeTable( tx, nodeDir, table );
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException( "Unable to store property "+path, e );
+        }
+    }
+    
+    /**
+     *  Returns the serialized form of a value, if it is small enough to be inlined.
+     *  Otherwise writes it in the given file and returns null.
+     */
+    private byte[] inlineValue( FileTransaction tx, File f, ValueImpl v ) throws IOException, RepositoryException
+    {
+        if( v instanceof QValue.QValueInner )
+        {
+            byte[] ba = ((QValue.QValueInner)v).getQValue().getString().getBytes("UTF-8");
+            
+            if( ba.length <= MAX_INLINE_SIZE ) return ba;
+            
+            bufferWrite( tx, f, ba );
+            return null;
+        }
+        
+        if( v instanceof StreamValueImpl )
+        {
+            //
+            //  Binaries may be huge, so we'll check the length before reading anything.
+            //
+            long length = ((StreamValueImpl)v).getLength();
+            
+            if( length < 0 || length > MAX_INLINE_SIZE )
+            {
+                writeValue( tx, f, v );
+                return null;
+            }
+        }
+        
+        InputStream in = v.getStream();
+        
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            
+            FileUtil.copyContents( in, out );
+            
+            if( out.size() <= MAX_INLINE_SIZE ) return out.toByteArray();
+            
+            bufferWrite( tx, f, out.toByteArray() );
+            return null;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    private static ValueImpl[] allValues( ValueContainer vc ) throws ValueFormatException
+    {
+        return vc.isMultiple() ? vc.getValues() : new ValueImpl[] { vc.getValue() };
+    }
+    
+    private void deleteExternalValues( FileTransaction tx, File nodeDir, QName name, PackedProperty p ) throws IOException
+    {
+        for( int i = 0; i < p.m_values.length; i++ )
+        {
+            if( p.m_values[i] == null ) deleteValue( tx, packedDataFile( nodeDir, name, p, i ) );
+        }
+    }
+    
+    private void removePackedProperty( FileTransaction tx, File nodeDir, Path path ) throws RepositoryException
+    {
+        QName name = path.getLastComponent();
+        WorkspaceImpl ws = tx.getWorkspace();
+        
+        try
+        {
+            PackedTable    old = readTable( nodeDir );
+            PackedProperty p   = old != null ? old.m_properties.get( name ) : null;
+            
+            if( p == null ) return;
+            
+            if( p.m_type == PropertyType.REFERENCE || name.equals( Q_JCR_UUID ) )
+            {
+                for( ValueImpl v : allValues( getPackedValue( ws, nodeDir, path ) ) )
+                {
+                    if( p.m_type == PropertyType.REFERENCE ) cleanRefMapping( ws, path, v.getString() );
+                    if( name.equals( Q_JCR_UUID ) ) cleanUuidMapping( ws, v.getString() );
+                }
+            }
+            
+            deleteExternalValues( tx, nodeDir, name, p );
+            
+            PackedTable table = new PackedTable( old );
+            table.m_properties.remove( name );
+            
+            writeTable( tx, nodeDir, table );
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException( "Unable to remove property "+path, e );
+        }
+    }
+    
+    /**
+     *  A single property in the packed table.
+     */
+    private static class PackedProperty
+    {
+        int      m_type;
+        boolean  m_multiple;
+        
+        /* The serialized values; null means that the value is stored in a .data -file. */
+        byte[][] m_values;
+    }
+    
+    /**
+     *  The property table of a Node in the packed layout.  The tables are shared
+     *  through the cache, so they are never modified after they have been written;
+     *  a copy is modified instead.
+     *  <p>
+     *  The format is [int version][int count] followed by, for each property,
+     *  [UTF name][byte type][boolean multiple][int count], and for each value
+     *  either [int -1] for a value in a .data -file, or [int length][bytes].
+     */
+    private static class PackedTable
+    {
+        private static final int VERSION = 1;
+        
+        LinkedHashMap<QName,PackedProperty> m_properties;
+        
+        public PackedTable()
+        {
+            m_properties = new LinkedHashMap<QName,PackedProperty>();
+        }
+        
+        public PackedTable( PackedTable copy )
+        {
+            m_properties = new LinkedHashMap<QName,PackedProperty>( copy.m_properties );
+        }
+        
+        public static PackedTable parse( byte[] contents ) throws IOException
+        {
+            DataInputStream in = new DataInputStream( new ByteArrayInputStream( contents ) );
+            
+            if( in.readInt() != VERSION ) throw new IOException( "Unknown property table version" );
+            
+            PackedTable table = new PackedTable();
+            
+            for( int n = in.readInt(); n > 0; n-- )
+            {
+                QName name = QName.valueOf( in.readUTF() );
+                
+                PackedProperty p = new PackedProperty();
+                p.m_type     = in.readByte();
+                p.m_multiple = in.readBoolean();
+                p.m_values   = new byte[in.readInt()][];
+                
+                for( int i = 0; i < p.m_values.length; i++ )
+                {
+                    int length = in.readInt();
+                    
+                    if( length >= 0 )
+                    {
+                        p.m_values[i] = new byte[length];
+                        in.readFully( p.m_values[i] );
+                    }
+                }
+                
+                table.m_properties.put( name, p );
+            }
+            
+            return table;
+        }
+        
+        public byte[] toBytes() throws IOException
+        {
+            ByteArrayOutputStream ba  = new ByteArrayOutputStream();
+            DataOutputStream      out = new DataOutputStream( ba );
+            
+            out.writeInt( VERSION );
+            out.writeInt( m_properties.size() );
+            
+            for( Map.Entry<QName,PackedProperty> e : m_properties.entrySet() )
+            {
+                PackedProperty p = e.getValue();
+                
+                out.writeUTF( e.getKey().toString() );
+                out.writeByte( p.m_type );
+                out.writeBoolean( p.m_multiple );
+                out.writeInt( p.m_values.length );
+                
+                for( byte[] v : p.m_values )
+                {
+                    if( v == null )
+                    {
+                        out.writeInt( -1 );
+                    }
+                    else
+                    {
+                        out.writeInt( v.length );
+                        out.write( v );
+                    }
+                }
+            }
+            
+            out.flush();
+            
+            return ba.toByteArray();
+        }
+    }
+    
+    /**
+     *  The names of the child Nodes of a Node, in order.  The list is changed in
+     *  place and written to its .order -file when the transaction finishes.
+     */
+    private static class ChildList
+    {
+        private final File            m_file;
+        private LinkedHashSet<String> m_names = new LinkedHashSet<String>();
+        private boolean               m_dirty;
+        
+        /* Set when the Node is removed; this list must not be written any more. */
+        volatile boolean              m_removed;
+        
+        public ChildList( File file )
+        {
+            m_file = file;
+        }
+        
+        public synchronized boolean add( String name )
+        {
+            return m_names.add( name );
+        }
+        
+        public synchronized boolean remove( String name )
+        {
+            return m_names.remove( name );
+        }
+        
+        public synchronized void setAll( List<String> names )
+        {
+            m_names = new LinkedHashSet<String>( names );
+        }
+        
+        public synchronized List<String> toList()
+        {
+            return new ArrayList<String>( m_names );
+        }
+        
+        public synchronized boolean isDirty()
+        {
+            return m_dirty;
+        }
+        
+        public synchronized void setDirty( boolean dirty )
+        {
+            m_dirty = dirty;
+        }
+        
+        public synchronized byte[] toBytes() throws IOException
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream( m_names.size()*16 );
+            
+            for( String s : m_names )
             {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                out.write( s.getBytes("UTF-8") );
+                out.write( '\n' );
             }
+            
+            return out.toByteArray();
+        }
+    }
+    
+    /**
+     *  What is known about a Node directory: whether it exists, and the names of
+     *  the properties in it (files layout only; null until they are listed).  The
+     *  modification time of the directory is checked at most once per
+     *  listingCheckInterval.
+     */
+    private class DirListing
+    {
+        private final File m_dir;
+        private long       m_modified;
+        private long       m_checked;
+        private boolean    m_racy;
+        private Set<QName> m_properties;
+        
+        public DirListing( File dir )
+        {
+            m_dir = dir;
+            
+            touch();
+        }
+        
+        public synchronized boolean exists()
+        {
+            return m_modified != 0L;
+        }
+        
+        /**
+         *  Returns true, if the directory has been modified since it was listed.
+         */
+        public synchronized boolean isStale()
+        {
+            if( m_listingCheckInterval < 0 ) return false;
+            
+            long now = System.currentTimeMillis();
+            
+            if( now - m_checked < m_listingCheckInterval ) return false;
+            
+            m_checked = now;
+            
+            return m_racy || m_dir.lastModified() != m_modified;
+        }
+        
+        /**
+         *  Records the current modification time.  Filesystems store the time with
+         *  a coarse granularity, so a change made right after this might not change
+         *  it at all; such a recent timestamp is not trusted, and the directory is
+         *  listed again on the next check.
+         */
+        public synchronized void touch()
+        {
+            m_modified = m_dir.lastModified();
+            m_checked  = System.currentTimeMillis();
+            m_racy     = m_checked - m_modified < RACY_WINDOW;
         }
         
-        public synchronized String toString()
+        public synchronized List<QName> getProperties()
         {
-            return "UUIDObjectStore["+m_name+", "+(m_map != null ? m_map.size() : "no")+" objs]";
+            return m_properties != null ? new ArrayList<QName>( m_properties ) : null;
         }
         
-        public synchronized T getObject( String uuid )
+        public synchronized void setProperties( List<QName> properties )
+        {
+            m_properties = new LinkedHashSet<QName>( properties );
+        }
+        
+        public synchronized void addProperty( QName name )
+        {
+            if( m_properties != null ) m_properties.add( name );
+        }
+        
+        /**
+         *  Removes a property whose file has already been deleted.
+         */
+        public synchronized void removeProperty( QName name )
+        {
+            if( m_properties != null ) m_properties.remove( name );
+            
+            touch();
+        }
+    }
+    
+    /**
+     *  Keeps the files written during a single save.
+     */
+    private class FileTransaction extends BaseStoreTransaction
+    {
+        /* Files which are buffered but not yet written. */
+        private Map<File,byte[]> m_writes  = new LinkedHashMap<File,byte[]>();
+        
+        /* Files which have been written but not yet synced. */
+        private Set<File>        m_written = new LinkedHashSet<File>();
+        
+        /* Blob references added and removed. */
+        private BlobStore.Changes m_blobChanges = new BlobStore.Changes();
+        
+        /* Child lists which have been changed. */
+        private Set<ChildList>    m_children    = new LinkedHashSet<ChildList>();
+        
+        /* Subtrees which have been moved, in order. */
+        private List<SubtreeMove> m_moves       = new ArrayList<SubtreeMove>();
+        
+        public FileTransaction( WorkspaceImpl ws )
         {
-            if( m_map == null ) unserialize();
-            return m_map.get( uuid );
+            super( ws );
         }
         
-        public synchronized void setObject( String uuid, T object )
+        @Override
+        public void sync() throws RepositoryException
         {
-            if( m_map == null ) unserialize();
+            if( !m_sync ) return;
             
             try
             {
-                if( object != null )
-                {
-                    m_map.put( uuid, object );
-                    writeAddedObject( uuid, object );
-//                    System.out.println("   ADD "+uuid+" = "+object);
-                }
-                else
+                m_syncQueue.sync( this );
+            }
+            catch( IOException e )
+            {
+                throw new RepositoryException( "Unable to sync the changes to disk", e );
+            }
+        }
+    }
+    
+    /**
+     *  Forces the written files to the disk.  The first thread to arrive syncs everything
+     *  that has been queued up to that point, and the threads which arrive while it is
+     *  busy are then all served by the next single sync.
+     */
+    private class SyncQueue
+    {
+        private SyncBatch m_open    = new SyncBatch();
+        private boolean   m_syncing = false;
+        
+        public void sync( FileTransaction tx ) throws IOException
+        {
+            SyncBatch batch;
+            
+            synchronized( this )
+            {
+                batch = m_open;
+                batch.m_files.addAll( tx.m_written );
+                batch.m_stores.add( m_uuids.get( tx.getWorkspace().getName() ) );
+                batch.m_stores.add( m_references.get( tx.getWorkspace().getName() ) );
+                
+                while( !batch.m_done && m_syncing )
                 {
-                    m_map.remove( uuid );
-
-                    writeRemovedObject( uuid );
-//                    System.out.println("   REMOVE "+uuid);
+                    try
+                    {
+                        wait();
+                    }
+                    catch( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException( "Interrupted while waiting for sync" );
+                    }
                 }
-
-                m_journal.flush();
                 
-                long now = System.currentTimeMillis();
-                if( ++m_writeCount > COMPACT_LIMIT && (now-m_lastWrite) > COMPACT_TIME_LIMIT )
+                if( batch.m_done )
                 {
-                    //System.out.println( now-m_lastWrite );
-                    serialize();
-                    m_writeCount = 0;
-                    m_lastWrite  = now;
+                    if( batch.m_failure != null ) throw batch.m_failure;
+                    return;
                 }
+                
+                //
+                //  Nobody is syncing, so this thread takes care of the batch.
+                //
+                m_syncing = true;
+                m_open    = new SyncBatch();
+            }
+            
+            IOException failure = null;
+            
+            try
+            {
+                batch.force();
             }
             catch( IOException e )
             {
-                // FIXME: Should do something sane.
-                e.printStackTrace();
+                failure = e;
+            }
+            finally
+            {
+                synchronized( this )
+                {
+                    batch.m_done    = true;
+                    batch.m_failure = failure;
+                    m_syncing       = false;
+                    notifyAll();
+                }
             }
+            
+            if( failure != null ) throw failure;
         }
-
-        private void writeRemovedObject( String uuid ) throws IOException
+    }
+    
+    private class SyncBatch
+    {
+        private Set<File>                  m_files   = new LinkedHashSet<File>();
+        private Set<PathIndex>             m_stores  = new LinkedHashSet<PathIndex>();
+        private boolean                    m_done    = false;
+        private IOException                m_failure;
+        
+        public void force() throws IOException
         {
-            m_journal.writeUTF( uuid );
-            m_journal.writeBoolean( false );
+            for( File f : m_files )
+            {
+                FileInputStream in;
+                
+                try
+                {
+                    in = new FileInputStream( f );
+                }
+                catch( FileNotFoundException e )
+                {
+                    // Removed since, so there is nothing to sync.
+                    continue;
+                }
+                
+                try
+                {
+                    in.getFD().sync();
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            
+            for( PathIndex store : m_stores )
+            {
+                if( store != null ) store.sync();
+            }
         }
+    }
 
-        private void writeAddedObject( String uuid, T object ) throws IOException
-        {
-            m_journal.writeUTF( uuid );
-            m_journal.writeBoolean( true );
-            m_journal.writeObject( object );
-        }
+    /*---------------------------------------------------------------------------*/
+    
+    /**
+     *  Maps UUIDs to Paths using an on-disk {@link UUIDIndex}.  The Paths are stored
+     *  in their prefixed form, using the global namespace registry.
+     */
+    private class PathIndex
+    {
+        private UUIDIndex m_index;
         
-        @SuppressWarnings("unchecked")
-        private synchronized void unserialize()
+        public PathIndex( String name ) throws IOException
         {
-            File objFile = new File(m_root, m_name);
-            m_map = new HashMap<String,T>();
-            
-//            System.out.println("------ UNSERIALIZE()");
+            m_index = new UUIDIndex( new File(m_root, name+".idx") );
             
-            if( !objFile.exists() ) return;
-            
-            long start = System.currentTimeMillis();
+            File legacy = new File(m_root, name+".ser");
             
+            if( legacy.exists() )
+            {
+                importJournal( legacy );
+            }
+        }
+        
+        /**
+         *  Imports the old Java serialization journal, which was used before
+         *  the UUIDIndex.  The journal is removed once it has been imported.
+         */
+        private void importJournal( File journal ) throws IOException
+        {
+            Map<String,Object> map = new HashMap<String,Object>();
             ObjectInputStream in = null;
+            
             try
             {
-                in = new ObjectInputStream( new BufferedInputStream(new FileInputStream(objFile)) );
+                in = new ObjectInputStream( new BufferedInputStream(new FileInputStream(journal)) );
                 
                 while( in.available() > 0 )
                 {
                     String uuid = in.readUTF();
-                    Boolean addRemove = in.readBoolean();
                     
-                    if( addRemove )
-                    {
-                        T o = (T) in.readObject();
-//                        System.out.println(" >>> read in "+uuid+" = "+o);
-                        m_map.put( uuid, o );
-                    }
-                    else
-                    {
-//                        System.out.println(" >>> removing "+uuid);
-                        m_map.remove( uuid );
-                    }
+                    if( in.readBoolean() ) map.put( uuid, in.readObject() );
+                    else map.remove( uuid );
                 }
             }
             catch( EOFException e )
             {
-                // S'okay; it's just empty when we open it.
-            }
-            catch( FileNotFoundException e )
-            {
-                // Fine, the journal just did not exist.
+                // Fine, that's the end of the journal then.
             }
             catch( IOException e )
             {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                log.warning( "The journal "+journal+" is broken, importing only the beginning: "+e.getMessage() );
             }
             catch( ClassNotFoundException e )
             {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                log.warning( "Unknown class in the journal "+journal+", importing only the beginning: "+e.getMessage() );
             }
             finally
             {
-                if( in != null ) 
+                if( in != null ) in.close();
+            }
+            
+            try
+            {
+                for( Map.Entry<String,Object> e : map.entrySet() )
                 {
-                    try
-                    {
-                        in.close();
-                    }
-                    catch( IOException e )
-                    {
-                        e.printStackTrace();
-                    }
+                    if( e.getValue() instanceof Path[] )
+                        setPaths( e.getKey(), (Path[]) e.getValue() );
+                    else
+                        setPaths( e.getKey(), new Path[] { (Path) e.getValue() } );
                 }
-                
-                log.fine( "Unserialized UUID store "+m_name+" in "+(System.currentTimeMillis()-start)+" ms" );
             }
+            catch( RepositoryException e )
+            {
+                throw new IOException( "Unable to import "+journal+": "+e.getMessage() );
+            }
+            
+            m_index.sync();
+            journal.delete();
             
+            log.info( "Imported "+map.size()+" UUIDs from "+journal );
         }
         
-        private synchronized void serialize() throws IOException
+        /**
+         *  Returns the Paths for the given UUID, or null, if there are none.
+         */
+        public Path[] getPaths( String uuid ) throws RepositoryException
         {
-            // System.out.println("++++++ COMPACTING...");
-
-            long start = System.currentTimeMillis();
-            
-            if( m_map == null ) return;
+            try
+            {
+                String[] s = m_index.get( uuid );
+                
+                if( s == null ) return null;
+                
+                Path[] result = new Path[s.length];
+                
+                for( int i = 0; i < s.length; i++ )
+                {
+                    result[i] = PathFactory.getPath( RepositoryImpl.getGlobalNamespaceRegistry(), s[i] );
+                }
+                
+                return result;
+            }
+            catch( IOException e )
+            {
+                throw new RepositoryException( "Unable to read the UUID index", e );
+            }
+        }
+        
+        public Path getPath( String uuid ) throws RepositoryException
+        {
+            Path[] p = getPaths( uuid );
             
+            return p != null ? p[0] : null;
+        }
+        
+        /**
+         *  Sets the Paths for the given UUID.  Setting null or an empty array removes the UUID.
+         */
+        public void setPaths( String uuid, Path[] paths ) throws RepositoryException
+        {
             try
             {
-                File fout = new File( m_root, m_name );
-
-                //
-                //  Close the old journal and create a new one.
-                //
-                if( m_journal != null )
+                if( paths == null || paths.length == 0 )
                 {
-                    try
-                    {
-                        m_journal.close();
-                    }
-                    catch( Exception e )
-                    {
-                        // May happen, but we'll continue anyway.
-                        log.warning( "Unable to close journal: "+e.getMessage() );
-                    }
-                    m_journal = null;
+                    m_index.remove( uuid );
+                    return;
                 }
                 
-                m_journal = new ObjectOutputStream( new BufferedOutputStream(new FileOutputStream(fout,false)) );
+                String[] s = new String[paths.length];
                 
-                for( Map.Entry<String, T> i : m_map.entrySet() )
+                for( int i = 0; i < paths.length; i++ )
                 {
-                    writeAddedObject( i.getKey(), i.getValue() );
+                    s[i] = paths[i].toString( RepositoryImpl.getGlobalNamespaceRegistry() );
                 }
+                
+                m_index.put( uuid, s );
             }
-            finally
+            catch( IOException e )
             {
-                m_journal.flush();
-                
-                long stop = System.currentTimeMillis();
-                
-                log.fine("Compacted UUID store "+m_name+" in "+(stop-start)+" ms");
+                throw new RepositoryException( "Unable to write the UUID index", e );
+            }
+        }
+        
+        public void sync() throws IOException
+        {
+            m_index.sync();
+        }
+        
+        public void close()
+        {
+            try
+            {
+                m_index.close();
+            }
+            catch( IOException e )
+            {
+                log.warning( "Unable to close the UUID index: "+e.getMessage() );
             }
         }
     }
 
-    public void reorderNodes(StoreTransaction tx, Path internalPath, List<Path> childOrder)
+    public void reorderNodes(StoreTransaction tx, Path internalPath, List<Path> childOrder) throws RepositoryException
     {
         ArrayList<String> newOrder = new ArrayList<String>();
         
@@ -1638,11 +4231,18 @@ public class FileProvider implements RepositoryProvider, PerformanceReporter
         {
             newOrder.add( p.getLastComponent().toString() );
         }
-        saveOrder(tx.getWorkspace(), internalPath, newOrder);
+        
+        ChildList children = getChildren( tx.getWorkspace(), internalPath );
+        
+        children.setAll( newOrder );
+        markDirty( (FileTransaction)tx, children );
     }
 
+    /**
+     *  Renames a Node, keeping its place among its siblings.
+     */
     public void rename(StoreTransaction tx, Path path, Component newName) throws RepositoryException
     {
-        throw new UnsupportedRepositoryOperationException();
+        move( (FileTransaction)tx, path, path.getParentPath().resolve( newName ), true );
     }
 }
@@ -33,12 +33,17 @@ import org.priha.core.ItemType;
 import org.priha.core.JCRConstants;
 import org.priha.core.RepositoryImpl;
 import org.priha.core.WorkspaceImpl;
+import org.priha.core.binary.BinarySource;
 import org.priha.core.binary.MemoryBinarySource;
-import org.priha.core.values.ValueImpl;
+import org.priha.core.binary.SpoolBinarySource;
+import org.priha.core.namespace.NamespaceMapper;
+import org.priha.core.values.*;
 import org.priha.nodetype.QNodeDefinition;
 import org.priha.path.Path;
 import org.priha.path.PathFactory;
 import org.priha.path.Path.Component;
+import org.priha.query.aqt.QueryRootNode;
+import org.priha.util.BlobStore;
 import org.priha.util.ConfigurationException;
 import org.priha.util.FileUtil;
 import org.priha.util.Pool;
@@ -48,9 +53,51 @@ import org.priha.util.Pool.PoolableFactory;
 
 /**
  *  A basic implementation of a Provider which stores the contents to a database.
+ *  <p>
+ *  Large binaries can be kept outside the database in a {@link BlobStore}, which
+ *  stores identical binaries only once.  The property row then contains only the
+ *  hash of the blob, and its length is set to -1.  To use it, set 
+ *  <b>blobDirectory</b> to the directory of the store and <b>blobThreshold</b>
+ *  to the size in bytes from which on binaries are stored there.
+ *  <p>
+ *  The writes of a save are collected in memory and sent to the database as JDBC
+ *  batches when the save is finished.  The ids of new Nodes are allocated by the
+ *  provider itself, so only one repository may write to the database at a time.
+ *  <p>
+ *  Each connection keeps its prepared statements open for reuse; set 
+ *  <b>statementCacheSize</b> to change how many.  The ids of the most recently 
+ *  used Nodes are cached as well (<b>nodeIdCacheSize</b>), so that reading a 
+ *  Property usually takes a single query.
+ *  <p>
+ *  The provider implements {@link BulkRead}, so a Node is loaded together with
+ *  all of its properties using a single query, and a whole subtree can be read
+ *  with a single range query over the stored paths.
+ *  <p>
+ *  Binaries are streamed to the database, and binaries of at least 
+ *  <b>spoolThreshold</b> bytes are read back into temporary files, so that
+ *  large ones need not fit in the heap.
+ *  <p>
+ *  Multi-valued properties are stored using the {@link ValueCodec}.  Rows written by
+ *  older versions are still read, and are converted when the property is next 
+ *  saved, or all at once at startup if <b>migrateValues</b> is set to true.
+ *  <p>
+ *  Queries are pushed down to the database through {@link QueryPushdown}, so
+ *  that the path steps, node type tests and simple property tests select the
+ *  candidate Nodes in SQL instead of walking the whole workspace.
+ *  <p>
+ *  A moved Node is saved by rewriting the paths of its subtree with a single 
+ *  UPDATE, through {@link MoveOperations}.
+ *  <p>
+ *  Reads can be sent to a read-only replica of the database by setting
+ *  <b>replicaConnectionUrl</b>.  The reads made during a save, and all reads of a
+ *  Session for <b>replicaLag</b> ms after it has saved, still go to the primary
+ *  database, so that a Session always sees its own writes.  The replica may lag
+ *  behind, so anything it does not find is looked up from the primary as well.
+ *  Since other Sessions may read older content from the replica than what has
+ *  been saved, a provider with a replica is not put in the repository-wide cache.
  */
 //FIXME: Does not yet support orderable child nodes
-public class JdbcProvider implements RepositoryProvider, PoolableFactory
+public class JdbcProvider implements RepositoryProvider, BulkRead, QueryPushdown, MoveOperations, ExternalChanges, PoolableFactory
 {
     /** The FQN of the JDBC driver class. */
     public static final String PROP_DRIVERCLASS = "driverClass";
@@ -67,18 +114,115 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
     /** Property for password. */
     public static final String PROP_PASSWORD = "password";
     
+    /** The largest number of connections opened.  Default is 15. */
     public static final String PROP_MAXCONNECTIONS = "maxConnections";
+    
+    /** How long a connection may be unused before it is closed, in ms.  Default is 10 minutes. */
+    public static final String PROP_MAX_IDLE_TIME = "maxIdleTime";
+    
+    /** The query run to check that a connection still works. */
+    public static final String PROP_VALIDATION_QUERY = "validationQuery";
+    
+    /** How often the connections are checked, in ms.  Default is 30 seconds. */
+    public static final String PROP_VALIDATION_INTERVAL = "validationInterval";
+    
+    /** How long a connection may be borrowed before it is reported as leaked, in ms.  Default is 5 minutes. */
+    public static final String PROP_LEAK_THRESHOLD = "leakThreshold";
 
     public static final String PROP_WORKSPACES = "workspaces";
 
+    /** The directory of the BlobStore. */
+    public static final String PROP_BLOB_DIRECTORY = "blobDirectory";
+    
+    /** Binaries of at least this many bytes are stored in the BlobStore. */
+    public static final String PROP_BLOB_THRESHOLD = "blobThreshold";
+    
+    /** How many prepared statements are kept open per connection.  Default is 32. */
+    public static final String PROP_STATEMENT_CACHE = "statementCacheSize";
+    
+    /** How many Node ids are cached.  Default is 10000. */
+    public static final String PROP_NODE_ID_CACHE = "nodeIdCacheSize";
+    
+    /** Binaries of at least this many bytes are read into temporary files instead of the heap.  Default is 64 kB. */
+    public static final String PROP_SPOOL_THRESHOLD = "spoolThreshold";
+    
+    /** If true, multi-valued properties in the old serialization format are rewritten at startup.  Default is false. */
+    public static final String PROP_MIGRATE_VALUES = "migrateValues";
+    
+    /** The connection URL of a read-only replica.  If not set, all reads go to the primary database. */
+    public static final String PROP_REPLICA_CONNECTIONURL = "replicaConnectionUrl";
+    
+    /** Username for the replica.  Default is the same as for the primary. */
+    public static final String PROP_REPLICA_USERNAME = "replicaUsername";
+    
+    /** Password for the replica.  Default is the same as for the primary. */
+    public static final String PROP_REPLICA_PASSWORD = "replicaPassword";
+    
+    /** The largest number of connections opened to the replica.  Default is the same as maxConnections. */
+    public static final String PROP_REPLICA_MAXCONNECTIONS = "replicaMaxConnections";
+    
+    /** How long the reads of a Session go to the primary after it has saved, in ms.  -1 keeps them there for good.  Default is 1000. */
+    public static final String PROP_REPLICA_LAG = "replicaLag";
+    
+    /* The length of a property row which refers to the BlobStore. */
+    private static final int   BLOB_LENGTH = -1;
+    
+    private static final String SQL_INSERT_NODE       = "INSERT INTO nodes (id,workspace,path,parent,childOrder,uuid) VALUES (?,?,?,?,?,?)";
+    private static final String SQL_INSERT_PROPERTY   = "INSERT INTO propertyvalues (type,len,propval,multi,parent,name) VALUES (?,?,?,?,?,?)";
+    private static final String SQL_UPDATE_PROPERTY   = "UPDATE propertyvalues SET type = ?, len = ?, propval = ?, multi = ? WHERE parent = ? AND name = ?";
+    private static final String SQL_UPDATE_UUID       = "UPDATE nodes SET uuid = ? WHERE id = ?";
+    private static final String SQL_UPDATE_CHILDORDER = "UPDATE nodes SET childOrder = ? WHERE nodes.path = ? AND nodes.workspace = ?";
+    private static final String SQL_DELETE_PROPERTY   = "DELETE FROM propertyvalues WHERE parent = ? AND name = ?";
+    private static final String SQL_DELETE_PROPERTIES = "DELETE FROM propertyvalues WHERE parent = ?";
+    private static final String SQL_DELETE_NODE       = "DELETE FROM nodes WHERE id = ?";
+    
+    /* The order in which the batches are executed when a save is finished. */
+    private static final String[] BATCH_ORDER = { SQL_INSERT_NODE, SQL_INSERT_PROPERTY, SQL_UPDATE_PROPERTY, 
+                                                  SQL_UPDATE_UUID, SQL_UPDATE_CHILDORDER, SQL_DELETE_PROPERTY,
+                                                  SQL_DELETE_PROPERTIES, SQL_DELETE_NODE };
+
     private Logger log = Logger.getLogger(JdbcProvider.class.getName());
     
     private DataSource m_dataSource;
     private String     m_connectionURL;
     private String     m_userName;
     private String     m_password;
-    private Pool       m_connections = new Pool(this);
-    private int        m_maxConnections;
+    private Pool       m_connections;
+    private Pool       m_replicas;
+    private String     m_replicaURL;
+    private String     m_replicaUserName;
+    private String     m_replicaPassword;
+    private long       m_replicaLag = 1000;
+    private String     m_validationQuery;
+    private BlobStore  m_blobs;
+    private long       m_blobThreshold;
+    private long       m_lastNodeId = -1;
+    private int        m_statementCacheSize = 32;
+    private int        m_nodeIdCacheSize    = 10000;
+    private long       m_spoolThreshold     = 64*1024;
+    private File       m_spoolDirectory;
+    
+    /* Node ids by workspace id and path, least recently used first. */
+    private Map<String,Long> m_nodeIds =
+        new LinkedHashMap<String,Long>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String,Long> eldest )
+            {
+                return size() > m_nodeIdCacheSize;
+            }
+        };
+        
+    private Map<String,Integer> m_workspaceIds = new Hashtable<String,Integer>();
+    
+    /* The saves in progress, so that the saving Session sees its own writes.  A
+       save may start another one, e.g. for a version history. */
+    private List<JDBCTransaction> m_transactions = new ArrayList<JDBCTransaction>();
+    
+    /* When each Session last saved, if a replica is in use. */
+    private Map<WorkspaceImpl,Long> m_lastSaves = new WeakHashMap<WorkspaceImpl,Long>();
     
     private PoolableConnection getConnection() throws RepositoryException
     {
@@ -95,118 +239,274 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
         return pc;
     }
     
-    // FIXME: Requires two selects and one insert; not very efficient.
-    public void addNode(StoreTransaction tx, Path path, QNodeDefinition def) throws RepositoryException
+    /**
+     *  Returns a connection to the replica, if there is one and the Session may
+     *  read from it, and otherwise to the primary database.
+     */
+    private PoolableConnection getReadConnection( WorkspaceImpl ws ) throws RepositoryException
     {
-        Connection c = ((JDBCTransaction)tx).getConnection();
-        PreparedStatement ps = null;
-        WorkspaceImpl ws = tx.getWorkspace();
+        if( m_replicas == null || isSaving( ws ) || savedRecently( ws ) ) return getConnection();
         
         try
+        {
+            return (PoolableConnection) m_replicas.get(5000);
+        }
+        catch( Exception e )
+        {
+            log.log( Level.FINE, "Replica not available, reading from the primary", e );
+            
+            return getConnection();
+        }
+    }
+    
+    /**
+     *  Returns true, if the Session has saved within the last replicaLag ms.
+     */
+    private boolean savedRecently( WorkspaceImpl ws )
+    {
+        Long saved;
+        
+        synchronized( m_lastSaves )
+        {
+            saved = m_lastSaves.get( ws );
+        }
+        
+        return saved != null && (m_replicaLag < 0 || System.currentTimeMillis() - saved < m_replicaLag);
+    }
+    
+    /**
+     *  A read which may be served by the replica.
+     */
+    private abstract class Read<T>
+    {
+        public abstract T read( PoolableConnection pc ) throws SQLException, IOException, RepositoryException;
+    }
+    
+    /**
+     *  Runs the read on a connection from getReadConnection().  If it was sent to the
+     *  replica, and the replica failed or did not find the item, it is run again on 
+     *  the primary database, since the item may just not have been replicated yet.
+     */
+    private <T> T read( WorkspaceImpl ws, Read<T> r ) throws SQLException, IOException, RepositoryException
+    {
+        PoolableConnection pc = getReadConnection( ws );
+        
+        if( pc.m_replica )
         {
             try
             {
-                // Check whether the Node exists. If it does not, then insert
-                // a new one.
-                long nodeId = getNodeId( c, ws, path );
+                return r.read( pc );
             }
-            catch( PathNotFoundException e )
+            catch( PathNotFoundException e ) {}
+            catch( ItemNotFoundException e ) {}
+            catch( SQLException e )
             {
-                int childOrder = 0;
-                
-                if( !path.isRoot() )
-                {
-                    long parentId = getNodeId( c, ws, path.getParentPath() );
-                    
-                    ps = c.prepareStatement("SELECT MAX(childOrder) AS childOrder FROM nodes WHERE nodes.id = ? ");
-                    
-                    ps.setLong( 1, parentId );
-                    ResultSet rs = ps.executeQuery();
-                    
-                    if( rs.next() )
-                    {
-                        // Should be the first one
-                        childOrder = rs.getInt( "childOrder" );
-//                        System.out.println("Got childorder "+childOrder);
-                    }
-                }
-                
-                ps = c.prepareStatement("INSERT INTO nodes (workspace,path,parent,childOrder) "+
-                                        "VALUES (?,?,?,?);");
-            
-                //System.out.println("Adding node "+path);
-                ps.setInt(1, getWorkspaceId(ws));
-                ps.setString(2, path.toString());
-                if( !path.isRoot() )
-                    ps.setInt( 3, getNodeId(c, ws, path.getParentPath()) );
-                else
-                    ps.setNull( 3, Types.INTEGER );
-            
-                ps.setInt( 4, ++childOrder );
-                ps.execute();
+                log.log( Level.FINE, "Read from the replica failed, reading from the primary", e );
+            }
+            finally
+            {
+                pc.close();
             }
+            
+            pc = getConnection();
+        }
+        
+        try
+        {
+            return r.read( pc );
+        }
+        finally
+        {
+            pc.close();
+        }
+    }
+    
+    /**
+     *  Queues the Node for insertion.  The id of the row is allocated here, so that
+     *  the rows of its children and Properties can refer to it before anything
+     *  has been written to the database.
+     */
+    public void addNode(StoreTransaction tx, Path path, QNodeDefinition def) throws RepositoryException
+    {
+        JDBCTransaction jtx = (JDBCTransaction)tx;
+        
+        try
+        {
+            if( jtx.findNodeId( path ) != null ) return;
+            
+            Long parentId = path.isRoot() ? null : jtx.getNodeId( path.getParentPath() );
+            
+            PendingNode pn = new PendingNode( allocateNodeId( jtx.getConnection() ), path, parentId );
+            
+            if( parentId != null ) pn.m_childOrder = jtx.nextChildOrder( path, parentId );
+            
+            jtx.addNode( pn );
         }
         catch (SQLException e)
         {
-            e.printStackTrace();
             throw new RepositoryException("Cannot insert a new node: "+path,e);
         }
-        finally
+    }
+
+    /**
+     *  Returns a new id for a row in the nodes table.  The ids are handed out
+     *  from memory, so only one JdbcProvider may write to the database at a time.
+     */
+    private synchronized long allocateNodeId( Connection c ) throws SQLException
+    {
+        if( m_lastNodeId < 0 )
         {
+            Statement s = c.createStatement();
+            
             try
             {
-                if( ps != null ) ps.close();
+                ResultSet rs = s.executeQuery("SELECT MAX(id) FROM nodes");
+                
+                m_lastNodeId = rs.next() ? rs.getLong( 1 ) : 0;
             }
-            catch( SQLException e )
+            finally
             {
-                throw new RepositoryException("Unable to close JDBC PreparedStatement",e);
+                s.close();
             }
         }
+        
+        return ++m_lastNodeId;
     }
-
-    private int getNodeId(Connection c, WorkspaceImpl ws, Path parentPath) throws SQLException, RepositoryException
+    
+    /**
+     *  Returns the id of the Node at the given path.  The ids are cached, and the
+     *  cache is updated whenever Nodes are added or removed.
+     */
+    private long getNodeId(PoolableConnection pc, WorkspaceImpl ws, Path path) throws SQLException, RepositoryException
     {
-        PreparedStatement ps = null;
-        try
+        int    wsId = getWorkspaceId( ws );
+        String key  = wsId+path.toString();
+        
+        //
+        //  The cache follows the primary, which the replica may be behind, so the
+        //  replica is always asked.  Neither are its answers cached.  The same goes
+        //  for the connection of a save, which sees rows nobody else does, and
+        //  which may yet be rolled back; the save keeps its own ids.
+        //
+        boolean shared = !pc.m_replica && !pc.m_inTransaction;
+        
+        if( shared )
         {
-            ps = c.prepareStatement("SELECT nodes.id AS id FROM workspaces,nodes WHERE nodes.path = ? "+
-                                    "AND nodes.workspace = workspaces.id "+
-                                    "AND workspaces.name = ?");
+            synchronized( m_nodeIds )
+            {
+                Long id = m_nodeIds.get( key );
+            
+                if( id != null ) return id;
+            }
+        }
         
-            ps.setString(1, parentPath.toString());
-            ps.setString(2, ws.getName());
+        PreparedStatement ps = pc.prepareStatement("SELECT id FROM nodes WHERE workspace = ? AND path = ?");
         
-            ResultSet rs = ps.executeQuery();
+        ps.setInt(1, wsId);
+        ps.setString(2, path.toString());
+        
+        ResultSet rs = ps.executeQuery();
         
+        try
+        {
             if( rs.next() )
             {
-                return rs.getInt("id");
+                long id = rs.getLong("id");
+                
+                if( shared )
+                {
+                    synchronized( m_nodeIds )
+                    {
+                        m_nodeIds.put( key, id );
+                    }
+                }
+                
+                return id;
             }
-        
-            throw new PathNotFoundException("No such path "+parentPath);
         }
         finally
         {
-            if(ps != null) ps.close();
+            rs.close();
         }
+        
+        throw new PathNotFoundException("No such path "+path);
     }
 
+    /**
+     *  Updates the node id cache after a save has been committed.
+     */
+    private void updateNodeIds( WorkspaceImpl ws, Map<Path,Long> added, Collection<Path> removed ) 
+        throws SQLException, RepositoryException
+    {
+        int wsId = getWorkspaceId( ws );
+        
+        synchronized( m_nodeIds )
+        {
+            if( !removed.isEmpty() )
+            {
+                Set<String> keys = new HashSet<String>();
+                
+                for( Path p : removed ) keys.add( wsId+p.toString() );
+                
+                //
+                //  The descendants go as well, in case they were not removed
+                //  one by one.
+                //
+                for( Iterator<String> i = m_nodeIds.keySet().iterator(); i.hasNext(); )
+                {
+                    for( String key = i.next(); key.length() > 0; key = key.substring( 0, key.lastIndexOf('/') ) )
+                    {
+                        if( keys.contains( key ) )
+                        {
+                            i.remove();
+                            break;
+                        }
+                        
+                        if( key.lastIndexOf('/') < 0 ) break;
+                    }
+                }
+            }
+            
+            for( Map.Entry<Path,Long> e : added.entrySet() )
+            {
+                m_nodeIds.put( wsId+e.getKey().toString(), e.getValue() );
+            }
+        }
+    }
+    
+    /**
+     *  Returns the id of the workspace.  The workspaces are never removed, so they
+     *  are cached forever.
+     */
     private int getWorkspaceId(WorkspaceImpl ws) throws SQLException, RepositoryException
     {
+        Integer id = m_workspaceIds.get( ws.getName() );
+        
+        if( id != null ) return id;
+        
         PoolableConnection pc = getConnection();
         
         try
         {
-            Connection c = pc.getConnection();
-            PreparedStatement ps = c.prepareStatement("SELECT * FROM workspaces WHERE name = ?");
+            PreparedStatement ps = pc.prepareStatement("SELECT * FROM workspaces WHERE name = ?");
         
             ps.setString(1, ws.getName());
         
             ResultSet rs = ps.executeQuery();
         
-            if( rs.next() )
+            try
+            {
+                if( rs.next() )
+                {
+                    id = rs.getInt("id");
+                    m_workspaceIds.put( ws.getName(), id );
+                    
+                    return id;
+                }
+            }
+            finally
             {
-                return rs.getInt("id");
+                rs.close();
             }
         
             throw new NoSuchWorkspaceException("No such workspace "+ws.getName());
@@ -217,8 +517,6 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
         }
     }
 
-
-
     public void start(RepositoryImpl repository, Properties properties) throws ConfigurationException
     {
         String driverClass = properties.getProperty( PROP_DRIVERCLASS );
@@ -226,8 +524,69 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
         m_userName = properties.getProperty( PROP_USERNAME );
         m_password = properties.getProperty( PROP_PASSWORD );
         m_connectionURL = properties.getProperty( PROP_CONNECTIONURL );
-        m_maxConnections = Integer.parseInt( properties.getProperty( PROP_MAXCONNECTIONS, "15" ) );
+        m_validationQuery = properties.getProperty( PROP_VALIDATION_QUERY, "SELECT COUNT(*) FROM workspaces" );
         String[] workspaces = properties.getProperty( PROP_WORKSPACES, "default" ).split( "\\s" ); 
+        String blobDirectory = properties.getProperty( PROP_BLOB_DIRECTORY );
+        m_blobThreshold = Long.parseLong( properties.getProperty( PROP_BLOB_THRESHOLD, "0" ) );
+        m_statementCacheSize = Integer.parseInt( properties.getProperty( PROP_STATEMENT_CACHE, "32" ) );
+        m_nodeIdCacheSize = Integer.parseInt( properties.getProperty( PROP_NODE_ID_CACHE, "10000" ) );
+        m_spoolThreshold = Long.parseLong( properties.getProperty( PROP_SPOOL_THRESHOLD, "65536" ) );
+        boolean migrateValues = Boolean.parseBoolean( properties.getProperty( PROP_MIGRATE_VALUES, "false" ) );
+        m_replicaURL = properties.getProperty( PROP_REPLICA_CONNECTIONURL );
+        m_replicaUserName = properties.getProperty( PROP_REPLICA_USERNAME, m_userName );
+        m_replicaPassword = properties.getProperty( PROP_REPLICA_PASSWORD, m_password );
+        m_replicaLag = Long.parseLong( properties.getProperty( PROP_REPLICA_LAG, "1000" ) );
+        
+        long validationInterval = Long.parseLong( properties.getProperty( PROP_VALIDATION_INTERVAL, "30000" ) );
+        
+        m_connections = new Pool( this );
+        m_connections.setMaxSize( Integer.parseInt( properties.getProperty( PROP_MAXCONNECTIONS, "15" ) ) );
+        m_connections.setMaxIdleTime( Long.parseLong( properties.getProperty( PROP_MAX_IDLE_TIME, "600000" ) ) );
+        m_connections.setValidationInterval( validationInterval );
+        m_connections.setLeakThreshold( Long.parseLong( properties.getProperty( PROP_LEAK_THRESHOLD, "300000" ) ) );
+        m_connections.setEvictionInterval( Math.max( validationInterval, 1000 ) );
+        
+        if( m_replicaURL != null )
+        {
+            m_replicas = new Pool( this );
+            m_replicas.setMaxSize( Integer.parseInt( properties.getProperty( PROP_REPLICA_MAXCONNECTIONS, 
+                                                                             properties.getProperty( PROP_MAXCONNECTIONS, "15" ) ) ) );
+            m_replicas.setMaxIdleTime( Long.parseLong( properties.getProperty( PROP_MAX_IDLE_TIME, "600000" ) ) );
+            m_replicas.setValidationInterval( validationInterval );
+            m_replicas.setLeakThreshold( Long.parseLong( properties.getProperty( PROP_LEAK_THRESHOLD, "300000" ) ) );
+            m_replicas.setEvictionInterval( Math.max( validationInterval, 1000 ) );
+            
+            log.info( "Reading from the replica at "+m_replicaURL );
+        }
+        
+        if( blobDirectory != null )
+        {
+            try
+            {
+                m_blobs = new BlobStore( new File(blobDirectory), true );
+                m_blobs.collectGarbage();
+            }
+            catch( IOException e )
+            {
+                throw new ConfigurationException("Unable to open the blob store in "+blobDirectory, e);
+            }
+        }
+        else if( m_blobThreshold > 0 )
+        {
+            throw new ConfigurationException(PROP_BLOB_THRESHOLD+" requires also "+PROP_BLOB_DIRECTORY);
+        }
+        
+        try
+        {
+            m_spoolDirectory = File.createTempFile( "priha", ".spool" );
+            m_spoolDirectory.delete();
+            
+            if( !m_spoolDirectory.mkdir() ) throw new IOException("Cannot create "+m_spoolDirectory);
+        }
+        catch( IOException e )
+        {
+            throw new ConfigurationException("Unable to create a directory for temporary files", e);
+        }
             
         if( dataSource != null )
         {
@@ -286,6 +645,8 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
         
             initialize(c);
             setupWorkspaces(c,workspaces);
+            
+            if( migrateValues ) migrateValues(c);
         }
         catch (SQLException e)
         {
@@ -339,6 +700,89 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
 //        c.commit();
     }
     
+    /**
+     *  Rewrites the multi-valued properties which are still in the Java serialization
+     *  format into the ValueCodec format.  The blobs stay where they are.
+     */
+    private void migrateValues(Connection c) throws SQLException, IOException, RepositoryException
+    {
+        NamespaceMapper nsm = RepositoryImpl.getGlobalNamespaceRegistry();
+        
+        PreparedStatement select = c.prepareStatement( "SELECT id,type,propval FROM propertyvalues WHERE multi = ?" );
+        PreparedStatement update = c.prepareStatement( "UPDATE propertyvalues SET propval = ?, len = ? WHERE id = ?" );
+        
+        boolean autoCommit = c.getAutoCommit();
+        int     count      = 0;
+        
+        try
+        {
+            c.setAutoCommit( false );
+            select.setBoolean( 1, true );
+            
+            ResultSet rs = select.executeQuery();
+            
+            while( rs.next() )
+            {
+                Blob value = rs.getBlob( "propval" );
+                
+                if( value == null ) continue;
+                
+                InputStream in = new BufferedInputStream( value.getBinaryStream() );
+                ValueContainer vc;
+                final Map<ValueImpl,String> hashes  = new IdentityHashMap<ValueImpl,String>();
+                List<SpoolBinarySource>     spooled = new ArrayList<SpoolBinarySource>();
+                byte[]                      ba;
+                
+                try
+                {
+                    try
+                    {
+                        if( ValueCodec.isEncoded( peek( in ) ) ) continue;
+                        
+                        vc = readLegacy( in, rs.getInt( "type" ), nsm, hashes, spooled );
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                    
+                    ba = ValueCodec.encode( vc, new ValueCodec.BinaryEncoder() 
+                    {
+                        public String store( StreamValueImpl v ) { return hashes.get( v ); }
+                    });
+                }
+                finally
+                {
+                    //  The binaries are now in ba.
+                    for( SpoolBinarySource sbs : spooled ) sbs.dispose();
+                }
+                
+                update.setBytes( 1, ba );
+                update.setLong( 2, hashes.isEmpty() ? ba.length : BLOB_LENGTH );
+                update.setLong( 3, rs.getLong( "id" ) );
+                update.addBatch();
+                
+                if( ++count % 100 == 0 ) update.executeBatch();
+            }
+            
+            update.executeBatch();
+            c.commit();
+        }
+        catch( SQLException e )
+        {
+            c.rollback();
+            throw e;
+        }
+        finally
+        {
+            c.setAutoCommit( autoCommit );
+            select.close();
+            update.close();
+        }
+        
+        log.info( "Migrated "+count+" multi-valued properties to the new value format" );
+    }
+    
     private void initialize(Connection c) throws IOException, SQLException
     {
         try
@@ -389,11 +833,48 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
         }
     }
     
+    /**
+     *  Returns true, if the reads may go to a replica, which catches up with the
+     *  saves in its own time.
+     */
+    public boolean hasExternalChanges()
+    {
+        return m_replicas != null;
+    }
+    
     public void stop(RepositoryImpl rep)
     {
         m_dataSource = null;
         m_connectionURL = null;
         m_connections.dispose();
+        log.info( "Connection pool statistics: "+m_connections );
+        
+        if( m_replicas != null )
+        {
+            m_replicas.dispose();
+            log.info( "Replica pool statistics: "+m_replicas );
+            m_replicas = null;
+        }
+        
+        synchronized( m_lastSaves )
+        {
+            m_lastSaves.clear();
+        }
+        m_lastNodeId = -1;
+        m_workspaceIds.clear();
+        m_nodeIds.clear();
+        
+        //
+        //  The spooled binaries are of no use once the repository is gone.
+        //
+        File[] spooled = m_spoolDirectory.listFiles();
+        
+        if( spooled != null )
+        {
+            for( File f : spooled ) f.delete();
+        }
+        
+        m_spoolDirectory.delete();
     }
 
 
@@ -418,32 +899,41 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
 
     }
 
-    public Path findByUUID(WorkspaceImpl ws, String uuid) throws RepositoryException
+    public Path findByUUID(final WorkspaceImpl ws, final String uuid) throws RepositoryException
     {
-        PreparedStatement ps;
-        PoolableConnection pc = getConnection();
         try
         {
-            Connection c = pc.getConnection();
-            ps = c.prepareStatement( "SELECT path FROM nodes where uuid = ?" );
-            ps.setString(1, uuid);
+            return read( ws, new Read<Path>() {
+                public Path read( PoolableConnection pc ) throws SQLException, RepositoryException
+                {
+                    PreparedStatement ps = pc.prepareStatement( "SELECT path FROM nodes where uuid = ?" );
+                    ps.setString(1, uuid);
             
-            ResultSet rs = ps.executeQuery();
+                    ResultSet rs = ps.executeQuery();
             
-            if( rs.next() )
-            {
-                return PathFactory.getPath( ws.getSession(), rs.getString( "path" ) );
-            }
+                    try
+                    {
+                        if( rs.next() )
+                        {
+                            return PathFactory.getPath( ws.getSession(), rs.getString( "path" ) );
+                        }
+                    }
+                    finally
+                    {
+                        rs.close();
+                    }
             
-            throw new ItemNotFoundException("No UUID by this name found "+uuid);
+                    throw new ItemNotFoundException("No UUID by this name found "+uuid);
+                }
+            });
         }
         catch (SQLException e)
         {
             throw new RepositoryException( e.getMessage() );
         }
-        finally
+        catch( IOException e )
         {
-            pc.close();
+            throw new RepositoryException( e.getMessage() );
         }
     }
 
@@ -453,7 +943,7 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
     //
     public List<Path> findReferences(WorkspaceImpl ws, String uuid) throws RepositoryException
     {
-        PoolableConnection pc = getConnection();
+        PoolableConnection pc = getReadConnection( ws );
         ArrayList<Path> result = new ArrayList<Path>();
         
         try
@@ -491,54 +981,37 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
         return result;
     }
 
-    public ValueContainer getPropertyValue(WorkspaceImpl ws, Path path) throws RepositoryException
+    public ValueContainer getPropertyValue(final WorkspaceImpl ws, final Path path) throws RepositoryException
     {
-        PoolableConnection pc = getConnection();
+        PendingProperty pending = (PendingProperty)getPending( ws, path, ItemType.PROPERTY );
+        
+        if( pending != null ) return pending.m_value;
         
         try
         {
-            Connection c = pc.getConnection();
-            PreparedStatement ps = c.prepareStatement("SELECT type,propval,multi FROM propertyvalues WHERE parent = ? AND name = ?");
+            return read( ws, new Read<ValueContainer>() {
+                public ValueContainer read( PoolableConnection pc ) throws SQLException, IOException, RepositoryException
+                {
+                    long parentId = getNodeId(pc, ws, path.getParentPath());
+                    PreparedStatement ps = pc.prepareStatement("SELECT type,propval,multi,len FROM propertyvalues WHERE parent = ? AND name = ?");
             
-            ps.setLong(1, getNodeId(c, ws, path.getParentPath()));
-            ps.setString(2, path.getLastComponent().toString() );
+                    ps.setLong(1, parentId);
+                    ps.setString(2, path.getLastComponent().toString() );
             
-            ResultSet rs = ps.executeQuery();
+                    ResultSet rs = ps.executeQuery();
             
-            if( rs.next() )
-            {
-                int type   = rs.getInt("type");
-                Blob value = rs.getBlob("propval");
-                boolean multi = rs.getBoolean("multi");
-                
-                if( multi )
-                {
-                    ObjectInputStream in = new ObjectInputStream( value.getBinaryStream() );
-                    
-                    int numObjects = in.readInt();
-                    
-                    ValueImpl[] v = new ValueImpl[numObjects];
-                    
-                    for( int i = 0; i < numObjects; i++ )
+                    try
                     {
-                        int length = in.readInt();
-                        byte[] ba = new byte[length];
-                        
-                        in.read(ba);
-                        
-                        v[i] = ws.getSession().getValueFactory().createValue( new MemoryBinarySource(ba).getStream(), type );
+                        if( rs.next() ) return readValue( ws, path, rs );
+                    }
+                    finally
+                    {
+                        rs.close();
                     }
-                    
-                    return new ValueContainer(v, type);
-                }
-                
-                ValueImpl v = ws.getSession().getValueFactory().createValue( value.getBinaryStream(), type );
-
-                ps.close();
-                return new ValueContainer(v);
-            }
             
-            throw new PathNotFoundException("No such property "+path);
+                    throw new PathNotFoundException("No such property "+path);
+                }
+            });
         }
         catch( SQLException e )
         {
@@ -548,413 +1021,1617 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
         {
             throw new RepositoryException("Deserialization of value failed for "+path,e);
         }
-        finally
-        {
-            pc.close();
-        }
     }
 
-    public List<Path> listNodes(WorkspaceImpl ws, Path parentpath) throws RepositoryException
+    /**
+     *  Reads all the properties of a Node with a single query.
+     */
+    public Map<QName,ValueContainer> getProperties(final WorkspaceImpl ws, final Path path) throws RepositoryException
     {
-        PoolableConnection pc = getConnection();
-
-        try
-        {
-            Connection c = pc.getConnection();
-            PreparedStatement ps = c.prepareStatement("SELECT N2.path AS path "+
-                                                           "FROM workspaces,nodes AS N2,nodes AS N1 "+
-                                                           "WHERE N1.path = ? "+
-                                                           "AND workspaces.id = N1.workspace "+
-                                                           "AND workspaces.name = ? "+
-                                                           "AND N1.id = N2.parent "+
-                                                           "ORDER BY N2.childOrder");
+        final PendingNode pending = (PendingNode)getPending( ws, path, ItemType.NODE );
         
-            ps.setString(1, parentpath.toString());
-            ps.setString(2, ws.getName());
-        
-            ResultSet rs = ps.executeQuery();
-        
-            ArrayList<Path> result = new ArrayList<Path>();
-            while( rs.next() )
-            {
-                result.add( PathFactory.getPath(ws.getSession(),rs.getString("path")) );
-            }
-        
-            return result;
-        }
-        catch( SQLException e )
-        {
-            throw new PathNotFoundException("SQL error "+e.getMessage());
-        }
-        finally
-        {
-            pc.close();
-        }
-    }
-
-    public List<QName> listProperties(WorkspaceImpl ws, Path path) throws RepositoryException
-    {
-        PoolableConnection pc = getConnection();
         try
         {
-            Connection c = pc.getConnection();
-            PreparedStatement ps = c.prepareStatement("SELECT propertyvalues.name AS name FROM workspaces,nodes,propertyvalues WHERE "+
-                                                           "workspaces.name = ? "+
-                                                           "AND workspaces.id = nodes.workspace "+
-                                                           "AND nodes.path = ? "+
-                                                           "AND nodes.id = propertyvalues.parent "+
-                                                           "");
-        
-            ps.setString(1, ws.getName());
-            ps.setString(2, path.toString());
-        
-            ResultSet rs = ps.executeQuery();
-        
-            ArrayList<QName> result = new ArrayList<QName>();
-            while( rs.next() )
-            {
-                String qname = rs.getString("name");
-                result.add( QName.valueOf(qname) );
-            }
-        
-            return result;
+            return read( ws, new Read<Map<QName,ValueContainer>>() {
+                public Map<QName,ValueContainer> read( PoolableConnection pc ) throws SQLException, IOException, RepositoryException
+                {
+                    long id = pending != null ? pending.m_id : getNodeId(pc, ws, path);
+                    PreparedStatement ps = pc.prepareStatement("SELECT name,type,propval,multi,len FROM propertyvalues WHERE parent = ?");
+            
+                    ps.setLong(1, id);
+            
+                    Map<QName,ValueContainer> result = new LinkedHashMap<QName,ValueContainer>();
+                    ResultSet rs = ps.executeQuery();
+            
+                    try
+                    {
+                        while( rs.next() )
+                        {
+                            QName name = QName.valueOf( rs.getString("name") );
+                    
+                            result.put( name, readValue( ws, path.resolve(name), rs ) );
+                        }
+                    }
+                    finally
+                    {
+                        rs.close();
+                    }
+            
+                    //
+                    //  Values which a save is just writing override the stored ones.
+                    //
+                    synchronized( m_transactions )
+                    {
+                        for( JDBCTransaction tx : m_transactions )
+                        {
+                            if( tx.getWorkspace() == ws ) tx.getPendingProperties( id, result );
+                        }
+                    }
+            
+                    return result;
+                }
+            });
         }
         catch( SQLException e )
         {
             throw new RepositoryException("SQL error "+e.getMessage());
         }
-        finally
+        catch (IOException e)
         {
-            pc.close();
+            throw new RepositoryException("Deserialization of values failed for "+path,e);
         }
     }
-
-    public Collection<String> listWorkspaces() throws RepositoryException
+    
+    /**
+     *  Reads the subtree with a single range query over the path column, since the
+     *  paths of all the descendants of a Node start with the path of the Node 
+     *  followed by a slash.  The depth cannot be limited in SQL, because the
+     *  namespace URIs in the stored paths may contain slashes too, so the deeper
+     *  Nodes are skipped as they come.  The ids of the Nodes are put in the id
+     *  cache as well, unless they were read from the replica.
+     *  <p>
+     *  Returns null while a save is being written to the workspace, because the
+     *  rows of the save are not visible to other connections yet.
+     */
+    public Map<Path,Map<QName,ValueContainer>> getSubtree(WorkspaceImpl ws, Path path, int depth) throws RepositoryException
     {
-        ArrayList<String> workspaces = new ArrayList<String>();
-        PoolableConnection pc = getConnection();
+        if( isSaving( ws ) ) return null;
+        
+        PoolableConnection pc = getReadConnection( ws );
         
         try
         {
-            Connection c = pc.getConnection();
-            PreparedStatement ps = c.prepareStatement("select * from workspaces");
+            int    wsId   = getWorkspaceId( ws );
+            long   rootId = getNodeId( pc, ws, path );
+            String prefix = path.isRoot() ? "/" : path.toString()+"/";
             
+            PreparedStatement ps = pc.prepareStatement("SELECT n.id,n.path,n.parent,n.childOrder,p.name,p.type,p.propval,p.multi,p.len "+
+                                                       "FROM nodes n LEFT JOIN propertyvalues p ON p.parent = n.id "+
+                                                       "WHERE n.workspace = ? AND ((n.path > ? AND n.path < ?) OR n.id = ?)");
+            
+            ps.setInt(1, wsId);
+            ps.setString(2, prefix);
+            ps.setString(3, prefix.substring( 0, prefix.length()-1 )+"0"); // '0' follows '/'
+            ps.setLong(4, rootId);
+            
+            Map<Long,SubtreeNode> nodes   = new HashMap<Long,SubtreeNode>();
+            Set<Long>             skipped = new HashSet<Long>();
             ResultSet rs = ps.executeQuery();
             
-            for( ; rs.next(); )
+            try
             {
-                String wsname = rs.getString("name");
-                
-                workspaces.add(wsname);
+                while( rs.next() )
+                {
+                    long id = rs.getLong("id");
+                    
+                    if( skipped.contains( id ) ) continue;
+                    
+                    SubtreeNode node = nodes.get( id );
+                    
+                    if( node == null )
+                    {
+                        Path p = PathFactory.getPath( ws.getSession(), rs.getString("path") );
+                        
+                        //
+                        //  A case-insensitive collation might let in some extra rows.
+                        //
+                        if( p.depth() - path.depth() > depth || (id != rootId && !path.isParentOf( p )) )
+                        {
+                            skipped.add( id );
+                            continue;
+                        }
+                        
+                        node = new SubtreeNode( p, rs.getLong("parent"), rs.getInt("childOrder") );
+                        nodes.put( id, node );
+                    }
+                    
+                    String name = rs.getString("name");
+                    
+                    if( name != null )
+                    {
+                        QName qn = QName.valueOf( name );
+                        
+                        node.m_properties.put( qn, readValue( ws, node.m_path.resolve(qn), rs ) );
+                    }
+                }
             }
-        }
-        catch( SQLException e )
-        {
-            
-        }
-        finally
-        {
-            pc.close();
-        }
-        return workspaces;
-    }
-
-    public void move(WorkspaceImpl ws, Path srcpath, Path destpath) throws RepositoryException
-    {
-        // TODO Auto-generated method stub
-
-    }
-
-    public boolean itemExists(WorkspaceImpl ws, Path path, ItemType type) throws RepositoryException
-    {
-        PoolableConnection pc = getConnection();
-        try
-        {
-            int resultcount;
-                       
-            Connection c = pc.getConnection();
-            
-            if( type == ItemType.NODE )
+            finally
             {
-                PreparedStatement ps = c.prepareStatement("SELECT COUNT(*) AS rowcount FROM workspaces,nodes WHERE "+
-                                                          "nodes.workspace = workspaces.id " +
-                                                          "AND workspaces.name = ? "+
-                                                          "AND workspaces.id = nodes.workspace "+
-                                                          "AND path = ? ");
-        
-                ps.setString(1, ws.getName());
-                ps.setString(2, path.toString());
-        
-                ResultSet rs = ps.executeQuery();
-        
-                rs.next();
-                resultcount = rs.getInt("rowcount");
+                rs.close();
             }
-            else if( type == ItemType.PROPERTY )
+            
+            //
+            //  Put the children under their parents, and then walk the tree.
+            //
+            for( Map.Entry<Long,SubtreeNode> e : nodes.entrySet() )
             {
-                PreparedStatement ps = c.prepareStatement("SELECT COUNT(*) AS rowcount FROM propertyvalues WHERE parent = ? AND name = ?");
+                SubtreeNode parent = e.getKey() == rootId ? null : nodes.get( e.getValue().m_parent );
                 
-                ps.setLong(1, getNodeId(c, ws, path.getParentPath()));
-                ps.setString(2, path.getLastComponent().toString() );
-
-                ResultSet rs = ps.executeQuery();
-                
-                rs.next();
-                resultcount = rs.getInt("rowcount");
+                if( parent != null ) parent.m_children.add( e.getValue() );
             }
-            else
+            
+            if( !pc.m_replica )
             {
-                throw new IllegalArgumentException();
+                synchronized( m_nodeIds )
+                {
+                    for( Map.Entry<Long,SubtreeNode> e : nodes.entrySet() )
+                    {
+                        m_nodeIds.put( wsId+e.getValue().m_path.toString(), e.getKey() );
+                    }
+                }
             }
             
-            //System.out.println("Search for "+path+ "="+(resultcount != 0));
-
-            return resultcount != 0;
+            Map<Path,Map<QName,ValueContainer>> result = new LinkedHashMap<Path,Map<QName,ValueContainer>>();
+            
+            SubtreeNode root = nodes.get( rootId );
+            
+            if( root != null ) root.addTo( result );
+            
+            return result;
         }
         catch( SQLException e )
         {
-            log.log(Level.SEVERE, "Creation of SQL query failed", e );
+            throw new RepositoryException("SQL error "+e.getMessage());
         }
-        catch( PathNotFoundException e )
+        catch (IOException e)
         {
-            // So da parent path was not found. The result is teh obviousness.
-            return false;
+            throw new RepositoryException("Deserialization of values failed for "+path,e);
         }
         finally
         {
             pc.close();
         }
-        return false;
     }
-
-    //
-    //  Serialization format:
-    //  Single : just Value.getStream();
-    //  Multi  : <int numValues> [ <int length> <byte... content> ]
-    //
     
-    private byte[] serialize( ValueContainer vc ) throws ValueFormatException, IllegalStateException, RepositoryException, IOException
+    /**
+     *  Returns true, if a save is being written to the given workspace.
+     */
+    private boolean isSaving( WorkspaceImpl ws )
     {
-        ByteArrayOutputStream ba = new ByteArrayOutputStream();
-
-        if( vc.isMultiple() )
+        synchronized( m_transactions )
         {
-            Value[] vals = vc.getValues();
-            
-            ObjectOutputStream oo = new ObjectOutputStream(ba);
-            
-            oo.writeInt( vals.length );
-            
-            for( Value v : vals )
+            for( JDBCTransaction tx : m_transactions )
             {
-                ByteArrayOutputStream vba = new ByteArrayOutputStream();
-                FileUtil.copyContents(v.getStream(),vba);
-                
-                oo.writeInt( vba.size() );
-                vba.writeTo( oo );
+                if( tx.getWorkspace() == ws ) return true;
             }
-            
-            oo.flush();
-        }
-        else
-        {
-            FileUtil.copyContents( vc.getValue().getStream(), ba );
         }
         
-        return ba.toByteArray();
+        return false;
     }
     
-    public void putPropertyValue(StoreTransaction tx, Path path, ValueContainer vc) throws RepositoryException
+    /**
+     *  Selects the candidate Nodes with the condition built by the {@link JdbcQueryTranslator},
+     *  and sorts them in document order using the childOrder of the Nodes and their
+     *  ancestors.  Like getSubtree(), returns null while a save is being written.
+     */
+    public List<Path> findNodes( WorkspaceImpl ws, QueryRootNode query ) throws RepositoryException
     {
-        Connection c = ((JDBCTransaction)tx).getConnection();
-  
+        if( isSaving( ws ) ) return null;
+        
+        JdbcQueryTranslator t = JdbcQueryTranslator.translate( ws.getSession(), query );
+        
+        if( t == null ) return null;
+        
+        PoolableConnection pc = getReadConnection( ws );
+        
         try
         {
-            byte[] bytes = serialize(vc);
-            PreparedStatement ps;
-            long id = getNodeId(c,tx.getWorkspace(),path.getParentPath());
-                        
-            
-            try
-            {
-                ValueContainer old = getPropertyValue(tx.getWorkspace(), path);
-
-                ps = c.prepareStatement("UPDATE propertyvalues SET len = ?, propval = ? WHERE parent = ? AND name = ?");
-                
-                ps.setInt(1, bytes.length);
-                ps.setBytes(2, bytes);
-                ps.setLong(3, id);
-                ps.setString(4, path.getLastComponent().toString());
-            }
-            catch( PathNotFoundException e )
-            {
-                // So it does not exist; let's insert it.
+            int wsId = getWorkspaceId( ws );
             
-                ps = c.prepareStatement("INSERT INTO propertyvalues "+
-                                             "(parent,name,type,len,propval,multi) "+
-                                             "VALUES (?,?,?,?,?,?)");
+            PreparedStatement ps = pc.prepareStatement("SELECT n.path FROM nodes n WHERE n.workspace = ? AND "+t.getCondition());
             
-                ps.setLong(1, id);
-                ps.setString(2, path.getLastComponent().toString());
-                ps.setInt(3, vc.getType());
-                ps.setInt(4, bytes.length);
-                ps.setBytes(5, bytes);
-                ps.setBoolean( 6, vc.isMultiple() );
-            }            
+            ps.setInt( 1, wsId );
             
-            int result = ps.executeUpdate();
+            int idx = 2;
+            for( Object o : t.getParameters() )
+            {
+                if( o instanceof String )       ps.setString( idx++, (String)o );
+                else if( o instanceof Integer ) ps.setInt( idx++, (Integer)o );
+                else if( o instanceof Boolean ) ps.setBoolean( idx++, (Boolean)o );
+                else                            ps.setBytes( idx++, (byte[])o );
+            }
             
-            if( result == 0 ) throw new RepositoryException("Update failed!?!");
+            List<Path> result = new ArrayList<Path>();
+            ResultSet  rs     = ps.executeQuery();
             
-            if( path.getLastComponent().equals(JCRConstants.Q_JCR_UUID) )
+            try
             {
-                ps = c.prepareStatement("UPDATE nodes SET uuid = ? WHERE id = ?");
-                ps.setString(1, vc.getValue().valueAsString() );
-                ps.setLong(2,id);
-                
-                ps.executeUpdate();
+                while( rs.next() )
+                {
+                    result.add( PathFactory.getPath( ws.getSession(), rs.getString("path") ) );
+                }
+            }
+            finally
+            {
+                rs.close();
             }
             
+            sortInDocumentOrder( pc, wsId, ws, result );
+            
+            return result;
         }
         catch( SQLException e )
         {
-            throw new PathNotFoundException("SQL error "+e.getMessage());
-        }
-        catch (IllegalStateException e)
-        {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            throw new RepositoryException("SQL error "+e.getMessage());
         }
-        catch (IOException e)
+        finally
         {
-            throw new RepositoryException("Serialization failed "+e.getMessage());
+            pc.close();
         }
     }
-
-    public void remove(StoreTransaction tx, Path path) throws RepositoryException
+    
+    private static final int ORDER_QUERY_SIZE = 50;
+    
+    /**
+     *  Sorts the paths by comparing the childOrder of their ancestors, one level at
+     *  a time.  The childOrders are read in fixed-size chunks, so that the same
+     *  prepared statement can be reused.
+     */
+    private void sortInDocumentOrder( PoolableConnection pc, int wsId, WorkspaceImpl ws, List<Path> paths ) throws SQLException, RepositoryException
     {
-        PreparedStatement ps;
-        Connection c = ((JDBCTransaction)tx).getConnection();
+        if( paths.size() < 2 ) return;
         
-        try
+        final Map<Path,Integer> order = new HashMap<Path,Integer>();
+        
+        for( Path p : paths )
         {
-            ps = c.prepareStatement("DELETE FROM propertyvalues WHERE "+
-                                    "parent = ? AND "+
-                                    "name = ?");
-
-            ps.setLong( 1, getNodeId(c,tx.getWorkspace(), path.getParentPath()));
-            ps.setString(2, path.getLastComponent().toString() );
-            int numRows = ps.executeUpdate();
-            
-            if( numRows == 0 )
+            for( ; !p.isRoot() && !order.containsKey( p ); p = p.getParentPath() )
             {
-                //
-                //  There was no property value removed, so let's remove the parent.
-                //
-                ps = c.prepareStatement("DELETE from propertyvalues where parent = ?");
-                ps.setLong(1, getNodeId(c,tx.getWorkspace(),path) );
-                ps.executeUpdate();
-               
-                ps = c.prepareStatement("DELETE FROM nodes WHERE path = ?");
-                ps.setString(1, path.toString());
-            
-                ps.executeUpdate();
+                order.put( p, 0 );
             }
         }
-        catch( SQLException e )
-        {
-            log.log(Level.SEVERE, "Creation of SQL query failed", e );
+        
+        StringBuilder sql = new StringBuilder("SELECT path,childOrder FROM nodes WHERE workspace = ? AND path IN (");
+        for( int i = 0; i < ORDER_QUERY_SIZE; i++ ) sql.append( i > 0 ? ",?" : "?" );
+        sql.append(")");
+        
+        PreparedStatement ps = pc.prepareStatement( sql.toString() );
+        List<Path> all = new ArrayList<Path>( order.keySet() );
+        
+        for( int start = 0; start < all.size(); start += ORDER_QUERY_SIZE )
+        {
+            ps.setInt( 1, wsId );
+            
+            for( int i = 0; i < ORDER_QUERY_SIZE; i++ )
+            {
+                // The last chunk is padded with duplicates.
+                Path p = all.get( Math.min( start+i, all.size()-1 ) );
+                ps.setString( i+2, p.toString() );
+            }
+            
+            ResultSet rs = ps.executeQuery();
+            
+            try
+            {
+                while( rs.next() )
+                {
+                    order.put( PathFactory.getPath( ws.getSession(), rs.getString("path") ), rs.getInt("childOrder") );
+                }
+            }
+            finally
+            {
+                rs.close();
+            }
+        }
+        
+        //
+        //  The key of a path is the childOrder of each of its ancestors, starting
+        //  from the top.
+        //
+        final Map<Path,int[]> keys = new HashMap<Path,int[]>();
+        
+        for( Path p : paths )
+        {
+            int[] key = new int[p.depth()];
+            
+            for( Path a = p; !a.isRoot(); a = a.getParentPath() )
+            {
+                key[a.depth()-1] = order.get( a );
+            }
+            
+            keys.put( p, key );
+        }
+        
+        Collections.sort( paths, new Comparator<Path>()
+        {
+            public int compare( Path p1, Path p2 )
+            {
+                int[] k1 = keys.get( p1 ), k2 = keys.get( p2 );
+                
+                for( int i = 0; i < k1.length && i < k2.length; i++ )
+                {
+                    if( k1[i] != k2[i] ) return k1[i] < k2[i] ? -1 : 1;
+                    
+                    int res = p1.getComponent( i ).compareTo( p2.getComponent( i ) );
+                    
+                    if( res != 0 ) return res;
+                }
+                
+                return k1.length - k2.length;
+            }
+        });
+    }
+    
+    /**
+     *  A Node read by getSubtree().
+     */
+    private static class SubtreeNode implements Comparable<SubtreeNode>
+    {
+        private final Path                      m_path;
+        private final long                      m_parent;
+        private final int                       m_childOrder;
+        private final Map<QName,ValueContainer> m_properties = new LinkedHashMap<QName,ValueContainer>();
+        private final List<SubtreeNode>         m_children   = new ArrayList<SubtreeNode>();
+        
+        public SubtreeNode( Path path, long parent, int childOrder )
+        {
+            m_path       = path;
+            m_parent     = parent;
+            m_childOrder = childOrder;
+        }
+        
+        public int compareTo( SubtreeNode o )
+        {
+            return m_childOrder < o.m_childOrder ? -1 : (m_childOrder == o.m_childOrder ? 0 : 1);
+        }
+        
+        /**
+         *  Adds this Node and its descendants to the result in document order.
+         */
+        public void addTo( Map<Path,Map<QName,ValueContainer>> result )
+        {
+            result.put( m_path, m_properties );
+            
+            Collections.sort( m_children );
+            
+            for( SubtreeNode child : m_children ) child.addTo( result );
+        }
+    }
+    
+    /**
+     *  Deserializes the value on the current row of a ResultSet which has 
+     *  the columns type, propval, multi and len.
+     */
+    private ValueContainer readValue( WorkspaceImpl ws, Path path, ResultSet rs ) throws SQLException, IOException, RepositoryException
+    {
+        int type   = rs.getInt("type");
+        Blob value = rs.getBlob("propval");
+        boolean multi = rs.getBoolean("multi");
+        long    len   = rs.getLong("len");
+        boolean blobs = len == BLOB_LENGTH;
+        
+        if( rs.wasNull() ) len = -1;
+        
+        if( blobs && m_blobs == null )
+            throw new RepositoryException("Property "+path+" is stored in a blob store, but "+PROP_BLOB_DIRECTORY+" is not set");
+        
+        ValueFactoryImpl vf = ws.getSession().getValueFactory();
+        InputStream      in = value.getBinaryStream();
+        
+        try
+        {
+            if( multi )
+            {
+                in = new BufferedInputStream( in );
+                
+                if( ValueCodec.isEncoded( peek( in ) ) ) 
+                    return ValueCodec.decode( in, ws.getSession(), new Binaries( null, null ) );
+                
+                return readLegacy( in, type, ws.getSession(), null, null );
+            }
+        
+            ValueImpl v;
+        
+            if( blobs )
+                v = vf.createValue( m_blobs.get( FileUtil.readContents( in, "UTF-8" ) ) );
+            else if( type == PropertyType.BINARY )
+                v = vf.createValue( readBinary( in, len ) );
+            else
+                v = vf.createValue( in, type );
+
+            return new ValueContainer(v);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    /**
+     *  Reads a binary of the given length, or up to the end of the stream if the
+     *  length is not known.  Large ones are copied to a temporary file, so that
+     *  they never need to fit in the heap.
+     */
+    private BinarySource readBinary( InputStream in, long length ) throws IOException
+    {
+        if( length < 0 || length >= m_spoolThreshold ) 
+            return new SpoolBinarySource( in, length, m_spoolDirectory );
+        
+        byte[] ba = new byte[(int)length];
+        
+        new DataInputStream( in ).readFully( ba );
+        
+        return new MemoryBinarySource( ba );
+    }
+    
+    private static int peek( InputStream in ) throws IOException
+    {
+        in.mark( 1 );
+        int b = in.read();
+        in.reset();
+        
+        return b;
+    }
+    
+    /**
+     *  Reads a multi-valued property which was stored with Java serialization, 
+     *  before the ValueCodec was used.  The values are in their stream format.
+     *  
+     *  @param hashes If not null, the blob hashes of the values which are in the 
+     *                BlobStore are put here.
+     *  @param spooled If not null, the binaries which were copied to temporary files
+     *                 are put here, so that they can be disposed of.
+     */
+    private ValueContainer readLegacy( InputStream in, int type, NamespaceMapper nsm, 
+                                       Map<ValueImpl,String> hashes, List<SpoolBinarySource> spooled ) 
+        throws IOException, RepositoryException
+    {
+        ObjectInputStream oin = new ObjectInputStream( in );
+        
+        int numObjects = oin.readInt();
+        
+        ValueImpl[] v = new ValueImpl[numObjects];
+        
+        for( int i = 0; i < numObjects; i++ )
+        {
+            int length = oin.readInt();
+            
+            if( length < 0 )
+            {
+                //  A blob hash, with the length negated.
+                byte[] ba = new byte[-length];
+                oin.readFully(ba);
+                
+                if( m_blobs == null )
+                    throw new RepositoryException("Value is stored in a blob store, but "+PROP_BLOB_DIRECTORY+" is not set");
+                
+                String hash = new String(ba,"UTF-8");
+                v[i] = new StreamValueImpl( m_blobs.get( hash ) );
+                
+                if( hashes != null ) hashes.put( v[i], hash );
+            }
+            else if( type == PropertyType.BINARY )
+            {
+                BinarySource bs = readBinary( oin, length );
+                
+                if( spooled != null && bs instanceof SpoolBinarySource ) spooled.add( (SpoolBinarySource)bs );
+                
+                v[i] = new StreamValueImpl( bs );
+            }
+            else
+            {
+                byte[] ba = new byte[length];
+                
+                oin.readFully(ba);
+                
+                v[i] = legacyValue( new String(ba,"UTF-8"), type, nsm );
+            }
+        }
+        
+        return new ValueContainer(v, type);
+    }
+    
+    /**
+     *  Creates a value out of its String form, the same way as ValueFactoryImpl does.
+     */
+    private static ValueImpl legacyValue( String s, int type, NamespaceMapper nsm ) throws RepositoryException
+    {
+        switch( type )
+        {
+            case PropertyType.BOOLEAN:   return new BooleanValueImpl( s );
+            case PropertyType.DOUBLE:    return new DoubleValueImpl( s );
+            case PropertyType.LONG:      return new LongValueImpl( s );
+            case PropertyType.DATE:      return new CalendarValueImpl( s );
+            case PropertyType.NAME:      return new QNameValue( nsm, s ).new Impl( nsm );
+            case PropertyType.PATH:      return new QPathValue( nsm, s ).new Impl( nsm );
+            case PropertyType.REFERENCE: return new ReferenceValueImpl( s );
+            case PropertyType.STRING:    return new StringValueImpl( s );
+        }
+        
+        throw new ValueFormatException("Illegal type "+PropertyType.nameFromValue(type));
+    }
+
+    public List<Path> listNodes(final WorkspaceImpl ws, final Path parentpath) throws RepositoryException
+    {
+        try
+        {
+            return read( ws, new Read<List<Path>>() {
+                public List<Path> read( PoolableConnection pc ) throws SQLException, RepositoryException
+                {
+                    PreparedStatement ps = pc.prepareStatement("SELECT path FROM nodes WHERE parent = ? ORDER BY childOrder");
+        
+                    ps.setLong(1, getNodeId(pc, ws, parentpath));
+        
+                    ResultSet rs = ps.executeQuery();
+        
+                    ArrayList<Path> result = new ArrayList<Path>();
+                    while( rs.next() )
+                    {
+                        result.add( PathFactory.getPath(ws.getSession(),rs.getString("path")) );
+                    }
+        
+                    return result;
+                }
+            });
+        }
+        catch( PathNotFoundException e )
+        {
+            return new ArrayList<Path>();
+        }
+        catch( SQLException e )
+        {
+            throw new PathNotFoundException("SQL error "+e.getMessage());
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("SQL error "+e.getMessage());
+        }
+    }
+
+    public List<QName> listProperties(final WorkspaceImpl ws, final Path path) throws RepositoryException
+    {
+        try
+        {
+            return read( ws, new Read<List<QName>>() {
+                public List<QName> read( PoolableConnection pc ) throws SQLException, RepositoryException
+                {
+                    PreparedStatement ps = pc.prepareStatement("SELECT name FROM propertyvalues WHERE parent = ?");
+        
+                    ps.setLong(1, getNodeId(pc, ws, path));
+        
+                    ResultSet rs = ps.executeQuery();
+        
+                    ArrayList<QName> result = new ArrayList<QName>();
+                    while( rs.next() )
+                    {
+                        String qname = rs.getString("name");
+                        result.add( QName.valueOf(qname) );
+                    }
+        
+                    return result;
+                }
+            });
+        }
+        catch( PathNotFoundException e )
+        {
+            return new ArrayList<QName>();
+        }
+        catch( SQLException e )
+        {
+            throw new RepositoryException("SQL error "+e.getMessage());
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("SQL error "+e.getMessage());
+        }
+    }
+
+    public Collection<String> listWorkspaces() throws RepositoryException
+    {
+        ArrayList<String> workspaces = new ArrayList<String>();
+        PoolableConnection pc = getConnection();
+        
+        try
+        {
+            Connection c = pc.getConnection();
+            PreparedStatement ps = c.prepareStatement("select * from workspaces");
+            
+            ResultSet rs = ps.executeQuery();
+            
+            for( ; rs.next(); )
+            {
+                String wsname = rs.getString("name");
+                
+                workspaces.add(wsname);
+            }
+        }
+        catch( SQLException e )
+        {
+            
+        }
+        finally
+        {
+            pc.close();
+        }
+        return workspaces;
+    }
+
+    /**
+     *  Returns the Item the Session is saving at the path, or null, if there is none.
+     */
+    private Object getPending( WorkspaceImpl ws, Path path, ItemType type ) throws RepositoryException
+    {
+        synchronized( m_transactions )
+        {
+            for( JDBCTransaction tx : m_transactions )
+            {
+                if( tx.getWorkspace() != ws ) continue;
+                
+                Object pending = tx.getPending( path, type );
+                
+                if( pending != null ) return pending;
+            }
+        }
+        
+        return null;
+    }
+    
+    public boolean itemExists(final WorkspaceImpl ws, final Path path, final ItemType type) throws RepositoryException
+    {
+        if( getPending( ws, path, type ) != null ) return true;
+        
+        try
+        {
+            return read( ws, new Read<Boolean>() {
+                public Boolean read( PoolableConnection pc ) throws SQLException, RepositoryException
+                {
+                    int resultcount;
+                       
+                    if( type == ItemType.NODE )
+                    {
+                        getNodeId(pc, ws, path);
+                
+                        resultcount = 1;
+                    }
+                    else if( type == ItemType.PROPERTY )
+                    {
+                        long parentId = getNodeId(pc, ws, path.getParentPath());
+                        PreparedStatement ps = pc.prepareStatement("SELECT COUNT(*) AS rowcount FROM propertyvalues WHERE parent = ? AND name = ?");
+                
+                        ps.setLong(1, parentId);
+                        ps.setString(2, path.getLastComponent().toString() );
+
+                        ResultSet rs = ps.executeQuery();
+                
+                        rs.next();
+                        resultcount = rs.getInt("rowcount");
+                        rs.close();
+                    }
+                    else
+                    {
+                        throw new IllegalArgumentException();
+                    }
+            
+                    //System.out.println("Search for "+path+ "="+(resultcount != 0));
+
+                    if( resultcount == 0 ) throw new PathNotFoundException( path.toString() );
+                    
+                    return true;
+                }
+            });
+        }
+        catch( SQLException e )
+        {
+            log.log(Level.SEVERE, "Creation of SQL query failed", e );
+        }
+        catch( IOException e )
+        {
+            log.log(Level.SEVERE, "Creation of SQL query failed", e );
+        }
+        catch( PathNotFoundException e )
+        {
+            // So da parent path was not found. The result is teh obviousness.
+            return false;
+        }
+        return false;
+    }
+
+    //
+    //  Serialization format:
+    //  Single : just Value.getStream(), or the blob hash;
+    //  Multi  : the ValueCodec format, with the blobs referred to by their hashes.
+    //           Older rows may still be in the Java serialization format of
+    //           readLegacy().
+    //
+    
+    private byte[] serialize( JDBCTransaction tx, ValueContainer vc, List<String> blobs ) throws ValueFormatException, IllegalStateException, RepositoryException, IOException
+    {
+        if( vc.isMultiple() )
+        {
+            return ValueCodec.encode( vc, new Binaries( tx, blobs ) );
+        }
+        
+        String hash = putBlob( tx, vc.getValue() );
+            
+        if( hash != null )
+        {
+            blobs.add( hash );
+            return hash.getBytes("UTF-8");
+        }
+        
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        
+        FileUtil.copyContents( vc.getValue().getStream(), ba );
+        
+        return ba.toByteArray();
+    }
+    
+    /**
+     *  Keeps the large binaries of multi-valued properties in the BlobStore, and
+     *  spools the other large ones when reading.
+     */
+    private class Binaries implements ValueCodec.BinaryHandler
+    {
+        private final JDBCTransaction m_tx;
+        private final List<String>    m_hashes;
+        
+        /**
+         *  @param tx The transaction for storing the blobs, or null, if only reading.
+         *  @param hashes The hashes of the stored blobs are put here.
+         */
+        public Binaries( JDBCTransaction tx, List<String> hashes )
+        {
+            m_tx     = tx;
+            m_hashes = hashes;
+        }
+        
+        public String store( StreamValueImpl v ) throws IOException, RepositoryException
+        {
+            String hash = putBlob( m_tx, v );
+            
+            if( hash != null ) m_hashes.add( hash );
+            
+            return hash;
+        }
+        
+        public BinarySource load( String key ) throws IOException
+        {
+            if( m_blobs == null )
+                throw new IOException("Value is stored in a blob store, but "+PROP_BLOB_DIRECTORY+" is not set");
+            
+            return m_blobs.get( key );
+        }
+        
+        public BinarySource read( InputStream in, long length ) throws IOException
+        {
+            return readBinary( in, length );
+        }
+    }
+    
+    /**
+     *  Stores a binary in the BlobStore, if it is large enough.
+     *  
+     *  @return The hash, or null, if the value should be stored in the database.
+     */
+    private String putBlob( JDBCTransaction tx, ValueImpl v ) throws IOException, RepositoryException
+    {
+        if( !isBlob( v ) ) return null;
+        
+        String hash = m_blobs.put( v.getStream() );
+        
+        tx.m_blobChanges.added( hash );
+        
+        return hash;
+    }
+    
+    /**
+     *  Returns true, if the value is large enough to go to the BlobStore.
+     */
+    private boolean isBlob( ValueImpl v ) throws IOException
+    {
+        return m_blobThreshold > 0 && v instanceof StreamValueImpl && ((StreamValueImpl)v).getLength() >= m_blobThreshold;
+    }
+    
+    /**
+     *  Marks the blobs referred to by the matching rows as removed.  The query must
+     *  select the propval and multi columns of the rows whose len is BLOB_LENGTH.
+     */
+    private void releaseBlobs( JDBCTransaction tx, PreparedStatement ps ) throws SQLException, IOException
+    {
+        ResultSet rs = ps.executeQuery();
+        
+        while( rs.next() )
+        {
+            InputStream in = rs.getBlob("propval").getBinaryStream();
+            
+            if( rs.getBoolean("multi") )
+            {
+                in = new BufferedInputStream( in );
+                
+                if( ValueCodec.isEncoded( peek( in ) ) )
+                {
+                    for( String hash : ValueCodec.getBinaryKeys( in ) ) tx.m_blobChanges.removed( hash );
+                    
+                    continue;
+                }
+                
+                ObjectInputStream oi = new ObjectInputStream( in );
+                
+                for( int n = oi.readInt(); n > 0; n-- )
+                {
+                    int    length = oi.readInt();
+                    byte[] ba     = new byte[Math.abs(length)];
+                    
+                    oi.readFully( ba );
+                    
+                    if( length < 0 ) tx.m_blobChanges.removed( new String(ba,"UTF-8") );
+                }
+            }
+            else
+            {
+                tx.m_blobChanges.removed( FileUtil.readContents( in, "UTF-8" ) );
+            }
+        }
+        
+        rs.close();
+    }
+    
+    /**
+     *  Queues the value to be written when the save is finished.  Writing the same
+     *  Property again during the save just replaces the queued value.
+     */
+    public void putPropertyValue(StoreTransaction tx, Path path, ValueContainer vc) throws RepositoryException
+    {
+        JDBCTransaction jtx = (JDBCTransaction)tx;
+  
+        try
+        {
+            long   id   = jtx.getNodeId( path.getParentPath() );
+            String name = path.getLastComponent().toString();
+            
+            PendingProperty pp = new PendingProperty( id, name, vc );
+            
+            if( !vc.isMultiple() && vc.getValue() instanceof StreamValueImpl && !isBlob( vc.getValue() ) )
+            {
+                //
+                //  Binaries are streamed to the database when the save is finished.
+                //  The copy shares the data, but has a stream of its own.
+                //
+                StreamValueImpl v = (StreamValueImpl)vc.getValue();
+                
+                pp.m_stream = new StreamValueImpl( v );
+                pp.m_length = v.getLength();
+            }
+            else
+            {
+                pp.m_bytes  = serialize( jtx, vc, pp.m_blobs );
+                pp.m_length = pp.m_blobs.isEmpty() ? pp.m_bytes.length : BLOB_LENGTH;
+            }
+            
+            PendingProperty old = jtx.m_properties.put( pp.getKey(), pp );
+            
+            if( old != null )
+            {
+                pp.m_update = old.m_update;
+                jtx.forget( old );
+            }
+            else
+            {
+                Map<String,Boolean> existing = jtx.getPropertyNames( id );
+                
+                if( existing.containsKey( name ) )
+                {
+                    pp.m_update = true;
+                    releaseOldBlobs( jtx, id, name, existing );
+                }
+            }
+            
+            if( path.getLastComponent().equals(JCRConstants.Q_JCR_UUID) )
+            {
+                PendingNode pn = jtx.m_nodes.get( id );
+                
+                if( pn != null )
+                {
+                    pn.m_uuid = vc.getValue().valueAsString();
+                }
+                else
+                {
+                    PreparedStatement ps = jtx.batch( SQL_UPDATE_UUID );
+                    ps.setString(1, vc.getValue().valueAsString() );
+                    ps.setLong(2,id);
+                    ps.addBatch();
+                }
+            }
+        }
+        catch( SQLException e )
+        {
+            throw new PathNotFoundException("SQL error "+e.getMessage());
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException("Serialization failed "+e.getMessage());
+        }
+    }
+
+    /**
+     *  Marks the blobs of the Property in the database as removed, unless they
+     *  have been already.
+     */
+    private void releaseOldBlobs( JDBCTransaction tx, long id, String name, Map<String,Boolean> existing ) 
+        throws SQLException, IOException
+    {
+        if( m_blobs == null || !Boolean.TRUE.equals( existing.get(name) ) ) return;
+        
+        PreparedStatement ps = tx.prepareStatement("SELECT propval,multi FROM propertyvalues WHERE parent = ? AND name = ? AND len = "+BLOB_LENGTH);
+        ps.setLong(1, id);
+        ps.setString(2, name);
+        releaseBlobs( tx, ps );
+        
+        existing.put( name, Boolean.FALSE );
+    }
+    
+    /**
+     *  Queues the deletion of a Property or a Node.  The deletions are done after
+     *  the inserts and updates of the same save.
+     */
+    public void remove(StoreTransaction tx, Path path) throws RepositoryException
+    {
+        PreparedStatement ps;
+        JDBCTransaction jtx = (JDBCTransaction)tx;
+        
+        try
+        {
+            long   parentId = jtx.getNodeId( path.getParentPath() );
+            String name     = path.getLastComponent().toString();
+            
+            PendingProperty pp = jtx.m_properties.remove( PendingProperty.getKey( parentId, name ) );
+            
+            if( pp != null ) jtx.forget( pp );
+            
+            Map<String,Boolean> existing = jtx.getPropertyNames( parentId );
+            
+            if( existing.containsKey( name ) )
+            {
+                releaseOldBlobs( jtx, parentId, name, existing );
+                existing.remove( name );
+                
+                ps = jtx.batch( SQL_DELETE_PROPERTY );
+                ps.setLong( 1, parentId );
+                ps.setString( 2, name );
+                ps.addBatch();
+            }
+            else if( pp == null )
+            {
+                //
+                //  There was no such property, so let's remove the Node.
+                //
+                long id = jtx.getNodeId( path );
+                
+                if( jtx.removeNode( path, id ) ) return;
+                
+                if( m_blobs != null )
+                {
+                    ps = jtx.prepareStatement("SELECT propval,multi FROM propertyvalues WHERE parent = ? AND len = "+BLOB_LENGTH);
+                    ps.setLong(1, id );
+                    releaseBlobs( jtx, ps );
+                }
+                
+                ps = jtx.batch( SQL_DELETE_PROPERTIES );
+                ps.setLong( 1, id );
+                ps.addBatch();
+               
+                ps = jtx.batch( SQL_DELETE_NODE );
+                ps.setLong( 1, id );
+                ps.addBatch();
+            }
+        }
+        catch( SQLException e )
+        {
+            log.log(Level.SEVERE, "Creation of SQL query failed", e );
+            
+            throw new RepositoryException("Did not delete "+path);
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("Unable to read the blob references of "+path, e);
+        }
+    }
+
+    public void storeFinished( StoreTransaction tx ) throws RepositoryException
+    {
+        JDBCTransaction jtx = (JDBCTransaction)tx;
+        
+        try
+        {
+            jtx.flush();
+            
+            //
+            //  The new blobs are referenced before the rows pointing at them are
+            //  committed, and the old ones released only after.
+            //
+            if( m_blobs != null ) m_blobs.acquire( jtx.m_blobChanges );
+            
+            jtx.getConnection().commit();
+            
+            updateNodeIds( jtx.getWorkspace(), jtx.getAddedNodes(), jtx.m_removedNodes );
+            
+            if( m_replicas != null )
+            {
+                synchronized( m_lastSaves )
+                {
+                    m_lastSaves.put( jtx.getWorkspace(), System.currentTimeMillis() );
+                }
+            }
+            
+            if( m_blobs != null ) m_blobs.release( jtx.m_blobChanges );
+        }
+        catch( SQLException e )
+        {
+            // storeCancelled() rolls back and closes the transaction.
+            throw new RepositoryException("Unable to commit transaction", e);
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("Unable to update the blob references", e);
+        }
+        
+        jtx.close();
+    }
+
+    public void storeCancelled( StoreTransaction tx ) throws RepositoryException
+    {
+        JDBCTransaction jtx = (JDBCTransaction)tx;
+        
+        if( jtx.isClosed() ) return;
+        
+        if( m_blobs != null ) m_blobs.cancel( jtx.m_blobChanges );
+        
+        try
+        {
+            jtx.getConnection().rollback();
+            
+            //
+            //  Other connections may have read the uncommitted rows of the save, so
+            //  the ids of everything it touched are forgotten.
+            //
+            updateNodeIds( jtx.getWorkspace(), new HashMap<Path,Long>(), jtx.getTouchedPaths() );
+        }
+        catch( SQLException e )
+        {
+            throw new RepositoryException("Unable to commit transaction", e);
+        }
+        finally
+        {
+            jtx.close();
+        }
+    }
+
+    public StoreTransaction storeStarted( WorkspaceImpl ws ) throws RepositoryException
+    {
+        JDBCTransaction tx = new JDBCTransaction( ws, getConnection() );
+        synchronized( m_transactions )
+        {
+            m_transactions.add( tx );
+        }
+        return tx;
+    }
+
+    public Poolable newPoolable( Pool p ) throws SQLException
+    {
+        if( p == m_replicas ) return new PoolableConnection( p, m_replicaURL, m_replicaUserName, m_replicaPassword, true );
+        
+        return new PoolableConnection( p, m_connectionURL, m_userName, m_password, false );
+    }
+
+    /**
+     *  Provides rollback support.  The writes are collected here during the save,
+     *  and sent to the database in batches when it is finished.
+     */
+    private class JDBCTransaction extends BaseStoreTransaction
+    {
+        private PoolableConnection m_conn;
+        private BlobStore.Changes  m_blobChanges = new BlobStore.Changes();
+        
+        /* The ids of the Nodes looked up or added during this save. */
+        private Map<Path,Long>     m_nodeIds     = new HashMap<Path,Long>();
+        
+        /* Nodes which have not yet been inserted, by id. */
+        private Map<Long,PendingNode> m_nodes    = new LinkedHashMap<Long,PendingNode>();
+        
+        /* Property values which have not yet been written. */
+        private Map<String,PendingProperty> m_properties = new LinkedHashMap<String,PendingProperty>();
+        
+        /* The names of the Properties in the database per Node, and whether they use blobs. */
+        private Map<Long,Map<String,Boolean>> m_propertyNames = new HashMap<Long,Map<String,Boolean>>();
+        
+        /* The last child order number used under each parent. */
+        private Map<Long,Integer>  m_childOrders = new HashMap<Long,Integer>();
+        
+        /* Child order numbers set by reorderNodes() for Nodes not yet added. */
+        private Map<Path,Integer>  m_orders      = new HashMap<Path,Integer>();
+        
+        /* Nodes deleted from the database. */
+        private List<Path>         m_removedNodes = new ArrayList<Path>();
+        
+        /* The destinations of the moved Nodes. */
+        private List<Path>         m_movedTo     = new ArrayList<Path>();
+        
+        /* Batched statements, by their SQL. */
+        private Map<String,PreparedStatement> m_batches = new HashMap<String,PreparedStatement>();
+        
+        /* The streams of the binaries in the batches, closed once they have been sent. */
+        private List<InputStream>  m_streams     = new ArrayList<InputStream>();
+        
+        private boolean            m_closed;
+        
+        public JDBCTransaction( WorkspaceImpl ws, PoolableConnection p ) throws RepositoryException
+        {
+            super( ws );
+            m_conn = p;
+            m_conn.m_inTransaction = true;
+            try
+            {
+                m_conn.getConnection().setAutoCommit( false );
+            }
+            catch( SQLException e )
+            {
+                throw new RepositoryException("Cannot set autocommit=false",e);
+            }
+        }
+        
+        public Connection getConnection()
+        {
+            return m_conn.getConnection();
+        }
+        
+        /**
+         *  Returns the id of the Node, or null, if it does not exist.
+         */
+        public Long findNodeId( Path path ) throws SQLException, RepositoryException
+        {
+            Long id = m_nodeIds.get( path );
+            
+            if( id == null )
+            {
+                try
+                {
+                    id = JdbcProvider.this.getNodeId( m_conn, getWorkspace(), path );
+                    m_nodeIds.put( path, id );
+                }
+                catch( PathNotFoundException e )
+                {
+                    return null;
+                }
+            }
+            
+            return id;
+        }
+        
+        public long getNodeId( Path path ) throws SQLException, RepositoryException
+        {
+            Long id = findNodeId( path );
+            
+            if( id == null ) throw new PathNotFoundException("No such path "+path);
+            
+            return id;
+        }
+        
+        /**
+         *  Returns the PendingNode or PendingProperty at the path, or null, if
+         *  there is nothing waiting to be written there.
+         */
+        public Object getPending( Path path, ItemType type ) throws RepositoryException
+        {
+            if( type == ItemType.NODE )
+            {
+                Long id = m_nodeIds.get( path );
+                
+                return id != null ? m_nodes.get( id ) : null;
+            }
+            
+            if( path.isRoot() ) return null;
+            
+            Long parentId = m_nodeIds.get( path.getParentPath() );
+            
+            if( parentId == null ) return null;
+            
+            return m_properties.get( PendingProperty.getKey( parentId, path.getLastComponent().toString() ) );
+        }
+        
+        public void addNode( PendingNode pn )
+        {
+            m_nodes.put( pn.m_id, pn );
+            m_nodeIds.put( pn.m_path, pn.m_id );
+            m_propertyNames.put( pn.m_id, new HashMap<String,Boolean>() );
+        }
+        
+        /**
+         *  Forgets the ids of a moved Node and its descendants.  They are removed
+         *  from the id cache of the provider once more when the save is finished,
+         *  in case someone looked them up from the old rows in the meantime.
+         */
+        public void moved( Path path, Path dest ) throws SQLException, RepositoryException
+        {
+            m_movedTo.add( dest );
+            
+            for( Iterator<Path> i = m_nodeIds.keySet().iterator(); i.hasNext(); )
+            {
+                Path p = i.next();
+                
+                if( p.equals( path ) || path.isParentOf( p ) ) i.remove();
+            }
             
-            throw new RepositoryException("Did not delete "+path);
+            m_removedNodes.add( path );
+            updateNodeIds( getWorkspace(), new HashMap<Path,Long>(), Collections.singletonList( path ) );
         }
-    }
-
-    public void storeFinished( StoreTransaction tx ) throws RepositoryException
-    {
-        JDBCTransaction jtx = (JDBCTransaction)tx;
         
-        try
+        /**
+         *  Writes the queued Nodes, Properties and batches to the database before the
+         *  save is finished, for the operations which work directly on the rows.  The
+         *  connection sees them, though nobody else does until the commit.
+         */
+        public void writePending() throws SQLException, RepositoryException
         {
-            jtx.getConnection().commit();
+            flush();
+            m_nodes.clear();
+            m_properties.clear();
         }
-        catch( SQLException e )
+        
+        /**
+         *  Forgets about a removed Node.  Returns true, if it was added during
+         *  this save, and so need not be deleted from the database.
+         */
+        public boolean removeNode( Path path, long id )
+        {
+            m_nodeIds.remove( path );
+            m_propertyNames.remove( id );
+            
+            if( m_nodes.remove( id ) == null )
+            {
+                m_removedNodes.add( path );
+                return false;
+            }
+            
+            for( Iterator<PendingProperty> i = m_properties.values().iterator(); i.hasNext(); )
+            {
+                PendingProperty pp = i.next();
+                
+                if( pp.m_parent == id )
+                {
+                    forget( pp );
+                    i.remove();
+                }
+            }
+            
+            return true;
+        }
+        
+        /**
+         *  Puts the values which are waiting to be written under the Node to
+         *  the Map.
+         */
+        public void getPendingProperties( long id, Map<QName,ValueContainer> result )
         {
-            throw new RepositoryException("Unable to commit transaction", e);
+            for( PendingProperty pp : m_properties.values() )
+            {
+                if( pp.m_parent == id ) result.put( QName.valueOf( pp.m_name ), pp.m_value );
+            }
         }
-        finally
+        
+        /**
+         *  Releases the blobs of a queued value which is not going to be written.
+         */
+        public void forget( PendingProperty pp )
         {
-            jtx.close();
+            for( String hash : pp.m_blobs ) m_blobChanges.removed( hash );
         }
-    }
-
-    public void storeCancelled( StoreTransaction tx ) throws RepositoryException
-    {
-        JDBCTransaction jtx = (JDBCTransaction)tx;
         
-        try
+        /**
+         *  Returns the names of the Properties the Node has in the database.  They
+         *  are read with a single query the first time the Node is touched.
+         */
+        public Map<String,Boolean> getPropertyNames( long id ) throws SQLException
         {
-            jtx.getConnection().rollback();
+            Map<String,Boolean> names = m_propertyNames.get( id );
+            
+            if( names == null )
+            {
+                names = new HashMap<String,Boolean>();
+                
+                PreparedStatement ps = prepareStatement("SELECT name,len FROM propertyvalues WHERE parent = ?");
+                
+                ps.setLong( 1, id );
+                    
+                ResultSet rs = ps.executeQuery();
+                    
+                while( rs.next() )
+                {
+                    names.put( rs.getString( "name" ), rs.getLong( "len" ) == BLOB_LENGTH );
+                }
+                
+                rs.close();
+                
+                m_propertyNames.put( id, names );
+            }
+            
+            return names;
         }
-        catch( SQLException e )
+        
+        /**
+         *  Allocates the child order number for a new Node.  The largest number
+         *  in use is read only once per parent and save.
+         */
+        public int nextChildOrder( Path path, long parentId ) throws SQLException
         {
-            throw new RepositoryException("Unable to commit transaction", e);
+            Integer order = m_orders.remove( path );
+            
+            if( order != null ) return order;
+            
+            Integer last = m_childOrders.get( parentId );
+            
+            if( last == null )
+            {
+                last = 0;
+                
+                if( !m_nodes.containsKey( parentId ) )
+                {
+                    PreparedStatement ps = prepareStatement("SELECT MAX(childOrder) FROM nodes WHERE parent = ?");
+                    
+                    ps.setLong( 1, parentId );
+                        
+                    ResultSet rs = ps.executeQuery();
+                        
+                    if( rs.next() ) last = rs.getInt( 1 );
+                    
+                    rs.close();
+                }
+            }
+            
+            m_childOrders.put( parentId, ++last );
+            
+            return last;
         }
-        finally
+        
+        public void setNextChildOrder( long parentId, int last )
         {
-            jtx.close();
+            Integer old = m_childOrders.get( parentId );
+            
+            if( old == null || old < last ) m_childOrders.put( parentId, last );
         }
-    }
-
-    public StoreTransaction storeStarted( WorkspaceImpl ws ) throws RepositoryException
-    {
-        JDBCTransaction tx = new JDBCTransaction( ws, getConnection() );
-        return tx;
-    }
-
-    public Poolable newPoolable( Pool p ) throws SQLException
-    {
-        if( p.size() >= m_maxConnections ) return null;
         
-        return new PoolableConnection(p);
-    }
-
-    /**
-     *  Provides rollback support.
-     */
-    private class JDBCTransaction extends BaseStoreTransaction
-    {
-        private PoolableConnection m_conn;
+        /**
+         *  Sets the order of a Node which has not been inserted yet.  Returns false,
+         *  if the Node is already in the database.
+         */
+        public boolean setChildOrder( Path path, int order )
+        {
+            Long id = m_nodeIds.get( path );
+            
+            if( id != null && m_nodes.containsKey( id ) )
+            {
+                m_nodes.get( id ).m_childOrder = order;
+                return true;
+            }
+            
+            if( id == null ) m_orders.put( path, order );
+            
+            return false;
+        }
         
-        public JDBCTransaction( WorkspaceImpl ws, PoolableConnection p ) throws RepositoryException
+        public PreparedStatement prepareStatement( String sql ) throws SQLException
         {
-            super( ws );
-            m_conn = p;
+            return m_conn.prepareStatement( sql );
+        }
+        
+        /**
+         *  Returns the batched statement for the given SQL.  These are not taken from
+         *  the statement cache, so that they cannot be closed in the middle of a save.
+         */
+        public PreparedStatement batch( String sql ) throws SQLException
+        {
+            PreparedStatement ps = m_batches.get( sql );
+            
+            if( ps == null )
+            {
+                ps = getConnection().prepareStatement( sql );
+                m_batches.put( sql, ps );
+            }
+            
+            return ps;
+        }
+        
+        /**
+         *  Returns the paths and ids of the Nodes added during this save.
+         */
+        /**
+         *  Returns the paths of all the Nodes whose rows this save has written,
+         *  looked up, moved or removed.
+         */
+        public List<Path> getTouchedPaths()
+        {
+            List<Path> result = new ArrayList<Path>( m_nodeIds.keySet() );
+            
+            result.addAll( m_removedNodes );
+            result.addAll( m_movedTo );
+            
+            return result;
+        }
+        
+        public Map<Path,Long> getAddedNodes()
+        {
+            Map<Path,Long> result = new HashMap<Path,Long>();
+            
+            for( PendingNode pn : m_nodes.values() ) result.put( pn.m_path, pn.m_id );
+            
+            return result;
+        }
+        
+        /**
+         *  Writes everything to the database: first the new Nodes, then the
+         *  Properties, then the updates and finally the deletions.
+         */
+        public void flush() throws SQLException, RepositoryException
+        {
+            int wsId = getWorkspaceId( getWorkspace() );
+            
+            for( PendingNode pn : m_nodes.values() )
+            {
+                PreparedStatement ps = batch( SQL_INSERT_NODE );
+                
+                ps.setLong( 1, pn.m_id );
+                ps.setInt( 2, wsId );
+                ps.setString( 3, pn.m_path.toString() );
+                if( pn.m_parent != null )
+                    ps.setLong( 4, pn.m_parent );
+                else
+                    ps.setNull( 4, Types.INTEGER );
+                ps.setInt( 5, pn.m_childOrder );
+                ps.setString( 6, pn.m_uuid );
+                ps.addBatch();
+            }
+            
+            for( PendingProperty pp : m_properties.values() )
+            {
+                PreparedStatement ps = batch( pp.m_update ? SQL_UPDATE_PROPERTY : SQL_INSERT_PROPERTY );
+                
+                ps.setInt( 1, pp.m_type );
+                ps.setLong( 2, pp.m_length );
+                
+                if( pp.m_stream != null )
+                {
+                    InputStream in = pp.m_stream.getStream();
+                    
+                    m_streams.add( in );
+                    ps.setBinaryStream( 3, in, (int)pp.m_length );
+                }
+                else
+                {
+                    ps.setBytes( 3, pp.m_bytes );
+                }
+
+                ps.setBoolean( 4, pp.m_multi );
+                ps.setLong( 5, pp.m_parent );
+                ps.setString( 6, pp.m_name );
+                ps.addBatch();
+            }
+            
             try
             {
-                m_conn.getConnection().setAutoCommit( false );
+                for( String sql : BATCH_ORDER )
+                {
+                    PreparedStatement ps = m_batches.get( sql );
+                
+                    if( ps != null ) ps.executeBatch();
+                }
             }
-            catch( SQLException e )
+            finally
             {
-                throw new RepositoryException("Cannot set autocommit=false",e);
+                for( InputStream in : m_streams ) 
+                {
+                    try
+                    {
+                        in.close();
+                    }
+                    catch( IOException e ) {}
+                }
+                
+                m_streams.clear();
             }
         }
         
-        public Connection getConnection()
+        public boolean isClosed()
         {
-            return m_conn.getConnection();
+            return m_closed;
         }
         
         public void close() throws RepositoryException
         {
+            m_closed = true;
+            synchronized( m_transactions )
+            {
+                m_transactions.remove( this );
+            }
+            
             try
             {
+                for( PreparedStatement ps : m_batches.values() ) ps.close();
+                
                 m_conn.getConnection().setAutoCommit( true );
             }
             catch( SQLException e )
             {
                 throw new RepositoryException( "Cannot set autocommit=true",e);
             }
-            m_conn.close();
+            finally
+            {
+                m_conn.m_inTransaction = false;
+                m_conn.close();
+            }
+        }
+    }
+    
+    /**
+     *  A Node which is inserted when the save is finished.
+     */
+    private static class PendingNode
+    {
+        private final long m_id;
+        private final Path m_path;
+        private final Long m_parent;
+        private int        m_childOrder = 1;
+        private String     m_uuid;
+        
+        public PendingNode( long id, Path path, Long parent )
+        {
+            m_id     = id;
+            m_path   = path;
+            m_parent = parent;
+        }
+    }
+    
+    /**
+     *  A Property value which is written when the save is finished.
+     */
+    private static class PendingProperty
+    {
+        private final long    m_parent;
+        private final String  m_name;
+        private final int     m_type;
+        private final boolean m_multi;
+        private final ValueContainer m_value;
+        private byte[]        m_bytes;
+        private StreamValueImpl m_stream;
+        private long          m_length;
+        private List<String>  m_blobs = new ArrayList<String>();
+        private boolean       m_update;
+        
+        public PendingProperty( long parent, String name, ValueContainer vc )
+        {
+            m_parent = parent;
+            m_name   = name;
+            m_type   = vc.getType();
+            m_multi  = vc.isMultiple();
+            m_value  = vc;
+        }
+        
+        public String getKey()
+        {
+            return getKey( m_parent, m_name );
+        }
+        
+        public static String getKey( long parent, String name )
+        {
+            return parent+"/"+name;
         }
     }
     
@@ -965,11 +2642,36 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
     {
         Connection m_conn;
         
-        public PoolableConnection(Pool p) throws SQLException
+        /* Prepared statements by their SQL, least recently used first. */
+        private Map<String,PreparedStatement> m_statements = new LinkedHashMap<String,PreparedStatement>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String,PreparedStatement> eldest )
+            {
+                if( size() <= m_statementCacheSize ) return false;
+                
+                closeStatement( eldest.getValue() );
+                
+                return true;
+            }
+        };
+        
+        /* True, if this is a connection to the read-only replica. */
+        final boolean m_replica;
+        
+        /* True, while a save is using this connection. */
+        boolean m_inTransaction;
+        
+        public PoolableConnection( Pool p, String url, String userName, String password, boolean replica ) throws SQLException
         {
             super(p);
             
-            m_conn = DriverManager.getConnection( m_connectionURL, m_userName, m_password );
+            m_conn    = DriverManager.getConnection( url, userName, password );
+            m_replica = replica;
+            
+            if( replica ) m_conn.setReadOnly( true );
         }
         
         public Connection getConnection()
@@ -977,13 +2679,63 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
             return m_conn;
         }
         
+        /**
+         *  Returns a prepared statement for the SQL, which is kept open for reuse.
+         *  Do not close it.
+         */
+        public PreparedStatement prepareStatement( String sql ) throws SQLException
+        {
+            PreparedStatement ps = m_statements.get( sql );
+            
+            if( ps == null )
+            {
+                ps = m_conn.prepareStatement( sql );
+                m_statements.put( sql, ps );
+            }
+            
+            return ps;
+        }
+        
+        private void closeStatement( PreparedStatement ps )
+        {
+            try
+            {
+                ps.close();
+            }
+            catch( SQLException e )
+            {
+                log.log( Level.FINE, "Unable to close a cached statement", e );
+            }
+        }
+        
         public void clearWarnings() throws SQLException
         {
             m_conn.clearWarnings();
         }
+        
+        /**
+         *  Runs the validation query, so that connections broken e.g. by a database
+         *  restart are not handed out.
+         */
+        @Override
+        public boolean isValid() throws SQLException
+        {
+            if( m_conn.isClosed() ) return false;
+            
+            if( m_validationQuery != null && m_validationQuery.length() > 0 )
+            {
+                prepareStatement( m_validationQuery ).executeQuery().close();
+            }
+            
+            return true;
+        }
 
         public void dispose() throws RepositoryException
         {
+            for( PreparedStatement ps : m_statements.values() ) closeStatement( ps );
+            
+            m_statements.clear();
+            
             try
             {
                 m_conn.close();
@@ -1003,36 +2755,102 @@ public class JdbcProvider implements RepositoryProvider, PoolableFactory
 
     public void reorderNodes(StoreTransaction tx, Path internalPath, List<Path> childOrder) throws RepositoryException
     {
-        Connection c = ((JDBCTransaction)tx).getConnection();
+        JDBCTransaction jtx = (JDBCTransaction)tx;
         
         try
         {
             int count = 0;
 
             int wsId = getWorkspaceId( tx.getWorkspace() );
-            PreparedStatement ps = c.prepareStatement( "UPDATE nodes SET childOrder = ? "+
-                                                       "WHERE nodes.path = ? "+
-                                                       "AND nodes.workspace = ? ");
             
             for( Path p : childOrder )
             {
-                ps.setInt( 1, ++count );
+                if( jtx.setChildOrder( p, ++count ) ) continue;
+                
+                PreparedStatement ps = jtx.batch( SQL_UPDATE_CHILDORDER );
+                
+                ps.setInt( 1, count );
                 ps.setString( 2, p.toString() );
                 ps.setInt( 3, wsId );
             
-                ps.executeUpdate();
+                ps.addBatch();
             }
+            
+            jtx.setNextChildOrder( jtx.getNodeId( internalPath ), count );
         }
         catch( SQLException e )
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            throw new RepositoryException("Unable to reorder the children of "+internalPath, e);
         }
     }
     
+    /**
+     *  Moves the rows of the subtree by rewriting the start of their paths with a
+     *  single UPDATE.  The ids of the Nodes stay the same, so their properties, UUIDs
+     *  and references need not be touched.  Whatever the save has queued so far is 
+     *  written to the database first, so that the new Nodes move along.
+     */
+    public void move( StoreTransaction tx, Path srcpath, Path destpath ) throws RepositoryException
+    {
+        move( (JDBCTransaction)tx, srcpath, destpath, false );
+    }
+    
+    /**
+     *  Renames a Node, keeping its place among its siblings.
+     */
     public void rename(StoreTransaction tx, Path path, Component newName) throws RepositoryException
     {
-        throw new UnsupportedRepositoryOperationException();
+        move( (JDBCTransaction)tx, path, path.getParentPath().resolve( newName ), true );
+    }
+    
+    private void move( JDBCTransaction jtx, Path srcpath, Path destpath, boolean keepOrder ) throws RepositoryException
+    {
+        if( srcpath.isRoot() || srcpath.equals( destpath ) || srcpath.isParentOf( destpath ) ) 
+            throw new RepositoryException( "Cannot move "+srcpath+" to "+destpath );
+        
+        try
+        {
+            jtx.writePending();
+            
+            long id       = jtx.getNodeId( srcpath );
+            long parentId = jtx.getNodeId( destpath.getParentPath() );
+            
+            if( jtx.findNodeId( destpath ) != null ) 
+                throw new ItemExistsException( "Destination already exists: "+destpath );
+            
+            String src = srcpath.toString();
+            
+            PreparedStatement ps = jtx.prepareStatement( "UPDATE nodes SET path = CONCAT(?, SUBSTRING(path, ?)) "+
+                                                         "WHERE workspace = ? AND path > ? AND path < ?" );
+            
+            ps.setString( 1, destpath.toString() );
+            ps.setInt( 2, src.length()+1 );
+            ps.setInt( 3, getWorkspaceId( jtx.getWorkspace() ) );
+            ps.setString( 4, src+"/" );
+            ps.setString( 5, src+"0" ); // '0' follows '/'
+            ps.executeUpdate();
+            
+            if( keepOrder )
+            {
+                ps = jtx.prepareStatement( "UPDATE nodes SET path = ?, parent = ? WHERE id = ?" );
+            }
+            else
+            {
+                ps = jtx.prepareStatement( "UPDATE nodes SET path = ?, parent = ?, childOrder = ? WHERE id = ?" );
+                ps.setInt( 3, jtx.nextChildOrder( destpath, parentId ) );
+            }
+            
+            ps.setString( 1, destpath.toString() );
+            ps.setLong( 2, parentId );
+            ps.setLong( keepOrder ? 3 : 4, id );
+            ps.executeUpdate();
+            
+            jtx.moved( srcpath, destpath );
+        }
+        catch( SQLException e )
+        {
+            throw new RepositoryException( "Unable to move "+srcpath+" to "+destpath, e );
+        }
     }
 
 }
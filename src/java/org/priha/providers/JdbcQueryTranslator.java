@@ -0,0 +1,322 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.providers;
+
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.nodetype.NodeTypeIterator;
+
+import org.priha.core.JCRConstants;
+import org.priha.core.RepositoryImpl;
+import org.priha.core.SessionImpl;
+import org.priha.nodetype.QNodeType;
+import org.priha.nodetype.QNodeTypeManager;
+import org.priha.path.Path;
+import org.priha.query.aqt.*;
+import org.priha.util.QName;
+
+/**
+ *  Turns an abstract query tree into an SQL condition on the rows of the 
+ *  <tt>nodes</tt> table of JdbcProvider, which is aliased as <tt>n</tt>.
+ *  <p>
+ *  The condition selects every Node which may match the query, but it may 
+ *  select others as well, since anything which cannot be expressed in SQL 
+ *  is simply left out.  The path steps become a LIKE pattern on the path,
+ *  the node type tests and the comparisons of the last step become
+ *  subqueries on the <tt>propertyvalues</tt> table.  Only the equality of
+ *  single-valued STRING properties is compared in SQL; the other comparisons
+ *  just check that the property exists, since the values are stored as text.
+ */
+final class JdbcQueryTranslator
+{
+    private static final char ESCAPE = '\\';
+    
+    private final SessionImpl   m_session;
+    private final StringBuilder m_sql    = new StringBuilder();
+    private final List<Object>  m_params = new ArrayList<Object>();
+    
+    private JdbcQueryTranslator( SessionImpl session )
+    {
+        m_session = session;
+    }
+    
+    /**
+     *  Translates a query.
+     *  
+     *  @param session The Session which runs the query.
+     *  @param root The query.
+     *  @return A translator which holds the condition, or null, if the query
+     *          has no path.
+     *  @throws RepositoryException If the names cannot be mapped.
+     */
+    public static JdbcQueryTranslator translate( SessionImpl session, QueryRootNode root ) throws RepositoryException
+    {
+        PathQueryNode pathNode = root.getLocationNode();
+        
+        if( pathNode == null || pathNode.getPathSteps().length == 0 ) return null;
+        
+        JdbcQueryTranslator t = new JdbcQueryTranslator( session );
+        
+        LocationStepQueryNode[] steps = pathNode.getPathSteps();
+        
+        t.m_sql.append( "n.path LIKE ? ESCAPE '" ).append( ESCAPE ).append( "'" );
+        t.m_params.add( pathPattern( steps ) );
+        
+        for( QueryNode predicate : steps[steps.length-1].getPredicates() )
+        {
+            String condition = t.condition( predicate );
+            
+            if( condition != null ) t.m_sql.append( " AND " ).append( condition );
+        }
+        
+        return t;
+    }
+    
+    /**
+     *  Returns the condition, which may be used in a WHERE clause.
+     */
+    public String getCondition()
+    {
+        return m_sql.toString();
+    }
+    
+    /**
+     *  Returns the values for the parameters of the condition, in order.  They
+     *  are Strings, Integers, Booleans or byte arrays.
+     */
+    public List<Object> getParameters()
+    {
+        return m_params;
+    }
+    
+    /**
+     *  Builds a LIKE pattern out of the path steps.  Each name is followed by
+     *  a wildcard, which matches the index of a same name sibling.
+     */
+    private static String pathPattern( LocationStepQueryNode[] steps )
+    {
+        StringBuilder sb = new StringBuilder();
+        
+        for( LocationStepQueryNode step : steps )
+        {
+            QName name = step.getNameTest();
+            
+            // The root step
+            if( name != null && name.getLocalPart().length() == 0 && !step.getIncludeDescendants() ) continue;
+            
+            sb.append( '/' );
+            
+            if( step.getIncludeDescendants() ) sb.append( '%' );
+            
+            if( name != null ) escape( name.toString(), sb );
+            
+            if( sb.charAt( sb.length()-1 ) != '%' ) sb.append( '%' );
+        }
+        
+        if( sb.length() == 0 ) sb.append( '/' );
+        
+        return sb.toString();
+    }
+    
+    private static void escape( String s, StringBuilder sb )
+    {
+        for( int i = 0; i < s.length(); i++ )
+        {
+            char c = s.charAt( i );
+            
+            if( c == '%' || c == '_' || c == ESCAPE ) sb.append( ESCAPE );
+            
+            sb.append( c );
+        }
+    }
+    
+    /**
+     *  Returns an SQL condition for a predicate, or null, if it cannot be
+     *  expressed.
+     */
+    private String condition( QueryNode node ) throws RepositoryException
+    {
+        if( node instanceof AndQueryNode )
+        {
+            StringBuilder sb = new StringBuilder();
+            
+            for( QueryNode operand : ((AndQueryNode)node).getOperands() )
+            {
+                String c = condition( operand );
+                
+                if( c != null )
+                {
+                    if( sb.length() > 0 ) sb.append( " AND " );
+                    sb.append( c );
+                }
+            }
+            
+            return sb.length() > 0 ? "("+sb+")" : null;
+        }
+        
+        if( node instanceof OrQueryNode )
+        {
+            StringBuilder sb = new StringBuilder();
+            int           mark = m_params.size();
+            
+            for( QueryNode operand : ((OrQueryNode)node).getOperands() )
+            {
+                String c = condition( operand );
+                
+                //
+                //  If any of the alternatives is unknown, anything goes.
+                //
+                if( c == null ) 
+                {
+                    m_params.subList( mark, m_params.size() ).clear();
+                    return null;
+                }
+                
+                if( sb.length() > 0 ) sb.append( " OR " );
+                sb.append( c );
+            }
+            
+            return sb.length() > 0 ? "("+sb+")" : null;
+        }
+        
+        if( node instanceof RelationQueryNode )
+        {
+            return relation( (RelationQueryNode)node );
+        }
+        
+        if( node instanceof NodeTypeQueryNode )
+        {
+            return nodeType( ((NodeTypeQueryNode)node).getValue() );
+        }
+        
+        return null;
+    }
+    
+    private String relation( RelationQueryNode node ) throws RepositoryException
+    {
+        Path relPath = node.getRelativePath();
+        
+        if( relPath == null || relPath.depth() != 1 || 
+            relPath.getLastComponent().equals( RelationQueryNode.STAR_NAME_TEST ) ) return null;
+        
+        String name = relPath.getLastComponent().toString();
+        
+        switch( node.getOperation() )
+        {
+            case QueryConstants.OPERATION_NULL:
+                m_params.add( name );
+                return "NOT "+propertyExists( "" );
+                
+            case QueryConstants.OPERATION_EQ_VALUE:
+            case QueryConstants.OPERATION_EQ_GENERAL:
+                if( node.getValueType() == QueryConstants.TYPE_STRING )
+                {
+                    m_params.add( name );
+                    m_params.add( Boolean.TRUE );
+                    m_params.add( PropertyType.STRING );
+                    m_params.add( utf8( node.getStringValue() ) );
+                    
+                    return propertyExists( " AND (p.multi = ? OR p.type <> ? OR p.propval = ?)" );
+                }
+                m_params.add( name );
+                return propertyExists( "" );
+
+            case QueryConstants.OPERATION_NOT_NULL:
+            case QueryConstants.OPERATION_GT_VALUE:
+            case QueryConstants.OPERATION_GT_GENERAL:
+            case QueryConstants.OPERATION_LT_VALUE:
+            case QueryConstants.OPERATION_LT_GENERAL:
+            case QueryConstants.OPERATION_GE_VALUE:
+            case QueryConstants.OPERATION_GE_GENERAL:
+            case QueryConstants.OPERATION_LE_VALUE:
+            case QueryConstants.OPERATION_LE_GENERAL:
+                m_params.add( name );
+                return propertyExists( "" );
+        }
+        
+        return null;
+    }
+    
+    /**
+     *  A Node is of the given type, if its primary type is the type or one of its
+     *  subtypes.  Mixins are stored in a multi-valued property, so any Node which
+     *  has mixins may be of the type as well.
+     */
+    private String nodeType( QName type ) throws RepositoryException
+    {
+        Set<String> names = new LinkedHashSet<String>();
+        
+        for( NodeTypeIterator i = QNodeTypeManager.getManager( m_session.getWorkspace() ).getPrimaryNodeTypes(); i.hasNext(); )
+        {
+            QNodeType nt = ((QNodeType.Impl)i.nextNodeType()).getQNodeType();
+            
+            if( nt.isNodeType( type ) )
+            {
+                names.add( m_session.fromQName( nt.getQName() ) );
+                names.add( RepositoryImpl.getGlobalNamespaceRegistry().fromQName( nt.getQName() ) );
+            }
+        }
+        
+        StringBuilder sb = new StringBuilder( "(" );
+        
+        if( !names.isEmpty() )
+        {
+            m_params.add( JCRConstants.Q_JCR_PRIMARYTYPE.toString() );
+        
+            StringBuilder in = new StringBuilder( " AND p.propval IN (" );
+            
+            for( String n : names )
+            {
+                m_params.add( utf8( n ) );
+                in.append( "?," );
+            }
+            
+            in.setCharAt( in.length()-1, ')' );
+            
+            sb.append( propertyExists( in.toString() ) ).append( " OR " );
+        }
+        
+        m_params.add( JCRConstants.Q_JCR_MIXINTYPES.toString() );
+        sb.append( propertyExists( "" ) ).append( ")" );
+        
+        return sb.toString();
+    }
+    
+    /**
+     *  Checks that the Node has a property whose name is the next parameter.
+     */
+    private static String propertyExists( String extraConditions )
+    {
+        return "EXISTS (SELECT p.id FROM propertyvalues p WHERE p.parent = n.id AND p.name = ?"+extraConditions+")";
+    }
+    
+    private static byte[] utf8( String s ) throws RepositoryException
+    {
+        try
+        {
+            return s.getBytes( "UTF-8" );
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            throw new RepositoryException( "Your platform does not support UTF-8" );
+        }
+    }
+}
@@ -17,7 +17,15 @@
  */
 package org.priha.providers;
 
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import javax.jcr.*;
 
@@ -25,18 +33,27 @@ import org.priha.core.ItemType;
 import org.priha.core.JCRConstants;
 import org.priha.core.RepositoryImpl;
 import org.priha.core.WorkspaceImpl;
+import org.priha.core.binary.BinarySource;
+import org.priha.core.binary.BufferBinarySource;
+import org.priha.core.binary.ByteBufferInputStream;
+import org.priha.core.namespace.NamespaceMapper;
+import org.priha.core.values.ValueFactoryImpl;
 import org.priha.core.values.ValueImpl;
 import org.priha.nodetype.QNodeDefinition;
 import org.priha.path.Path;
+import org.priha.path.PathFactory;
 import org.priha.path.Path.Component;
 import org.priha.util.ConfigurationException;
+import org.priha.util.PersistentMap;
 import org.priha.util.QName;
+import org.priha.util.SlabAllocator;
+import org.priha.util.SlabAllocator.Block;
 
 /**
  *  Holds the contents in memory only.   It's very fast, though creation
  *  of the initial Session may take a while.
  *  <p>
- *  The contents of this provider will disappear once you shut down the JVM.
+ *  By default, the contents of this provider will disappear once you shut down the JVM.
  *  <p>
  *  Most of the operations in this provider are O(log N).
  *  <p>
@@ -46,31 +63,214 @@ import org.priha.util.QName;
  *  </pre>
  *  The property is aligned with other RepositoryProviders, even though it will only
  *  support a single one.  By default, this workspace will be called "default".
+ *  <p>
+ *  The contents are kept in immutable snapshots.  Readers always use the latest
+ *  published snapshot, so they never block and never see a half-finished save.
+ *  A save builds the next snapshot by copying only the nodes it changes, and
+ *  publishes it with a single volatile write in storeFinished().  Saves are
+ *  serialized, and the thread which is saving sees its own changes.  Since the
+ *  provider does its own locking, it implements {@link ConcurrentProvider}.
+ *  <p>
+ *  If a directory is given, the contents survive a restart.  Each save is appended
+ *  to a journal as a single checksummed record before it is published, and a
+ *  background thread every now and then writes the whole workspace into a snapshot
+ *  file, after which the older journals are deleted.  The snapshot is written from
+ *  an immutable version, so it blocks neither the readers nor the saves.  On startup,
+ *  the latest snapshot is loaded and the journal written after it is replayed; a save
+ *  which was only partially written during a crash is discarded.  All reads are still
+ *  served from memory.
+ *  <p>
+ *  Normally the values are kept on the heap as they are.  With a lot of content this 
+ *  makes the garbage collector work hard, so the values can also be encoded and kept
+ *  in direct ByteBuffers outside of the heap (see {@link SlabAllocator}), leaving only 
+ *  a small handle per property on the heap.  The values are then decoded each time 
+ *  they are read, except for the binaries, which are read straight from the buffer.
+ *  Slabs which are mostly garbage are compacted at the end of a save.
+ *  <p>
+ *  The following properties are understood:
+ *  <ul>
+ *   <li><b>directory</b> - The directory for the journal and the snapshots.  If not set,
+ *       nothing is persisted.</li>
+ *   <li><b>sync</b> - If "true", the journal is forced to disk at the end of every save.
+ *       Default is true.</li>
+ *   <li><b>snapshotInterval</b> - How often (in ms) a snapshot is written, if anything has
+ *       been saved since the previous one.  Default is 10 minutes.</li>
+ *   <li><b>snapshotThreshold</b> - The size (in bytes) of the journal after which a
+ *       snapshot is written without waiting for the interval.  Default is 16 MB.</li>
+ *   <li><b>offHeap</b> - If "true", the values are kept outside of the heap.  Default 
+ *       is false.  The memory is limited by the -XX:MaxDirectMemorySize JVM option.</li>
+ *   <li><b>slabSize</b> - The size (in bytes) of a single block of off-heap memory.
+ *       Default is 1 MB.</li>
+ *  </ul>
  */
-// FIXME: Does not yet support orderable child nodes
-public class MemoryProvider implements RepositoryProvider
+public class MemoryProvider implements RepositoryProvider, ConcurrentProvider
 {
-    private static final int         INITIAL_SIZE = 1024;
-    private static final String      PROP_WORKSPACES = "workspaces";
+    private static final String      PROP_WORKSPACES         = "workspaces";
+    private static final String      PROP_DIRECTORY          = "directory";
+    private static final String      PROP_SYNC               = "sync";
+    private static final String      PROP_SNAPSHOT_INTERVAL  = "snapshotInterval";
+    private static final String      PROP_SNAPSHOT_THRESHOLD = "snapshotThreshold";
+    private static final String      PROP_OFFHEAP            = "offHeap";
+    private static final String      PROP_SLAB_SIZE          = "slabSize";
+    
+    private static final long        DEFAULT_SNAPSHOT_INTERVAL  = 10*60*1000L;
+    private static final long        DEFAULT_SNAPSHOT_THRESHOLD = 16*1024*1024;
+    
+    private static final String      LOCKFILE        = ".prihalock";
+    private static final String      JOURNAL_PREFIX  = "journal-";
+    private static final String      JOURNAL_SUFFIX  = ".log";
+    private static final String      SNAPSHOT_PREFIX = "snapshot-";
+    private static final String      SNAPSHOT_SUFFIX = ".dat";
+    private static final String      TMP_SUFFIX      = ".tmp";
+    
+    private static final int         SNAPSHOT_MAGIC   = 0x50524d53;
+    private static final int         SNAPSHOT_VERSION = 1;
+    
+    private static final byte        OP_END          = 0;
+    private static final byte        OP_ADD_NODE     = 1;
+    private static final byte        OP_PUT_PROPERTY = 2;
+    private static final byte        OP_REMOVE       = 3;
+    private static final byte        OP_REORDER      = 4;
+    
+    /* Journal record framing: <int length> <length bytes> <int crc> */
+    private static final int         RECORD_OVERHEAD = 8;
+    
+    /* Copies the values before they are encoded, since encoding consumes them.  The
+       codec reads the NAME and PATH values in their qualified form, so no session is needed. */
+    private static final ValueFactoryImpl c_values = new ValueFactoryImpl( null );
+    
+    /* Reads the binaries of the off-heap values straight from the slab. */
+    private static final ValueCodec.BinaryDecoder c_slices = new ValueCodec.BinaryDecoder()
+    {
+        public BinarySource load( String key ) throws IOException
+        {
+            throw new IOException("MemoryProvider does not store binaries by key");
+        }
+        
+        public BinarySource read( InputStream in, long length )
+        {
+            return new BufferBinarySource( ((ByteBufferInputStream)in).slice( (int)length ) );
+        }
+    };
+    
+    private Logger                   log = Logger.getLogger( getClass().getName() );
     
-    private Map<Path,TreeNode>       m_nodePaths = new HashMap<Path,TreeNode>();
-    private Map<String,Path>         m_uuids     = new Hashtable<String,Path>(INITIAL_SIZE);
     private String                   m_workspace = "default";
+
+    /** The latest published snapshot. */
+    private volatile Snapshot        m_current   = new Snapshot( PersistentMap.<Path,NodeState>empty(),
+                                                                 PersistentMap.<String,Path>empty(),
+                                                                 0 );
+    
+    /** Serializes the saves.  Held from storeStarted() until storeFinished() or storeCancelled(). */
+    private final ReentrantLock      m_writeLock = new ReentrantLock();
+    
+    /** The thread which is currently saving, or null. */
+    private volatile Thread          m_writer;
+    
+    /** The snapshot being built by the writer.  Only touched by the writer thread. */
+    private Snapshot                 m_pending;
+    
+    /** How many nested saves the writer has open. */
+    private int                      m_depth;
+    
+    /** Holds the values outside of the heap, or null, if they are on the heap.  Only touched by the writer thread. */
+    private SlabAllocator            m_slabs;
+    
+    /** The journal operations of the current save.  Only touched by the writer thread. */
+    private List<byte[]>             m_ops       = new ArrayList<byte[]>();
+    
+    private File                     m_dir;
+    private boolean                  m_sync;
+    private long                     m_snapshotInterval;
+    private long                     m_snapshotThreshold;
+    
+    /* The journal is only touched while holding m_writeLock. */
+    private RandomAccessFile         m_journalFile;
+    private FileChannel              m_journal;
+    private int                      m_journalNumber;
+    
+    /** How many bytes have been journaled since the last snapshot. */
+    private long                     m_journalSize;
+    
+    private Snapshotter              m_snapshotter;
+    
+    /**
+     *  Returns the snapshot the current thread should read from.
+     */
+    private Snapshot view()
+    {
+        return m_writer == Thread.currentThread() ? m_pending : m_current;
+    }
+    
+    /**
+     *  Returns a NodeState which the owner may modify, copying it
+     *  into the pending snapshot if necessary.
+     */
+    private NodeState writable( Object owner, Path path ) throws PathNotFoundException
+    {
+        NodeState nd = m_pending.m_nodes.get( path );
+        
+        if( nd == null ) throw new PathNotFoundException("Parent path not found "+path);
+        
+        if( nd.m_owner != owner )
+        {
+            nd = nd.copy( owner );
+            m_pending = m_pending.withNodes( m_pending.m_nodes.plus( path, nd ) );
+        }
+        
+        return nd;
+    }
+    
+    private boolean isPersistent()
+    {
+        return m_dir != null;
+    }
     
     public void addNode(StoreTransaction tx, Path path, QNodeDefinition def) throws RepositoryException
     {
-        //System.out.println("Node++ "+path);
-        if( !m_nodePaths.containsKey(path) )
-            m_nodePaths.put( path, new TreeNode(path.isRoot() ? null : path.getParentPath(), null) );
+        if( addNode( ((MemoryTransaction)tx).m_token, path ) && isPersistent() )
+        {
+            try
+            {
+                m_ops.add( new Op( OP_ADD_NODE, path ).toByteArray() );
+            }
+            catch( IOException e )
+            {
+                throw new RepositoryException("Unable to journal node "+path,e);
+            }
+        }
     }
 
+    /**
+     *  Adds a node to the pending snapshot.
+     *  
+     *  @return False, if the node already existed.
+     */
+    private boolean addNode( Object owner, Path path ) throws RepositoryException
+    {
+        if( m_pending.m_nodes.containsKey( path ) ) return false;
+        
+        Path parent = null;
+        
+        if( !path.isRoot() )
+        {
+            parent = path.getParentPath();
+            writable( owner, parent ).m_children.add( path );
+        }
+        
+        m_pending = m_pending.withNodes( m_pending.m_nodes.plus( path, new NodeState( parent, owner ) ) );
+        
+        return true;
+    }
+    
     public void close(WorkspaceImpl ws)
     {
     }
 
     public Path findByUUID(WorkspaceImpl ws, String uuid) throws RepositoryException
     {
-        Path p = m_uuids.get( uuid );
+        Path p = view().m_uuids.get( uuid );
         
         if( p == null )
             throw new ItemNotFoundException("No Node for uuid "+uuid);
@@ -83,15 +283,22 @@ public class MemoryProvider implements RepositoryProvider
     {
         ArrayList<Path> res = new ArrayList<Path>();
         
-        for( Map.Entry<Path,TreeNode> e : m_nodePaths.entrySet() )
+        for( Map.Entry<Path,NodeState> e : view().m_nodes )
         {
-            ValueContainer vc = e.getValue().properties.get(JCRConstants.Q_JCR_UUID);
-            
-            if( vc != null )
+            for( Map.Entry<QName,Object> p : e.getValue().m_properties.entrySet() )
             {
-                if( vc.getValue().getString().equals(uuid) )
+                if( typeOf( p.getValue() ) != PropertyType.REFERENCE ) continue;
+                
+                ValueContainer vc = valueOf( p.getValue() );
+                ValueImpl[] values = vc.isMultiple() ? vc.getValues() : new ValueImpl[] { vc.getValue() };
+                
+                for( ValueImpl v : values )
                 {
-                    res.add( e.getKey() );
+                    if( v.getString().equals( uuid ) )
+                    {
+                        res.add( e.getKey().resolve( p.getKey() ) );
+                        break;
+                    }
                 }
             }
         }
@@ -101,42 +308,33 @@ public class MemoryProvider implements RepositoryProvider
 
     public ValueContainer getPropertyValue(WorkspaceImpl ws, Path path) throws RepositoryException
     {
-        TreeNode o = m_nodePaths.get(path.getParentPath());
+        NodeState o = view().m_nodes.get( path.getParentPath() );
         
         if( o == null ) throw new PathNotFoundException(path.toString());
         
-        ValueContainer vc = o.properties.get(path.getLastComponent());
+        Object stored = o.m_properties.get(path.getLastComponent());
         
-        if( vc == null ) throw new PathNotFoundException(path.toString());
+        if( stored == null ) throw new PathNotFoundException(path.toString());
         
-        return vc.sessionInstance( ws.getSession() );
+        return valueOf( stored ).sessionInstance( ws.getSession() );
     }
 
     public List<Path> listNodes(WorkspaceImpl ws, Path parentpath) throws RepositoryException
     {
-        ArrayList<Path> res = new ArrayList<Path>();
+        NodeState nd = view().m_nodes.get(parentpath);
         
-        TreeNode nd = m_nodePaths.get(parentpath);
+        if( nd == null ) return new ArrayList<Path>();
         
-        if( nd != null && nd.children != null ) res.addAll(nd.children);
-                
-        return res;
+        return new ArrayList<Path>( nd.m_children );
     }
 
     public List<QName> listProperties(WorkspaceImpl ws, Path path) throws RepositoryException
     {
-        ArrayList<QName> res = new ArrayList<QName>();
-        
-        TreeNode tn = m_nodePaths.get(path);
-        
-        if( tn == null ) throw new ItemNotFoundException(path.toString(ws.getSession()));
+        NodeState nd = view().m_nodes.get(path);
         
-        for( QName qn : tn.properties.keySet() )
-        {
-            res.add(qn);
-        }
+        if( nd == null ) throw new ItemNotFoundException(path.toString(ws.getSession()));
         
-        return res;
+        return new ArrayList<QName>( nd.m_properties.keySet() );
     }
 
     public Collection<String> listWorkspaces()
@@ -146,19 +344,19 @@ public class MemoryProvider implements RepositoryProvider
 
     public boolean itemExists(WorkspaceImpl ws, Path path, ItemType type) throws RepositoryException
     {
+        Snapshot s = view();
+        
         switch(type)
         {
             case NODE:
-                return m_nodePaths.containsKey(path);
+                return s.m_nodes.containsKey(path);
                 
             case PROPERTY:
-                Path parent = path.getParentPath();
-                
-                TreeNode node = m_nodePaths.get( parent );
+                NodeState node = s.m_nodes.get( path.getParentPath() );
                 
                 if( node != null )
                 {
-                    return node.properties.containsKey( path.getLastComponent() );
+                    return node.m_properties.containsKey( path.getLastComponent() );
                 }
                 break;
                 
@@ -177,57 +375,174 @@ public class MemoryProvider implements RepositoryProvider
 
     public void putPropertyValue(StoreTransaction tx, Path path, ValueContainer vc) throws RepositoryException
     {
-        if( vc.isMultiple() )
+        //
+        //  Cloning also fixes a casting issue with multiple values: ValueImpl[] is not
+        //  a subtype of Value[], even though ValueImpl implements Value[].
+        //
+        vc = vc.deepClone(tx.getWorkspace().getSession());
+        
+        try
+        {
+            //  The values are only kept as they are if they stay on the heap.
+            byte[] encoded = m_slabs != null || isPersistent() ? encode( vc, m_slabs == null ) : null;
+        
+            putProperty( ((MemoryTransaction)tx).m_token, path, m_slabs != null ? m_slabs.allocate( encoded ) : vc );
+        
+            if( isPersistent() )
+            {
+                Op op = new Op( OP_PUT_PROPERTY, path );
+                writeBytes( op.m_out, encoded );
+                m_ops.add( op.toByteArray() );
+            }
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("Unable to store property "+path,e);
+        }
+    }
+
+    /**
+     *  Stores a property value, which is either a ValueContainer or a Block.
+     */
+    private void putProperty( Object owner, Path path, Object stored ) throws RepositoryException
+    {
+        NodeState parent = writable( owner, path.getParentPath() );
+        
+        Object old = parent.m_properties.put(path.getLastComponent(), stored);                                            
+
+        if( path.getLastComponent().equals(JCRConstants.Q_JCR_UUID) )
+        {
+            PersistentMap<String,Path> uuids = m_pending.m_uuids;
+            
+            if( old != null ) uuids = uuids.minus( valueOf( old ).getValue().getString() );
+            
+            m_pending = m_pending.withUUIDs( uuids.plus( valueOf( stored ).getValue().getString(), path.getParentPath() ) );
+        }
+        
+        release( old );
+    }
+    
+    /**
+     *  Returns the values of a stored property, decoding them if they are off-heap.
+     */
+    private static ValueContainer valueOf( Object stored ) throws RepositoryException
+    {
+        if( stored instanceof ValueContainer ) return (ValueContainer)stored;
+        
+        try
+        {
+            return ValueCodec.decode( new ByteBufferInputStream( ((Block)stored).getBuffer() ), namespaces(), c_slices );
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("Unable to decode an off-heap value",e);
+        }
+    }
+    
+    /**
+     *  Returns the property type of a stored property without decoding it.
+     */
+    private static int typeOf( Object stored ) throws RepositoryException
+    {
+        if( stored instanceof ValueContainer ) return ((ValueContainer)stored).getType();
+        
+        try
+        {
+            return ValueCodec.getType( new ByteBufferInputStream( ((Block)stored).getBuffer() ) );
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("Unable to decode an off-heap value",e);
+        }
+    }
+    
+    /**
+     *  Tells the allocator that an off-heap value is no longer in the pending snapshot.
+     */
+    private void release( Object stored )
+    {
+        if( stored instanceof Block ) m_slabs.release( (Block)stored );
+    }
+    
+    public void remove(StoreTransaction tx, Path path) throws RepositoryException
+    {
+        if( remove( ((MemoryTransaction)tx).m_token, path ) && isPersistent() )
         {
-            //
-            //  Needed to fix a casting issue: ValueImpl[] is not a subtype of Value[], even though
-            //  ValueImpl implements Value[].
-            //
-            vc = vc.deepClone(tx.getWorkspace().getSession());
+            try
+            {
+                m_ops.add( new Op( OP_REMOVE, path ).toByteArray() );
+            }
+            catch( IOException e )
+            {
+                throw new RepositoryException("Unable to journal the removal of "+path,e);
+            }
         }
-        else
+    }
+
+    /**
+     *  Removes a node or a property from the pending snapshot.
+     *  
+     *  @return False, if there was nothing to remove.
+     */
+    private boolean remove( Object owner, Path path ) throws RepositoryException
+    {
+        if( m_pending.m_nodes.containsKey( path ) )
         {
-            ValueImpl value = vc.getValue();
-            if( path.getLastComponent().equals(JCRConstants.Q_JCR_UUID) )
+            if( !path.isRoot() && m_pending.m_nodes.containsKey( path.getParentPath() ) )
             {
-                m_uuids.put( value.getString(), path.getParentPath() );
+                writable( owner, path.getParentPath() ).m_children.remove( path );
             }
-         
-            vc = vc.deepClone(tx.getWorkspace().getSession());
+            
+            removeTree( path );
+            return true;
         }
         
-        TreeNode parent = m_nodePaths.get(path.getParentPath());
+        if( path.isRoot() ) return false;
+        
+        NodeState parent = m_pending.m_nodes.get( path.getParentPath() );
+        
+        if( parent == null || !parent.m_properties.containsKey( path.getLastComponent() ) ) 
+            return false; // Already removed
+        
+        Object old = writable( owner, path.getParentPath() ).m_properties.remove( path.getLastComponent() );
         
-        if( parent == null ) throw new PathNotFoundException("Parent path not found "+path.getParentPath());
+        if( path.getLastComponent().equals(JCRConstants.Q_JCR_UUID) )
+        {
+            m_pending = m_pending.withUUIDs( m_pending.m_uuids.minus( valueOf( old ).getValue().getString() ) );
+        }
         
-        parent.properties.put(path.getLastComponent(), vc);                                            
-       
-//        System.out.println("Stored "+path);
+        release( old );
+        
+        return true;
     }
 
-    public void remove(StoreTransaction tx, Path path) throws RepositoryException
+    /**
+     *  Removes a node and its descendants from the pending snapshot.
+     */
+    private void removeTree( Path path ) throws RepositoryException
     {
-        TreeNode nd = m_nodePaths.get(path);
+        NodeState nd = m_pending.m_nodes.get(path);
         
         if( nd == null ) return; // Already removed
         
-        ValueContainer uuidvc = nd.properties.get(JCRConstants.Q_JCR_UUID);
+        Object uuid = nd.m_properties.get(JCRConstants.Q_JCR_UUID);
         
-        if( uuidvc != null )
+        if( uuid != null )
         {
-            m_uuids.remove(uuidvc.getValue().getString());
+            m_pending = m_pending.withUUIDs( m_pending.m_uuids.minus( valueOf( uuid ).getValue().getString() ) );
         }
         
-        if( nd.children != null )
+        for( Object stored : nd.m_properties.values() )
         {
-            for( Iterator<Path> i = nd.children.iterator(); i.hasNext(); )
-            {
-                Path child = i.next();
-                remove( tx, child );
-            }
+            release( stored );
+        }
+        
+        for( Path child : nd.m_children )
+        {
+            removeTree( child );
         }
 
-        m_nodePaths.remove(path);
+        m_pending = m_pending.withNodes( m_pending.m_nodes.minus( path ) );
     }
 
     public void start(RepositoryImpl repository, Properties properties) throws ConfigurationException
@@ -244,46 +559,924 @@ public class MemoryProvider implements RepositoryProvider
         }
         
         m_workspace = wsn[0];
+        
+        if( "true".equals( properties.getProperty( PROP_OFFHEAP, "false" ) ) )
+        {
+            try
+            {
+                m_slabs = new SlabAllocator( Integer.parseInt( properties.getProperty( PROP_SLAB_SIZE, 
+                                                                                       Integer.toString(SlabAllocator.DEFAULT_SLAB_SIZE) ) ) );
+            }
+            catch( NumberFormatException e )
+            {
+                throw new ConfigurationException("Unparseable "+PROP_SLAB_SIZE+": "+e.getMessage());
+            }
+        }
+        
+        String dir = properties.getProperty( PROP_DIRECTORY );
+        
+        if( dir == null ) return;
+        
+        try
+        {
+            m_snapshotInterval  = Long.parseLong( properties.getProperty( PROP_SNAPSHOT_INTERVAL, 
+                                                                          Long.toString(DEFAULT_SNAPSHOT_INTERVAL) ) );
+            m_snapshotThreshold = Long.parseLong( properties.getProperty( PROP_SNAPSHOT_THRESHOLD, 
+                                                                          Long.toString(DEFAULT_SNAPSHOT_THRESHOLD) ) );
+        }
+        catch( NumberFormatException e )
+        {
+            throw new ConfigurationException("Unparseable number in MemoryProvider configuration: "+e.getMessage());
+        }
+        
+        m_sync = "true".equals( properties.getProperty( PROP_SYNC, "true" ) );
+        
+        m_dir = new File( dir );
+        m_dir.mkdirs();
+        
+        //
+        //  Make sure this instance is the only one using that directory.
+        //
+        File lockFile = new File( m_dir, LOCKFILE );
+
+        if( lockFile.exists() )
+        {
+            String msg = "Cannot use the Priha MemoryProvider directory while another instance of Priha is using it. "+
+                         "If you are sure there are no other instances using this same directory, please "+
+                         "remove the '"+lockFile.getAbsolutePath()+"' file and restart.";
+            log.severe( msg );
+            throw new ConfigurationException(msg);
+        }
+
+        try
+        {
+            lockFile.createNewFile();
+            lockFile.deleteOnExit();
+            
+            log.fine("Initializing MemoryProvider with directory "+m_dir);
+            
+            recover();
+        }
+        catch( IOException e )
+        {
+            throw new ConfigurationException("Cannot start Priha MemoryProvider",e);
+        }
+        catch( RepositoryException e )
+        {
+            throw new ConfigurationException("Cannot read the MemoryProvider journal",e);
+        }
+        
+        m_snapshotter = new Snapshotter();
+        m_snapshotter.start();
     }
 
     public void stop(RepositoryImpl rep)
     {
+        if( !isPersistent() ) return;
+        
+        if( m_snapshotter != null )
+        {
+            m_snapshotter.shutdown();
+
+            try
+            {
+                m_snapshotter.join();
+            }
+            catch( InterruptedException e )
+            {
+                log.warning("Interrupted while waiting for the snapshot writer to finish");
+            }
+
+            m_snapshotter = null;
+        }
+
+        //
+        //  A final snapshot makes the next start fast.  If it fails, the journal
+        //  still has everything.
+        //
+        try
+        {
+            snapshot();
+        }
+        catch( IOException e )
+        {
+            log.warning("Unable to write the final snapshot in "+m_dir+": "+e.getMessage());
+        }
+
+        try
+        {
+            if( m_journalFile != null ) m_journalFile.close();
+        }
+        catch( IOException e )
+        {
+            log.warning("Unable to close the journal: "+e.getMessage());
+        }
+        
+        m_journalFile = null;
+        m_journal     = null;
+        
+        new File( m_dir, LOCKFILE ).delete();
     }
 
-    //  The MemoryProvider assumes it never fails.
+    /**
+     *  Returns the version of the latest published snapshot.  It grows by one
+     *  for each finished save.
+     *  
+     *  @return The snapshot version.
+     */
+    public long getVersion()
+    {
+        return m_current.m_version;
+    }
     
-    public void storeFinished( StoreTransaction tx )
+    public StoreTransaction storeStarted( WorkspaceImpl ws )
     {
+        m_writeLock.lock();
+        
+        if( m_depth++ == 0 )
+        {
+            m_pending = m_current;
+            m_writer  = Thread.currentThread();
+        }
+        
+        return new MemoryTransaction( ws, m_pending, m_ops.size() );
     }
 
-    public StoreTransaction storeStarted( WorkspaceImpl ws )
+    public void storeFinished( StoreTransaction tx ) throws RepositoryException
     {
-        return new BaseStoreTransaction(ws);
+        end( (MemoryTransaction)tx, true );
     }
 
     public void storeCancelled( StoreTransaction tx ) throws RepositoryException
     {
+        end( (MemoryTransaction)tx, false );
     }
 
     /**
-     *  Stores a Node in the memory, including parent, all children and all properties.
+     *  Ends a save.  When the outermost save finishes, it is written to the journal
+     *  and the pending snapshot is published.  A cancelled save rolls back to the 
+     *  snapshot it started from.
      */
-    private static class TreeNode
+    private void end( MemoryTransaction tx, boolean commit ) throws RepositoryException
     {
-        Path                          parent;
-        ArrayList<Path>               children;
-        HashMap<QName,ValueContainer> properties = new HashMap<QName,ValueContainer>();
+        if( tx.m_ended ) return;
+        
+        tx.m_ended = true;
         
-        public TreeNode(Path p,ArrayList<Path> c)
+        try
+        {
+            if( !commit ) 
+            {
+                m_pending = tx.m_base;
+                m_ops.subList( tx.m_opsBase, m_ops.size() ).clear();
+            }
+            
+            if( --m_depth == 0 )
+            {
+                try
+                {
+                    if( !m_ops.isEmpty() ) writeJournal( m_ops );
+                    
+                    if( m_slabs != null && m_slabs.needsCompaction() ) compact();
+                    
+                    if( m_pending != m_current )
+                    {
+                        m_current = m_pending.withVersion( m_current.m_version+1 );
+                    }
+                }
+                catch( IOException e )
+                {
+                    throw new RepositoryException("Unable to write the journal in "+m_dir,e);
+                }
+                finally
+                {
+                    m_ops.clear();
+                    m_pending = null;
+                    m_writer  = null;
+                }
+            }
+        }
+        finally
         {
-            parent   = p;
-            children = c;
+            m_writeLock.unlock();
         }
     }
-
-    public void reorderNodes(StoreTransaction tx, Path internalPath, List<Path> childOrder) throws RepositoryException
+    
+    /**
+     *  Copies the live off-heap values out of the slabs which are mostly garbage,
+     *  so that the slabs can be freed once the older snapshots are no longer used.
+     *  The values do not change, so nothing is journaled.
+     */
+    private void compact() throws RepositoryException
     {
-        throw new UnsupportedRepositoryOperationException();
+        ArrayList<Block> blocks = new ArrayList<Block>();
+        
+        for( Map.Entry<Path,NodeState> e : m_pending.m_nodes )
+        {
+            for( Object stored : e.getValue().m_properties.values() )
+            {
+                if( stored instanceof Block ) blocks.add( (Block)stored );
+            }
+        }
+        
+        int dropped = m_slabs.compact( blocks );
+        
+        if( dropped == 0 ) return;
+        
+        Object owner = new Object();
+        
+        for( Map.Entry<Path,NodeState> e : m_pending.m_nodes )
+        {
+            NodeState copy = null;
+            
+            for( Map.Entry<QName,Object> p : e.getValue().m_properties.entrySet() )
+            {
+                if( !(p.getValue() instanceof Block) ) continue;
+                
+                Block moved = ((Block)p.getValue()).getMoved();
+                
+                if( moved != p.getValue() )
+                {
+                    if( copy == null ) copy = writable( owner, e.getKey() );
+                    
+                    copy.m_properties.put( p.getKey(), moved );
+                }
+            }
+        }
+        
+        log.fine("Compacted the off-heap values: dropped "+dropped+" slabs, "+m_slabs.getCapacity()+" bytes left");
+    }
+    
+    /**
+     *  Returns the amount of off-heap memory in use.
+     *  
+     *  @return The size in bytes, or zero, if the values are kept on the heap.
+     */
+    long getOffHeapSize()
+    {
+        return m_slabs != null ? m_slabs.getCapacity() : 0;
+    }
+    
+    //
+    //  PERSISTENCE
+    //
+    
+    private static String journalName( int number )
+    {
+        return JOURNAL_PREFIX + String.format( "%08d", number ) + JOURNAL_SUFFIX;
+    }
+    
+    private static String snapshotName( int number )
+    {
+        return SNAPSHOT_PREFIX + String.format( "%08d", number ) + SNAPSHOT_SUFFIX;
+    }
+    
+    /**
+     *  Returns the numbers of the files with the given prefix and suffix, in order.
+     */
+    private SortedSet<Integer> listFiles( String prefix, String suffix )
+    {
+        TreeSet<Integer> res = new TreeSet<Integer>();
+        String[] names = m_dir.list();
+        
+        if( names == null ) return res;
+        
+        for( String name : names )
+        {
+            if( name.startsWith( prefix ) && name.endsWith( suffix ) && 
+                name.length() == prefix.length()+8+suffix.length() )
+            {
+                try
+                {
+                    res.add( Integer.parseInt( name.substring( prefix.length(), prefix.length()+8 ) ) );
+                }
+                catch( NumberFormatException e )
+                {
+                    // Not ours
+                }
+            }
+        }
+        
+        return res;
+    }
+    
+    /**
+     *  Loads the latest snapshot and replays the journals written after it.
+     *  The snapshot with number N contains everything in the journals before N.
+     */
+    private void recover() throws IOException, RepositoryException
+    {
+        Object owner = new Object();
+        int    first = 0;
+        
+        m_pending = m_current;
+        
+        SortedSet<Integer> snapshots = listFiles( SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX );
+        
+        if( !snapshots.isEmpty() )
+        {
+            first = snapshots.last();
+            loadSnapshot( new File( m_dir, snapshotName(first) ), owner );
+        }
+        
+        SortedSet<Integer> journals = listFiles( JOURNAL_PREFIX, JOURNAL_SUFFIX ).tailSet( first );
+        
+        for( int n : journals )
+        {
+            m_journalSize += replay( new File( m_dir, journalName(n) ), owner );
+        }
+        
+        m_current = m_pending.withVersion( 0 );
+        m_pending = null;
+        
+        log.fine("Recovered "+m_current.m_nodes.size()+" nodes from "+m_dir);
+        
+        openJournal( journals.isEmpty() ? first : journals.last() );
+        deleteOlderThan( first );
+    }
+    
+    /**
+     *  Opens a journal for appending, and closes the previous one.
+     */
+    private void openJournal( int number ) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile( new File( m_dir, journalName(number) ), "rw" );
+        
+        file.seek( file.length() );
+        
+        if( m_journalFile != null ) m_journalFile.close();
+        
+        m_journalFile   = file;
+        m_journal       = file.getChannel();
+        m_journalNumber = number;
+    }
+    
+    /**
+     *  Deletes the journals and snapshots which a snapshot has made unnecessary.
+     */
+    private void deleteOlderThan( int number )
+    {
+        for( int n : listFiles( JOURNAL_PREFIX, JOURNAL_SUFFIX ).headSet( number ) )
+        {
+            new File( m_dir, journalName(n) ).delete();
+        }
+        
+        for( int n : listFiles( SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX ).headSet( number ) )
+        {
+            new File( m_dir, snapshotName(n) ).delete();
+        }
+    }
+    
+    /**
+     *  Appends the operations of a save to the journal as a single record.  Called
+     *  while holding m_writeLock.
+     */
+    private void writeJournal( List<byte[]> ops ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream      out   = new DataOutputStream( bytes );
+        
+        out.writeInt( 0 );
+        out.writeInt( ops.size() );
+        for( byte[] op : ops ) out.write( op );
+        out.writeInt( 0 );
+        out.flush();
+        
+        byte[] record = bytes.toByteArray();
+        int    len    = record.length - RECORD_OVERHEAD;
+        
+        CRC32 crc = new CRC32();
+        crc.update( record, 4, len );
+        
+        ByteBuffer buf = ByteBuffer.wrap( record );
+        buf.putInt( 0, len );
+        buf.putInt( record.length-4, (int)crc.getValue() );
+        
+        long pos = m_journal.position();
+        
+        try
+        {
+            while( buf.hasRemaining() ) m_journal.write( buf );
+        
+            if( m_sync ) m_journal.force( false );
+        }
+        catch( IOException e )
+        {
+            //  Don't leave a torn record in the middle of the journal.
+            m_journal.truncate( pos );
+            m_journal.position( pos );
+            throw e;
+        }
+        
+        m_journalSize += record.length;
+        
+        if( m_journalSize > m_snapshotThreshold && m_snapshotter != null ) m_snapshotter.wakeup();
+    }
+    
+    /**
+     *  Replays a journal into the pending snapshot.  A torn or corrupted record
+     *  ends the journal, and it is cut off so that new records can be appended.
+     *  
+     *  @return The number of bytes replayed.
+     */
+    private long replay( File f, Object owner ) throws IOException, RepositoryException
+    {
+        long length = f.length();
+        long pos    = 0;
+        
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(f) ) );
+        
+        try
+        {
+            byte[] body;
+            
+            while( (body = readRecord( in, length-pos )) != null )
+            {
+                DataInputStream rin = new DataInputStream( new ByteArrayInputStream( body ) );
+                
+                for( int n = rin.readInt(); n > 0; n-- )
+                {
+                    apply( rin, owner );
+                }
+                
+                pos += body.length + RECORD_OVERHEAD;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        if( pos < length )
+        {
+            log.warning("Discarding "+(length-pos)+" bytes of a partially written save at the end of "+f);
+            
+            RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+            
+            try
+            {
+                raf.setLength( pos );
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        
+        return pos;
+    }
+    
+    /**
+     *  Reads the body of the next journal record, checking its length and checksum.
+     *
+     *  @return The body, or null, if the record was torn or corrupted.
+     */
+    private static byte[] readRecord( DataInputStream in, long remaining ) throws IOException
+    {
+        if( remaining < RECORD_OVERHEAD+4 ) return null;
+        
+        int len = in.readInt();
+        
+        if( len < 4 || len > remaining-RECORD_OVERHEAD ) return null;
+        
+        byte[] body = new byte[len];
+        in.readFully( body );
+        
+        CRC32 crc = new CRC32();
+        crc.update( body );
+        
+        if( (int)crc.getValue() != in.readInt() ) return null;
+        
+        return body;
+    }
+    
+    /**
+     *  Applies a single journal or snapshot operation to the pending snapshot.
+     *  
+     *  @return False, if this was the end marker.
+     */
+    private boolean apply( DataInputStream in, Object owner ) throws IOException, RepositoryException
+    {
+        byte op = in.readByte();
+        
+        if( op == OP_END ) return false;
+        
+        Path path = PathFactory.getPath( readString(in) );
+        
+        switch( op )
+        {
+            case OP_ADD_NODE:
+                addNode( owner, path );
+                break;
+                
+            case OP_PUT_PROPERTY:
+                byte[] b = new byte[in.readInt()];
+                in.readFully( b );
+                
+                putProperty( owner, path, m_slabs != null ? m_slabs.allocate( b ) : ValueCodec.decode( b, namespaces(), null ) );
+                break;
+                
+            case OP_REMOVE:
+                remove( owner, path );
+                break;
+                
+            case OP_REORDER:
+                int count = in.readInt();
+                ArrayList<Path> order = new ArrayList<Path>(count);
+                
+                for( int i = 0; i < count; i++ )
+                {
+                    order.add( path.resolve( Component.valueOf( readString(in) ) ) );
+                }
+                
+                reorder( owner, path, order );
+                break;
+                
+            default:
+                throw new IOException("Unknown operation "+op+" in "+m_dir);
+        }
+        
+        return true;
+    }
+    
+    private static NamespaceMapper namespaces()
+    {
+        return RepositoryImpl.getGlobalNamespaceRegistry();
+    }
+    
+    /**
+     *  Writes a snapshot of everything journaled so far.  The journal is switched
+     *  to a new file while holding the write lock, which takes no time, and the
+     *  snapshot is then written from the published version without any locks.
+     */
+    synchronized void snapshot() throws IOException
+    {
+        Snapshot s;
+        int      number;
+        
+        m_writeLock.lock();
+        try
+        {
+            if( m_journalSize == 0 ) return;
+            
+            s      = m_current;
+            number = m_journalNumber+1;
+            
+            openJournal( number );
+            m_journalSize = 0;
+        }
+        finally
+        {
+            m_writeLock.unlock();
+        }
+        
+        long start = System.currentTimeMillis();
+        
+        File tmp  = new File( m_dir, snapshotName(number)+TMP_SUFFIX );
+        File dest = new File( m_dir, snapshotName(number) );
+        
+        writeSnapshot( s, tmp );
+        
+        if( !tmp.renameTo( dest ) ) throw new IOException("Could not rename "+tmp+" to "+dest);
+        
+        deleteOlderThan( number );
+        
+        log.fine("Wrote a snapshot of "+s.m_nodes.size()+" nodes in "+(System.currentTimeMillis()-start)+" ms");
+    }
+    
+    /**
+     *  Writes the nodes in document order, so that the parents come before their
+     *  children, and the children keep their order when they are added back.
+     */
+    private void writeSnapshot( Snapshot s, File f ) throws IOException
+    {
+        FileOutputStream    fos = new FileOutputStream( f );
+        CheckedOutputStream cos = new CheckedOutputStream( new BufferedOutputStream( fos ), new CRC32() );
+        DataOutputStream    out = new DataOutputStream( cos );
+        
+        try
+        {
+            out.writeInt( SNAPSHOT_MAGIC );
+            out.writeInt( SNAPSHOT_VERSION );
+            
+            if( s.m_nodes.containsKey( Path.ROOT ) ) writeTree( s, Path.ROOT, out );
+            
+            out.writeByte( OP_END );
+            out.writeInt( (int)cos.getChecksum().getValue() );
+            out.flush();
+            
+            if( m_sync ) fos.getFD().sync();
+        }
+        catch( RepositoryException e )
+        {
+            throw new IOException("Unable to write a value to the snapshot: "+e.getMessage());
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    private void writeTree( Snapshot s, Path path, DataOutputStream out ) throws IOException, RepositoryException
+    {
+        NodeState nd = s.m_nodes.get( path );
+        
+        writeHeader( out, OP_ADD_NODE, path );
+        
+        for( Map.Entry<QName,Object> e : nd.m_properties.entrySet() )
+        {
+            writeHeader( out, OP_PUT_PROPERTY, path.resolve( e.getKey() ) );
+            
+            if( e.getValue() instanceof Block )
+            {
+                ByteBuffer buf = ((Block)e.getValue()).getBuffer();
+                byte[]     b   = new byte[buf.remaining()];
+                buf.get( b );
+                
+                writeBytes( out, b );
+            }
+            else
+            {
+                writeBytes( out, encode( (ValueContainer)e.getValue(), true ) );
+            }
+        }
+        
+        for( Path child : nd.m_children )
+        {
+            writeTree( s, child, out );
+        }
+    }
+    
+    private void loadSnapshot( File f, Object owner ) throws IOException, RepositoryException
+    {
+        CheckedInputStream cis = new CheckedInputStream( new BufferedInputStream( new FileInputStream( f ) ), new CRC32() );
+        DataInputStream    in  = new DataInputStream( cis );
+        
+        try
+        {
+            if( in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION )
+                throw new IOException("Not a MemoryProvider snapshot, or written by a newer version: "+f);
+            
+            while( apply( in, owner ) ) {}
+            
+            int crc = (int)cis.getChecksum().getValue();
+            
+            if( crc != in.readInt() ) throw new IOException("Checksum of the snapshot "+f+" does not match");
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    private static void writeHeader( DataOutputStream out, byte op, Path path ) throws IOException
+    {
+        out.writeByte( op );
+        writeString( out, path.toString() );
+    }
+    
+    /**
+     *  Encodes the values.  Encoding consumes them, so if the ValueContainer is 
+     *  still used afterwards, a copy is encoded instead.
+     */
+    private static byte[] encode( ValueContainer vc, boolean copy ) throws IOException, RepositoryException
+    {
+        if( copy )
+        {
+            if( vc.isMultiple() )
+                vc = new ValueContainer( c_values.cloneValues( vc.getValues() ), vc.getType() );
+            else
+                vc = new ValueContainer( c_values.cloneValue( vc.getValue() ) );
+        }
+        
+        return ValueCodec.encode( vc, null );
+    }
+    
+    private static void writeBytes( DataOutputStream out, byte[] b ) throws IOException
+    {
+        out.writeInt( b.length );
+        out.write( b );
+    }
+    
+    private static void writeString( DataOutputStream out, String s ) throws IOException
+    {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt( b.length );
+        out.write( b );
+    }
+
+    private static String readString( DataInputStream in ) throws IOException
+    {
+        byte[] b = new byte[in.readInt()];
+        in.readFully( b );
+        return new String( b, "UTF-8" );
+    }
+    
+    /**
+     *  Builds a single journal operation.
+     */
+    private static final class Op
+    {
+        private final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream              m_out   = new DataOutputStream( m_bytes );
+        
+        Op( byte op, Path path ) throws IOException
+        {
+            writeHeader( m_out, op, path );
+        }
+        
+        byte[] toByteArray() throws IOException
+        {
+            m_out.flush();
+            return m_bytes.toByteArray();
+        }
+    }
+    
+    /**
+     *  Writes the snapshots in the background.  It is woken up when the journal
+     *  grows too large, and also checks every once in a while.
+     */
+    private class Snapshotter extends Thread
+    {
+        private boolean m_running = true;
+
+        public Snapshotter()
+        {
+            super("Priha MemoryProvider snapshot writer");
+            setDaemon( true );
+        }
+
+        public synchronized void wakeup()
+        {
+            notify();
+        }
+
+        public synchronized void shutdown()
+        {
+            m_running = false;
+            notify();
+        }
+
+        private synchronized boolean waitForWork()
+        {
+            if( m_running )
+            {
+                try
+                {
+                    wait( m_snapshotInterval );
+                }
+                catch( InterruptedException e )
+                {
+                    return false;
+                }
+            }
+
+            return m_running;
+        }
+
+        @Override
+        public void run()
+        {
+            while( waitForWork() )
+            {
+                try
+                {
+                    snapshot();
+                }
+                catch( Exception e )
+                {
+                    log.warning("Writing a snapshot in "+m_dir+" failed: "+e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     *  An immutable version of the whole workspace.
+     */
+    private static final class Snapshot
+    {
+        final PersistentMap<Path,NodeState> m_nodes;
+        final PersistentMap<String,Path>    m_uuids;
+        final long                          m_version;
+        
+        Snapshot( PersistentMap<Path,NodeState> nodes, PersistentMap<String,Path> uuids, long version )
+        {
+            m_nodes   = nodes;
+            m_uuids   = uuids;
+            m_version = version;
+        }
+        
+        Snapshot withNodes( PersistentMap<Path,NodeState> nodes )
+        {
+            return new Snapshot( nodes, m_uuids, m_version );
+        }
+        
+        Snapshot withUUIDs( PersistentMap<String,Path> uuids )
+        {
+            return new Snapshot( m_nodes, uuids, m_version );
+        }
+        
+        Snapshot withVersion( long version )
+        {
+            return new Snapshot( m_nodes, m_uuids, version );
+        }
+    }
+    
+    /**
+     *  Stores a Node in the memory, including parent, all children and all properties.
+     *  Once published, a NodeState is never changed; a save copies it first,
+     *  unless the copy was made by the same save.
+     */
+    private static final class NodeState
+    {
+        final Path                          m_parent;
+        final ArrayList<Path>               m_children;
+        final HashMap<QName,Object>         m_properties;
+        
+        /** The token of the save which created this copy and may still change it. */
+        final Object                        m_owner;
+        
+        NodeState( Path parent, Object owner )
+        {
+            this( parent, new ArrayList<Path>(), new HashMap<QName,Object>(), owner );
+        }
+        
+        private NodeState( Path parent, ArrayList<Path> children, HashMap<QName,Object> properties, Object owner )
+        {
+            m_parent     = parent;
+            m_children   = children;
+            m_properties = properties;
+            m_owner      = owner;
+        }
+        
+        NodeState copy( Object owner )
+        {
+            return new NodeState( m_parent, 
+                                  new ArrayList<Path>( m_children ), 
+                                  new HashMap<QName,Object>( m_properties ), 
+                                  owner );
+        }
+    }
+
+    /**
+     *  Remembers the snapshot the save started from, so that it can be rolled back.
+     *  The NodeStates refer to the token instead of the transaction, so that a
+     *  published snapshot does not keep the older ones alive.
+     */
+    private static final class MemoryTransaction extends BaseStoreTransaction
+    {
+        final Snapshot m_base;
+        final int      m_opsBase;
+        final Object   m_token = new Object();
+        boolean        m_ended;
+        
+        MemoryTransaction( WorkspaceImpl ws, Snapshot base, int opsBase )
+        {
+            super( ws );
+            m_base    = base;
+            m_opsBase = opsBase;
+        }
+    }
+    
+    public void reorderNodes(StoreTransaction tx, Path internalPath, List<Path> childOrder) throws RepositoryException
+    {
+        reorder( ((MemoryTransaction)tx).m_token, internalPath, childOrder );
+        
+        if( isPersistent() )
+        {
+            try
+            {
+                Op op = new Op( OP_REORDER, internalPath );
+                
+                op.m_out.writeInt( childOrder.size() );
+                for( Path p : childOrder )
+                {
+                    writeString( op.m_out, p.getLastComponent().toString() );
+                }
+                
+                m_ops.add( op.toByteArray() );
+            }
+            catch( IOException e )
+            {
+                throw new RepositoryException("Unable to journal the reordering of "+internalPath,e);
+            }
+        }
+    }
+    
+    private void reorder( Object owner, Path path, List<Path> childOrder ) throws PathNotFoundException
+    {
+        ArrayList<Path> children = writable( owner, path ).m_children;
+        ArrayList<Path> ordered  = new ArrayList<Path>( children.size() );
+        
+        for( Path p : childOrder )
+        {
+            if( children.remove( p ) ) ordered.add( p );
+        }
+        
+        ordered.addAll( children );
+        children.clear();
+        children.addAll( ordered );
     }
     
     public void rename(StoreTransaction tx, Path path, Component newName) throws RepositoryException
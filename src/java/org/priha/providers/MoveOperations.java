@@ -0,0 +1,53 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.providers;
+
+import javax.jcr.RepositoryException;
+
+import org.priha.path.Path;
+
+/**
+ *  A RepositoryProvider may implement this interface if it can move a whole
+ *  subtree of Nodes at once.  Priha then saves a Session.move() with a single
+ *  call to move() instead of adding a copy of each item at the new path and
+ *  removing the old ones.
+ *  <p>
+ *  Like the other modifying methods, this is called while holding the write
+ *  lock of the provider.
+ */
+public interface MoveOperations
+{
+    /**
+     *  Moves a Node with all of its properties and descendants to a new path in
+     *  the same workspace.  The UUIDs of the Nodes stay the same, and the
+     *  references they hold move along with them.  The Node becomes the last
+     *  child of its new parent.
+     *  <p>
+     *  The move is a part of the transaction: it must see the items written 
+     *  earlier in the same save, and the items written after it must see the 
+     *  Nodes at their new paths.
+     *  
+     *  @param tx The transaction.
+     *  @param srcpath The Node to move.
+     *  @param destpath The new path of the Node.  Its parent must exist.
+     *  @throws javax.jcr.PathNotFoundException If the source or the parent of the destination does not exist.
+     *  @throws javax.jcr.ItemExistsException If the destination already exists.
+     *  @throws RepositoryException If the move fails.
+     */
+    public void move( StoreTransaction tx, Path srcpath, Path destpath ) throws RepositoryException;
+}
@@ -0,0 +1,52 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.providers;
+
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+
+import org.priha.core.WorkspaceImpl;
+import org.priha.path.Path;
+import org.priha.query.aqt.QueryRootNode;
+
+/**
+ *  A RepositoryProvider may implement this interface if it can search for
+ *  Nodes faster than walking through the repository, for example by running
+ *  a query in a database.  The provider only narrows the search down; Priha
+ *  then checks each of the returned Nodes against the whole query, so the
+ *  provider may ignore any part of the query it does not understand.
+ *  <p>
+ *  Like the other reading methods, this is called while holding the read
+ *  lock of the provider.
+ */
+public interface QueryPushdown
+{
+    /**
+     *  Finds the Nodes which may match a query.  Every Node which does
+     *  match must be returned, but the result may contain also Nodes which do
+     *  not.  The unsaved changes of Sessions are not taken into account.
+     *  
+     *  @param ws The workspace.
+     *  @param query The abstract query tree.
+     *  @return The paths of the Nodes in document order, or null, if the provider
+     *          cannot search for them at the moment.
+     *  @throws RepositoryException If something goes wrong.
+     */
+    public List<Path> findNodes( WorkspaceImpl ws, QueryRootNode query ) throws RepositoryException;
+}
@@ -0,0 +1,1973 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.priha.providers;
+
+import static org.priha.core.JCRConstants.Q_JCR_UUID;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import javax.jcr.*;
+
+import org.priha.core.ItemType;
+import org.priha.core.RepositoryImpl;
+import org.priha.core.WorkspaceImpl;
+import org.priha.core.binary.MemoryBinarySource;
+import org.priha.core.values.QValue;
+import org.priha.core.values.ValueFactoryImpl;
+import org.priha.core.values.ValueImpl;
+import org.priha.nodetype.QNodeDefinition;
+import org.priha.path.Path;
+import org.priha.path.PathFactory;
+import org.priha.path.Path.Component;
+import org.priha.util.ConfigurationException;
+import org.priha.util.FileUtil;
+import org.priha.util.QName;
+
+/**
+ *  A log-structured provider, which appends every change as a record to
+ *  a small number of large segment files instead of creating a file per
+ *  property like the FileProvider does.  The location of each live record
+ *  is kept in an in-memory index, which is rebuilt by replaying the segments
+ *  when the provider starts.
+ *  <p>
+ *  All records written during a single save() are appended in one write and
+ *  synced to disk once.  Superseded records are cleaned up by a background
+ *  thread, which rewrites the live records of the older segments into a single
+ *  new segment once enough of them have become garbage.  Each record has a
+ *  checksum, so a record which was only partially written during a crash is
+ *  discarded on the next startup.
+ *  <p>
+ *  The saves are serialized by the provider itself, so it implements
+ *  {@link ConcurrentProvider}.  Each change to the index during a save is
+ *  recorded, so a cancelled save is undone by reversing its own changes.
+ *  <p>
+ *  Property values are read into memory when they are accessed, so this provider
+ *  is not suited for very large binaries.
+ *  <p>
+ *  The following properties are understood:
+ *  <ul>
+ *   <li><b>directory</b> - The directory where the segments are stored. Required.</li>
+ *   <li><b>workspaces</b> - A whitespace-separated list of workspaces.  Default is "default".</li>
+ *   <li><b>segmentSize</b> - The size (in bytes) after which a new segment file is started.
+ *       Default is 16 MB.</li>
+ *   <li><b>compactionThreshold</b> - The fraction of garbage in the older segments
+ *       which triggers compaction.  Default is 0.5.</li>
+ *   <li><b>sync</b> - If "true", the segment is forced to disk at the end of every save.
+ *       Default is true.</li>
+ *  </ul>
+ */
+public class SegmentProvider implements RepositoryProvider, ConcurrentProvider, PerformanceReporter
+{
+    private static final String PROP_DIRECTORY            = "directory";
+    private static final String PROP_WORKSPACES           = "workspaces";
+    private static final String PROP_SEGMENT_SIZE         = "segmentSize";
+    private static final String PROP_COMPACTION_THRESHOLD = "compactionThreshold";
+    private static final String PROP_SYNC                 = "sync";
+
+    private static final long   DEFAULT_SEGMENT_SIZE         = 16*1024*1024;
+    private static final String DEFAULT_COMPACTION_THRESHOLD = "0.5";
+
+    /* The compactor checks the segments at least this often (in ms) */
+    private static final long   COMPACTION_INTERVAL = 60*1000L;
+
+    private static final int    BUFFER_SIZE    = 64*1024;
+    private static final String LOCKFILE       = ".prihalock";
+    private static final String SYSTEM_DIR     = "system";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TMP_SUFFIX     = ".tmp";
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private static final byte   OP_ADD_NODE     = 1;
+    private static final byte   OP_PUT_PROPERTY = 2;
+    private static final byte   OP_REMOVE       = 3;
+    private static final byte   OP_REORDER      = 4;
+
+    /* Record framing: <int length> <length bytes of op and body> <int crc> */
+    private static final int    RECORD_OVERHEAD = 8;
+
+    private Logger log = Logger.getLogger( getClass().getName() );
+
+    private long[]                    m_hitCount;
+    private String                    m_root;
+    private Path                      m_systemPath;
+    private long                      m_segmentSize;
+    private double                    m_compactionThreshold;
+    private boolean                   m_sync;
+
+    private Map<String,SegmentStore>  m_stores = new HashMap<String,SegmentStore>();
+    private SegmentStore              m_systemStore;
+    private Compactor                 m_compactor;
+
+    /** Serializes the saves.  Held from storeStarted() until storeFinished() or storeCancelled(). */
+    private final ReentrantLock       m_writeLock = new ReentrantLock();
+    private int                       m_depth;
+
+    /** Reverses the index changes of the ongoing saves.  Only touched while holding m_writeLock. */
+    private List<SegmentStore.Undo>   m_undo = new ArrayList<SegmentStore.Undo>();
+
+    public SegmentProvider()
+    {
+        resetCounts();
+    }
+
+    public void start(RepositoryImpl rep, Properties props) throws ConfigurationException
+    {
+        m_hitCount[Count.Start.ordinal()]++;
+
+        try
+        {
+            m_systemPath = PathFactory.getPath( RepositoryImpl.getGlobalNamespaceRegistry(),
+                                                "/jcr:system" );
+        }
+        catch( RepositoryException e )
+        {
+            throw new ConfigurationException("Unable to create a /jcr:system instance: "+e.getMessage());
+        }
+
+        m_root = props.getProperty( PROP_DIRECTORY );
+
+        if( m_root == null )
+            throw new ConfigurationException("SegmentProvider needs a directory", PROP_DIRECTORY);
+
+        try
+        {
+            m_segmentSize = Long.parseLong( props.getProperty( PROP_SEGMENT_SIZE,
+                                                               Long.toString(DEFAULT_SEGMENT_SIZE) ) );
+            m_compactionThreshold = Double.parseDouble( props.getProperty( PROP_COMPACTION_THRESHOLD,
+                                                                           DEFAULT_COMPACTION_THRESHOLD ) );
+        }
+        catch( NumberFormatException e )
+        {
+            throw new ConfigurationException("Unparseable number in SegmentProvider configuration: "+e.getMessage());
+        }
+
+        m_sync = "true".equals( props.getProperty( PROP_SYNC, "true" ) );
+
+        File root = new File(m_root);
+        root.mkdirs();
+
+        //
+        //  Make sure this instance is the only one using that root.
+        //
+        File lockFile = new File(m_root, LOCKFILE);
+
+        if( lockFile.exists() )
+        {
+            String msg = "Cannot use the Priha SegmentProvider repository while another instance of Priha is using it. "+
+                         "If you are sure there are no other instances using this same repository, please "+
+                         "remove the '"+lockFile.getAbsolutePath()+"' file and restart.";
+            log.severe( msg );
+            throw new ConfigurationException(msg);
+        }
+
+        try
+        {
+            lockFile.createNewFile();
+            lockFile.deleteOnExit();
+
+            log.fine("Initializing SegmentProvider with root "+m_root);
+
+            String[] workspaces = props.getProperty( PROP_WORKSPACES, "default" ).split("\\s");
+
+            for( String wsname : workspaces )
+            {
+                SegmentStore store = new SegmentStore( new File( root, "workspaces/"+wsname ) );
+                store.load();
+                m_stores.put( wsname, store );
+            }
+
+            m_systemStore = new SegmentStore( new File( root, SYSTEM_DIR ) );
+            m_systemStore.load();
+        }
+        catch( IOException e )
+        {
+            throw new ConfigurationException("Cannot start Priha SegmentProvider",e);
+        }
+        catch( RepositoryException e )
+        {
+            throw new ConfigurationException("Cannot read the segments",e);
+        }
+
+        m_compactor = new Compactor();
+        m_compactor.start();
+    }
+
+    public void stop(RepositoryImpl rep)
+    {
+        m_hitCount[Count.Stop.ordinal()]++;
+
+        log.fine("Shutting down SegmentProvider...");
+
+        if( m_compactor != null )
+        {
+            m_compactor.shutdown();
+
+            try
+            {
+                m_compactor.join();
+            }
+            catch( InterruptedException e )
+            {
+                log.warning("Interrupted while waiting for the compactor to finish");
+            }
+
+            m_compactor = null;
+        }
+
+        for( SegmentStore s : getAllStores() )
+        {
+            s.close();
+        }
+
+        m_stores.clear();
+        m_systemStore = null;
+
+        File lockFile = new File(m_root, LOCKFILE);
+        lockFile.delete();
+    }
+
+    public void open(RepositoryImpl rep, Credentials credentials, String workspaceName)
+        throws RepositoryException, NoSuchWorkspaceException
+    {
+        m_hitCount[Count.Open.ordinal()]++;
+
+        if( !m_stores.containsKey(workspaceName) )
+            throw new NoSuchWorkspaceException(workspaceName);
+    }
+
+    public void close(WorkspaceImpl ws)
+    {
+        m_hitCount[Count.Close.ordinal()]++;
+    }
+
+    public Collection<String> listWorkspaces()
+    {
+        m_hitCount[Count.ListWorkspaces.ordinal()]++;
+
+        return new ArrayList<String>( m_stores.keySet() );
+    }
+
+    private List<SegmentStore> getAllStores()
+    {
+        ArrayList<SegmentStore> list = new ArrayList<SegmentStore>( m_stores.values() );
+        if( m_systemStore != null ) list.add( m_systemStore );
+        return list;
+    }
+
+    /**
+     *  Returns the store which houses the given path.  Everything under /jcr:system
+     *  is shared between all the workspaces.
+     */
+    private SegmentStore getStore( WorkspaceImpl ws, Path path ) throws NoSuchWorkspaceException
+    {
+        if( m_systemPath.isParentOf( path ) || m_systemPath.equals( path ) )
+            return m_systemStore;
+
+        SegmentStore store = m_stores.get( ws.getName() );
+
+        if( store == null ) throw new NoSuchWorkspaceException( ws.getName() );
+
+        return store;
+    }
+
+    //
+    //  READING
+    //
+
+    public boolean itemExists(WorkspaceImpl ws, Path path, ItemType type) throws RepositoryException
+    {
+        m_hitCount[Count.ItemExists.ordinal()]++;
+
+        switch( type )
+        {
+            case NODE:
+            {
+                SegmentStore store = getStore( ws, path );
+
+                store.m_lock.readLock().lock();
+                try
+                {
+                    return store.m_nodes.containsKey( path );
+                }
+                finally
+                {
+                    store.m_lock.readLock().unlock();
+                }
+            }
+
+            case PROPERTY:
+            {
+                SegmentStore store = getStore( ws, path.getParentPath() );
+
+                store.m_lock.readLock().lock();
+                try
+                {
+                    NodeEntry ne = store.m_nodes.get( path.getParentPath() );
+
+                    return ne != null && ne.m_properties.containsKey( path.getLastComponent() );
+                }
+                finally
+                {
+                    store.m_lock.readLock().unlock();
+                }
+            }
+
+            default:
+                throw new IllegalArgumentException("Type "+type.name()+" not supported");
+        }
+    }
+
+    public List<Path> listNodes(WorkspaceImpl ws, Path parentpath) throws RepositoryException
+    {
+        m_hitCount[Count.ListNodes.ordinal()]++;
+
+        SegmentStore store = getStore( ws, parentpath );
+        ArrayList<Path> list;
+
+        store.m_lock.readLock().lock();
+        try
+        {
+            NodeEntry ne = store.m_nodes.get( parentpath );
+
+            if( ne == null ) throw new PathNotFoundException("No such path found: "+parentpath);
+
+            list = new ArrayList<Path>( ne.m_children );
+        }
+        finally
+        {
+            store.m_lock.readLock().unlock();
+        }
+
+        //
+        //  The system store is shared, so it is never listed in the workspace root.
+        //
+        if( parentpath.isRoot() && itemExists( ws, m_systemPath, ItemType.NODE ) )
+        {
+            list.add( 0, m_systemPath );
+        }
+
+        return list;
+    }
+
+    public List<QName> listProperties(WorkspaceImpl ws, Path path) throws RepositoryException
+    {
+        m_hitCount[Count.ListProperties.ordinal()]++;
+
+        SegmentStore store = getStore( ws, path );
+
+        store.m_lock.readLock().lock();
+        try
+        {
+            NodeEntry ne = store.m_nodes.get( path );
+
+            if( ne == null ) throw new PathNotFoundException("No such path found: "+path);
+
+            return new ArrayList<QName>( ne.m_properties.keySet() );
+        }
+        finally
+        {
+            store.m_lock.readLock().unlock();
+        }
+    }
+
+    public ValueContainer getPropertyValue(WorkspaceImpl ws, Path path) throws RepositoryException
+    {
+        m_hitCount[Count.GetPropertyValue.ordinal()]++;
+
+        SegmentStore store = getStore( ws, path.getParentPath() );
+        byte[] record;
+
+        store.m_lock.readLock().lock();
+        try
+        {
+            NodeEntry ne = store.m_nodes.get( path.getParentPath() );
+            Location loc = (ne != null) ? ne.m_properties.get( path.getLastComponent() ) : null;
+
+            if( loc == null ) throw new PathNotFoundException( path.toString() );
+
+            record = store.readRecord( loc );
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("Unable to read the segment for "+path,e);
+        }
+        finally
+        {
+            store.m_lock.readLock().unlock();
+        }
+
+        try
+        {
+            return decodeValue( ws, record );
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("Deserialization of value failed for "+path,e);
+        }
+    }
+
+    public Path findByUUID(WorkspaceImpl ws, String uuid) throws RepositoryException
+    {
+        m_hitCount[Count.FindByUUID.ordinal()]++;
+
+        for( SegmentStore store : new SegmentStore[] { m_stores.get(ws.getName()), m_systemStore } )
+        {
+            if( store == null ) continue;
+
+            store.m_lock.readLock().lock();
+            try
+            {
+                Path p = store.m_uuids.get( uuid );
+
+                if( p != null ) return p;
+            }
+            finally
+            {
+                store.m_lock.readLock().unlock();
+            }
+        }
+
+        throw new ItemNotFoundException( "There is no item with UUID "+uuid+" in the repository.");
+    }
+
+    public List<Path> findReferences(WorkspaceImpl ws, String uuid) throws RepositoryException
+    {
+        m_hitCount[Count.FindReferences.ordinal()]++;
+
+        ArrayList<Path> result = new ArrayList<Path>();
+
+        for( SegmentStore store : new SegmentStore[] { m_stores.get(ws.getName()), m_systemStore } )
+        {
+            if( store == null ) continue;
+
+            store.m_lock.readLock().lock();
+            try
+            {
+                Set<Path> refs = store.m_references.get( uuid );
+
+                if( refs != null ) result.addAll( refs );
+            }
+            finally
+            {
+                store.m_lock.readLock().unlock();
+            }
+        }
+
+        return result;
+    }
+
+    //
+    //  WRITING
+    //
+
+    public StoreTransaction storeStarted(WorkspaceImpl ws)
+    {
+        m_writeLock.lock();
+
+        m_depth++;
+
+        return new SegmentTransaction( ws, m_undo.size() );
+    }
+
+    public void storeFinished(StoreTransaction tx) throws RepositoryException
+    {
+        end( (SegmentTransaction)tx, true );
+    }
+
+    public void storeCancelled(StoreTransaction tx) throws RepositoryException
+    {
+        end( (SegmentTransaction)tx, false );
+    }
+
+    /**
+     *  Ends a save.  A cancelled save undoes its changes to the index; none of its
+     *  records have been written.  When the outermost save finishes, the pending
+     *  records of each store are written.  If that fails, the changes to the stores
+     *  which were not written are undone.
+     */
+    private void end( SegmentTransaction tx, boolean commit ) throws RepositoryException
+    {
+        if( tx.m_ended ) return;
+
+        tx.m_ended = true;
+
+        try
+        {
+            if( !commit ) undo( tx.m_undoBase, Collections.<SegmentStore>emptySet() );
+
+            if( --m_depth == 0 )
+            {
+                Set<SegmentStore> written = new HashSet<SegmentStore>();
+
+                try
+                {
+                    for( SegmentStore store : getAllStores() )
+                    {
+                        try
+                        {
+                            if( store.flush() && m_compactor != null )
+                            {
+                                m_compactor.wakeup();
+                            }
+
+                            written.add( store );
+                        }
+                        catch( IOException e )
+                        {
+                            undo( 0, written );
+                            throw new RepositoryException("Unable to write to segment in "+store.m_dir,e);
+                        }
+                    }
+                }
+                finally
+                {
+                    m_undo.clear();
+                }
+            }
+        }
+        finally
+        {
+            m_writeLock.unlock();
+        }
+    }
+
+    /**
+     *  Undoes the index changes down to the given position of the undo log.
+     *
+     *  @param base The size of the undo log to go back to.
+     *  @param skip The stores whose changes are kept.
+     */
+    private void undo( int base, Set<SegmentStore> skip )
+    {
+        List<SegmentStore> stores = getAllStores();
+
+        for( SegmentStore store : stores ) store.m_lock.writeLock().lock();
+
+        try
+        {
+            for( int i = m_undo.size()-1; i >= base; i-- )
+            {
+                SegmentStore.Undo u = m_undo.remove( i );
+
+                if( !skip.contains( u.store() ) ) u.undo();
+            }
+        }
+        finally
+        {
+            for( SegmentStore store : stores ) store.m_lock.writeLock().unlock();
+        }
+    }
+
+    public void addNode(StoreTransaction tx, Path path, QNodeDefinition def) throws RepositoryException
+    {
+        m_hitCount[Count.AddNode.ordinal()]++;
+
+        SegmentStore store = getStore( tx.getWorkspace(), path );
+
+        try
+        {
+            RecordBuilder rb = new RecordBuilder( OP_ADD_NODE, path );
+
+            store.m_lock.writeLock().lock();
+            try
+            {
+                if( store.m_nodes.containsKey( path ) ) return;
+
+                store.addNodeEntry( path, store.pending( rb.toByteArray() ) );
+            }
+            finally
+            {
+                store.m_lock.writeLock().unlock();
+            }
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("Unable to add node "+path,e);
+        }
+    }
+
+    public void putPropertyValue(StoreTransaction tx, Path path, ValueContainer vc) throws RepositoryException
+    {
+        m_hitCount[Count.PutPropertyValue.ordinal()]++;
+
+        SegmentStore store = getStore( tx.getWorkspace(), path.getParentPath() );
+
+        try
+        {
+            RecordBuilder rb = new RecordBuilder( OP_PUT_PROPERTY, path );
+
+            ValueImpl[] values = vc.isMultiple() ? vc.getValues() : new ValueImpl[] { vc.getValue() };
+
+            rb.m_out.writeByte( vc.getType() );
+            rb.m_out.writeBoolean( vc.isMultiple() );
+            rb.m_out.writeInt( values.length );
+
+            String   uuid = null;
+            String[] refs = null;
+
+            if( vc.getType() == PropertyType.REFERENCE ) refs = new String[values.length];
+
+            for( int i = 0; i < values.length; i++ )
+            {
+                byte[] b = encodeValue( values[i] );
+                rb.m_out.writeInt( b.length );
+                rb.m_out.write( b );
+
+                //  The value may only be read once, so the strings come from the encoded form.
+                if( refs != null ) refs[i] = new String( b, "UTF-8" );
+                if( i == 0 && path.getLastComponent().equals( Q_JCR_UUID ) ) uuid = new String( b, "UTF-8" );
+            }
+
+            byte[] record = rb.toByteArray();
+
+            store.m_lock.writeLock().lock();
+            try
+            {
+                if( !store.m_nodes.containsKey( path.getParentPath() ) )
+                    throw new PathNotFoundException("Parent path not found "+path.getParentPath());
+
+                store.putPropertyEntry( path, store.pending( record ), uuid, refs );
+            }
+            finally
+            {
+                store.m_lock.writeLock().unlock();
+            }
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("Unable to store property "+path,e);
+        }
+    }
+
+    public void remove(StoreTransaction tx, Path path) throws RepositoryException
+    {
+        m_hitCount[Count.Remove.ordinal()]++;
+
+        SegmentStore store = getStore( tx.getWorkspace(), path );
+
+        try
+        {
+            RecordBuilder rb = new RecordBuilder( OP_REMOVE, path );
+
+            store.m_lock.writeLock().lock();
+            try
+            {
+                if( store.removeEntry( path ) )
+                {
+                    //  The tombstone itself is never live.
+                    store.pending( rb.toByteArray() ).m_dead = true;
+                }
+            }
+            finally
+            {
+                store.m_lock.writeLock().unlock();
+            }
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("Unable to remove "+path,e);
+        }
+    }
+
+    public void reorderNodes(StoreTransaction tx, Path path, List<Path> childOrder) throws RepositoryException
+    {
+        SegmentStore store = getStore( tx.getWorkspace(), path );
+
+        try
+        {
+            RecordBuilder rb = new RecordBuilder( OP_REORDER, path );
+
+            rb.m_out.writeInt( childOrder.size() );
+            for( Path p : childOrder )
+            {
+                writeString( rb.m_out, p.getLastComponent().toString() );
+            }
+
+            store.m_lock.writeLock().lock();
+            try
+            {
+                if( !store.m_nodes.containsKey( path ) )
+                    throw new PathNotFoundException("No such path found: "+path);
+
+                store.setOrder( path, childOrder, store.pending( rb.toByteArray() ) );
+            }
+            finally
+            {
+                store.m_lock.writeLock().unlock();
+            }
+        }
+        catch( IOException e )
+        {
+            throw new RepositoryException("Unable to reorder "+path,e);
+        }
+    }
+
+    public long getCount(Count item)
+    {
+        return m_hitCount[item.ordinal()];
+    }
+
+    public void resetCounts()
+    {
+        m_hitCount = new long[Count.values().length];
+    }
+
+    //
+    //  SERIALIZATION
+    //
+
+    private static void writeString( DataOutputStream out, String s ) throws IOException
+    {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt( b.length );
+        out.write( b );
+    }
+
+    private static String readString( DataInputStream in ) throws IOException
+    {
+        byte[] b = new byte[in.readInt()];
+        in.readFully( b );
+        return new String( b, "UTF-8" );
+    }
+
+    private static DataInputStream openRecord( byte[] record )
+    {
+        return new DataInputStream( new ByteArrayInputStream( record, 4, record.length-RECORD_OVERHEAD ) );
+    }
+
+    /**
+     *  Names and paths are stored in their fully qualified form, so that they survive
+     *  changes in the session namespace mappings.
+     */
+    private static byte[] encodeValue( ValueImpl v ) throws IOException, RepositoryException
+    {
+        if( v instanceof QValue.QValueInner )
+        {
+            return ((QValue.QValueInner)v).getQValue().getString().getBytes("UTF-8");
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = v.getStream();
+
+        try
+        {
+            FileUtil.copyContents( in, out );
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return out.toByteArray();
+    }
+
+    private static ValueImpl createValue( ValueFactoryImpl vf, byte[] b, int type )
+        throws IOException, RepositoryException
+    {
+        switch( type )
+        {
+            case PropertyType.BINARY:
+                return vf.createValue( new MemoryBinarySource(b) );
+
+            case PropertyType.NAME:
+                return vf.createValue( QName.valueOf( new String(b,"UTF-8") ), PropertyType.NAME );
+
+            default:
+                return vf.createValue( new String(b,"UTF-8"), type );
+        }
+    }
+
+    private ValueContainer decodeValue( WorkspaceImpl ws, byte[] record ) throws IOException, RepositoryException
+    {
+        DataInputStream in = openRecord( record );
+
+        in.readByte();
+        in.skipBytes( in.readInt() );
+
+        int     type  = in.readUnsignedByte();
+        boolean multi = in.readBoolean();
+        int     count = in.readInt();
+
+        ValueFactoryImpl vf = ws.getSession().getValueFactory();
+        ValueImpl[] values = new ValueImpl[count];
+
+        for( int i = 0; i < count; i++ )
+        {
+            byte[] b = new byte[in.readInt()];
+            in.readFully( b );
+
+            values[i] = createValue( vf, b, type );
+        }
+
+        if( multi ) return new ValueContainer( values, type );
+
+        return new ValueContainer( values[0] );
+    }
+
+    /**
+     *  Reads the next record from the stream, checking its length and checksum.
+     *
+     *  @param in The stream to read from.
+     *  @param remaining How many bytes there are still left in the segment.
+     *  @return The complete record, or null, if the record was torn or corrupted.
+     */
+    private static byte[] readNextRecord( DataInputStream in, long remaining ) throws IOException
+    {
+        if( remaining < RECORD_OVERHEAD+1 ) return null;
+
+        int len = in.readInt();
+
+        if( len < 1 || len > remaining-RECORD_OVERHEAD ) return null;
+
+        byte[] record = new byte[len+RECORD_OVERHEAD];
+        putInt( record, 0, len );
+        in.readFully( record, 4, len+4 );
+
+        CRC32 crc = new CRC32();
+        crc.update( record, 4, len );
+
+        if( (int)crc.getValue() != getInt( record, len+4 ) ) return null;
+
+        return record;
+    }
+
+    private static void putInt( byte[] b, int off, int v )
+    {
+        b[off]   = (byte)(v >>> 24);
+        b[off+1] = (byte)(v >>> 16);
+        b[off+2] = (byte)(v >>> 8);
+        b[off+3] = (byte)v;
+    }
+
+    private static int getInt( byte[] b, int off )
+    {
+        return ((b[off] & 0xff) << 24) | ((b[off+1] & 0xff) << 16) | ((b[off+2] & 0xff) << 8) | (b[off+3] & 0xff);
+    }
+
+    private static String segmentName( int number )
+    {
+        return SEGMENT_PREFIX + String.format( "%08d", number ) + SEGMENT_SUFFIX;
+    }
+
+    private static int segmentNumber( String name )
+    {
+        return Integer.parseInt( name.substring( SEGMENT_PREFIX.length(),
+                                                 SEGMENT_PREFIX.length()+8 ) );
+    }
+
+    /**
+     *  Builds a single record.  The length and checksum are filled in by toByteArray().
+     */
+    private static class RecordBuilder
+    {
+        private ByteArrayOutputStream m_bytes = new ByteArrayOutputStream(128);
+        DataOutputStream              m_out   = new DataOutputStream( m_bytes );
+
+        public RecordBuilder( byte op, Path path ) throws IOException
+        {
+            m_out.writeInt( 0 );
+            m_out.writeByte( op );
+            writeString( m_out, path.toString() );
+        }
+
+        public byte[] toByteArray() throws IOException
+        {
+            m_out.flush();
+
+            byte[] b   = m_bytes.toByteArray();
+            int    len = b.length - 4;
+
+            CRC32 crc = new CRC32();
+            crc.update( b, 4, len );
+
+            byte[] record = new byte[b.length+4];
+            System.arraycopy( b, 0, record, 0, b.length );
+            putInt( record, 0, len );
+            putInt( record, b.length, (int)crc.getValue() );
+
+            return record;
+        }
+    }
+
+    //
+    //  STORAGE
+    //
+
+    /**
+     *  Points at a single record, either in a segment, or in memory if it has not
+     *  been written yet.
+     */
+    private static final class Location
+    {
+        int      m_segment = -1;
+        long     m_offset;
+        int      m_length;
+        byte[]   m_pending;
+        boolean  m_dead;
+        String   m_uuid;
+        String[] m_refs;
+
+        long key()
+        {
+            return ((long)m_segment << 40) | m_offset;
+        }
+    }
+
+    private static final class NodeEntry
+    {
+        Location                         m_location;
+        Location                         m_order;
+        ArrayList<Path>                  m_children   = new ArrayList<Path>();
+        LinkedHashMap<QName,Location>    m_properties = new LinkedHashMap<QName,Location>();
+
+        NodeEntry( Location loc )
+        {
+            m_location = loc;
+        }
+    }
+
+    private static final class Segment
+    {
+        int              m_number;
+        File             m_file;
+        RandomAccessFile m_raf;
+        FileChannel      m_channel;
+        long             m_size;
+        long             m_live;
+
+        Segment( int number, File file ) throws IOException
+        {
+            m_number  = number;
+            m_file    = file;
+            m_raf     = new RandomAccessFile( file, "rw" );
+            m_channel = m_raf.getChannel();
+            m_size    = m_channel.size();
+        }
+
+        byte[] read( long offset, int length ) throws IOException
+        {
+            ByteBuffer buf = ByteBuffer.allocate( length );
+
+            while( buf.hasRemaining() )
+            {
+                if( m_channel.read( buf, offset+buf.position() ) < 0 )
+                    throw new EOFException("Unexpected end of segment "+m_file);
+            }
+
+            return buf.array();
+        }
+
+        void write( ByteBuffer buf, long position ) throws IOException
+        {
+            while( buf.hasRemaining() )
+            {
+                position += m_channel.write( buf, position );
+            }
+        }
+
+        void close()
+        {
+            try
+            {
+                m_raf.close();
+            }
+            catch( IOException e ) {} // Nothing to do
+        }
+    }
+
+    /**
+     *  The segments and the index for a single workspace (or the system area).
+     *  <p>
+     *  Only the thread holding m_writeLock changes the index, but the readers
+     *  and the compactor may be running at the same time, so all index access
+     *  goes through m_lock.  Every change made during a save is recorded in
+     *  the undo log of the provider.
+     */
+    private class SegmentStore
+    {
+        private File                       m_dir;
+        private TreeMap<Integer,Segment>   m_segments   = new TreeMap<Integer,Segment>();
+        private Segment                    m_active;
+
+        private Map<Path,NodeEntry>        m_nodes      = new HashMap<Path,NodeEntry>();
+        private Map<String,Path>           m_uuids      = new HashMap<String,Path>();
+        private Map<String,Set<Path>>      m_references = new HashMap<String,Set<Path>>();
+
+        /* Records of the current save, in order. */
+        private List<Location>             m_pending    = new ArrayList<Location>();
+
+        /* Segment records superseded by the current save.  They become garbage once it is written. */
+        private Map<Long,Location>         m_released   = new HashMap<Long,Location>();
+
+        private boolean                    m_replaying;
+
+        final ReentrantReadWriteLock       m_lock       = new ReentrantReadWriteLock();
+
+        public SegmentStore( File dir )
+        {
+            m_dir = dir;
+        }
+
+        /**
+         *  Opens the segments and replays them into the index.
+         */
+        public void load() throws IOException, RepositoryException
+        {
+            m_dir.mkdirs();
+
+            recoverCompaction();
+
+            File[] files = m_dir.listFiles( new SegmentFilter(SEGMENT_SUFFIX) );
+
+            for( File f : files )
+            {
+                Segment s = new Segment( segmentNumber(f.getName()), f );
+                m_segments.put( s.m_number, s );
+            }
+
+            if( m_segments.isEmpty() )
+            {
+                m_segments.put( 0, new Segment( 0, new File( m_dir, segmentName(0) ) ) );
+            }
+
+            m_active = m_segments.get( m_segments.lastKey() );
+
+            replay();
+        }
+
+        /**
+         *  Finishes a compaction which was interrupted after the compacted segment
+         *  was complete, or removes the leftovers of one which was not.
+         */
+        private void recoverCompaction() throws IOException
+        {
+            for( File f : m_dir.listFiles( new SegmentFilter(TMP_SUFFIX) ) )
+            {
+                f.delete();
+            }
+
+            for( File f : m_dir.listFiles( new SegmentFilter(COMPACT_SUFFIX) ) )
+            {
+                int target = segmentNumber( f.getName() );
+
+                log.info("Finishing interrupted compaction of "+m_dir+" up to segment "+target);
+
+                for( File s : m_dir.listFiles( new SegmentFilter(SEGMENT_SUFFIX) ) )
+                {
+                    if( segmentNumber( s.getName() ) <= target ) s.delete();
+                }
+
+                if( !f.renameTo( new File( m_dir, segmentName(target) ) ) )
+                    throw new IOException("Unable to rename "+f);
+            }
+        }
+
+        private void replay() throws IOException, RepositoryException
+        {
+            long start = System.currentTimeMillis();
+
+            m_replaying = true;
+
+            try
+            {
+                for( Segment s : m_segments.values() )
+                {
+                    replay( s );
+                }
+            }
+            finally
+            {
+                m_replaying = false;
+            }
+
+            log.fine("Replayed "+m_segments.size()+" segments from "+m_dir+" in "+
+                     (System.currentTimeMillis()-start)+" ms");
+        }
+
+        private void replay( Segment s ) throws IOException, RepositoryException
+        {
+            long length = s.m_channel.size();
+            long pos    = 0;
+
+            DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(s.m_file),
+                                                                               BUFFER_SIZE ) );
+
+            try
+            {
+                while( pos < length )
+                {
+                    byte[] record = readNextRecord( in, length-pos );
+
+                    if( record == null ) break;
+
+                    Location loc = new Location();
+                    loc.m_segment = s.m_number;
+                    loc.m_offset  = pos;
+                    loc.m_length  = record.length;
+
+                    apply( record, loc );
+
+                    pos += record.length;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+
+            if( pos < length )
+            {
+                log.warning("Segment "+s.m_file+" has a damaged record at "+pos+", truncating "+(length-pos)+" bytes.");
+                s.m_channel.truncate( pos );
+            }
+
+            s.m_size = pos;
+        }
+
+        private void apply( byte[] record, Location loc ) throws IOException, RepositoryException
+        {
+            DataInputStream in = openRecord( record );
+
+            byte op   = in.readByte();
+            Path path = PathFactory.getPath( readString(in) );
+
+            switch( op )
+            {
+                case OP_ADD_NODE:
+                    addNodeEntry( path, loc );
+                    break;
+
+                case OP_PUT_PROPERTY:
+                {
+                    int type = in.readUnsignedByte();
+                    in.readBoolean();
+                    int count = in.readInt();
+
+                    String   uuid = null;
+                    String[] refs = null;
+
+                    if( type == PropertyType.REFERENCE ) refs = new String[count];
+
+                    for( int i = 0; i < count; i++ )
+                    {
+                        byte[] b = new byte[in.readInt()];
+                        in.readFully( b );
+
+                        if( refs != null ) refs[i] = new String( b, "UTF-8" );
+                        if( i == 0 && path.getLastComponent().equals( Q_JCR_UUID ) ) uuid = new String( b, "UTF-8" );
+                    }
+
+                    if( m_nodes.containsKey( path.getParentPath() ) )
+                        putPropertyEntry( path, loc, uuid, refs );
+                    break;
+                }
+
+                case OP_REMOVE:
+                    removeEntry( path );
+                    break;
+
+                case OP_REORDER:
+                {
+                    int count = in.readInt();
+                    ArrayList<Path> order = new ArrayList<Path>(count);
+
+                    for( int i = 0; i < count; i++ )
+                    {
+                        order.add( path.resolve( Component.valueOf( readString(in) ) ) );
+                    }
+
+                    if( m_nodes.containsKey( path ) )
+                        setOrder( path, order, loc );
+                    break;
+                }
+
+                default:
+                    throw new IOException("Unknown record type "+op+" in "+m_dir);
+            }
+        }
+
+        public void close()
+        {
+            m_lock.writeLock().lock();
+            try
+            {
+                for( Segment s : m_segments.values() ) s.close();
+                m_segments.clear();
+            }
+            finally
+            {
+                m_lock.writeLock().unlock();
+            }
+        }
+
+        //
+        //  Index maintenance.  The caller must hold the write lock.
+        //
+
+        /**
+         *  Reverses a single change to the index of this store.
+         */
+        abstract class Undo
+        {
+            SegmentStore store()
+            {
+                return SegmentStore.this;
+            }
+
+            abstract void undo();
+        }
+
+        private void logUndo( Undo u )
+        {
+            if( !m_replaying ) m_undo.add( u );
+        }
+
+        private <K,V> V put( final Map<K,V> map, final K key, V value )
+        {
+            final boolean existed = map.containsKey( key );
+            final V       old     = map.put( key, value );
+
+            logUndo( new Undo()
+            {
+                void undo()
+                {
+                    if( existed ) map.put( key, old ); else map.remove( key );
+                }
+            } );
+
+            return old;
+        }
+
+        private <K,V> V remove( final Map<K,V> map, final K key )
+        {
+            if( !map.containsKey( key ) ) return null;
+
+            final V old = map.remove( key );
+
+            logUndo( new Undo()
+            {
+                void undo()
+                {
+                    map.put( key, old );
+                }
+            } );
+
+            return old;
+        }
+
+        private void add( final Collection<Path> c, final Path path )
+        {
+            if( c.add( path ) )
+            {
+                logUndo( new Undo()
+                {
+                    void undo()
+                    {
+                        c.remove( path );
+                    }
+                } );
+            }
+        }
+
+        private void remove( final Set<Path> set, final Path path )
+        {
+            if( set.remove( path ) )
+            {
+                logUndo( new Undo()
+                {
+                    void undo()
+                    {
+                        set.add( path );
+                    }
+                } );
+            }
+        }
+
+        private void removeChild( final List<Path> children, final Path path )
+        {
+            final int idx = children.indexOf( path );
+
+            if( idx >= 0 )
+            {
+                children.remove( idx );
+
+                logUndo( new Undo()
+                {
+                    void undo()
+                    {
+                        children.add( idx, path );
+                    }
+                } );
+            }
+        }
+
+        Location pending( byte[] record )
+        {
+            final Location loc = new Location();
+            loc.m_pending = record;
+            loc.m_length  = record.length;
+
+            m_pending.add( loc );
+
+            logUndo( new Undo()
+            {
+                void undo()
+                {
+                    m_pending.remove( loc );
+                    loc.m_dead = true;
+                }
+            } );
+
+            return loc;
+        }
+
+        private void live( Location loc )
+        {
+            if( loc.m_pending == null ) m_segments.get( loc.m_segment ).m_live += loc.m_length;
+        }
+
+        /**
+         *  Marks a record as superseded.  Records which are already on disk stay live
+         *  until the superseding transaction is written, so that compaction never
+         *  throws away anything that might still be needed after a crash.
+         */
+        private void retire( final Location loc )
+        {
+            if( loc == null ) return;
+
+            if( loc.m_pending != null || m_replaying )
+            {
+                if( loc.m_dead ) return;
+
+                kill( loc );
+
+                logUndo( new Undo()
+                {
+                    void undo()
+                    {
+                        loc.m_dead = false;
+                    }
+                } );
+            }
+            else
+            {
+                m_released.put( loc.key(), loc );
+
+                //  The compactor may move the record, so it is looked up by its current key.
+                logUndo( new Undo()
+                {
+                    void undo()
+                    {
+                        m_released.remove( loc.key() );
+                    }
+                } );
+            }
+        }
+
+        private void kill( Location loc )
+        {
+            if( loc.m_dead ) return;
+
+            loc.m_dead = true;
+
+            if( loc.m_pending == null ) m_segments.get( loc.m_segment ).m_live -= loc.m_length;
+        }
+
+        void addNodeEntry( Path path, Location loc ) throws RepositoryException
+        {
+            if( m_nodes.containsKey( path ) )
+            {
+                kill( loc );
+                return;
+            }
+
+            put( m_nodes, path, new NodeEntry(loc) );
+            live( loc );
+
+            if( !path.isRoot() && !path.equals( m_systemPath ) )
+            {
+                NodeEntry parent = m_nodes.get( path.getParentPath() );
+
+                if( parent != null ) add( parent.m_children, path );
+            }
+        }
+
+        void putPropertyEntry( Path path, Location loc, String uuid, String[] refs ) throws RepositoryException
+        {
+            NodeEntry ne = m_nodes.get( path.getParentPath() );
+
+            release( path, put( ne.m_properties, path.getLastComponent(), loc ) );
+            live( loc );
+
+            loc.m_uuid = uuid;
+            loc.m_refs = refs;
+
+            if( uuid != null ) put( m_uuids, uuid, path.getParentPath() );
+
+            if( refs != null )
+            {
+                for( String r : refs )
+                {
+                    Set<Path> s = m_references.get( r );
+                    if( s == null )
+                    {
+                        s = new LinkedHashSet<Path>();
+                        put( m_references, r, s );
+                    }
+                    add( s, path );
+                }
+            }
+        }
+
+        private void release( Path path, Location old ) throws RepositoryException
+        {
+            if( old == null ) return;
+
+            retire( old );
+
+            if( old.m_uuid != null && path.getParentPath().equals( m_uuids.get(old.m_uuid) ) )
+            {
+                remove( m_uuids, old.m_uuid );
+            }
+
+            if( old.m_refs != null )
+            {
+                for( String r : old.m_refs )
+                {
+                    Set<Path> s = m_references.get( r );
+                    if( s != null )
+                    {
+                        remove( s, path );
+                        if( s.isEmpty() ) remove( m_references, r );
+                    }
+                }
+            }
+        }
+
+        /**
+         *  Removes a node with all of its descendants, or a single property.
+         *
+         *  @return True, if something was removed.
+         */
+        boolean removeEntry( Path path ) throws RepositoryException
+        {
+            NodeEntry ne = m_nodes.get( path );
+
+            if( ne != null )
+            {
+                removeNode( path, ne );
+
+                if( !path.isRoot() )
+                {
+                    NodeEntry parent = m_nodes.get( path.getParentPath() );
+                    if( parent != null ) removeChild( parent.m_children, path );
+                }
+                return true;
+            }
+
+            if( path.isRoot() ) return false;
+
+            NodeEntry parent = m_nodes.get( path.getParentPath() );
+
+            if( parent != null )
+            {
+                Location old = remove( parent.m_properties, path.getLastComponent() );
+
+                if( old != null )
+                {
+                    release( path, old );
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void removeNode( Path path, NodeEntry ne ) throws RepositoryException
+        {
+            for( Path child : ne.m_children )
+            {
+                NodeEntry ce = m_nodes.get( child );
+
+                if( ce != null ) removeNode( child, ce );
+            }
+
+            for( Map.Entry<QName,Location> e : ne.m_properties.entrySet() )
+            {
+                release( path.resolve( e.getKey() ), e.getValue() );
+            }
+
+            retire( ne.m_location );
+            retire( ne.m_order );
+
+            remove( m_nodes, path );
+        }
+
+        /**
+         *  Sets the child order.  Children which do not (yet) exist are ignored,
+         *  and existing children missing from the list keep their relative order
+         *  at the end.
+         */
+        void setOrder( Path path, List<Path> order, Location loc )
+        {
+            final NodeEntry       ne            = m_nodes.get( path );
+            final ArrayList<Path> oldChildren   = ne.m_children;
+            final Location        oldOrder      = ne.m_order;
+
+            LinkedHashSet<Path> children = new LinkedHashSet<Path>();
+            HashSet<Path>       existing = new HashSet<Path>( ne.m_children );
+
+            for( Path p : order )
+            {
+                if( existing.contains( p ) ) children.add( p );
+            }
+
+            children.addAll( ne.m_children );
+
+            ne.m_children = new ArrayList<Path>( children );
+            ne.m_order    = loc;
+
+            logUndo( new Undo()
+            {
+                void undo()
+                {
+                    ne.m_children = oldChildren;
+                    ne.m_order    = oldOrder;
+                }
+            } );
+
+            retire( oldOrder );
+            live( loc );
+        }
+
+        /**
+         *  Returns the bytes of the record.  The caller must hold the read lock.
+         */
+        byte[] readRecord( Location loc ) throws IOException
+        {
+            if( loc.m_pending != null ) return loc.m_pending;
+
+            return m_segments.get( loc.m_segment ).read( loc.m_offset, loc.m_length );
+        }
+
+        //
+        //  Writing the segments.
+        //
+
+        /**
+         *  Writes all pending records in one go.
+         *
+         *  @return True, if it looks like the store could use compaction.
+         */
+        public boolean flush() throws IOException
+        {
+            if( m_pending.isEmpty() && m_released.isEmpty() ) return false;
+
+            int total = 0;
+            for( Location loc : m_pending ) total += loc.m_length;
+
+            if( m_active.m_size > 0 && m_active.m_size + total > m_segmentSize )
+            {
+                m_lock.writeLock().lock();
+                try
+                {
+                    int next = m_active.m_number+1;
+                    m_active = new Segment( next, new File( m_dir, segmentName(next) ) );
+                    m_segments.put( next, m_active );
+                }
+                finally
+                {
+                    m_lock.writeLock().unlock();
+                }
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate( total );
+            for( Location loc : m_pending ) buf.put( loc.m_pending );
+            buf.flip();
+
+            long start = m_active.m_size;
+
+            try
+            {
+                m_active.write( buf, start );
+
+                if( m_sync ) m_active.m_channel.force( false );
+            }
+            catch( IOException e )
+            {
+                //  Don't leave half of the transaction lying around.
+                m_active.m_channel.truncate( start );
+                throw e;
+            }
+
+            m_lock.writeLock().lock();
+            try
+            {
+                long pos = start;
+
+                for( Location loc : m_pending )
+                {
+                    loc.m_segment = m_active.m_number;
+                    loc.m_offset  = pos;
+                    loc.m_pending = null;
+
+                    if( !loc.m_dead ) m_active.m_live += loc.m_length;
+
+                    pos += loc.m_length;
+                }
+
+                m_active.m_size = pos;
+
+                for( Location loc : m_released.values() ) kill( loc );
+
+                m_pending.clear();
+                m_released.clear();
+
+                return needsCompaction();
+            }
+            finally
+            {
+                m_lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         *  Returns true, if enough of the sealed segments is garbage.
+         *  The caller must hold a lock.
+         */
+        boolean needsCompaction()
+        {
+            long total = 0, live = 0;
+
+            for( Segment s : m_segments.values() )
+            {
+                if( s == m_active ) continue;
+
+                total += s.m_size;
+                live  += s.m_live;
+            }
+
+            return total > 0 && total > live && (double)(total-live)/total >= m_compactionThreshold;
+        }
+
+        /**
+         *  Returns the index entry pointing at the given record, if the record
+         *  is still live.  The caller must hold the read lock.
+         */
+        private Location findLive( byte[] record, int segment, long offset ) throws IOException, RepositoryException
+        {
+            Location released = m_released.get( ((long)segment << 40) | offset );
+
+            if( released != null ) return released;
+
+            DataInputStream in = openRecord( record );
+
+            byte op   = in.readByte();
+            Path path = PathFactory.getPath( readString(in) );
+            Location loc = null;
+
+            switch( op )
+            {
+                case OP_ADD_NODE:
+                {
+                    NodeEntry ne = m_nodes.get( path );
+                    if( ne != null ) loc = ne.m_location;
+                    break;
+                }
+                case OP_PUT_PROPERTY:
+                {
+                    NodeEntry ne = m_nodes.get( path.getParentPath() );
+                    if( ne != null ) loc = ne.m_properties.get( path.getLastComponent() );
+                    break;
+                }
+                case OP_REORDER:
+                {
+                    NodeEntry ne = m_nodes.get( path );
+                    if( ne != null ) loc = ne.m_order;
+                    break;
+                }
+            }
+
+            if( loc != null && loc.m_pending == null && !loc.m_dead &&
+                loc.m_segment == segment && loc.m_offset == offset )
+            {
+                return loc;
+            }
+
+            return null;
+        }
+
+        /**
+         *  Rewrites the live records of all sealed segments into a single segment,
+         *  which replaces them.  This is run from the compactor thread, so it
+         *  only holds the lock for short periods.
+         */
+        public void compact() throws IOException, RepositoryException
+        {
+            List<Segment> sealed = new ArrayList<Segment>();
+
+            m_lock.readLock().lock();
+            try
+            {
+                if( m_segments.isEmpty() || !needsCompaction() ) return;
+
+                for( Segment s : m_segments.values() )
+                {
+                    if( s != m_active ) sealed.add( s );
+                }
+            }
+            finally
+            {
+                m_lock.readLock().unlock();
+            }
+
+            long start  = System.currentTimeMillis();
+            int  target = sealed.get( sealed.size()-1 ).m_number;
+
+            File tmpFile       = new File( m_dir, segmentName(target)+TMP_SUFFIX );
+            File compactedFile = new File( m_dir, segmentName(target)+COMPACT_SUFFIX );
+
+            List<Move> moves = new ArrayList<Move>();
+            long newOffset = 0;
+
+            FileOutputStream fos = new FileOutputStream( tmpFile );
+            OutputStream     out = new BufferedOutputStream( fos, BUFFER_SIZE );
+
+            try
+            {
+                for( Segment s : sealed )
+                {
+                    DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(s.m_file),
+                                                                                       BUFFER_SIZE ) );
+                    long pos = 0;
+
+                    try
+                    {
+                        while( pos < s.m_size )
+                        {
+                            byte[] record = readNextRecord( in, s.m_size-pos );
+
+                            if( record == null ) throw new IOException("Damaged record in "+s.m_file+" at "+pos);
+
+                            Location loc;
+
+                            m_lock.readLock().lock();
+                            try
+                            {
+                                loc = findLive( record, s.m_number, pos );
+                            }
+                            finally
+                            {
+                                m_lock.readLock().unlock();
+                            }
+
+                            if( loc != null )
+                            {
+                                out.write( record );
+                                moves.add( new Move( loc, s.m_number, pos, newOffset ) );
+                                newOffset += record.length;
+                            }
+
+                            pos += record.length;
+                        }
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                }
+
+                out.flush();
+                fos.getFD().sync();
+            }
+            finally
+            {
+                out.close();
+            }
+
+            //
+            //  From this point on the compacted segment is complete, and it will
+            //  replace the old ones even if we crash.
+            //
+            if( !tmpFile.renameTo( compactedFile ) )
+            {
+                tmpFile.delete();
+                throw new IOException("Unable to rename "+tmpFile);
+            }
+
+            m_lock.writeLock().lock();
+            try
+            {
+                for( Segment s : sealed )
+                {
+                    s.close();
+                    m_segments.remove( s.m_number );
+
+                    if( !s.m_file.delete() ) log.warning("Unable to delete old segment "+s.m_file);
+                }
+
+                File targetFile = new File( m_dir, segmentName(target) );
+
+                if( !compactedFile.renameTo( targetFile ) )
+                    throw new IOException("Unable to rename "+compactedFile);
+
+                Segment ns = new Segment( target, targetFile );
+
+                for( Move m : moves )
+                {
+                    Location loc = m.m_location;
+
+                    if( loc.m_dead || loc.m_pending != null ||
+                        loc.m_segment != m.m_oldSegment || loc.m_offset != m.m_oldOffset ) continue;
+
+                    boolean released = m_released.remove( loc.key() ) != null;
+
+                    loc.m_segment = target;
+                    loc.m_offset  = m.m_newOffset;
+                    ns.m_live    += loc.m_length;
+
+                    if( released ) m_released.put( loc.key(), loc );
+                }
+
+                m_segments.put( target, ns );
+            }
+            finally
+            {
+                m_lock.writeLock().unlock();
+            }
+
+            log.fine("Compacted "+sealed.size()+" segments in "+m_dir+" into "+newOffset+" bytes in "+
+                     (System.currentTimeMillis()-start)+" ms");
+        }
+    }
+
+    private static final class SegmentTransaction extends BaseStoreTransaction
+    {
+        final int m_undoBase;
+        boolean   m_ended;
+
+        SegmentTransaction( WorkspaceImpl ws, int undoBase )
+        {
+            super( ws );
+            m_undoBase = undoBase;
+        }
+    }
+
+    private static final class Move
+    {
+        Location m_location;
+        int      m_oldSegment;
+        long     m_oldOffset;
+        long     m_newOffset;
+
+        Move( Location loc, int oldSegment, long oldOffset, long newOffset )
+        {
+            m_location   = loc;
+            m_oldSegment = oldSegment;
+            m_oldOffset  = oldOffset;
+            m_newOffset  = newOffset;
+        }
+    }
+
+    private static class SegmentFilter implements FilenameFilter
+    {
+        private String m_suffix;
+
+        public SegmentFilter( String suffix )
+        {
+            m_suffix = suffix;
+        }
+
+        public boolean accept( File dir, String name )
+        {
+            return name.startsWith( SEGMENT_PREFIX ) && name.endsWith( m_suffix ) &&
+                   name.length() == SEGMENT_PREFIX.length()+8+m_suffix.length() +
+                                    (m_suffix.equals(SEGMENT_SUFFIX) ? 0 : SEGMENT_SUFFIX.length());
+        }
+    }
+
+    /**
+     *  Runs the compaction in the background.  It is woken up whenever a store
+     *  looks like it could use compaction, and also checks every once in a while.
+     */
+    private class Compactor extends Thread
+    {
+        private boolean m_running = true;
+
+        public Compactor()
+        {
+            super("Priha SegmentProvider compactor");
+            setDaemon( true );
+        }
+
+        public synchronized void wakeup()
+        {
+            notify();
+        }
+
+        public synchronized void shutdown()
+        {
+            m_running = false;
+            notify();
+        }
+
+        private synchronized boolean waitForWork()
+        {
+            if( m_running )
+            {
+                try
+                {
+                    wait( COMPACTION_INTERVAL );
+                }
+                catch( InterruptedException e )
+                {
+                    return false;
+                }
+            }
+
+            return m_running;
+        }
+
+        @Override
+        public void run()
+        {
+            while( waitForWork() )
+            {
+                for( SegmentStore store : getAllStores() )
+                {
+                    try
+                    {
+                        store.compact();
+                    }
+                    catch( Exception e )
+                    {
+                        log.warning("Compaction of "+store.m_dir+" failed: "+e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -17,6 +17,8 @@
  */
 package org.priha.providers;
 
+import javax.jcr.RepositoryException;
+
 import org.priha.core.WorkspaceImpl;
 
 /**
@@ -25,4 +27,14 @@ import org.priha.core.WorkspaceImpl;
 public interface StoreTransaction
 {
     public WorkspaceImpl getWorkspace();
+    
+    /**
+     *  Called once the provider has returned from storeFinished() and the
+     *  provider locks have been released.  A provider which defers making its
+     *  changes durable can wait for that here, so that the saves which finish
+     *  at the same time can share a single flush to the disk.
+     *  
+     *  @throws RepositoryException If the changes could not be made durable.
+     */
+    public void sync() throws RepositoryException;
 }
@@ -0,0 +1,60 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.providers;
+
+import javax.jcr.RepositoryException;
+
+import org.priha.core.WorkspaceImpl;
+import org.priha.path.Path;
+
+/**
+ *  A RepositoryProvider may implement this interface if it can handle a whole
+ *  subtree of Nodes at once.  Priha then removes a Node with a single call to
+ *  removeSubtree() instead of calling remove() for each of its descendants and
+ *  properties.
+ *  <p>
+ *  Like the other modifying methods, these are called while holding the
+ *  write lock of the provider.
+ */
+public interface SubtreeOperations
+{
+    /**
+     *  Removes a Node with all of its properties and descendants, including
+     *  any UUIDs and references they hold.  It MUST NOT be an error if the
+     *  Node has already been removed.
+     *  
+     *  @param tx The transaction.
+     *  @param path The path of the Node.
+     *  @throws RepositoryException If the removal fails.
+     */
+    public void removeSubtree( StoreTransaction tx, Path path ) throws RepositoryException;
+    
+    /**
+     *  Copies a Node with all of its properties and descendants to a new path
+     *  in the same workspace.  The copies of referenceable Nodes get new UUIDs.
+     *  The copy is written immediately, outside of any transaction.
+     *  
+     *  @param ws The workspace.
+     *  @param srcpath The Node to copy.
+     *  @param destpath The path of the copy.  Its parent must exist.
+     *  @throws javax.jcr.PathNotFoundException If the source or the parent of the destination does not exist.
+     *  @throws javax.jcr.ItemExistsException If the destination already exists.
+     *  @throws RepositoryException If the copy fails.
+     */
+    public void copy( WorkspaceImpl ws, Path srcpath, Path destpath ) throws RepositoryException;
+}
@@ -0,0 +1,501 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.providers;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.ValueFormatException;
+
+import org.priha.core.binary.BinarySource;
+import org.priha.core.binary.MemoryBinarySource;
+import org.priha.core.namespace.NamespaceMapper;
+import org.priha.core.values.*;
+import org.priha.path.PathFactory;
+import org.priha.util.QName;
+
+/**
+ *  Encodes a ValueContainer into a compact binary form, for providers which
+ *  store each property as a single blob of bytes.  The values are kept in
+ *  their native form, so a LONG is a varint instead of a decimal string, and
+ *  reading them back needs no parsing.
+ *  <p>
+ *  The format is
+ *  <pre>
+ *    byte   MAGIC
+ *    byte   VERSION
+ *    byte   property type
+ *    byte   flags (1 = multi-valued)
+ *    varint number of values
+ *    value*
+ *  </pre>
+ *  where each value is
+ *  <ul>
+ *  <li>STRING, NAME, PATH, REFERENCE: varint length and UTF-8.  Names and paths
+ *      are fully qualified, so they do not depend on any namespace mappings.</li>
+ *  <li>LONG: zigzag varint.</li>
+ *  <li>DATE: zigzag varint of the milliseconds since the epoch.</li>
+ *  <li>DOUBLE: the 8 bytes of the IEEE 754 representation.</li>
+ *  <li>BOOLEAN: one byte.</li>
+ *  <li>BINARY: varint of (length &lt;&lt; 1 | key), followed by the bytes.  If the
+ *      key bit is set, the bytes are the UTF-8 key under which a 
+ *      {@link BinaryEncoder} stored the binary.</li>
+ *  </ul>
+ *  The first byte is never 0xAC, so the encoding can be told apart from Java
+ *  serialization, which providers used before.
+ */
+public final class ValueCodec
+{
+    /** The first byte of every encoded ValueContainer. */
+    public static final int MAGIC   = 0x9D;
+    
+    /** The version of the format which is written. */
+    public static final int VERSION = 1;
+    
+    private static final int FLAG_MULTI = 1;
+    
+    private ValueCodec() {}
+    
+    /**
+     *  Decides where the binaries are kept when encoding.  If no encoder is given, 
+     *  all binaries are stored within the encoded form.
+     */
+    public interface BinaryEncoder
+    {
+        /**
+         *  Stores a binary outside the encoded form, if the encoder wants to.
+         *  
+         *  @param v The binary.
+         *  @return The key of the binary, or null, if it should be written inline.
+         */
+        public String store( StreamValueImpl v ) throws IOException, RepositoryException;
+    }
+    
+    /**
+     *  Reads the binaries when decoding.  If no decoder is given, the inline 
+     *  binaries are read into memory, and there may be no binaries stored by key.
+     */
+    public interface BinaryDecoder
+    {
+        /**
+         *  Returns a binary which {@link BinaryEncoder#store(StreamValueImpl)} 
+         *  returned the key for.
+         */
+        public BinarySource load( String key ) throws IOException;
+        
+        /**
+         *  Reads an inline binary of the given length from the stream.
+         */
+        public BinarySource read( InputStream in, long length ) throws IOException;
+    }
+    
+    /**
+     *  Both writes and reads the binaries, for providers which keep them in the
+     *  same place either way.
+     */
+    public interface BinaryHandler extends BinaryEncoder, BinaryDecoder
+    {
+    }
+    
+    /**
+     *  Returns true, if the bytes start like an encoded ValueContainer.
+     */
+    public static boolean isEncoded( int firstByte )
+    {
+        return firstByte == MAGIC;
+    }
+    
+    /**
+     *  Writes a ValueContainer.  The values are consumed.
+     *  
+     *  @param vc The values.
+     *  @param out The stream to write to.
+     *  @param encoder Decides where the binaries are kept.  May be null.
+     *  @throws IOException If writing fails.
+     *  @throws RepositoryException If the values cannot be read.
+     */
+    public static void encode( ValueContainer vc, OutputStream out, BinaryEncoder encoder ) 
+        throws IOException, RepositoryException
+    {
+        ValueImpl[] values = vc.isMultiple() ? vc.getValues() : new ValueImpl[] { vc.getValue() };
+        int         type   = vc.getType();
+        
+        out.write( MAGIC );
+        out.write( VERSION );
+        out.write( type );
+        out.write( vc.isMultiple() ? FLAG_MULTI : 0 );
+        writeVarLong( out, values.length );
+        
+        for( ValueImpl v : values )
+        {
+            switch( type )
+            {
+                case PropertyType.STRING:
+                case PropertyType.REFERENCE:
+                    writeString( out, v.getString() );
+                    break;
+                
+                case PropertyType.NAME:
+                case PropertyType.PATH:
+                    if( !(v instanceof QValue.QValueInner) ) 
+                        throw new ValueFormatException("Not a qualified value: "+v);
+                    
+                    writeString( out, ((QValue.QValueInner)v).getQValue().getString() );
+                    break;
+                
+                case PropertyType.LONG:
+                    writeVarLong( out, zigzag( v.getLong() ) );
+                    break;
+                
+                case PropertyType.DATE:
+                    writeVarLong( out, zigzag( v.getDate().getTimeInMillis() ) );
+                    break;
+                
+                case PropertyType.DOUBLE:
+                    long bits = Double.doubleToLongBits( v.getDouble() );
+                    for( int i = 56; i >= 0; i -= 8 ) out.write( (int)(bits >>> i) );
+                    break;
+                
+                case PropertyType.BOOLEAN:
+                    out.write( v.getBoolean() ? 1 : 0 );
+                    break;
+                
+                case PropertyType.BINARY:
+                    writeBinary( out, (StreamValueImpl)v, encoder );
+                    break;
+                
+                default:
+                    throw new ValueFormatException("Cannot encode a value of type "+PropertyType.nameFromValue(type));
+            }
+        }
+    }
+    
+    /**
+     *  Encodes a ValueContainer into a byte array.
+     *  
+     *  @see #encode(ValueContainer, OutputStream, BinaryEncoder)
+     */
+    public static byte[] encode( ValueContainer vc, BinaryEncoder encoder ) throws IOException, RepositoryException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        encode( vc, out, encoder );
+        
+        return out.toByteArray();
+    }
+    
+    private static void writeBinary( OutputStream out, StreamValueImpl v, BinaryEncoder encoder ) 
+        throws IOException, RepositoryException
+    {
+        String key = encoder != null ? encoder.store( v ) : null;
+        
+        if( key != null )
+        {
+            byte[] b = key.getBytes("UTF-8");
+            
+            writeVarLong( out, ((long)b.length << 1) | 1 );
+            out.write( b );
+            return;
+        }
+        
+        long        length = v.getLength();
+        InputStream in     = v.getStream();
+        
+        try
+        {
+            writeVarLong( out, length << 1 );
+            
+            byte[] buf = new byte[(int)Math.min( length, 8192 )];
+            
+            for( long left = length; left > 0; )
+            {
+                int n = in.read( buf, 0, (int)Math.min( left, buf.length ) );
+                
+                if( n < 0 ) throw new EOFException("Binary is shorter than its length "+length);
+                
+                out.write( buf, 0, n );
+                left -= n;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    /**
+     *  Reads a ValueContainer.
+     *  
+     *  @param in The stream to read from.
+     *  @param nsm The namespace mappings of the NAME and PATH values which are created.
+     *  @param decoder Reads the binaries.  May be null.
+     *  @return The ValueContainer.
+     *  @throws IOException If the stream is not an encoded ValueContainer, or it
+     *                      has been written by a newer version.
+     *  @throws RepositoryException If the values cannot be created.
+     */
+    public static ValueContainer decode( InputStream in, NamespaceMapper nsm, BinaryDecoder decoder ) 
+        throws IOException, RepositoryException
+    {
+        int     type  = readHeader( in );
+        boolean multi = (readByte( in ) & FLAG_MULTI) != 0;
+        int     count = (int)readVarLong( in );
+        
+        ValueImpl[] values = new ValueImpl[count];
+        
+        for( int i = 0; i < count; i++ )
+        {
+            switch( type )
+            {
+                case PropertyType.STRING:
+                    values[i] = new StringValueImpl( readString( in ) );
+                    break;
+                
+                case PropertyType.REFERENCE:
+                    values[i] = new ReferenceValueImpl( readString( in ) );
+                    break;
+                
+                case PropertyType.NAME:
+                    values[i] = new QNameValue( QName.valueOf( readString( in ) ) ).new Impl( nsm );
+                    break;
+                
+                case PropertyType.PATH:
+                    values[i] = new QPathValue( PathFactory.getPath( nsm, readString( in ) ) ).new Impl( nsm );
+                    break;
+                
+                case PropertyType.LONG:
+                    values[i] = new LongValueImpl( unzigzag( readVarLong( in ) ) );
+                    break;
+                
+                case PropertyType.DATE:
+                    Calendar cal = Calendar.getInstance();
+                    cal.setTimeInMillis( unzigzag( readVarLong( in ) ) );
+                    values[i] = new CalendarValueImpl( cal );
+                    break;
+                
+                case PropertyType.DOUBLE:
+                    long bits = 0;
+                    for( int b = 0; b < 8; b++ ) bits = (bits << 8) | readByte( in );
+                    values[i] = new DoubleValueImpl( Double.longBitsToDouble( bits ) );
+                    break;
+                
+                case PropertyType.BOOLEAN:
+                    values[i] = new BooleanValueImpl( readByte( in ) != 0 );
+                    break;
+                
+                case PropertyType.BINARY:
+                    values[i] = new StreamValueImpl( readBinary( in, decoder ) );
+                    break;
+                
+                default:
+                    throw new IOException("Unknown value type "+type);
+            }
+        }
+        
+        return multi ? new ValueContainer( values, type ) : new ValueContainer( values[0] );
+    }
+    
+    /**
+     *  Decodes a ValueContainer from a byte array.
+     *  
+     *  @see #decode(InputStream, NamespaceMapper, BinaryDecoder)
+     */
+    public static ValueContainer decode( byte[] b, NamespaceMapper nsm, BinaryDecoder decoder ) 
+        throws IOException, RepositoryException
+    {
+        return decode( new ByteArrayInputStream( b ), nsm, decoder );
+    }
+    
+    private static BinarySource readBinary( InputStream in, BinaryDecoder decoder ) throws IOException
+    {
+        long header = readVarLong( in );
+        long length = header >>> 1;
+        
+        if( (header & 1) != 0 )
+        {
+            if( decoder == null ) throw new IOException("Binary is stored outside, but there is no decoder");
+            
+            return decoder.load( readString( in, (int)length ) );
+        }
+        
+        if( decoder != null ) return decoder.read( in, length );
+        
+        return new MemoryBinarySource( readFully( in, (int)length ) );
+    }
+    
+    /**
+     *  Returns the property type of an encoded ValueContainer without decoding
+     *  the values.
+     *  
+     *  @param in The encoded ValueContainer.
+     *  @return The property type.
+     *  @throws IOException If the stream is not an encoded ValueContainer.
+     */
+    public static int getType( InputStream in ) throws IOException
+    {
+        return readHeader( in );
+    }
+    
+    /**
+     *  Returns the keys of the binaries which a BinaryEncoder stored, without 
+     *  decoding the values.
+     *  
+     *  @param in The encoded ValueContainer.
+     *  @return A List of keys.  May be empty.
+     *  @throws IOException If the stream cannot be read.
+     */
+    public static List<String> getBinaryKeys( InputStream in ) throws IOException
+    {
+        List<String> keys = new ArrayList<String>();
+        
+        if( readHeader( in ) != PropertyType.BINARY ) return keys;
+        
+        readByte( in );
+        
+        for( long count = readVarLong( in ); count > 0; count-- )
+        {
+            long header = readVarLong( in );
+            long length = header >>> 1;
+            
+            if( (header & 1) != 0 )
+            {
+                keys.add( readString( in, (int)length ) );
+            }
+            else
+            {
+                for( long left = length; left > 0; )
+                {
+                    long n = in.skip( left );
+                    
+                    if( n <= 0 ) 
+                    {
+                        readByte( in );
+                        n = 1;
+                    }
+                    
+                    left -= n;
+                }
+            }
+        }
+        
+        return keys;
+    }
+    
+    /**
+     *  Checks the magic and the version, and returns the property type.
+     */
+    private static int readHeader( InputStream in ) throws IOException
+    {
+        int magic = readByte( in );
+        
+        if( magic != MAGIC ) throw new IOException("Not an encoded ValueContainer");
+        
+        int version = readByte( in );
+        
+        if( version > VERSION ) throw new IOException("Unsupported encoding version "+version);
+        
+        return readByte( in );
+    }
+    
+    private static long zigzag( long v )
+    {
+        return (v << 1) ^ (v >> 63);
+    }
+    
+    private static long unzigzag( long v )
+    {
+        return (v >>> 1) ^ -(v & 1);
+    }
+    
+    /**
+     *  Writes an unsigned varint, seven bits at a time, least significant first.
+     */
+    private static void writeVarLong( OutputStream out, long v ) throws IOException
+    {
+        while( (v & ~0x7FL) != 0 )
+        {
+            out.write( (int)((v & 0x7F) | 0x80) );
+            v >>>= 7;
+        }
+        
+        out.write( (int)v );
+    }
+    
+    private static long readVarLong( InputStream in ) throws IOException
+    {
+        long v = 0;
+        
+        for( int shift = 0; shift < 64; shift += 7 )
+        {
+            int b = readByte( in );
+            
+            v |= (long)(b & 0x7F) << shift;
+            
+            if( (b & 0x80) == 0 ) return v;
+        }
+        
+        throw new IOException("Malformed varint");
+    }
+    
+    private static void writeString( OutputStream out, String s ) throws IOException
+    {
+        byte[] b = s.getBytes("UTF-8");
+        
+        writeVarLong( out, b.length );
+        out.write( b );
+    }
+    
+    private static String readString( InputStream in ) throws IOException
+    {
+        return readString( in, (int)readVarLong( in ) );
+    }
+    
+    private static String readString( InputStream in, int length ) throws IOException
+    {
+        return new String( readFully( in, length ), "UTF-8" );
+    }
+    
+    private static byte[] readFully( InputStream in, int length ) throws IOException
+    {
+        byte[] b = new byte[length];
+        
+        for( int off = 0; off < length; )
+        {
+            int n = in.read( b, off, length-off );
+            
+            if( n < 0 ) throw new EOFException();
+            
+            off += n;
+        }
+        
+        return b;
+    }
+    
+    private static int readByte( InputStream in ) throws IOException
+    {
+        int b = in.read();
+        
+        if( b < 0 ) throw new EOFException();
+        
+        return b;
+    }
+}
@@ -49,7 +49,7 @@ public class PrihaQueryManager implements QueryManager
      */
     protected QueryProvider getQueryProvider()
     {
-        return new SimpleQueryProvider();
+        return new PushdownQueryProvider();
     }
     
     public Query createQuery(String statement, String language) throws InvalidQueryException, RepositoryException
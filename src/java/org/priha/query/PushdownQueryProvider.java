@@ -0,0 +1,157 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.QueryResult;
+
+import org.priha.core.ItemImpl;
+import org.priha.core.NodeImpl;
+import org.priha.core.SessionImpl;
+import org.priha.path.Path;
+import org.priha.query.aqt.LocationStepQueryNode;
+import org.priha.query.aqt.PathQueryNode;
+import org.priha.query.aqt.QueryRootNode;
+import org.priha.util.QName;
+
+/**
+ *  A query provider which lets the repository provider search for the Nodes,
+ *  if it implements {@link org.priha.providers.QueryPushdown}.  The provider 
+ *  returns a set of candidates, which are then checked against the query 
+ *  one by one, so the provider only needs to narrow down the search.
+ *  <p>
+ *  The provider cannot see unsaved changes, so queries from a Session which
+ *  has pending changes are run by the SimpleQueryProvider, as are the queries
+ *  which have position tests or predicates on any other step than the last one.
+ */
+public class PushdownQueryProvider extends SimpleQueryProvider
+{
+    @Override
+    public QueryResult query( SessionImpl session, QueryRootNode root ) throws RepositoryException
+    {
+        if( !session.hasPendingChanges() && isSupported( root ) )
+        {
+            List<Path> candidates = session.getWorkspace().findNodes( root );
+            
+            if( candidates != null )
+            {
+                LocationStepQueryNode[] steps = root.getLocationNode().getPathSteps();
+                LocationStepQueryNode   last  = steps[steps.length-1];
+                List<NodeImpl>          matches = new ArrayList<NodeImpl>();
+                QueryCollector          c = new QueryCollector();
+                
+                for( Path p : candidates )
+                {
+                    if( !matches( steps, 0, p, 0 ) ) continue;
+                    
+                    ItemImpl ii;
+                    
+                    try
+                    {
+                        ii = session.getItem( p );
+                    }
+                    catch( PathNotFoundException e )
+                    {
+                        // Removed after the query was run.
+                        continue;
+                    }
+                    
+                    if( !ii.isNode() ) continue;
+                    
+                    c.setCurrentItem( (NodeImpl)ii );
+                    
+                    if( checkPredicates( last, c ) ) matches.add( (NodeImpl)ii );
+                }
+                
+                return createResult( root, matches );
+            }
+        }
+        
+        return super.query( session, root );
+    }
+    
+    /**
+     *  Returns true, if the query is simple enough that the candidates can be
+     *  checked one at a time.
+     */
+    private static boolean isSupported( QueryRootNode root )
+    {
+        PathQueryNode pathNode = root.getLocationNode();
+        
+        if( pathNode == null ) return false;
+        
+        LocationStepQueryNode[] steps = pathNode.getPathSteps();
+        
+        if( steps.length == 0 || (steps.length == 1 && isRootStep( steps[0] )) ) return false;
+        
+        for( int i = 0; i < steps.length; i++ )
+        {
+            LocationStepQueryNode step = steps[i];
+            
+            if( step.getIndex() != LocationStepQueryNode.NONE ) return false;
+            
+            if( i < steps.length-1 && step.getPredicates().length > 0 ) return false;
+            
+            QName name = step.getNameTest();
+            
+            if( name != null && name.getLocalPart().length() == 0 && !(i == 0 && isRootStep( step )) ) return false;
+        }
+        
+        return true;
+    }
+    
+    private static boolean isRootStep( LocationStepQueryNode step )
+    {
+        QName name = step.getNameTest();
+        
+        return name != null && name.getLocalPart().length() == 0 && !step.getIncludeDescendants();
+    }
+    
+    /**
+     *  Checks that the components of the path starting at <i>component</i> match the
+     *  steps starting at <i>stepIdx</i>.  A descendant step may skip any number
+     *  of components.
+     */
+    private static boolean matches( LocationStepQueryNode[] steps, int stepIdx, Path path, int component )
+    {
+        if( stepIdx == steps.length ) return component == path.depth();
+        
+        LocationStepQueryNode step = steps[stepIdx];
+        
+        if( isRootStep( step ) ) return component == 0 && matches( steps, stepIdx+1, path, component );
+        
+        int last = step.getIncludeDescendants() ? path.depth()-1 : component;
+        
+        for( int i = component; i <= last && i < path.depth(); i++ )
+        {
+            QName name = step.getNameTest();
+            
+            if( (name == null || name.equals( path.getComponent( i ).getQName() )) &&
+                matches( steps, stepIdx+1, path, i+1 ) )
+            {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+}
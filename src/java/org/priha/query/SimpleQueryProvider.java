@@ -61,12 +61,21 @@ public class SimpleQueryProvider extends TraversingQueryNodeVisitor implements Q
             System.out.println( ii );
         }
 
+        return createResult( root, c.m_matches );
+    }
+    
+    /**
+     *  Sorts the matched Nodes, if the query asks for it, and figures out the
+     *  columns of the result.
+     */
+    protected QueryResult createResult( QueryRootNode root, List<NodeImpl> matches ) throws RepositoryException
+    {
         if( root.getOrderNode() != null )
         {
-            Collections.sort( c.m_matches, new QuerySorter( root.getOrderNode() ) );
+            Collections.sort( matches, new QuerySorter( root.getOrderNode() ) );
 
             System.out.println( "+++" );
-            for( ItemImpl ii : c.m_matches )
+            for( ItemImpl ii : matches )
             {
                 System.out.println( ii );
             }
@@ -115,7 +124,7 @@ public class SimpleQueryProvider extends TraversingQueryNodeVisitor implements Q
             }
         }
 
-        return new QueryResultImpl( c.m_matches, columns );
+        return new QueryResultImpl( matches, columns );
     }
 
     @Override
@@ -578,6 +587,8 @@ public class SimpleQueryProvider extends TraversingQueryNodeVisitor implements Q
             //
             if( node.getIncludeDescendants() )
             {
+                currNode.getSession().prefetch( currNode.getInternalPath() );
+                
                 for( NodeIterator iter = currNode.getNodes(); iter.hasNext(); )
                 {
                     NodeImpl child = (NodeImpl)iter.nextNode();
@@ -691,23 +702,22 @@ public class SimpleQueryProvider extends TraversingQueryNodeVisitor implements Q
         return null;
     }
 
-    private boolean checkPredicates( LocationStepQueryNode node, QueryCollector data ) throws RepositoryException
+    /**
+     *  Returns true, if the current Node of the collector matches all the
+     *  predicates of the location step.
+     */
+    boolean checkPredicates( LocationStepQueryNode node, QueryCollector data ) throws RepositoryException
     {
         Object[] result = node.acceptOperands( this, data );
 
-        if( node.getPredicates().length != 0 && result.length == 0 )
-        {
-            return false;
-        }
-
-        return true;
+        return result.length == node.getPredicates().length;
     }
 
     /**
      * This class collects the results of the Query.
      */
 
-    private static class QueryCollector
+    static class QueryCollector
     {
         private boolean m_isLast;
 
@@ -0,0 +1,534 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.priha.util;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.priha.core.binary.BinarySource;
+import org.priha.core.binary.FileBinarySource;
+
+/**
+ *  A content-addressed store for large binaries.  Each blob is stored once,
+ *  under the SHA-256 hash of its contents, no matter how many properties
+ *  refer to it.  Providers store just the hash.
+ *  <p>
+ *  A blob is kept for as long as its reference count is above zero.  The counts
+ *  are changed only when a save is finished, through a {@link Changes} object:
+ *  <ol>
+ *   <li>{@link #put(InputStream)} stores the blob and pins it in memory,</li>
+ *   <li>{@link #acquire(Changes)} is called before the pointers are made durable,</li>
+ *   <li>{@link #release(Changes)} is called after the old pointers are gone, and</li>
+ *   <li>{@link #cancel(Changes)} is called instead if the save fails.</li>
+ *  </ol>
+ *  So a crash may leave a blob with a count which is too high, but never a pointer
+ *  to a missing blob.  The blobs which were stored but never acquired are removed
+ *  by {@link #collectGarbage()}.
+ *  <p>
+ *  A stream returned by a BinarySource from this store is recognized by put(),
+ *  so storing it again (e.g. when a Node is checked in) does not read it at all.
+ *  <p>
+ *  The store is shared by all the Workspaces of a provider and is thread-safe.
+ */
+public class BlobStore
+{
+    private static final String ALGORITHM   = "SHA-256";
+    private static final int    HASH_LENGTH = 64;
+    private static final String REFS_SUFFIX = ".refs";
+    private static final String TMP_DIR     = "tmp";
+    private static final char[] HEX         = "0123456789abcdef".toCharArray();
+
+    private Logger log = Logger.getLogger( BlobStore.class.getName() );
+
+    private File    m_dir;
+    private File    m_tmpDir;
+    private boolean m_sync;
+
+    /* Blobs which have been stored but not yet acquired or cancelled. */
+    private Map<String,Integer> m_pinned = new HashMap<String,Integer>();
+
+    /**
+     *  Opens a store, creating the directory if necessary.
+     *
+     *  @param dir The directory.
+     *  @param sync If true, the blobs and the reference counts are forced to the disk.
+     *  @throws IOException If the directory cannot be created.
+     */
+    public BlobStore( File dir, boolean sync ) throws IOException
+    {
+        m_dir    = dir;
+        m_tmpDir = new File( dir, TMP_DIR );
+        m_sync   = sync;
+
+        m_tmpDir.mkdirs();
+
+        if( !m_tmpDir.isDirectory() ) throw new IOException( "Unable to create the blob store directory "+m_tmpDir );
+
+        //
+        //  Anything left in the temporary directory is from an interrupted put().
+        //
+        File[] leftovers = m_tmpDir.listFiles();
+
+        for( File f : leftovers ) f.delete();
+    }
+
+    /**
+     *  Stores the contents of a stream, and closes it.  The returned blob is pinned
+     *  until it is acquired or cancelled.
+     *
+     *  @param in The stream.
+     *  @return The hash of the contents.
+     *  @throws IOException If the blob cannot be written.
+     */
+    public String put( InputStream in ) throws IOException
+    {
+        try
+        {
+            if( in instanceof BlobInputStream && ((BlobInputStream)in).getStore() == this )
+            {
+                String hash = ((BlobInputStream)in).getHash();
+
+                synchronized( this )
+                {
+                    pin( hash );
+
+                    if( getFile( hash ).exists() ) return hash;
+
+                    unpin( hash );
+                }
+
+                //
+                //  Released in the meantime, so store it again from the still open stream.
+                //
+            }
+
+            MessageDigest md  = newDigest();
+            File          tmp = File.createTempFile( "blob", ".tmp", m_tmpDir );
+
+            try
+            {
+                FileOutputStream out = new FileOutputStream( tmp );
+
+                try
+                {
+                    byte[] buf = new byte[8192];
+                    int    n;
+
+                    while( (n = in.read( buf )) != -1 )
+                    {
+                        md.update( buf, 0, n );
+                        out.write( buf, 0, n );
+                    }
+
+                    if( m_sync ) out.getFD().sync();
+                }
+                finally
+                {
+                    out.close();
+                }
+
+                String hash = toHex( md.digest() );
+
+                synchronized( this )
+                {
+                    pin( hash );
+
+                    File f = getFile( hash );
+
+                    if( !f.exists() )
+                    {
+                        f.getParentFile().mkdirs();
+
+                        if( !tmp.renameTo( f ) )
+                        {
+                            unpin( hash );
+                            throw new IOException( "Unable to rename "+tmp+" to "+f );
+                        }
+                    }
+                }
+
+                return hash;
+            }
+            finally
+            {
+                tmp.delete();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     *  Returns the blob with the given hash.  The blob is not checked to exist.
+     *
+     *  @param hash The hash returned by put().
+     *  @return A BinarySource for the blob.
+     *  @throws IOException If the hash is not valid.
+     */
+    public BinarySource get( String hash ) throws IOException
+    {
+        return new BlobBinarySource( this, hash, getFile( hash ) );
+    }
+
+    /**
+     *  Returns true, if the blob is in the store.
+     */
+    public boolean contains( String hash ) throws IOException
+    {
+        return getFile( hash ).exists();
+    }
+
+    /**
+     *  Returns the current reference count of a blob.
+     */
+    public synchronized int getReferenceCount( String hash ) throws IOException
+    {
+        return readRefs( hash );
+    }
+
+    /**
+     *  Increments the reference counts of the blobs added in the given Changes and
+     *  unpins them.
+     */
+    public synchronized void acquire( Changes changes ) throws IOException
+    {
+        for( String hash : changes.m_added )
+        {
+            writeRefs( hash, readRefs( hash )+1 );
+            unpin( hash );
+        }
+
+        changes.m_added.clear();
+    }
+
+    /**
+     *  Decrements the reference counts of the blobs removed in the given Changes,
+     *  and deletes the blobs which are no longer used.
+     */
+    public synchronized void release( Changes changes ) throws IOException
+    {
+        for( String hash : changes.m_removed )
+        {
+            int refs = readRefs( hash )-1;
+
+            if( refs > 0 )
+            {
+                writeRefs( hash, refs );
+            }
+            else
+            {
+                new File( getFile( hash ).getPath()+REFS_SUFFIX ).delete();
+                collect( hash );
+            }
+        }
+
+        changes.m_removed.clear();
+    }
+
+    /**
+     *  Forgets the given Changes.  The blobs which were added and are not used by
+     *  anyone else are deleted.
+     */
+    public synchronized void cancel( Changes changes )
+    {
+        for( String hash : changes.m_added )
+        {
+            unpin( hash );
+
+            try
+            {
+                if( readRefs( hash ) == 0 ) collect( hash );
+            }
+            catch( IOException e )
+            {
+                log.warning( "Unable to clean up blob "+hash+": "+e.getMessage() );
+            }
+        }
+
+        changes.m_added.clear();
+        changes.m_removed.clear();
+    }
+
+    /**
+     *  Deletes all blobs which have no references and are not pinned, i.e. the ones
+     *  left behind by a crash in the middle of a save.
+     *
+     *  @return The number of blobs deleted.
+     */
+    public synchronized int collectGarbage() throws IOException
+    {
+        List<File> blobs = new ArrayList<File>();
+
+        listBlobs( m_dir, 0, blobs );
+
+        int count = 0;
+
+        for( File f : blobs )
+        {
+            String hash = f.getName();
+
+            if( readRefs( hash ) == 0 && !m_pinned.containsKey( hash ) )
+            {
+                if( f.delete() ) count++;
+            }
+        }
+
+        if( count > 0 ) log.info( "Removed "+count+" unused blobs from "+m_dir );
+
+        return count;
+    }
+
+    private void listBlobs( File dir, int depth, List<File> result )
+    {
+        File[] files = dir.listFiles();
+
+        if( files == null ) return;
+
+        for( File f : files )
+        {
+            if( depth < 2 && f.isDirectory() && f.getName().length() == 2 )
+                listBlobs( f, depth+1, result );
+            else if( depth == 2 && f.getName().length() == HASH_LENGTH )
+                result.add( f );
+        }
+    }
+
+    private void pin( String hash )
+    {
+        Integer n = m_pinned.get( hash );
+
+        m_pinned.put( hash, n == null ? 1 : n+1 );
+    }
+
+    private void unpin( String hash )
+    {
+        Integer n = m_pinned.get( hash );
+
+        if( n == null ) return;
+
+        if( n > 1 )
+            m_pinned.put( hash, n-1 );
+        else
+            m_pinned.remove( hash );
+    }
+
+    /**
+     *  Deletes an unreferenced blob, unless someone is just storing it.
+     */
+    private void collect( String hash ) throws IOException
+    {
+        if( !m_pinned.containsKey( hash ) ) getFile( hash ).delete();
+    }
+
+    /**
+     *  Returns the file of a blob; the blobs are spread over two levels of
+     *  subdirectories so that no directory grows too large.
+     */
+    private File getFile( String hash ) throws IOException
+    {
+        if( hash.length() != HASH_LENGTH ) throw new IOException( "Not a valid blob hash: "+hash );
+
+        for( int i = 0; i < HASH_LENGTH; i++ )
+        {
+            char c = hash.charAt( i );
+
+            if( (c < '0' || c > '9') && (c < 'a' || c > 'f') ) throw new IOException( "Not a valid blob hash: "+hash );
+        }
+
+        return new File( m_dir, hash.substring( 0, 2 )+File.separator+hash.substring( 2, 4 )+File.separator+hash );
+    }
+
+    private int readRefs( String hash ) throws IOException
+    {
+        File f = new File( getFile( hash ).getPath()+REFS_SUFFIX );
+
+        if( !f.exists() ) return 0;
+
+        FileInputStream in = new FileInputStream( f );
+        String          s;
+
+        try
+        {
+            s = FileUtil.readContents( in, "UTF-8" ).trim();
+        }
+        finally
+        {
+            in.close();
+        }
+
+        try
+        {
+            return Integer.parseInt( s );
+        }
+        catch( NumberFormatException e )
+        {
+            throw new IOException( "Corrupted reference count in "+f+": "+s );
+        }
+    }
+
+    /**
+     *  Writes the reference count to a new file and renames it over the old one,
+     *  so that a crash cannot leave a half-written count behind.
+     */
+    private void writeRefs( String hash, int refs ) throws IOException
+    {
+        File f   = new File( getFile( hash ).getPath()+REFS_SUFFIX );
+        File tmp = File.createTempFile( "refs", ".tmp", m_tmpDir );
+
+        FileOutputStream out = new FileOutputStream( tmp );
+
+        try
+        {
+            out.write( Integer.toString( refs ).getBytes( "UTF-8" ) );
+
+            if( m_sync ) out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if( !tmp.renameTo( f ) )
+        {
+            //
+            //  Windows does not allow renaming over an existing file.
+            //
+            f.delete();
+
+            if( !tmp.renameTo( f ) )
+            {
+                tmp.delete();
+                throw new IOException( "Unable to rename "+tmp+" to "+f );
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() throws IOException
+    {
+        try
+        {
+            return MessageDigest.getInstance( ALGORITHM );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            throw new IOException( ALGORITHM+" is not available" );
+        }
+    }
+
+    private static String toHex( byte[] ba )
+    {
+        StringBuilder sb = new StringBuilder( ba.length*2 );
+
+        for( byte b : ba )
+        {
+            sb.append( HEX[(b >> 4) & 0x0f] );
+            sb.append( HEX[b & 0x0f] );
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     *  Collects the blob references added and removed during a single save.
+     */
+    public static class Changes
+    {
+        private List<String> m_added   = new ArrayList<String>();
+        private List<String> m_removed = new ArrayList<String>();
+
+        /**
+         *  Records a new reference to a blob returned by put().
+         */
+        public void added( String hash )
+        {
+            m_added.add( hash );
+        }
+
+        /**
+         *  Records that a reference to a blob has been removed.
+         */
+        public void removed( String hash )
+        {
+            m_removed.add( hash );
+        }
+
+        public boolean isEmpty()
+        {
+            return m_added.isEmpty() && m_removed.isEmpty();
+        }
+    }
+
+    /**
+     *  A blob.  Its streams are recognized by put().
+     */
+    private static class BlobBinarySource extends FileBinarySource
+    {
+        private BlobStore m_store;
+        private String    m_hash;
+
+        public BlobBinarySource( BlobStore store, String hash, File f )
+        {
+            super( f );
+            m_store = store;
+            m_hash  = hash;
+        }
+
+        @Override
+        public InputStream getStream() throws IOException
+        {
+            return new BlobInputStream( m_store, m_hash, getFile() );
+        }
+
+        @Override
+        public BlobBinarySource clone()
+        {
+            return new BlobBinarySource( m_store, m_hash, getFile() );
+        }
+    }
+
+    private static class BlobInputStream extends FileInputStream
+    {
+        private BlobStore m_store;
+        private String    m_hash;
+
+        public BlobInputStream( BlobStore store, String hash, File f ) throws FileNotFoundException
+        {
+            super( f );
+            m_store = store;
+            m_hash  = hash;
+        }
+
+        public BlobStore getStore()
+        {
+            return m_store;
+        }
+
+        public String getHash()
+        {
+            return m_hash;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  A scalable Bloom filter: it tells whether an object has possibly been added
+ *  to it, or definitely not.  The false positive rate stays roughly the same 
+ *  however many objects are added, because whenever the current filter gets full,
+ *  a new one twice the size and with half the false positive rate is added after it
+ *  (Almeida et al., "Scalable Bloom Filters", 2007).
+ *  <p>
+ *  Objects cannot be removed.  The filter is thread-safe and does not lock, 
+ *  except when it grows.
+ */
+public class BloomFilter
+{
+    private static final int    GROWTH     = 2;
+    private static final double TIGHTENING = 0.5;
+    private static final double LN2        = Math.log( 2 );
+    
+    private volatile Stage[] m_stages;
+    
+    /**
+     *  Creates a new filter.
+     *  
+     *  @param initialCapacity The number of objects the first stage holds.
+     *  @param falsePositiveRate The false positive rate of the first stage.  The
+     *                           total rate is at most twice this.
+     */
+    public BloomFilter( int initialCapacity, double falsePositiveRate )
+    {
+        m_stages = new Stage[] { new Stage( Math.max( 64, initialCapacity ), falsePositiveRate ) };
+    }
+    
+    /**
+     *  Adds an object to the filter.
+     *  
+     *  @param o The object.  Its hashCode() is used.
+     */
+    public void add( Object o )
+    {
+        long hash = mix( o.hashCode() );
+        
+        if( contains( hash ) ) return;
+        
+        Stage[] stages = m_stages;
+        Stage   last   = stages[stages.length-1];
+        
+        if( last.m_count.get() >= last.m_capacity ) last = grow( last );
+        
+        last.add( hash );
+    }
+    
+    /**
+     *  Returns false, if the object has definitely not been added to the filter.
+     *  
+     *  @param o The object.
+     *  @return True, if the object may have been added.
+     */
+    public boolean mightContain( Object o )
+    {
+        return contains( mix( o.hashCode() ) );
+    }
+    
+    /**
+     *  Returns the number of objects added.  Objects which were thought to be
+     *  there already are not counted.
+     *  
+     *  @return The number of objects.
+     */
+    public int size()
+    {
+        int count = 0;
+        
+        for( Stage s : m_stages ) count += s.m_count.get();
+        
+        return count;
+    }
+    
+    /**
+     *  Returns the memory used by the filter.
+     *  
+     *  @return The size in bytes.
+     */
+    public long getSizeInBytes()
+    {
+        long bytes = 0;
+        
+        for( Stage s : m_stages ) bytes += s.m_bits.length() * 8L;
+        
+        return bytes;
+    }
+    
+    private boolean contains( long hash )
+    {
+        for( Stage s : m_stages )
+        {
+            if( s.contains( hash ) ) return true;
+        }
+        
+        return false;
+    }
+    
+    private synchronized Stage grow( Stage full )
+    {
+        Stage[] stages = m_stages;
+        Stage   last   = stages[stages.length-1];
+        
+        if( last != full ) return last; // Someone else grew it already
+        
+        Stage[] grown = new Stage[stages.length+1];
+        System.arraycopy( stages, 0, grown, 0, stages.length );
+        
+        grown[stages.length] = new Stage( (int)Math.min( (long)last.m_capacity * GROWTH, Integer.MAX_VALUE / 32 ), 
+                                          last.m_falsePositiveRate * TIGHTENING );
+        
+        m_stages = grown;
+        
+        return grown[stages.length];
+    }
+    
+    /**
+     *  Spreads the bits of a 32-bit hash into 64 bits, of which the two halves
+     *  are used as the two hashes for double hashing.
+     */
+    private static long mix( int h )
+    {
+        long z = h * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+    
+    private static final class Stage
+    {
+        final AtomicLongArray m_bits;
+        final int             m_numBits;
+        final int             m_numHashes;
+        final int             m_capacity;
+        final double          m_falsePositiveRate;
+        final AtomicInteger   m_count = new AtomicInteger();
+        
+        Stage( int capacity, double falsePositiveRate )
+        {
+            long bits = (long)Math.ceil( -capacity * Math.log( falsePositiveRate ) / (LN2 * LN2) );
+            
+            m_numBits           = (int)Math.min( Math.max( bits, 64 ), Integer.MAX_VALUE - 63 );
+            m_numHashes         = Math.max( 1, (int)Math.round( (double)m_numBits / capacity * LN2 ) );
+            m_capacity          = capacity;
+            m_falsePositiveRate = falsePositiveRate;
+            m_bits              = new AtomicLongArray( (m_numBits + 63) / 64 );
+        }
+        
+        private int index( long hash, int i )
+        {
+            int h1 = (int)hash;
+            int h2 = (int)(hash >>> 32) | 1;
+            
+            return ((h1 + i*h2) & Integer.MAX_VALUE) % m_numBits;
+        }
+        
+        boolean contains( long hash )
+        {
+            for( int i = 0; i < m_numHashes; i++ )
+            {
+                int bit = index( hash, i );
+                
+                if( (m_bits.get( bit >>> 6 ) & (1L << bit)) == 0 ) return false;
+            }
+            
+            return true;
+        }
+        
+        void add( long hash )
+        {
+            for( int i = 0; i < m_numHashes; i++ )
+            {
+                int  bit  = index( hash, i );
+                long mask = 1L << bit;
+                
+                for(;;)
+                {
+                    long word = m_bits.get( bit >>> 6 );
+                    
+                    if( (word & mask) != 0 || m_bits.compareAndSet( bit >>> 6, word, word | mask ) ) break;
+                }
+            }
+            
+            m_count.incrementAndGet();
+        }
+    }
+}
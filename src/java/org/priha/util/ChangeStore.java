@@ -266,6 +266,27 @@ public class ChangeStore implements Iterable<ChangeStore.Change>
         return new ItemIterator();
     }
     
+    /**
+     *  Returns the number of changes in the list, including the duplicates.
+     *  
+     *  @return The number of changes.
+     */
+    public final int size()
+    {
+        return m_changes.size();
+    }
+    
+    /**
+     *  Returns the changes from the given position of the list onwards.
+     *  
+     *  @param from The position of the first change, as returned by size().
+     *  @return A list of Changes.
+     */
+    public List<Change> getChangesSince( int from )
+    {
+        return new ArrayList<Change>( m_changes.subList( from, m_changes.size() ) );
+    }
+    
     /**
      *  Returns true, if there are no changes.
      *  
@@ -53,9 +53,8 @@ public class FastPropertyStore
         o.flush();
     }
     
-    public static Properties load(FileInputStream in) throws IOException
+    public static Properties load(InputStream in) throws IOException
     {
-        Properties props = new Properties();
 /*        
         FileChannel fc = in.getChannel();
         
@@ -68,7 +67,18 @@ public class FastPropertyStore
         ByteArrayOutputStream ba = new ByteArrayOutputStream();
         FileUtil.copyContents( in, ba );
         
-        String c = new String( ba.toByteArray(), "UTF-8" );
+        return load( ba.toByteArray() );
+    }
+    
+    /**
+     *  Parses the properties from a byte array, which contains the
+     *  whole property file.
+     */
+    public static Properties load(byte[] contents) throws IOException
+    {
+        Properties props = new Properties();
+        
+        String c = new String( contents, "UTF-8" );
         
         BufferedStringReader i = new BufferedStringReader(c);
         
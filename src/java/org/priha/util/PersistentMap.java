@@ -0,0 +1,448 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  An immutable hash map.  Adding or removing a key returns a new map, which
+ *  shares everything except the path to the changed key with the old one, so
+ *  a copy costs O(log N) instead of O(N).  The old map stays valid and unchanged,
+ *  which means that any number of threads may read it without locking while
+ *  someone else is building the next version.
+ *  <p>
+ *  The map is a hash array mapped trie: each level of the trie consumes five
+ *  bits of the key hash, and keys whose hashes are equal end up in the same
+ *  collision node.  Null keys are not allowed.
+ *
+ *  @param <K> Type of the key
+ *  @param <V> Type of the value
+ */
+public final class PersistentMap<K,V> implements Iterable<Map.Entry<K,V>>
+{
+    private static final Object NOT_FOUND = new Object();
+
+    private static final PersistentMap<?,?> EMPTY = new PersistentMap<Object,Object>( null, 0 );
+
+    private final Node m_root;
+    private final int  m_size;
+
+    private PersistentMap( Node root, int size )
+    {
+        m_root = root;
+        m_size = size;
+    }
+
+    /**
+     *  Returns the empty map.
+     *
+     *  @param <K> Type of the key
+     *  @param <V> Type of the value
+     *  @return An empty map.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K,V> PersistentMap<K,V> empty()
+    {
+        return (PersistentMap<K,V>) EMPTY;
+    }
+
+    /**
+     *  Returns the value mapped to the given key.
+     *
+     *  @param key The key
+     *  @return The value, or null, if there is no such key.
+     */
+    @SuppressWarnings("unchecked")
+    public V get( Object key )
+    {
+        if( m_root == null ) return null;
+
+        Object v = m_root.get( 0, hash(key), key );
+
+        return v == NOT_FOUND ? null : (V)v;
+    }
+
+    /**
+     *  Returns true, if the map contains the given key.
+     *
+     *  @param key The key
+     *  @return True, if the key exists.
+     */
+    public boolean containsKey( Object key )
+    {
+        return m_root != null && m_root.get( 0, hash(key), key ) != NOT_FOUND;
+    }
+
+    /**
+     *  Returns a map which has the given key mapped to the given value.
+     *  This map is not changed.
+     *
+     *  @param key The key
+     *  @param value The value
+     *  @return A new map, or this map, if the key was already mapped to the value.
+     */
+    public PersistentMap<K,V> plus( K key, V value )
+    {
+        boolean[] added = new boolean[1];
+        Node root = m_root != null ? m_root : BitmapNode.EMPTY;
+
+        Node n = root.plus( 0, hash(key), key, value, added );
+
+        if( n == m_root ) return this;
+
+        return new PersistentMap<K,V>( n, added[0] ? m_size+1 : m_size );
+    }
+
+    /**
+     *  Returns a map which does not have the given key.  This map is not changed.
+     *
+     *  @param key The key
+     *  @return A new map, or this map, if the key did not exist.
+     */
+    public PersistentMap<K,V> minus( Object key )
+    {
+        if( m_root == null ) return this;
+
+        Node n = m_root.minus( 0, hash(key), key );
+
+        if( n == m_root ) return this;
+
+        return new PersistentMap<K,V>( n, m_size-1 );
+    }
+
+    /**
+     *  Returns the number of keys in this map.
+     *
+     *  @return The number of keys.
+     */
+    public int size()
+    {
+        return m_size;
+    }
+
+    /**
+     *  Returns true, if the map is empty.
+     *
+     *  @return True, if there are no keys.
+     */
+    public boolean isEmpty()
+    {
+        return m_size == 0;
+    }
+
+    /**
+     *  Iterates through the entries in no particular order.  The entries
+     *  cannot be changed.
+     */
+    @SuppressWarnings("unchecked")
+    public Iterator<Map.Entry<K,V>> iterator()
+    {
+        ArrayList<Map.Entry<K,V>> entries = new ArrayList<Map.Entry<K,V>>( m_size );
+
+        if( m_root != null ) m_root.collect( (List)entries );
+
+        return entries.iterator();
+    }
+
+    private static int hash( Object key )
+    {
+        int h = key.hashCode();
+
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit( int shift, int hash )
+    {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    private static Object[] insert( Object[] array, int idx, Object a, Object b )
+    {
+        Object[] res = new Object[array.length+2];
+        System.arraycopy( array, 0, res, 0, idx );
+        res[idx]   = a;
+        res[idx+1] = b;
+        System.arraycopy( array, idx, res, idx+2, array.length-idx );
+        return res;
+    }
+
+    private static Object[] delete( Object[] array, int idx )
+    {
+        Object[] res = new Object[array.length-2];
+        System.arraycopy( array, 0, res, 0, idx );
+        System.arraycopy( array, idx+2, res, idx, array.length-idx-2 );
+        return res;
+    }
+
+    private static Object[] replace( Object[] array, int idx, Object value )
+    {
+        Object[] res = array.clone();
+        res[idx] = value;
+        return res;
+    }
+
+    /**
+     *  A level in the trie.  None of the methods change the node; they return
+     *  a new node instead, or the node itself, if nothing changed.
+     */
+    private static abstract class Node
+    {
+        /** Returns the value or NOT_FOUND. */
+        abstract Object get( int shift, int hash, Object key );
+
+        abstract Node plus( int shift, int hash, Object key, Object value, boolean[] added );
+
+        /** Returns null, if the node became empty. */
+        abstract Node minus( int shift, int hash, Object key );
+
+        abstract void collect( List<Map.Entry<Object,Object>> entries );
+    }
+
+    /**
+     *  A node with at most 32 slots.  The array has a key-value pair for each bit
+     *  set in the bitmap; a null key means that the value is a subnode.
+     */
+    private static final class BitmapNode extends Node
+    {
+        static final BitmapNode EMPTY = new BitmapNode( 0, new Object[0] );
+
+        final int      m_bitmap;
+        final Object[] m_array;
+
+        BitmapNode( int bitmap, Object[] array )
+        {
+            m_bitmap = bitmap;
+            m_array  = array;
+        }
+
+        private int index( int bit )
+        {
+            return 2 * Integer.bitCount( m_bitmap & (bit-1) );
+        }
+
+        @Override
+        Object get( int shift, int hash, Object key )
+        {
+            int bit = bit( shift, hash );
+
+            if( (m_bitmap & bit) == 0 ) return NOT_FOUND;
+
+            int idx = index( bit );
+            Object k = m_array[idx];
+            Object v = m_array[idx+1];
+
+            if( k == null ) return ((Node)v).get( shift+5, hash, key );
+
+            return key.equals( k ) ? v : NOT_FOUND;
+        }
+
+        @Override
+        Node plus( int shift, int hash, Object key, Object value, boolean[] added )
+        {
+            int bit = bit( shift, hash );
+            int idx = index( bit );
+
+            if( (m_bitmap & bit) == 0 )
+            {
+                added[0] = true;
+                return new BitmapNode( m_bitmap | bit, insert( m_array, idx, key, value ) );
+            }
+
+            Object k = m_array[idx];
+            Object v = m_array[idx+1];
+
+            if( k == null )
+            {
+                Node n = ((Node)v).plus( shift+5, hash, key, value, added );
+
+                return n == v ? this : new BitmapNode( m_bitmap, replace( m_array, idx+1, n ) );
+            }
+
+            if( key.equals( k ) )
+            {
+                return v == value ? this : new BitmapNode( m_bitmap, replace( m_array, idx+1, value ) );
+            }
+
+            added[0] = true;
+
+            Node n = createNode( shift+5, k, v, hash, key, value );
+            Object[] array = replace( m_array, idx, null );
+            array[idx+1] = n;
+
+            return new BitmapNode( m_bitmap, array );
+        }
+
+        @Override
+        Node minus( int shift, int hash, Object key )
+        {
+            int bit = bit( shift, hash );
+
+            if( (m_bitmap & bit) == 0 ) return this;
+
+            int idx = index( bit );
+            Object k = m_array[idx];
+            Object v = m_array[idx+1];
+
+            if( k == null )
+            {
+                Node n = ((Node)v).minus( shift+5, hash, key );
+
+                if( n == v ) return this;
+                if( n != null ) return new BitmapNode( m_bitmap, replace( m_array, idx+1, n ) );
+            }
+            else if( !key.equals( k ) )
+            {
+                return this;
+            }
+
+            if( m_bitmap == bit ) return null;
+
+            return new BitmapNode( m_bitmap ^ bit, delete( m_array, idx ) );
+        }
+
+        @Override
+        void collect( List<Map.Entry<Object,Object>> entries )
+        {
+            for( int i = 0; i < m_array.length; i += 2 )
+            {
+                if( m_array[i] == null )
+                    ((Node)m_array[i+1]).collect( entries );
+                else
+                    entries.add( new Entry( m_array[i], m_array[i+1] ) );
+            }
+        }
+
+        private static Node createNode( int shift, Object k1, Object v1, int h2, Object k2, Object v2 )
+        {
+            int h1 = hash( k1 );
+
+            if( h1 == h2 ) return new CollisionNode( h1, new Object[] { k1, v1, k2, v2 } );
+
+            boolean[] added = new boolean[1];
+
+            return EMPTY.plus( shift, h1, k1, v1, added ).plus( shift, h2, k2, v2, added );
+        }
+    }
+
+    /**
+     *  Holds the keys which have the same hash.
+     */
+    private static final class CollisionNode extends Node
+    {
+        final int      m_hash;
+        final Object[] m_array;
+
+        CollisionNode( int hash, Object[] array )
+        {
+            m_hash  = hash;
+            m_array = array;
+        }
+
+        private int find( Object key )
+        {
+            for( int i = 0; i < m_array.length; i += 2 )
+            {
+                if( key.equals( m_array[i] ) ) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        Object get( int shift, int hash, Object key )
+        {
+            int idx = find( key );
+
+            return idx < 0 ? NOT_FOUND : m_array[idx+1];
+        }
+
+        @Override
+        Node plus( int shift, int hash, Object key, Object value, boolean[] added )
+        {
+            if( hash != m_hash )
+            {
+                //  Push this node one level down and let a BitmapNode sort it out.
+                BitmapNode n = new BitmapNode( bit( shift, m_hash ), new Object[] { null, this } );
+
+                return n.plus( shift, hash, key, value, added );
+            }
+
+            int idx = find( key );
+
+            if( idx < 0 )
+            {
+                added[0] = true;
+                return new CollisionNode( m_hash, insert( m_array, m_array.length, key, value ) );
+            }
+
+            return m_array[idx+1] == value ? this : new CollisionNode( m_hash, replace( m_array, idx+1, value ) );
+        }
+
+        @Override
+        Node minus( int shift, int hash, Object key )
+        {
+            int idx = find( key );
+
+            if( idx < 0 ) return this;
+            if( m_array.length == 2 ) return null;
+
+            return new CollisionNode( m_hash, delete( m_array, idx ) );
+        }
+
+        @Override
+        void collect( List<Map.Entry<Object,Object>> entries )
+        {
+            for( int i = 0; i < m_array.length; i += 2 )
+            {
+                entries.add( new Entry( m_array[i], m_array[i+1] ) );
+            }
+        }
+    }
+
+    /**
+     *  A read-only entry for the iterator.
+     */
+    private static final class Entry implements Map.Entry<Object,Object>
+    {
+        private final Object m_key;
+        private final Object m_value;
+
+        Entry( Object key, Object value )
+        {
+            m_key   = key;
+            m_value = value;
+        }
+
+        public Object getKey()
+        {
+            return m_key;
+        }
+
+        public Object getValue()
+        {
+            return m_value;
+        }
+
+        public Object setValue( Object value )
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -17,92 +17,662 @@
  */
 package org.priha.util;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- *  Simple object pool.
+ *  A bounded object pool.
+ *  <p>
+ *  Threads which have to wait for an object are served in the order they arrived.
+ *  The objects are validated when they are borrowed, if they have not been
+ *  validated recently, and a background thread validates the idle objects and
+ *  disposes of the ones which have been idle too long.  It also logs a warning
+ *  with the borrowing stack trace for objects which have been kept too long, since
+ *  they probably leaked.
+ *  <p>
+ *  The background thread is started with {@link #setEvictionInterval(long)}.
  */
 public class Pool
 {
-    private BlockingQueue<Poolable> m_objects = new LinkedBlockingQueue<Poolable>();
-    private PoolableFactory m_factory;
-    private int m_size;
-    
+    private static Logger log = Logger.getLogger( Pool.class.getName() );
+
+    private static Timer c_evictor;
+
+    private final PoolableFactory m_factory;
+
+    private final ReentrantLock  m_lock    = new ReentrantLock( true );
+
+    /* Idle objects, the most recently returned first. */
+    private final LinkedList<Poolable> m_idle     = new LinkedList<Poolable>();
+    private final Set<Poolable>        m_borrowed = new HashSet<Poolable>();
+
+    /* Threads waiting for an object, in arrival order. */
+    private final LinkedList<Waiter>   m_waiters  = new LinkedList<Waiter>();
+
+    /* All objects, including the ones being created. */
+    private int  m_size;
+    private int  m_maxSize            = Integer.MAX_VALUE;
+    private long m_maxIdleTime        = 0;
+    private long m_validationInterval = 0;
+    private long m_leakThreshold      = 0;
+    private boolean m_closed;
+
+    private TimerTask m_evictionTask;
+
+    private long m_borrowCount;
+    private long m_waitCount;
+    private long m_waitTime;
+    private long m_maxWaitTime;
+    private long m_timeoutCount;
+    private long m_createdCount;
+    private long m_destroyedCount;
+    private long m_invalidCount;
+    private long m_leakCount;
+
     public Pool( PoolableFactory factory )
     {
         m_factory = factory;
     }
-    
+
+    /**
+     *  Returns the number of objects in the pool, whether borrowed or idle.
+     */
     public int size()
     {
-        return m_size;
+        m_lock.lock();
+        try
+        {
+            return m_size;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     *  Sets the largest number of objects the pool will create.
+     */
+    public void setMaxSize( int maxSize )
+    {
+        m_maxSize = maxSize;
+    }
+
+    /**
+     *  Sets how long an object may be idle before it is disposed.  Zero means forever.
+     */
+    public void setMaxIdleTime( long ms )
+    {
+        m_maxIdleTime = ms;
+    }
+
+    /**
+     *  Sets how often the objects are validated.  An object is validated when it is
+     *  borrowed, unless it has been validated within this time.  Zero validates on
+     *  every borrow, and a negative value never.
+     */
+    public void setValidationInterval( long ms )
+    {
+        m_validationInterval = ms;
+    }
+
+    /**
+     *  Sets how long an object may be borrowed before it is reported as a leak.
+     *  Zero disables the check.
+     */
+    public void setLeakThreshold( long ms )
+    {
+        m_leakThreshold = ms;
+    }
+
+    /**
+     *  Starts checking the idle and borrowed objects every given milliseconds.
+     *  Zero stops the checks.
+     */
+    public synchronized void setEvictionInterval( long ms )
+    {
+        if( m_evictionTask != null ) m_evictionTask.cancel();
+
+        m_evictionTask = null;
+
+        if( ms > 0 )
+        {
+            m_evictionTask = new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    evict();
+                }
+            };
+
+            getEvictor().schedule( m_evictionTask, ms, ms );
+        }
+    }
+
+    private static synchronized Timer getEvictor()
+    {
+        if( c_evictor == null ) c_evictor = new Timer( "Priha pool evictor", true );
+
+        return c_evictor;
     }
 
+    /**
+     *  Borrows an object from the pool.  If there are no idle ones and the pool is
+     *  full, waits until one is returned.
+     *
+     *  @param milliseconds How long to wait at most.
+     *  @return A valid object.  Call {@link Poolable#release()} when done with it.
+     *  @throws InterruptedException If the thread was interrupted while waiting.
+     *  @throws PoolExhaustedException If no object became available in time, or
+     *                                 a new one could not be created.
+     */
     public Poolable get(int milliseconds) throws InterruptedException, PoolExhaustedException
     {
-        if( m_objects.isEmpty() )
+        long start = System.currentTimeMillis();
+
+        while( true )
         {
-            Poolable p = null;
+            Poolable p = acquire( start, milliseconds );
+
+            if( p == null ) p = create();
+            else if( !validate( p ) )
+            {
+                destroy( p );
+                continue;
+            }
+
+            return borrowed( p, start );
+        }
+    }
+
+    /**
+     *  Takes an idle object, or reserves room for a new one, in which case null
+     *  is returned.
+     */
+    private Poolable acquire( long start, int milliseconds ) throws InterruptedException, PoolExhaustedException
+    {
+        m_lock.lock();
+
+        try
+        {
+            if( m_closed ) throw new PoolExhaustedException("The pool has been disposed");
+
+            if( m_waiters.isEmpty() )
+            {
+                Poolable p = m_idle.poll();
+
+                if( p != null ) return p;
+
+                if( m_size < m_maxSize )
+                {
+                    m_size++;
+                    return null;
+                }
+            }
+
+            m_waitCount++;
+
+            Waiter w = new Waiter( m_lock.newCondition() );
+            m_waiters.add( w );
+
             try
             {
-                p = m_factory.newPoolable( this );
+                long remaining = TimeUnit.MILLISECONDS.toNanos( start + milliseconds - System.currentTimeMillis() );
+
+                while( w.m_object == null && !w.m_create )
+                {
+                    if( m_closed )
+                    {
+                        m_waiters.remove( w );
+                        throw new PoolExhaustedException("The pool has been disposed");
+                    }
+                    
+                    if( remaining <= 0 )
+                    {
+                        m_waiters.remove( w );
+                        m_timeoutCount++;
+                        throw new PoolExhaustedException("Could not get an object from pool in "+milliseconds+" ms, assuming pool is exhausted.");
+                    }
+
+                    remaining = w.m_available.awaitNanos( remaining );
+                }
             }
-            catch( Exception e )
+            catch( InterruptedException e )
             {
-                throw new PoolExhaustedException("New poolable object creation failed horrendously",e);
+                m_waiters.remove( w );
+
+                //  Pass on whatever was handed over just before the interrupt.
+                if( w.m_object != null ) handOver( w.m_object );
+                else if( w.m_create ) freeSlot();
+
+                throw e;
             }
-            if( p != null ) 
+
+            return w.m_object;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    private Poolable create() throws PoolExhaustedException
+    {
+        Poolable p = null;
+
+        try
+        {
+            p = m_factory.newPoolable( this );
+        }
+        catch( Exception e )
+        {
+            freeSlot();
+            throw new PoolExhaustedException("New poolable object creation failed horrendously",e);
+        }
+
+        if( p == null )
+        {
+            freeSlot();
+            throw new PoolExhaustedException("No more objects from the pool!");
+        }
+
+        p.m_validated = System.currentTimeMillis();
+
+        m_lock.lock();
+        try
+        {
+            m_createdCount++;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        return p;
+    }
+
+    private boolean validate( Poolable p )
+    {
+        long now = System.currentTimeMillis();
+
+        if( m_validationInterval < 0 || now - p.m_validated < m_validationInterval ) return true;
+
+        boolean valid;
+
+        try
+        {
+            valid = p.isValid();
+        }
+        catch( Exception e )
+        {
+            log.log( Level.FINE, "Validation failed", e );
+            valid = false;
+        }
+
+        if( valid )
+        {
+            p.m_validated = now;
+        }
+        else
+        {
+            m_lock.lock();
+            try
+            {
+                m_invalidCount++;
+            }
+            finally
             {
-                m_objects.offer( p );
-                m_size++;
+                m_lock.unlock();
             }
-            //else throw new PoolExhaustedException("No more objects from the pool!");            
         }
-        
-        Poolable obj = m_objects.poll(milliseconds,TimeUnit.MILLISECONDS);
-        
-        if( obj == null ) throw new PoolExhaustedException("Could not get an object from pool in "+milliseconds+" ms, assuming pool is exhausted.");
-        return obj;
+
+        return valid;
     }
-    
+
+    private Poolable borrowed( Poolable p, long start )
+    {
+        long now  = System.currentTimeMillis();
+        long wait = now - start;
+
+        p.m_borrowed = now;
+        p.m_borrower = m_leakThreshold > 0 ? new Throwable("Borrowed here") : null;
+        p.m_leaked   = false;
+
+        m_lock.lock();
+        try
+        {
+            m_borrowed.add( p );
+            m_borrowCount++;
+            m_waitTime += wait;
+            if( wait > m_maxWaitTime ) m_maxWaitTime = wait;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        return p;
+    }
+
     private void release(Poolable o)
     {
-        m_objects.offer( o );
+        m_lock.lock();
+        try
+        {
+            if( !m_borrowed.remove( o ) ) return;
+
+            if( m_closed )
+            {
+                m_size--;
+            }
+            else
+            {
+                handOver( o );
+                return;
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        dispose( o );
+    }
+
+    /**
+     *  Gives the object to the first waiting thread, or puts it back to the idle
+     *  list.  Must be called with the lock held.
+     */
+    private void handOver( Poolable o )
+    {
+        Waiter w = m_waiters.poll();
+
+        if( w != null )
+        {
+            w.m_object = o;
+            w.m_available.signal();
+        }
+        else
+        {
+            o.m_returned = System.currentTimeMillis();
+            m_idle.addFirst( o );
+        }
+    }
+
+    /**
+     *  Gives the room of a destroyed object to the first waiting thread, which
+     *  will then create a new one.
+     */
+    private void freeSlot()
+    {
+        m_lock.lock();
+        try
+        {
+            Waiter w = m_waiters.poll();
+
+            if( w != null )
+            {
+                w.m_create = true;
+                w.m_available.signal();
+            }
+            else
+            {
+                m_size--;
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     *  Disposes of an object which is not in the idle list nor borrowed.
+     */
+    private void destroy( Poolable p )
+    {
+        freeSlot();
+        dispose( p );
+    }
+
+    private void dispose( Poolable p )
+    {
+        m_lock.lock();
+        try
+        {
+            m_destroyedCount++;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        try
+        {
+            p.dispose();
+        }
+        catch( Exception e )
+        {
+            log.log( Level.WARNING, "Unable to dispose of a pooled object", e );
+        }
+    }
+
+    /**
+     *  Disposes of the objects which have been idle too long, validates the rest,
+     *  and reports the ones which have been borrowed too long.
+     */
+    void evict()
+    {
+        List<Poolable> idle = new ArrayList<Poolable>();
+        long now = System.currentTimeMillis();
+
+        m_lock.lock();
+        try
+        {
+            if( m_closed ) return;
+
+            for( Iterator<Poolable> i = m_idle.iterator(); i.hasNext(); )
+            {
+                Poolable p = i.next();
+
+                if( (m_maxIdleTime > 0 && now - p.m_returned >= m_maxIdleTime) ||
+                    (m_validationInterval >= 0 && now - p.m_validated >= m_validationInterval) )
+                {
+                    i.remove();
+                    idle.add( p );
+                }
+            }
+
+            if( m_leakThreshold > 0 )
+            {
+                for( Poolable p : m_borrowed )
+                {
+                    if( !p.m_leaked && now - p.m_borrowed >= m_leakThreshold )
+                    {
+                        p.m_leaked = true;
+                        m_leakCount++;
+                        log.log( Level.WARNING, "A pooled object has been borrowed for "+(now-p.m_borrowed)+
+                                                " ms; it has probably leaked", p.m_borrower );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        for( Poolable p : idle )
+        {
+            if( (m_maxIdleTime <= 0 || now - p.m_returned < m_maxIdleTime) && validate( p ) )
+            {
+                m_lock.lock();
+                try
+                {
+                    Waiter w = m_waiters.poll();
+
+                    if( w != null )
+                    {
+                        w.m_object = p;
+                        w.m_available.signal();
+                    }
+                    else
+                    {
+                        //  Keeps the time it was returned, so that it still idles out.
+                        m_idle.addLast( p );
+                    }
+                }
+                finally
+                {
+                    m_lock.unlock();
+                }
+            }
+            else
+            {
+                destroy( p );
+            }
+        }
     }
-   
+
+    public long getBorrowCount()    { return m_borrowCount; }
+
+    /** Returns how many times a thread had to wait, because the pool was full. */
+    public long getWaitCount()      { return m_waitCount; }
+
+    /** Returns the total time spent waiting for objects, in milliseconds. */
+    public long getWaitTime()       { return m_waitTime; }
+
+    public long getMaxWaitTime()    { return m_maxWaitTime; }
+
+    public long getTimeoutCount()   { return m_timeoutCount; }
+
+    public long getCreatedCount()   { return m_createdCount; }
+
+    public long getDestroyedCount() { return m_destroyedCount; }
+
+    /** Returns how many objects have failed validation. */
+    public long getInvalidCount()   { return m_invalidCount; }
+
+    /** Returns how many objects have been reported as leaked. */
+    public long getLeakCount()      { return m_leakCount; }
+
+    public int getIdleCount()
+    {
+        m_lock.lock();
+        try
+        {
+            return m_idle.size();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    public int getActiveCount()
+    {
+        m_lock.lock();
+        try
+        {
+            return m_borrowed.size();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     *  Returns a summary of the pool statistics.
+     */
+    @Override
+    public String toString()
+    {
+        m_lock.lock();
+        try
+        {
+            return "Pool[size="+m_size+"/"+m_maxSize+", active="+m_borrowed.size()+", idle="+m_idle.size()+
+                   ", borrows="+m_borrowCount+", waits="+m_waitCount+", waitTime="+m_waitTime+
+                   "ms, maxWait="+m_maxWaitTime+"ms, timeouts="+m_timeoutCount+", created="+m_createdCount+
+                   ", destroyed="+m_destroyedCount+", invalid="+m_invalidCount+", leaks="+m_leakCount+"]";
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     *  A thread waiting for an object.
+     */
+    private static class Waiter
+    {
+        private final Condition m_available;
+        private Poolable        m_object;
+        private boolean         m_create;
+
+        public Waiter( Condition available )
+        {
+            m_available = available;
+        }
+    }
+
     public interface PoolableFactory
     {
+        /**
+         *  Creates a new object for the pool.
+         */
         public Poolable newPoolable( Pool p ) throws Exception;
     }
-    
+
     public static abstract class Poolable
     {
         protected Pool m_pool;
-        
+
+        private long      m_returned;
+        private long      m_validated;
+        private long      m_borrowed;
+        private Throwable m_borrower;
+        private boolean   m_leaked;
+
         public Poolable(Pool p)
         {
             m_pool = p;
         }
-        
+
         public void release()
         {
             m_pool.release(this);
         }
-        
+
+        /**
+         *  Returns true, if the object is still usable.  Default implementation
+         *  always returns true.
+         *
+         *  @throws Exception If the check fails, which also means it is not valid.
+         */
+        public boolean isValid() throws Exception
+        {
+            return true;
+        }
+
         /**
          *  Default implementation does nothing. You should override this if your
          *  object needs special cleanup.
-         * @throws Exception 
+         * @throws Exception
          */
         public void dispose() throws Exception
         {}
     }
-    
+
     public static class PoolExhaustedException extends Exception
     {
-        
+
         public PoolExhaustedException(String msg, Throwable reason)
         {
             super(msg,reason);
@@ -115,22 +685,31 @@ public class Pool
     }
 
     /**
-     *  Disposes all returned objects from the pool.
+     *  Disposes all returned objects from the pool, and stops the background checks.
+     *  Objects still borrowed are disposed when they are returned.
      */
     public void dispose()
     {
-        Poolable p;
-        while( (p = m_objects.poll()) != null)
+        setEvictionInterval( 0 );
+
+        List<Poolable> idle;
+
+        m_lock.lock();
+        try
         {
-            try
-            {
-                p.dispose();
-            }
-            catch (Exception e)
-            {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
+            m_closed = true;
+
+            idle = new ArrayList<Poolable>( m_idle );
+            m_idle.clear();
+            m_size -= idle.size();
+
+            for( Waiter w : m_waiters ) w.m_available.signal();
+        }
+        finally
+        {
+            m_lock.unlock();
         }
+
+        for( Poolable p : idle ) dispose( p );
     }
 }
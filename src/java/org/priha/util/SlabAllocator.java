@@ -0,0 +1,296 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ *  Stores byte arrays outside of the Java heap.  The bytes are copied into
+ *  large direct ByteBuffers, called slabs, and only a small {@link Block} which 
+ *  points at them stays on the heap.  Values larger than a quarter of a slab
+ *  get a direct buffer of their own.
+ *  <p>
+ *  The space of a block is never reused, so a Block can be read from any thread
+ *  for as long as it is reachable, even after it has been released.  The memory
+ *  of a slab is returned when the slab is dropped by {@link #compact(Iterable)} 
+ *  and no Block points at it anymore.  Releasing a block only keeps count of the
+ *  garbage, so that you know when it is time to compact.
+ *  <p>
+ *  This class is not thread-safe: only one thread at a time may allocate,
+ *  release or compact.  Reading the Blocks is safe from any thread, provided that
+ *  the Block was handed over safely (e.g. through a volatile field).
+ */
+public class SlabAllocator
+{
+    /** The size of a slab, if not given. */
+    public static final int DEFAULT_SLAB_SIZE = 1024*1024;
+    
+    private final int        m_slabSize;
+    
+    /* All slabs which have not been dropped by compaction. */
+    private final List<Slab> m_slabs = new ArrayList<Slab>();
+    
+    private Slab             m_current;
+    
+    /* The position of the next block in the current slab.  Kept separately, so
+       that the position of the shared buffer never changes. */
+    private ByteBuffer       m_writer;
+    
+    private long             m_capacity;
+    private long             m_garbage;
+    
+    /**
+     *  Creates an allocator with the default slab size.
+     */
+    public SlabAllocator()
+    {
+        this( DEFAULT_SLAB_SIZE );
+    }
+    
+    /**
+     *  Creates an allocator.
+     *  
+     *  @param slabSize The size of a slab in bytes.
+     */
+    public SlabAllocator( int slabSize )
+    {
+        m_slabSize = slabSize;
+    }
+    
+    /**
+     *  Copies the bytes outside of the heap.
+     *  
+     *  @param b The bytes.
+     *  @return A Block which can be used to read them back.
+     */
+    public Block allocate( byte[] b )
+    {
+        return allocate( ByteBuffer.wrap( b ) );
+    }
+    
+    /**
+     *  Copies the remaining bytes of a buffer outside of the heap.  The position 
+     *  of the buffer is moved to its limit.
+     *  
+     *  @param b The bytes.
+     *  @return A Block which can be used to read them back.
+     */
+    public Block allocate( ByteBuffer b )
+    {
+        int length = b.remaining();
+        Slab slab;
+        int offset;
+        
+        if( length > m_slabSize/4 )
+        {
+            slab   = newSlab( length );
+            offset = 0;
+            slab.m_buffer.duplicate().put( b );
+        }
+        else
+        {
+            if( m_writer == null || m_writer.remaining() < length )
+            {
+                m_current = newSlab( m_slabSize );
+                m_writer  = m_current.m_buffer.duplicate();
+            }
+            
+            slab   = m_current;
+            offset = m_writer.position();
+            m_writer.put( b );
+        }
+        
+        slab.m_live += length;
+        
+        return new Block( slab, offset, length );
+    }
+    
+    private Slab newSlab( int size )
+    {
+        Slab s = new Slab( ByteBuffer.allocateDirect( size ) );
+        
+        m_slabs.add( s );
+        m_capacity += size;
+        
+        return s;
+    }
+    
+    /**
+     *  Tells that a block is no longer needed.  Its space is counted as garbage 
+     *  until its slab is compacted.  A Block must be released only once.
+     *  
+     *  @param b The Block.
+     */
+    public void release( Block b )
+    {
+        b.m_slab.m_live -= b.m_length;
+        m_garbage += b.m_length;
+    }
+    
+    /**
+     *  Returns the size of all the slabs.
+     *  
+     *  @return The size in bytes.
+     */
+    public long getCapacity()
+    {
+        return m_capacity;
+    }
+    
+    /**
+     *  Returns the bytes which have been released, but are still in a slab.
+     *  
+     *  @return The size in bytes.
+     */
+    public long getGarbage()
+    {
+        return m_garbage;
+    }
+    
+    /**
+     *  Returns true, if at least half of the slabs is garbage.
+     *  
+     *  @return True, if you should call compact().
+     */
+    public boolean needsCompaction()
+    {
+        return m_capacity > 4L*m_slabSize && m_garbage*2 > m_capacity;
+    }
+    
+    /**
+     *  Drops the slabs which are mostly garbage.  The live blocks in them are 
+     *  copied into new slabs, and the caller must then replace the old Blocks
+     *  with the ones returned by {@link Block#getMoved()}.
+     *  <p>
+     *  Since the released blocks may not have been counted exactly (e.g. if they 
+     *  were released in a transaction which was then rolled back), the live blocks 
+     *  are counted again from the given Blocks.
+     *  
+     *  @param live All the Blocks which are still in use.  It is iterated twice.
+     *  @return The number of slabs dropped.
+     */
+    public int compact( Iterable<Block> live )
+    {
+        for( Slab s : m_slabs ) s.m_live = 0;
+        
+        for( Block b : live ) b.m_slab.m_live += b.m_length;
+        
+        int dropped = 0;
+        
+        for( Iterator<Slab> i = m_slabs.iterator(); i.hasNext(); )
+        {
+            Slab s = i.next();
+            
+            if( s != m_current && s.m_live*2 < s.m_buffer.capacity() )
+            {
+                s.m_dropped = true;
+                m_capacity -= s.m_buffer.capacity();
+                i.remove();
+                dropped++;
+            }
+        }
+        
+        for( Block b : live )
+        {
+            if( b.m_slab.m_dropped && b.m_moved == null ) b.m_moved = allocate( b.getBuffer() );
+        }
+        
+        m_garbage = 0;
+        for( Slab s : m_slabs ) 
+        {
+            //  The unused end of the current slab is not garbage.
+            int used = s == m_current ? m_writer.position() : s.m_buffer.capacity();
+            
+            m_garbage += used - s.m_live;
+        }
+        
+        return dropped;
+    }
+    
+    private static final class Slab
+    {
+        final ByteBuffer m_buffer;
+        int              m_live;
+        boolean          m_dropped;
+        
+        Slab( ByteBuffer buffer )
+        {
+            m_buffer = buffer;
+        }
+    }
+    
+    /**
+     *  Points at the bytes of a single allocation.
+     */
+    public static final class Block
+    {
+        private final Slab m_slab;
+        private final int  m_offset;
+        private final int  m_length;
+        
+        /* Set by compact() to the copy of this block.  Only touched by the allocating thread. */
+        private Block      m_moved;
+        
+        private Block( Slab slab, int offset, int length )
+        {
+            m_slab   = slab;
+            m_offset = offset;
+            m_length = length;
+        }
+        
+        /**
+         *  Returns the bytes as a read-only buffer of their own.  The buffer 
+         *  keeps the slab alive.
+         *  
+         *  @return A new ByteBuffer, positioned at the start of the bytes.
+         */
+        public ByteBuffer getBuffer()
+        {
+            ByteBuffer b = m_slab.m_buffer.asReadOnlyBuffer();
+            
+            b.limit( m_offset+m_length );
+            b.position( m_offset );
+            
+            return b.slice();
+        }
+        
+        /**
+         *  Returns the length of the block.
+         *  
+         *  @return The length in bytes.
+         */
+        public int getLength()
+        {
+            return m_length;
+        }
+        
+        /**
+         *  Returns the copy of this block made by the last compaction, or this 
+         *  block, if it did not move.
+         *  
+         *  @return A Block.
+         */
+        public Block getMoved()
+        {
+            return m_moved != null && m_slab.m_dropped ? m_moved : this;
+        }
+    }
+}
@@ -0,0 +1,865 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.priha.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ *  An on-disk hash table which maps UUIDs to a list of Strings.  Nothing
+ *  except the header is kept in memory, so opening an index costs the same
+ *  regardless of its size, and a lookup is usually just two reads.
+ *  <p>
+ *  The file starts with a header, followed by an open-addressed table of
+ *  slots, each of which contains the 128-bit UUID and the offset of its
+ *  record.  The records are appended to the end of the file.  When a UUID
+ *  is updated, a new record is appended and the old one becomes garbage.
+ *  <p>
+ *  Once there is more garbage than live data, or the table gets half full,
+ *  the index is compacted.  The live entries are copied to a new file a few
+ *  slots at a time, along with every put() and remove(), and the changes are
+ *  written to both files until the copy is complete.  The new file then
+ *  replaces the old one by a rename, so a crash at any point leaves a complete
+ *  index behind.
+ *  <p>
+ *  Keys which are not valid UUIDs are hashed into a name-based UUID.
+ *  <p>
+ *  If the index was not closed properly, it is rebuilt upon opening.  So is an
+ *  index in the format of an older version.
+ *  <p>
+ *  This class is thread-safe.
+ */
+public class UUIDIndex
+{
+    private static final int  MAGIC            = 0x50524958; // "PRIX"
+    private static final int  VERSION          = 2;
+
+    /* Version 1 stored the values with writeUTF(), which limits their size. */
+    private static final int  VERSION_UTF      = 1;
+    private static final int  HEADER_SIZE      = 64;
+    private static final int  SLOT_SIZE        = 24;
+    private static final int  MIN_CAPACITY     = 1024;
+
+    /* How many slots are read at a time when probing. */
+    private static final int  PROBE_SLOTS      = 4;
+
+    /* Records smaller than this are read with a single read. */
+    private static final int  READ_AHEAD       = 256;
+
+    /* The file is not compacted until it has at least this much garbage. */
+    private static final long MIN_GARBAGE      = 256*1024;
+
+    /* How many slots are copied to the compacted file per put() or remove(). */
+    private static final int  COMPACT_SLOTS    = 64;
+
+    private static final long EMPTY            = 0;
+    private static final long REMOVED          = -1;
+
+    private static Logger log = Logger.getLogger( UUIDIndex.class.getName() );
+
+    private File             m_file;
+    private RandomAccessFile m_raf;
+    private FileChannel      m_channel;
+
+    private int              m_capacity;
+    private int              m_count;
+    private int              m_used;
+    private long             m_dataEnd;
+    private long             m_garbage;
+    private boolean          m_clean;
+    private boolean          m_oldFormat;
+
+    /* The index which is being compacted into, or null. */
+    private UUIDIndex        m_target;
+
+    /* How many slots have been copied to m_target. */
+    private long             m_copied;
+
+    /**
+     *  Opens an index, creating it if it does not exist.
+     *
+     *  @param file The index file.
+     *  @throws IOException If the file cannot be opened or is not an index.
+     */
+    public UUIDIndex( File file ) throws IOException
+    {
+        m_file = file;
+
+        //
+        //  A crash may have left a half-finished compaction behind, or
+        //  happened between the two renames of replace().
+        //
+        tmpFile().delete();
+
+        if( !m_file.exists() && oldFile().exists() && !oldFile().renameTo( m_file ) )
+        {
+            throw new IOException( "Unable to restore "+m_file+" from "+oldFile() );
+        }
+
+        open();
+
+        if( !m_clean )
+        {
+            log.info( "Index "+m_file+" was not closed properly, rebuilding." );
+            rebuild( Math.max( m_capacity, capacityFor( countLive() ) ) );
+        }
+        else if( m_oldFormat )
+        {
+            log.info( "Index "+m_file+" is in an old format, rebuilding." );
+            rebuild( m_capacity );
+        }
+    }
+
+    private File tmpFile()
+    {
+        return new File( m_file.getPath()+".tmp" );
+    }
+
+    private File oldFile()
+    {
+        return new File( m_file.getPath()+".old" );
+    }
+
+    private void open() throws IOException
+    {
+        m_raf     = new RandomAccessFile( m_file, "rw" );
+        m_channel = m_raf.getChannel();
+
+        if( m_channel.size() == 0 )
+        {
+            create( MIN_CAPACITY );
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        readFully( header, 0 );
+        header.flip();
+
+        if( header.getInt() != MAGIC ) throw new IOException( m_file+" is not an UUID index" );
+
+        int version = header.getInt();
+
+        if( version != VERSION && version != VERSION_UTF ) throw new IOException( m_file+" has an unknown version" );
+
+        m_oldFormat = version == VERSION_UTF;
+
+        m_capacity = header.getInt();
+        m_count    = header.getInt();
+        m_used     = header.getInt();
+        m_clean    = header.getInt() != 0;
+        m_dataEnd  = header.getLong();
+        m_garbage  = header.getLong();
+
+        //
+        //  The header may be out of date, so everything in the file is suspect.
+        //
+        if( !m_clean ) m_dataEnd = m_channel.size();
+    }
+
+    private void create( int capacity ) throws IOException
+    {
+        m_capacity = capacity;
+        m_count    = 0;
+        m_used     = 0;
+        m_garbage  = 0;
+        m_dataEnd  = dataStart();
+
+        m_channel.truncate( 0 );
+
+        //
+        //  Writing the last byte is enough to get a zeroed (i.e. empty) table.
+        //
+        m_channel.write( ByteBuffer.wrap( new byte[1] ), m_dataEnd-1 );
+        m_clean = true;
+        writeHeader();
+    }
+
+    private long dataStart()
+    {
+        return HEADER_SIZE + (long)m_capacity * SLOT_SIZE;
+    }
+
+    private void writeHeader() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+
+        header.putInt( MAGIC );
+        header.putInt( VERSION );
+        header.putInt( m_capacity );
+        header.putInt( m_count );
+        header.putInt( m_used );
+        header.putInt( m_clean ? 1 : 0 );
+        header.putLong( m_dataEnd );
+        header.putLong( m_garbage );
+        header.clear();
+
+        writeFully( header, 0 );
+    }
+
+    /**
+     *  Marks the index as modified on disk, so that a crash before the
+     *  next sync() or close() is noticed on the next open.  The header is
+     *  forced to the disk before anything else is written, since otherwise
+     *  the new slots might get there first.
+     */
+    private void modified() throws IOException
+    {
+        if( m_clean )
+        {
+            m_clean = false;
+            writeHeader();
+            m_channel.force( false );
+        }
+    }
+
+    /**
+     *  Returns the values stored for the given UUID.
+     *
+     *  @param uuid The UUID
+     *  @return The values, or null, if there are none.
+     *  @throws IOException If the index cannot be read.
+     */
+    public synchronized String[] get( String uuid ) throws IOException
+    {
+        UUID key = toKey( uuid );
+
+        long slot = find( key );
+
+        if( slot < 0 ) return null;
+
+        return readRecord( readOffset( slot ) );
+    }
+
+    /**
+     *  Stores the values for the given UUID, replacing any previous ones.
+     *
+     *  @param uuid The UUID
+     *  @param values The values.  If null, the UUID is removed.
+     *  @throws IOException If the index cannot be written.
+     */
+    public synchronized void put( String uuid, String[] values ) throws IOException
+    {
+        if( values == null )
+        {
+            remove( uuid );
+            return;
+        }
+
+        UUID key = toKey( uuid );
+
+        if( m_used+1 > m_capacity/4*3 )
+        {
+            //
+            //  A compaction is started well before this, so this only happens
+            //  if the compaction failed.
+            //
+            if( m_target != null ) copy( m_capacity );
+            if( m_used+1 > m_capacity/4*3 ) rebuild( capacityFor( m_count+1 ) );
+        }
+
+        store( key, values );
+
+        if( m_target != null ) m_target.store( key, values );
+
+        compactIfNeeded();
+    }
+
+    private void store( UUID key, String[] values ) throws IOException
+    {
+        modified();
+
+        long slot = find( key );
+
+        if( slot >= 0 )
+        {
+            m_garbage += recordLength( readOffset( slot ) );
+        }
+        else
+        {
+            slot = -slot-1;
+            if( readOffset( slot ) == EMPTY ) m_used++;
+            m_count++;
+        }
+
+        long offset = m_dataEnd;
+
+        m_dataEnd += writeRecord( offset, values );
+
+        writeSlot( slot, key, offset );
+    }
+
+    /**
+     *  Removes an UUID from the index.
+     *
+     *  @param uuid The UUID
+     *  @throws IOException If the index cannot be written.
+     */
+    public synchronized void remove( String uuid ) throws IOException
+    {
+        UUID key = toKey( uuid );
+
+        if( !delete( key ) ) return;
+
+        if( m_target != null ) m_target.delete( key );
+
+        compactIfNeeded();
+    }
+
+    private boolean delete( UUID key ) throws IOException
+    {
+        long slot = find( key );
+
+        if( slot < 0 ) return false;
+
+        modified();
+
+        m_garbage += recordLength( readOffset( slot ) );
+        m_count--;
+
+        writeSlot( slot, key, REMOVED );
+
+        return true;
+    }
+
+    /**
+     *  Returns the number of UUIDs in the index.
+     */
+    public synchronized int size()
+    {
+        return m_count;
+    }
+
+    /**
+     *  Returns true, if a compaction is in progress.
+     */
+    synchronized boolean isCompacting()
+    {
+        return m_target != null;
+    }
+
+    /**
+     *  Forces all the changes to the disk.
+     *
+     *  @throws IOException If the sync fails.
+     */
+    public synchronized void sync() throws IOException
+    {
+        if( m_channel == null || m_clean ) return;
+
+        //
+        //  The data must be on disk before the header says it's clean.
+        //
+        m_channel.force( false );
+        m_clean = true;
+        writeHeader();
+        m_channel.force( false );
+    }
+
+    /**
+     *  Syncs and closes the index.  A compaction in progress is abandoned.
+     *
+     *  @throws IOException If the index cannot be written.
+     */
+    public synchronized void close() throws IOException
+    {
+        if( m_channel == null ) return;
+
+        try
+        {
+            if( m_target != null ) abortCompaction();
+
+            sync();
+        }
+        finally
+        {
+            m_raf.close();
+            m_raf     = null;
+            m_channel = null;
+        }
+    }
+
+    /**
+     *  Turns the key into an UUID.  JCR does not actually require that
+     *  jcr:uuid is in the UUID format, so anything else is hashed.
+     */
+    private static UUID toKey( String uuid )
+    {
+        if( uuid.length() == 36 )
+        {
+            try
+            {
+                return UUID.fromString( uuid );
+            }
+            catch( IllegalArgumentException e )
+            {
+                // Fall through
+            }
+        }
+
+        try
+        {
+            return UUID.nameUUIDFromBytes( uuid.getBytes("UTF-8") );
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( "UTF-8 not supported?!?" );
+        }
+    }
+
+    private int slotFor( UUID key )
+    {
+        long h = key.getMostSignificantBits() ^ key.getLeastSignificantBits();
+
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+
+        return (int)(h & (m_capacity-1));
+    }
+
+    /**
+     *  Finds the slot for the given key.
+     *
+     *  @return The slot number if the key was found, or -(slot+1) where slot is
+     *          the slot in which the key should be inserted.
+     */
+    private long find( UUID key ) throws IOException
+    {
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+
+        int  slot      = slotFor( key );
+        long firstFree = -1;
+
+        ByteBuffer buf = ByteBuffer.allocate( PROBE_SLOTS*SLOT_SIZE );
+
+        for( int probed = 0; probed < m_capacity; )
+        {
+            int n = Math.min( PROBE_SLOTS, m_capacity-slot );
+
+            buf.clear();
+            buf.limit( n*SLOT_SIZE );
+            readFully( buf, HEADER_SIZE + (long)slot*SLOT_SIZE );
+            buf.flip();
+
+            for( int i = 0; i < n; i++, probed++ )
+            {
+                long m      = buf.getLong();
+                long l      = buf.getLong();
+                long offset = buf.getLong();
+
+                if( offset == EMPTY )
+                {
+                    return -(firstFree != -1 ? firstFree : slot+i)-1;
+                }
+
+                if( offset == REMOVED )
+                {
+                    if( firstFree == -1 ) firstFree = slot+i;
+                }
+                else if( m == msb && l == lsb )
+                {
+                    return slot+i;
+                }
+            }
+
+            slot = (slot+n) & (m_capacity-1);
+        }
+
+        if( firstFree != -1 ) return -firstFree-1;
+
+        throw new IOException( "Index "+m_file+" is full" );
+    }
+
+    private long readOffset( long slot ) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate( 8 );
+
+        readFully( buf, HEADER_SIZE + slot*SLOT_SIZE + 16 );
+        buf.flip();
+
+        return buf.getLong();
+    }
+
+    private void writeSlot( long slot, UUID key, long offset ) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate( SLOT_SIZE );
+
+        buf.putLong( key.getMostSignificantBits() );
+        buf.putLong( key.getLeastSignificantBits() );
+        buf.putLong( offset );
+        buf.flip();
+
+        writeFully( buf, HEADER_SIZE + slot*SLOT_SIZE );
+    }
+
+    /**
+     *  Records are stored as [int length][int count][count * [int length][UTF-8 string]].
+     */
+    private long writeRecord( long offset, String[] values ) throws IOException
+    {
+        ByteArrayOutputStream ba  = new ByteArrayOutputStream();
+        DataOutputStream      out = new DataOutputStream( ba );
+
+        out.writeInt( 0 );
+        out.writeInt( values.length );
+
+        for( String s : values )
+        {
+            byte[] b = s.getBytes( "UTF-8" );
+
+            out.writeInt( b.length );
+            out.write( b );
+        }
+
+        out.flush();
+
+        ByteBuffer buf = ByteBuffer.wrap( ba.toByteArray() );
+        buf.putInt( 0, buf.capacity()-4 );
+
+        writeFully( buf, offset );
+
+        return buf.capacity();
+    }
+
+    private int recordLength( long offset ) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate( 4 );
+
+        readFully( buf, offset );
+        buf.flip();
+
+        return buf.getInt()+4;
+    }
+
+    private String[] readRecord( long offset ) throws IOException
+    {
+        //
+        //  After a crash, a slot may point at a record which never made it to the disk.
+        //
+        if( offset < dataStart() || offset+4 > m_dataEnd )
+            throw new IOException( "Record at "+offset+" is outside the data of "+m_file );
+
+        ByteBuffer buf = ByteBuffer.allocate( READ_AHEAD );
+
+        buf.limit( (int)Math.min( READ_AHEAD, m_dataEnd-offset ) );
+        readFully( buf, offset );
+        buf.flip();
+
+        int length = buf.getInt();
+
+        if( length < 0 || offset+4+length > m_dataEnd )
+            throw new IOException( "Record at "+offset+" has an invalid length "+length );
+
+        if( length > buf.remaining() )
+        {
+            ByteBuffer full = ByteBuffer.allocate( length );
+            full.put( buf );
+            readFully( full, offset+4+full.position() );
+            buf = full;
+            buf.flip();
+        }
+
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( buf.array(),
+                                                                             buf.arrayOffset()+buf.position(),
+                                                                             length ) );
+
+        if( m_oldFormat )
+        {
+            String[] result = new String[in.readUnsignedShort()];
+
+            for( int i = 0; i < result.length; i++ )
+            {
+                result[i] = in.readUTF();
+            }
+
+            return result;
+        }
+
+        int count = in.readInt();
+
+        if( count < 0 || count > length/4 )
+            throw new IOException( "Record at "+offset+" has an invalid count "+count );
+
+        String[] result = new String[count];
+
+        for( int i = 0; i < result.length; i++ )
+        {
+            int n = in.readInt();
+
+            if( n < 0 || n > in.available() )
+                throw new IOException( "Record at "+offset+" has an invalid value length "+n );
+
+            byte[] b = new byte[n];
+            in.readFully( b );
+
+            result[i] = new String( b, "UTF-8" );
+        }
+
+        return result;
+    }
+
+    private int capacityFor( int count )
+    {
+        int capacity = MIN_CAPACITY;
+
+        while( capacity/2 < count ) capacity *= 2;
+
+        return capacity;
+    }
+
+    /**
+     *  Starts a compaction when there is too much garbage or the table is half
+     *  full, or continues the one in progress.
+     */
+    private void compactIfNeeded() throws IOException
+    {
+        if( m_target != null )
+        {
+            copy( COMPACT_SLOTS );
+            return;
+        }
+
+        long live = m_dataEnd - dataStart() - m_garbage;
+
+        if( m_used > m_capacity/2 || (m_garbage > MIN_GARBAGE && m_garbage > live) )
+        {
+            //
+            //  Every put() copies at least COMPACT_SLOTS slots, so this many new
+            //  UUIDs at most are added to the target before the copy is done.
+            //
+            startCompaction( capacityFor( m_count + m_capacity/COMPACT_SLOTS + 1 ) );
+        }
+    }
+
+    /**
+     *  Counts the live slots by reading the whole table, since the header may
+     *  not be up to date.
+     */
+    private int countLive() throws IOException
+    {
+        int count = 0;
+
+        for( long slot = 0; slot < m_capacity; slot++ )
+        {
+            if( readOffset( slot ) > 0 ) count++;
+        }
+
+        return count;
+    }
+
+    /**
+     *  Rewrites the index to a new file with the given capacity, dropping all the
+     *  garbage, and then replaces the current file with it.
+     */
+    private void rebuild( int capacity ) throws IOException
+    {
+        long start = System.currentTimeMillis();
+
+        if( m_target != null ) abortCompaction();
+
+        startCompaction( capacity );
+        copy( m_capacity );
+
+        log.fine( "Rebuilt index "+m_file+" with "+m_count+" UUIDs in "+(System.currentTimeMillis()-start)+" ms" );
+    }
+
+    private void startCompaction( int capacity ) throws IOException
+    {
+        File tmp = tmpFile();
+        tmp.delete();
+
+        UUIDIndex target = new UUIDIndex( tmp );
+
+        try
+        {
+            target.create( capacity );
+        }
+        catch( IOException e )
+        {
+            target.close();
+            tmp.delete();
+            throw e;
+        }
+
+        m_target = target;
+        m_copied = 0;
+
+        log.fine( "Compacting index "+m_file+" with "+m_count+" UUIDs" );
+    }
+
+    private void abortCompaction() throws IOException
+    {
+        UUIDIndex target = m_target;
+
+        m_target = null;
+
+        try
+        {
+            target.close();
+        }
+        finally
+        {
+            target.m_file.delete();
+        }
+    }
+
+    /**
+     *  Copies the given number of slots to the target, and once all of them
+     *  have been copied, replaces this file with the target.  The table is read
+     *  sequentially, so this does not depend on the header being up to date.
+     */
+    private void copy( long slots ) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate( COMPACT_SLOTS*SLOT_SIZE );
+
+        try
+        {
+            while( slots > 0 && m_copied < m_capacity )
+            {
+                int n = (int)Math.min( Math.min( slots, COMPACT_SLOTS ), m_capacity-m_copied );
+
+                buf.clear();
+                buf.limit( n*SLOT_SIZE );
+                readFully( buf, HEADER_SIZE + m_copied*SLOT_SIZE );
+                buf.flip();
+
+                for( int i = 0; i < n; i++ )
+                {
+                    UUID key    = new UUID( buf.getLong(), buf.getLong() );
+                    long offset = buf.getLong();
+
+                    if( offset > 0 )
+                    {
+                        String[] values;
+
+                        try
+                        {
+                            values = readRecord( offset );
+                        }
+                        catch( IOException e )
+                        {
+                            // Can happen if the record was never fully written.
+                            log.warning( "Dropping a broken record for "+key+" from "+m_file+": "+e.getMessage() );
+                            continue;
+                        }
+
+                        m_target.store( key, values );
+                    }
+                }
+
+                m_copied += n;
+                slots    -= n;
+            }
+        }
+        catch( IOException e )
+        {
+            abortCompaction();
+            throw e;
+        }
+
+        if( m_copied == m_capacity ) finishCompaction();
+    }
+
+    private void finishCompaction() throws IOException
+    {
+        UUIDIndex target = m_target;
+
+        m_target = null;
+
+        try
+        {
+            target.close();
+        }
+        catch( IOException e )
+        {
+            target.m_file.delete();
+            throw e;
+        }
+
+        //
+        //  The header stays unclean, but it must be up to date in case the
+        //  file has to be reopened after all.  An old format header is left
+        //  alone, since the records are still in the old format.
+        //
+        if( !m_oldFormat ) writeHeader();
+        m_raf.close();
+
+        try
+        {
+            replace( target.m_file );
+        }
+        finally
+        {
+            open();
+        }
+    }
+
+    /**
+     *  Renames the given file over the index file.  The old file is kept until
+     *  the rename has succeeded, so a crash leaves either one of them behind.
+     */
+    private void replace( File tmp ) throws IOException
+    {
+        if( tmp.renameTo( m_file ) ) return;
+
+        //
+        //  Some platforms will not rename over an existing file.
+        //
+        File old = oldFile();
+        old.delete();
+
+        if( !m_file.renameTo( old ) )
+        {
+            tmp.delete();
+            throw new IOException( "Unable to replace "+m_file+" with "+tmp );
+        }
+
+        if( !tmp.renameTo( m_file ) )
+        {
+            old.renameTo( m_file );
+            tmp.delete();
+            throw new IOException( "Unable to replace "+m_file+" with "+tmp );
+        }
+
+        old.delete();
+    }
+
+    private void readFully( ByteBuffer buf, long position ) throws IOException
+    {
+        while( buf.hasRemaining() )
+        {
+            int n = m_channel.read( buf, position );
+
+            if( n < 0 ) throw new EOFException( "Unexpected end of index "+m_file );
+
+            position += n;
+        }
+    }
+
+    private void writeFully( ByteBuffer buf, long position ) throws IOException
+    {
+        while( buf.hasRemaining() )
+        {
+            position += m_channel.write( buf, position );
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *  A concurrent cache which is limited by the total weight (e.g. the size in bytes)
+ *  of its values instead of their count.  Lookups do not lock; only adding and
+ *  removing entries take a lock.
+ *  <p>
+ *  The eviction policy is W-TinyLFU: new entries go to a small window (1% of the
+ *  capacity), and when they fall out of it, they are only admitted to the main
+ *  region if they have been asked for more often than the entry which would be
+ *  evicted to make room for them.  The frequencies are kept in a count-min sketch,
+ *  which is aged by halving all counters every now and then.  This makes the cache
+ *  resistant to scans: reading through a large number of items once does not
+ *  throw out the items which are used all the time.  Both regions use the CLOCK
+ *  algorithm instead of a strict LRU list, so a hit only needs to set a flag.
+ *  
+ *  @param <K> The key type.
+ *  @param <V> The value type.
+ */
+public class WeightedCache<K,V>
+{
+    private static final int WINDOW_PERCENTAGE = 1;
+    
+    private final ConcurrentHashMap<K,Node<K,V>> m_map;
+    private final FrequencySketch                m_sketch;
+    
+    /** Guards the regions.  Not needed for lookups. */
+    private final ReentrantLock                  m_lock = new ReentrantLock();
+    
+    private final Node<K,V>                      m_window = new Node<K,V>( null, null, 0 );
+    private final Node<K,V>                      m_main   = new Node<K,V>( null, null, 0 );
+    private final long                           m_windowMax;
+    private final long                           m_mainMax;
+    private long                                 m_windowWeight;
+    private long                                 m_mainWeight;
+    
+    private final AtomicLong                     m_hits   = new AtomicLong();
+    private final AtomicLong                     m_misses = new AtomicLong();
+    
+    /**
+     *  Creates a new cache.
+     *  
+     *  @param maxWeight The maximum total weight of the values.
+     *  @param expectedEntries Roughly how many entries the cache will hold when full.
+     *                         This is used to size the frequency sketch.
+     */
+    public WeightedCache( long maxWeight, int expectedEntries )
+    {
+        m_map       = new ConcurrentHashMap<K,Node<K,V>>( Math.max( 16, expectedEntries ) );
+        m_sketch    = new FrequencySketch( expectedEntries );
+        m_windowMax = maxWeight * WINDOW_PERCENTAGE / 100;
+        m_mainMax   = maxWeight - m_windowMax;
+        
+        m_window.m_prev = m_window.m_next = m_window;
+        m_main.m_prev   = m_main.m_next   = m_main;
+    }
+    
+    /**
+     *  Returns a cached value.
+     *  
+     *  @param key The key.
+     *  @return The value, or null, if it is not in the cache.
+     */
+    public V get( K key )
+    {
+        m_sketch.increment( key.hashCode() );
+        
+        Node<K,V> n = m_map.get( key );
+        
+        if( n == null )
+        {
+            m_misses.incrementAndGet();
+            return null;
+        }
+        
+        n.m_referenced = true;
+        m_hits.incrementAndGet();
+        
+        return n.m_value;
+    }
+    
+    /**
+     *  Returns true, if the key is in the cache.  This does not count as a use of
+     *  the value.
+     *  
+     *  @param key The key.
+     *  @return True, if the value is cached.
+     */
+    public boolean containsKey( K key )
+    {
+        return m_map.containsKey( key );
+    }
+    
+    /**
+     *  Adds a value to the cache, replacing any previous value.  The value may
+     *  also be evicted right away, if it is not used often enough.
+     *  
+     *  @param key The key.
+     *  @param value The value.
+     *  @param weight The weight of the value.  Values which weigh more than the
+     *                whole cache are not cached.
+     */
+    public void put( K key, V value, int weight )
+    {
+        m_lock.lock();
+        
+        try
+        {
+            Node<K,V> old;
+            
+            if( weight > m_mainMax )
+            {
+                old = m_map.remove( key );
+            }
+            else
+            {
+                Node<K,V> n = new Node<K,V>( key, value, weight );
+                
+                old = m_map.put( key, n );
+                
+                link( m_window, n );
+                m_windowWeight += weight;
+            }
+            
+            if( old != null ) discard( old, false );
+            
+            evict();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+    
+    /**
+     *  Removes a value from the cache.
+     *  
+     *  @param key The key.
+     */
+    public void remove( K key )
+    {
+        m_lock.lock();
+        
+        try
+        {
+            Node<K,V> n = m_map.remove( key );
+            
+            if( n != null ) discard( n, false );
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+    
+    /**
+     *  Empties the cache.
+     */
+    public void clear()
+    {
+        m_lock.lock();
+        
+        try
+        {
+            m_map.clear();
+            m_window.m_prev = m_window.m_next = m_window;
+            m_main.m_prev   = m_main.m_next   = m_main;
+            m_windowWeight = m_mainWeight = 0;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+    
+    /**
+     *  Returns the number of entries in the cache.
+     *  
+     *  @return The number of entries.
+     */
+    public int size()
+    {
+        return m_map.size();
+    }
+    
+    /**
+     *  Returns the total weight of the entries in the cache.
+     *  
+     *  @return The weight.
+     */
+    public long getWeight()
+    {
+        m_lock.lock();
+        
+        try
+        {
+            return m_windowWeight + m_mainWeight;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+    
+    /**
+     *  Returns the number of lookups which found a value.
+     *  
+     *  @return The number of hits.
+     */
+    public long getHits()
+    {
+        return m_hits.get();
+    }
+    
+    /**
+     *  Returns the number of lookups which did not find a value.
+     *  
+     *  @return The number of misses.
+     */
+    public long getMisses()
+    {
+        return m_misses.get();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "WeightedCache[entries="+size()+", weight="+getWeight()+", hits="+getHits()+", misses="+getMisses()+"]";
+    }
+    
+    /**
+     *  Moves the entries which no longer fit in the window to the main region,
+     *  if they are used more often than the entries they would replace.
+     */
+    private void evict()
+    {
+        while( m_windowWeight > m_windowMax )
+        {
+            Node<K,V> candidate = sweep( m_window );
+            
+            unlink( candidate );
+            m_windowWeight -= candidate.m_weight;
+            
+            admit( candidate );
+        }
+    }
+    
+    private void admit( Node<K,V> candidate )
+    {
+        while( m_mainWeight + candidate.m_weight > m_mainMax )
+        {
+            Node<K,V> victim = sweep( m_main );
+            
+            if( m_sketch.frequency( candidate.m_key.hashCode() ) <= m_sketch.frequency( victim.m_key.hashCode() ) )
+            {
+                discard( candidate, true );
+                return;
+            }
+            
+            discard( victim, true );
+        }
+        
+        link( m_main, candidate );
+        m_mainWeight += candidate.m_weight;
+    }
+    
+    /**
+     *  Finds the next entry to evict from a region, giving a second chance to
+     *  the entries which have been used since the last sweep.
+     */
+    private Node<K,V> sweep( Node<K,V> region )
+    {
+        for(;;)
+        {
+            Node<K,V> n = region.m_next;
+            
+            if( !n.m_referenced ) return n;
+            
+            n.m_referenced = false;
+            unlink( n );
+            link( region, n );
+        }
+    }
+    
+    /**
+     *  Forgets about an entry.
+     *  
+     *  @param evicted If true, the entry is also removed from the map, unless
+     *                 it has already been replaced.
+     */
+    private void discard( Node<K,V> n, boolean evicted )
+    {
+        if( evicted ) m_map.remove( n.m_key, n );
+        
+        if( n.m_prev == null ) return; // Not in a region
+        
+        if( n.m_inMain ) 
+            m_mainWeight -= n.m_weight;
+        else
+            m_windowWeight -= n.m_weight;
+        
+        unlink( n );
+    }
+    
+    private void link( Node<K,V> region, Node<K,V> n )
+    {
+        n.m_inMain = region == m_main;
+        n.m_prev = region.m_prev;
+        n.m_next = region;
+        region.m_prev.m_next = n;
+        region.m_prev = n;
+    }
+    
+    private static <K,V> void unlink( Node<K,V> n )
+    {
+        n.m_prev.m_next = n.m_next;
+        n.m_next.m_prev = n.m_prev;
+        n.m_prev = n.m_next = null;
+    }
+    
+    private static final class Node<K,V>
+    {
+        final K          m_key;
+        final V          m_value;
+        final int        m_weight;
+        
+        /** Set on every hit, cleared by the CLOCK sweep. */
+        volatile boolean m_referenced;
+        
+        /* The rest is guarded by the lock. */
+        boolean          m_inMain;
+        Node<K,V>        m_prev;
+        Node<K,V>        m_next;
+        
+        Node( K key, V value, int weight )
+        {
+            m_key    = key;
+            m_value  = value;
+            m_weight = weight;
+        }
+    }
+    
+    /**
+     *  A count-min sketch with four rows of small counters.  The counters are 
+     *  updated without locking, so an occasional increment may be lost, which
+     *  does not matter for an estimate.
+     */
+    private static final class FrequencySketch
+    {
+        private static final int   MAX_COUNT = 15;
+        private static final int[] SEEDS     = { 0x97cb3127, 0xb3816f3d, 0x8eb9b6e5, 0xc2b2ae35 };
+        
+        private final byte[][] m_rows;
+        private final int      m_mask;
+        private final int      m_sampleSize;
+        private int            m_additions;
+        
+        FrequencySketch( int expectedEntries )
+        {
+            int width = 16;
+            while( width < expectedEntries && width < (1 << 24) ) width <<= 1;
+            
+            m_rows       = new byte[SEEDS.length][width];
+            m_mask       = width-1;
+            m_sampleSize = 10 * width;
+        }
+        
+        private int index( int hash, int row )
+        {
+            int h = (hash ^ (hash >>> 16)) * SEEDS[row];
+            return (h ^ (h >>> 15)) & m_mask;
+        }
+        
+        int frequency( int hash )
+        {
+            int min = MAX_COUNT;
+            
+            for( int i = 0; i < m_rows.length; i++ )
+            {
+                min = Math.min( min, m_rows[i][index( hash, i )] );
+            }
+            
+            return min;
+        }
+        
+        void increment( int hash )
+        {
+            boolean added = false;
+            
+            for( int i = 0; i < m_rows.length; i++ )
+            {
+                int idx = index( hash, i );
+                
+                if( m_rows[i][idx] < MAX_COUNT )
+                {
+                    m_rows[i][idx]++;
+                    added = true;
+                }
+            }
+            
+            if( added && ++m_additions >= m_sampleSize ) reset();
+        }
+        
+        /**
+         *  Halves all counters, so that the items which were popular a long 
+         *  time ago give way to the new ones.
+         */
+        private synchronized void reset()
+        {
+            if( m_additions < m_sampleSize ) return;
+            
+            for( byte[] row : m_rows )
+            {
+                for( int i = 0; i < row.length; i++ ) row[i] >>= 1;
+            }
+            
+            m_additions = 0;
+        }
+    }
+}
@@ -70,6 +70,8 @@ public class XMLDocExport extends XMLExport
         
         if( !noRecurse )
         {
+            m_session.prefetch( startNode.getInternalPath() );
+            
             for( NodeIterator ni = startNode.getNodes(); ni.hasNext(); )
             {
                 Node nd = ni.nextNode();
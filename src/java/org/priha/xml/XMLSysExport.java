@@ -21,6 +21,7 @@ import static org.priha.core.JCRConstants.Q_JCR_MIXINTYPES;
 import static org.priha.core.JCRConstants.Q_JCR_PRIMARYTYPE;
 import static org.priha.core.JCRConstants.Q_JCR_UUID;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
@@ -30,6 +31,7 @@ import java.util.logging.Logger;
 
 import javax.jcr.*;
 
+import org.priha.core.NodeImpl;
 import org.priha.core.PropertyImpl;
 import org.priha.core.SessionImpl;
 import org.priha.util.Base64;
@@ -90,6 +92,8 @@ public class XMLSysExport extends XMLExport
         //
         if( !noRecurse )
         {
+            m_session.prefetch( ((NodeImpl)startNode).getInternalPath() );
+            
             for( NodeIterator ni = startNode.getNodes(); ni.hasNext(); )
             {
                 Node n = ni.nextNode();
@@ -142,7 +146,12 @@ public class XMLSysExport extends XMLExport
             {
                 try
                 {
-                    InputStreamReader in = new InputStreamReader( new Base64.InputStream( v.getStream(), Base64.ENCODE ), 
+                    //
+                    //  Base64.InputStream reads one byte at a time, so make sure that
+                    //  it does not turn into a system call per byte.
+                    //
+                    BufferedInputStream bin = new BufferedInputStream( v.getStream(), BINARY_BUF_SIZE );
+                    InputStreamReader in = new InputStreamReader( new Base64.InputStream( bin, Base64.ENCODE ), 
                                                                   "UTF-8" );
 
                     char[] buf = new char[ BINARY_BUF_SIZE ];
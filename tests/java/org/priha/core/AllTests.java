@@ -30,6 +30,8 @@ public class AllTests
         suite.addTest( NamespaceRegistryImplTest.suite() );
         suite.addTest( RepositoryTest.suite() );
         suite.addTest( WorkspaceImplTest.suite() );
+        suite.addTest( ProviderManagerTest.suite() );
+        suite.addTest( NodeStateCacheTest.suite() );
         suite.addTest( NodeImplTest.suite() );
         suite.addTest( SessionImplTest.suite() );
         //
@@ -55,6 +55,13 @@ public class MultiThreadTest extends TestCase
         runRepoTest( rep, "FileEh" );
     }
 
+    public void testCachingFileProvider() throws Exception
+    {
+        RepositoryImpl rep = RepositoryManager.getRepository("filecache.properties");
+        
+        runRepoTest( rep, "FileCache" );
+    }
+
     public void testMemoryProvider() throws Exception
     {
         //Perf.setProvider("FileProvider, no cache");
@@ -79,6 +86,13 @@ public class MultiThreadTest extends TestCase
         runRepoTest( rep, "JdbcEh" );
     }
 
+    public void testCachingJdbcProvider() throws Exception
+    {
+        RepositoryImpl rep = RepositoryManager.getRepository("jdbccache.properties");
+        
+        runRepoTest( rep, "JdbcCache" );
+    }
+
     private void runRepoTest( RepositoryImpl rep, String prefix ) throws InterruptedException, LoginException, RepositoryException
     {
         try
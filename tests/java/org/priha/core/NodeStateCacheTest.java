@@ -0,0 +1,283 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.jcr.Node;
+import javax.jcr.SimpleCredentials;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.priha.RepositoryManager;
+import org.priha.TestUtil;
+import org.priha.path.Path;
+import org.priha.path.PathFactory;
+import org.priha.providers.ValueContainer;
+import org.priha.util.QName;
+
+public class NodeStateCacheTest extends TestCase
+{
+    private SessionImpl login( RepositoryImpl rep ) throws Exception
+    {
+        return rep.login( new SimpleCredentials("foo",new char[0]) );
+    }
+    
+    /**
+     *  Checks that the Sessions share what has been read, and that they see
+     *  what the others have saved.
+     */
+    private void readAfterWrite( String config ) throws Exception
+    {
+        RepositoryImpl rep = RepositoryManager.getRepository( config );
+        NodeStateCache cache = rep.getProviderManager().getNodeStateCache();
+        SessionImpl session = login( rep );
+        
+        try
+        {
+            Node nd = session.getRootNode().addNode("test");
+            nd.setProperty("x", "old");
+            nd.addNode("child");
+            session.save();
+            
+            SessionImpl s = login( rep );
+            
+            try
+            {
+                assertEquals( "old", s.getRootNode().getProperty("test/x").getString() );
+            }
+            finally
+            {
+                s.logout();
+            }
+            
+            long hits = cache.getCache().getHits();
+            
+            s = login( rep );
+            
+            try
+            {
+                assertEquals( "old", s.getRootNode().getProperty("test/x").getString() );
+                assertTrue( "no hits", cache.getCache().getHits() > hits );
+                
+                nd.setProperty("x", "new");
+                nd.setProperty("y", "added");
+                nd.getNode("child").remove();
+                nd.addNode("other");
+                session.save();
+            }
+            finally
+            {
+                s.logout();
+            }
+            
+            s = login( rep );
+            
+            try
+            {
+                Node n2 = s.getRootNode().getNode("test");
+                
+                assertEquals( "new", n2.getProperty("x").getString() );
+                assertEquals( "added", n2.getProperty("y").getString() );
+                assertFalse( "child", n2.hasNode("child") );
+                assertTrue( "other", n2.hasNode("other") );
+                assertEquals( 1, n2.getNodes().getSize() );
+            }
+            finally
+            {
+                s.logout();
+            }
+        }
+        finally
+        {
+            session.logout();
+            TestUtil.emptyRepo( rep );
+        }
+    }
+    
+    public void testMemoryProvider() throws Exception
+    {
+        readAfterWrite( "memorynocache.properties" );
+    }
+    
+    public void testJdbcProvider() throws Exception
+    {
+        readAfterWrite( "jdbcnocache.properties" );
+    }
+    
+    /**
+     *  A state which was read before a save must not be cached after it.
+     */
+    public void testGeneration() throws Exception
+    {
+        RepositoryImpl rep = RepositoryManager.getRepository( "memorynocache.properties" );
+        NodeStateCache cache = rep.getProviderManager().getNodeStateCache();
+        SessionImpl session = login( rep );
+        
+        try
+        {
+            WorkspaceImpl ws = session.getWorkspace();
+            Path path = PathFactory.getPath( session, "/test" );
+            
+            session.getRootNode().addNode("test");
+            session.save();
+            
+            long generation = cache.getGeneration();
+            
+            session.getRootNode().getNode("test").addNode("child");
+            session.save();
+            
+            cache.putProperties( ws, path, new HashMap<QName,ValueContainer>(), generation );
+            assertNull( "stale", cache.get( ws, path ) );
+            
+            cache.putProperties( ws, path, new HashMap<QName,ValueContainer>(), cache.getGeneration() );
+            assertNotNull( "fresh", cache.get( ws, path ) );
+        }
+        finally
+        {
+            session.logout();
+            TestUtil.emptyRepo( rep );
+        }
+    }
+    
+    /**
+     *  A listing of a path which does not exist must not make it exist for
+     *  the other Sessions.
+     */
+    public void testMissingPath() throws Exception
+    {
+        RepositoryImpl rep = RepositoryManager.getRepository( "jdbcnocache.properties" );
+        NodeStateCache cache = rep.getProviderManager().getNodeStateCache();
+        SessionImpl session = login( rep );
+        
+        try
+        {
+            WorkspaceImpl ws = session.getWorkspace();
+            Path path = PathFactory.getPath( session, "/missing" );
+            
+            cache.putChildren( ws, path, new ArrayList<Path>(), cache.getGeneration() );
+            cache.putPropertyNames( ws, path, new ArrayList<QName>(), cache.getGeneration() );
+            assertNull( "listing cached", cache.get( ws, path ) );
+            
+            Node w = session.getRootNode().addNode("w");
+            Node a = w.addNode("a");
+            a.setProperty("p", "v1");
+            session.save();
+            
+            session.move("/w/a", "/w/b");
+            assertEquals( 0, a.getNodes().getSize() );
+            assertTrue( a.hasProperty("p") );
+            
+            SessionImpl s = login( rep );
+            
+            try
+            {
+                assertFalse( "itemExists", s.itemExists("/w/b") );
+                assertFalse( "hasNode", s.getRootNode().getNode("w").hasNode("b") );
+                assertTrue( "a", s.itemExists("/w/a") );
+            }
+            finally
+            {
+                s.logout();
+            }
+            
+            // Moved twice in one save.
+            session.move("/w/b", "/w/c");
+            session.save();
+            
+            s = login( rep );
+            
+            try
+            {
+                assertEquals( "v1", s.getRootNode().getProperty("w/c/p").getString() );
+                assertFalse( "a", s.itemExists("/w/a") );
+                assertFalse( "b", s.itemExists("/w/b") );
+            }
+            finally
+            {
+                s.logout();
+            }
+        }
+        finally
+        {
+            session.logout();
+            TestUtil.emptyRepo( rep );
+        }
+    }
+    
+    /**
+     *  Versions are stored in /jcr:system, which the workspaces share, so the
+     *  other workspace must see a version as soon as it is made.
+     */
+    public void testSharedSystem() throws Exception
+    {
+        RepositoryImpl rep = ProviderManagerTest.getSharedSystemRepository();
+        SessionImpl a = login( rep );
+        
+        try
+        {
+            Node nd = a.getRootNode().addNode("versioned");
+            nd.addMixin("mix:versionable");
+            a.save();
+            
+            nd.checkin();
+            nd.checkout();
+            
+            String history = nd.getVersionHistory().getPath();
+            long   before  = a.getRootNode().getNode( history.substring(1) ).getNodes().getSize();
+            
+            SessionImpl b = rep.login( new SimpleCredentials("foo",new char[0]), "other" );
+            
+            try
+            {
+                assertEquals( "before", before, ((Node)b.getItem( history )).getNodes().getSize() );
+            }
+            finally
+            {
+                b.logout();
+            }
+            
+            nd.checkin();
+            
+            b = rep.login( new SimpleCredentials("foo",new char[0]), "other" );
+            
+            try
+            {
+                assertEquals( "after", before+1, ((Node)b.getItem( history )).getNodes().getSize() );
+            }
+            finally
+            {
+                b.logout();
+            }
+        }
+        finally
+        {
+            a.logout();
+            TestUtil.emptyRepo( rep );
+            rep.shutdown();
+        }
+    }
+    
+    public static Test suite()
+    {
+        return new TestSuite( NodeStateCacheTest.class );
+    }
+}
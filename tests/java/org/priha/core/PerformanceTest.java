@@ -50,9 +50,14 @@ public class PerformanceTest extends TestCase
     
     private boolean m_jdbcProviderTest   = true;
     private boolean m_jdbcProviderEhTest = true;
+    private boolean m_jdbcProviderCacheTest = true;
 
     private boolean m_fileProviderTest   = true;
     private boolean m_fileProviderEhTest = true;
+    private boolean m_fileProviderCacheTest = true;
+    private boolean m_filePackedTest     = true;
+
+    private boolean m_segmentProviderTest = true;
     
     private boolean m_largeTests         = true;
     
@@ -85,6 +90,24 @@ public class PerformanceTest extends TestCase
         millionIterationsTest( rep, m_creds, m_iterations );
     }
 
+    public void testFileProviderPacked() throws Exception
+    {
+        if( !m_filePackedTest ) return;
+        Perf.setTestable("FileProvider, packed");
+        RepositoryImpl rep = RepositoryManager.getRepository("filepacked.properties");
+
+        millionIterationsTest( rep, m_creds, m_iterations );
+    }
+
+    public void testSegmentProvider() throws Exception
+    {
+        if( !m_segmentProviderTest ) return;
+        Perf.setTestable("SegmentProvider, no cache");
+        RepositoryImpl rep = RepositoryManager.getRepository("segmentnocache.properties");
+
+        millionIterationsTest( rep, m_creds, m_iterations );
+    }
+
     public void testFileEhcacheProvider() throws Exception
     {
         if( !m_fileProviderEhTest ) return;
@@ -95,6 +118,16 @@ public class PerformanceTest extends TestCase
         millionIterationsTest( rep, m_creds, m_iterations );
     }
 
+    public void testFileCachingProvider() throws Exception
+    {
+        if( !m_fileProviderCacheTest ) return;
+        Perf.setTestable("FileProvider, with cache");
+
+        RepositoryImpl rep = RepositoryManager.getRepository("filecache.properties");
+        
+        millionIterationsTest( rep, m_creds, m_iterations );
+    }
+
     public void testJdbcProvider() throws Exception
     {
         if( !m_jdbcProviderTest ) return;
@@ -114,6 +147,16 @@ public class PerformanceTest extends TestCase
         millionIterationsTest( rep, m_creds, m_iterations );
     }
     
+    public void testJdbcCachingProvider() throws Exception
+    {
+        if( !m_jdbcProviderCacheTest ) return;
+        
+        Perf.setTestable("JdbcProvider, with cache");
+        RepositoryImpl rep = RepositoryManager.getRepository("jdbccache.properties");
+        
+        millionIterationsTest( rep, m_creds, m_iterations );
+    }
+    
     public static Repository getJackrabbitRepository()
     {
         try
@@ -0,0 +1,245 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.core;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import javax.jcr.*;
+import javax.jcr.version.Version;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.priha.AbstractTest;
+import org.priha.RepositoryManager;
+import org.priha.TestUtil;
+import org.priha.path.Path;
+import org.priha.path.PathFactory;
+
+public class ProviderManagerTest extends AbstractTest
+{
+    SessionImpl m_session;
+    
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_session = getNewSession();
+    }
+    
+    protected void tearDown() throws Exception
+    {
+        m_session.logout();
+        super.tearDown();
+    }
+
+    /**
+     *  Copies a subtree directly in the provider, and checks that the copy
+     *  got new UUIDs and that its references are found.
+     */
+    public void testCopy() throws Exception
+    {
+        Node target = m_session.getRootNode().addNode("target");
+        target.addMixin("mix:referenceable");
+        m_session.save();
+        
+        Node src = m_session.getRootNode().addNode("src");
+        src.addMixin("mix:referenceable");
+        
+        for( int i = 0; i < 10; i++ )
+        {
+            Node child = src.addNode("child"+i);
+            child.setProperty("ref", target);
+            child.setProperty("data", new ByteArrayInputStream(new byte[100*1024]));
+            child.addNode("grandchild").setProperty("x", i);
+        }
+        
+        m_session.save();
+        
+        Path srcPath  = PathFactory.getPath( m_session, "/src" );
+        Path destPath = PathFactory.getPath( m_session, "/dest" );
+        
+        m_repository.getProviderManager().copy( m_session.getWorkspace(), srcPath, destPath );
+        
+        try
+        {
+            m_repository.getProviderManager().copy( m_session.getWorkspace(), srcPath, destPath );
+            fail("Copied over an existing Node");
+        }
+        catch( ItemExistsException e ) {}
+        
+        SessionImpl s = getNewSession();
+        
+        try
+        {
+            Node dest = (Node) s.getItem("/dest");
+            
+            assertFalse( "same UUID", src.getUUID().equals( dest.getUUID() ) );
+            assertEquals( "/dest", s.getNodeByUUID( dest.getUUID() ).getPath() );
+            assertEquals( "/src", s.getNodeByUUID( src.getUUID() ).getPath() );
+            
+            assertEquals( 10, dest.getNodes().getSize() );
+            assertEquals( 7, dest.getNode("child7/grandchild").getProperty("x").getLong() );
+            assertEquals( 100*1024, dest.getNode("child3").getProperty("data").getLength() );
+            assertEquals( "/dest/child3/ref", dest.getNode("child3").getProperty("ref").getPath() );
+            assertEquals( 20, s.getRootNode().getNode("target").getReferences().getSize() );
+            
+            s.getRootNode().getNode("dest").remove();
+            s.save();
+            
+            assertEquals( 10, s.getRootNode().getNode("target").getReferences().getSize() );
+        }
+        finally
+        {
+            s.logout();
+        }
+    }
+    
+    /**
+     *  Once the existence filter is built, items which do not exist are found 
+     *  to be missing, and the ones added or moved later are still found.  The
+     *  default FileProvider sees external changes and so has no filter.
+     */
+    public void testExistenceFilter() throws Exception
+    {
+        RepositoryImpl rep = RepositoryManager.getRepository( "memorynocache.properties" );
+        SessionImpl session = rep.login( new SimpleCredentials("foo",new char[0]) );
+        
+        try
+        {
+            Node tree = session.getRootNode().addNode("tree");
+            tree.addNode("last");
+            
+            Node nd = tree.addNode("exists");
+            nd.setProperty("p", "x");
+            nd.addNode("child").setProperty("q", "y");
+            session.save();
+            
+            ProviderManager pm = rep.getProviderManager();
+            WorkspaceImpl   ws = session.getWorkspace();
+            
+            assertFalse( session.itemExists("/nonexisting/path") );
+            
+            for( int i = 0; i < 100 && !pm.isExistenceFilterReady( ws ); i++ ) Thread.sleep( 100 );
+            
+            assertTrue( "not built", pm.isExistenceFilterReady( ws ) );
+            
+            session.getRootNode().addNode("later").addNode("deep");
+            session.save();
+            
+            session.move("/tree/exists", "/tree/last/moved");
+            session.save();
+            
+            SessionImpl s = rep.login( new SimpleCredentials("foo",new char[0]) );
+            
+            try
+            {
+                assertFalse( s.itemExists("/nonexisting/path") );
+                assertFalse( s.itemExists("/later/nonexisting") );
+                assertTrue( s.itemExists("/later/deep") );
+                assertTrue( s.itemExists("/tree/last/moved/p") );
+                assertTrue( s.itemExists("/tree/last/moved/child/q") );
+                assertFalse( s.itemExists("/tree/exists") );
+                assertFalse( s.itemExists("/tree/exists/child") );
+                
+                assertEquals( "y", ((Property)s.getItem("/tree/last/moved/child/q")).getString() );
+                
+                try
+                {
+                    s.getItem("/later/nonexisting");
+                    fail("Found a nonexisting item");
+                }
+                catch( PathNotFoundException e ) {} // Expected
+            }
+            finally
+            {
+                s.logout();
+            }
+            
+            assertTrue( pm.itemExists( ws, PathFactory.getPath( session, "/tree/last/moved/child" ), ItemType.NODE ) );
+            assertFalse( pm.itemExists( ws, PathFactory.getPath( session, "/tree/last/moved/nochild" ), ItemType.NODE ) );
+        }
+        finally
+        {
+            session.logout();
+            TestUtil.emptyRepo( rep );
+        }
+    }
+    
+    /**
+     *  Returns a repository with two workspaces, which share /jcr:system.
+     */
+    static RepositoryImpl getSharedSystemRepository() throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty( "priha.providers", "segments" );
+        props.setProperty( "priha.provider.segments.class", "org.priha.providers.SegmentProvider" );
+        props.setProperty( "priha.provider.segments.directory", "/tmp/priha/sharedsystem/" );
+        props.setProperty( "priha.provider.segments.workspaces", "default other" );
+        
+        return RepositoryManager.getRepository( props );
+    }
+    
+    /**
+     *  A version made in one workspace must be found in the other, even when the
+     *  existence filter of the other one was built before the version was made.
+     */
+    public void testExistenceFilterSharedSystem() throws Exception
+    {
+        RepositoryImpl rep = getSharedSystemRepository();
+        SessionImpl a = rep.login( new SimpleCredentials("foo",new char[0]), "default" );
+        SessionImpl b = rep.login( new SimpleCredentials("foo",new char[0]), "other" );
+        
+        try
+        {
+            ProviderManager pm = rep.getProviderManager();
+            
+            assertFalse( a.itemExists("/nonexisting/path") );
+            assertFalse( b.itemExists("/nonexisting/path") );
+            
+            for( int i = 0; i < 100 && !(pm.isExistenceFilterReady( a.getWorkspace() ) &&
+                                         pm.isExistenceFilterReady( b.getWorkspace() )); i++ ) 
+            {
+                Thread.sleep( 100 );
+            }
+            
+            assertTrue( "not built", pm.isExistenceFilterReady( b.getWorkspace() ) );
+            
+            Node nd = a.getRootNode().addNode("versioned");
+            nd.addMixin("mix:versionable");
+            a.save();
+            
+            Version v = nd.checkin();
+            
+            assertTrue( "exists", b.itemExists( v.getPath() ) );
+            assertEquals( v.getUUID(), ((Node)b.getItem( v.getPath() )).getUUID() );
+        }
+        finally
+        {
+            a.logout();
+            b.logout();
+            TestUtil.emptyRepo( rep );
+            rep.shutdown();
+        }
+    }
+    
+    public static Test suite()
+    {
+        return new TestSuite( ProviderManagerTest.class );
+    }
+}
@@ -30,7 +30,14 @@ public class AllTests extends AbstractTest
         TestSuite suite = new TestSuite("Provider tests");
         
         suite.addTest( FileProviderTest.suite() );
+        suite.addTest( PackedFileProviderTest.suite() );
+        suite.addTest( BlobFileProviderTest.suite() );
+        suite.addTest( FanoutFileProviderTest.suite() );
         suite.addTest( JdbcProviderTest.suite() );
+        suite.addTest( JdbcReplicaTest.suite() );
+        suite.addTest( MemoryProviderTest.suite() );
+        suite.addTest( CachingProviderTest.suite() );
+        suite.addTest( SegmentProviderTest.suite() );
         suite.addTest( CassandraProviderTest.suite() );
         
         return suite;
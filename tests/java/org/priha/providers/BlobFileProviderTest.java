@@ -0,0 +1,130 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.priha.providers;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import javax.jcr.Node;
+import javax.jcr.Value;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.priha.RepositoryManager;
+import org.priha.core.RepositoryImpl;
+
+/**
+ *  Runs the FileProvider tests with the large binaries in the blob store.
+ */
+public class BlobFileProviderTest extends FileProviderTest
+{
+    /* The provider locks its directory, so the repository is shared by all tests. */
+    private static RepositoryImpl c_repository;
+
+    private static final File BLOB_DIR = new File("/tmp/priha/fileblobs/blobs");
+
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        m_session.logout();
+
+        if( c_repository == null ) c_repository = RepositoryManager.getRepository("fileblobs.properties");
+        m_repository = c_repository;
+        m_session = getNewSession();
+    }
+
+    private static int countBlobs( File dir )
+    {
+        int count = 0;
+        File[] files = dir.listFiles();
+
+        if( files == null ) return 0;
+
+        for( File f : files )
+        {
+            if( f.isDirectory() ) count += countBlobs( f );
+            else if( f.getName().length() == 64 ) count++;
+        }
+
+        return count;
+    }
+
+    public void testDeduplicate() throws Exception
+    {
+        int before = countBlobs( BLOB_DIR );
+        byte[] blob = new byte[100*1024];
+        blob[4321] = 17;
+
+        Node a = m_session.getRootNode().addNode("a");
+        a.setProperty("data", new ByteArrayInputStream(blob));
+        Node b = m_session.getRootNode().addNode("b");
+        b.setProperty("data", new ByteArrayInputStream(blob));
+        b.setProperty("multi", new Value[] { 
+            m_session.getValueFactory().createValue(new ByteArrayInputStream(blob)) 
+        });
+        m_session.save();
+
+        assertEquals( before+1, countBlobs( BLOB_DIR ) );
+
+        a.remove();
+        m_session.save();
+
+        assertEquals( before+1, countBlobs( BLOB_DIR ) );
+
+        InputStream in = ((Node)m_session.getItem("/b")).getProperty("data").getStream();
+        in.skip( 4321 );
+        assertEquals( 17, in.read() );
+        in.close();
+
+        b.setProperty("data", "small");
+        b.getProperty("multi").remove();
+        m_session.save();
+
+        assertEquals( before, countBlobs( BLOB_DIR ) );
+    }
+
+    /**
+     *  Checking in a Node copies its binaries to the version storage, which must
+     *  not make new blobs.
+     */
+    public void testCheckin() throws Exception
+    {
+        byte[] blob = new byte[100*1024];
+        blob[0] = 3;
+
+        Node nd = m_session.getRootNode().addNode("versioned");
+        nd.addMixin("mix:versionable");
+        nd.setProperty("data", new ByteArrayInputStream(blob));
+        m_session.save();
+
+        int before = countBlobs( BLOB_DIR );
+
+        nd.checkin();
+        nd.checkout();
+
+        assertEquals( before, countBlobs( BLOB_DIR ) );
+        assertEquals( 3, nd.getBaseVersion().getNode("jcr:frozenNode").getProperty("data").getStream().read() );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BlobFileProviderTest.class );
+    }
+}
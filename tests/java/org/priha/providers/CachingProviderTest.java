@@ -0,0 +1,202 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.providers;
+
+import java.util.Properties;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.SimpleCredentials;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.priha.RepositoryManager;
+import org.priha.TestUtil;
+import org.priha.core.RepositoryImpl;
+import org.priha.core.SessionImpl;
+import org.priha.core.WorkspaceImpl;
+import org.priha.core.values.ValueImpl;
+import org.priha.path.Path;
+import org.priha.util.QName;
+
+public class CachingProviderTest extends TestCase
+{
+    private RepositoryImpl m_repository;
+    private SessionImpl    m_session;
+    
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        
+        m_repository = RepositoryManager.getRepository("memorycache.properties");
+        m_session = login();
+    }
+    
+    public void tearDown() throws Exception
+    {
+        m_session.logout();
+        
+        TestUtil.emptyRepo( m_repository );
+        
+        super.tearDown();
+    }
+    
+    private SessionImpl login() throws Exception
+    {
+        return m_repository.login( new SimpleCredentials("foo",new char[0]) );
+    }
+    
+    public void testReadAfterWrite() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("test");
+        nd.setProperty("x", "old");
+        m_session.save();
+        
+        SessionImpl s = login();
+        
+        try
+        {
+            assertEquals( "old", s.getRootNode().getProperty("test/x").getString() );
+            
+            nd.setProperty("x", "new");
+            nd.setProperty("y", "added");
+            nd.addNode("child");
+            m_session.save();
+        }
+        finally
+        {
+            s.logout();
+        }
+        
+        s = login();
+        
+        try
+        {
+            Node n2 = s.getRootNode().getNode("test");
+            
+            assertEquals( "new", n2.getProperty("x").getString() );
+            assertEquals( "added", n2.getProperty("y").getString() );
+            assertTrue( "child", n2.hasNode("child") );
+            
+            nd.getNode("child").remove();
+            nd.getProperty("y").remove();
+            m_session.save();
+        }
+        finally
+        {
+            s.logout();
+        }
+        
+        s = login();
+        
+        try
+        {
+            Node n2 = s.getRootNode().getNode("test");
+            
+            assertFalse( "child", n2.hasNode("child") );
+            assertFalse( "y", n2.hasProperty("y") );
+        }
+        finally
+        {
+            s.logout();
+        }
+    }
+    
+    /**
+     *  A UUID must not lead to a new Node which was added in place of a removed one.
+     */
+    public void testUUIDs() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("ref");
+        nd.addMixin("mix:referenceable");
+        m_session.save();
+        
+        String uuid = nd.getUUID();
+        
+        assertEquals( "/ref", m_session.getNodeByUUID( uuid ).getPath() );
+        
+        nd.remove();
+        m_session.save();
+        
+        nd = m_session.getRootNode().addNode("ref");
+        nd.addMixin("mix:referenceable");
+        m_session.save();
+        
+        assertFalse( uuid.equals( nd.getUUID() ) );
+        assertEquals( "/ref", m_session.getNodeByUUID( nd.getUUID() ).getPath() );
+        
+        try
+        {
+            m_session.getNodeByUUID( uuid );
+            fail("Found the removed node");
+        }
+        catch( ItemNotFoundException e ) {} // Expected
+    }
+    
+    /**
+     *  A cancelled save only removes the items it touched.
+     */
+    public void testCancel() throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty( "realProvider", "memoryprovider" );
+        
+        CachingProvider p = new CachingProvider();
+        p.start( m_repository, props );
+        
+        WorkspaceImpl ws = m_session.getWorkspace();
+        Path x = Path.ROOT.resolve( QName.valueOf("x") );
+        Path y = Path.ROOT.resolve( QName.valueOf("y") );
+        
+        StoreTransaction tx = p.storeStarted( ws );
+        p.addNode( tx, Path.ROOT, null );
+        p.putPropertyValue( tx, x, value("old") );
+        p.putPropertyValue( tx, y, value("other") );
+        p.storeFinished( tx );
+        
+        assertEquals( "old", p.getPropertyValue( ws, x ).getValue().getString() );
+        assertEquals( "other", p.getPropertyValue( ws, y ).getValue().getString() );
+        
+        int size = p.getCache().size();
+        
+        tx = p.storeStarted( ws );
+        p.putPropertyValue( tx, x, value("new") );
+        p.storeCancelled( tx );
+        
+        assertEquals( "one item less", size-1, p.getCache().size() );
+        assertEquals( "old", p.getPropertyValue( ws, x ).getValue().getString() );
+        
+        long hits = p.getCache().getHits();
+        assertEquals( "other", p.getPropertyValue( ws, y ).getValue().getString() );
+        assertEquals( "hit", hits+1, p.getCache().getHits() );
+        
+        p.stop( m_repository );
+    }
+    
+    private ValueContainer value( String s ) throws Exception
+    {
+        return new ValueContainer( (ValueImpl)m_session.getValueFactory().createValue( s ) );
+    }
+    
+    public static Test suite()
+    {
+        return new TestSuite( CachingProviderTest.class );
+    }
+}
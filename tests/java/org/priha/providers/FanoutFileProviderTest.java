@@ -0,0 +1,105 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.priha.providers;
+
+import java.io.File;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.priha.RepositoryManager;
+import org.priha.core.RepositoryImpl;
+
+/**
+ *  Runs the FileProvider tests with the child Nodes spread over subdirectories.
+ */
+public class FanoutFileProviderTest extends FileProviderTest
+{
+    /* The provider locks its directory, so the repository is shared by all tests. */
+    private static RepositoryImpl c_repository;
+
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        m_session.logout();
+
+        if( c_repository == null ) c_repository = RepositoryManager.getRepository("filefanout.properties");
+        m_repository = c_repository;
+        m_session = getNewSession();
+    }
+
+    /**
+     *  Adds lots of children, and checks that they stay in order and that
+     *  the directory of the parent stays small.
+     */
+    public void testWideNode() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("wide");
+        m_session.save();
+
+        for( int i = 0; i < 1000; i++ )
+        {
+            nd.addNode( "child"+i );
+
+            if( i % 100 == 99 ) m_session.save();
+        }
+
+        nd.getNode("child500").remove();
+        nd.orderBefore("child999", "child0");
+        m_session.save();
+
+        File dir = new File("/tmp/priha/filefanout/workspaces/default");
+        File[] buckets = dir.listFiles();
+        int    wide    = 0;
+
+        for( File b : buckets )
+        {
+            File w = new File( b, "wide" );
+
+            if( w.isDirectory() )
+            {
+                wide++;
+                int dirs = 0;
+
+                for( File f : w.listFiles() )
+                {
+                    if( f.isDirectory() ) dirs++;
+                }
+
+                assertTrue( "too many subdirectories: "+dirs, dirs <= 16 );
+            }
+        }
+
+        assertEquals( "wide dirs", 1, wide );
+
+        NodeIterator ni = ((Node)m_session.getItem("/wide")).getNodes();
+
+        assertEquals( 999, ni.getSize() );
+        assertEquals( "child999", ni.nextNode().getName() );
+        assertEquals( "child0", ni.nextNode().getName() );
+        assertFalse( ((Node)m_session.getItem("/wide")).hasNode("child500") );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( FanoutFileProviderTest.class );
+    }
+}
@@ -17,6 +17,20 @@
  */
 package org.priha.providers;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
 import javax.jcr.*;
 import javax.jcr.lock.LockException;
 import javax.jcr.nodetype.ConstraintViolationException;
@@ -28,7 +42,16 @@ import junit.framework.TestSuite;
 
 import org.priha.AbstractTest;
 import org.priha.TestUtil;
+import org.priha.core.ItemType;
+import org.priha.core.JCRConstants;
 import org.priha.core.SessionImpl;
+import org.priha.core.WorkspaceImpl;
+import org.priha.core.values.StreamValueImpl;
+import org.priha.path.Path;
+import org.priha.path.PathFactory;
+import org.priha.util.ConfigurationException;
+import org.priha.util.FastPropertyStore;
+import org.priha.util.FileUtil;
 
 public class FileProviderTest extends AbstractTest
 {
@@ -147,6 +170,502 @@ public class FileProviderTest extends AbstractTest
         assertEquals("foo-a",nda.getProperty("x").getString());
         assertEquals("foo-b",nda.getProperty("X").getString());
     }   
+
+    public void testLargeBinary() throws Exception
+    {
+        byte[] small = new byte[100];
+        byte[] large = new byte[200*1024];
+        large[large.length-1] = 42;
+        
+        Node nd = m_session.getRootNode().addNode("binaries");
+        nd.setProperty("small", new ByteArrayInputStream(small));
+        nd.setProperty("large", new ByteArrayInputStream(large));
+        
+        m_session.save();
+        
+        Node nd2 = (Node) m_session.getItem("/binaries");
+        
+        assertEquals( small.length, nd2.getProperty("small").getLength() );
+        assertEquals( large.length, nd2.getProperty("large").getLength() );
+        
+        InputStream in = nd2.getProperty("large").getStream();
+        in.skip( large.length-1 );
+        assertEquals( 42, in.read() );
+        in.close();
+    }
+    
+    public void testTransferTo() throws Exception
+    {
+        byte[] large = new byte[200*1024];
+        large[12345] = 7;
+        
+        Node nd = m_session.getRootNode().addNode("binaries");
+        nd.setProperty("large", new ByteArrayInputStream(large));
+        m_session.save();
+        
+        StreamValueImpl v = (StreamValueImpl) ((Node) m_session.getItem("/binaries")).getProperty("large").getValue();
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        assertEquals( large.length, v.transferTo( Channels.newChannel( out ) ) );
+        assertTrue( Arrays.equals( large, out.toByteArray() ) );
+    }
+    
+    /**
+     *  Saves from several sessions at the same time, so that they end up sharing syncs.
+     */
+    public void testConcurrentSaves() throws Exception
+    {
+        final int threads = 5;
+        final int saves   = 20;
+        final List<Throwable> errors = Collections.synchronizedList( new ArrayList<Throwable>() );
+        
+        Thread[] t = new Thread[threads];
+        
+        for( int i = 0; i < threads; i++ )
+        {
+            final String name = "writer"+i;
+            
+            t[i] = new Thread() {
+                public void run()
+                {
+                    try
+                    {
+                        SessionImpl s = getNewSession();
+                        
+                        try
+                        {
+                            Node nd = s.getRootNode().addNode( name );
+                            s.save();
+                            
+                            for( int j = 0; j < saves; j++ )
+                            {
+                                Node child = nd.addNode( "child"+j );
+                                child.setProperty( "a", j );
+                                child.setProperty( "b", name );
+                                s.save();
+                            }
+                        }
+                        finally
+                        {
+                            s.logout();
+                        }
+                    }
+                    catch( Throwable e )
+                    {
+                        errors.add( e );
+                    }
+                }
+            };
+            t[i].start();
+        }
+        
+        for( int i = 0; i < threads; i++ ) t[i].join();
+        
+        assertTrue( "Errors: "+errors, errors.isEmpty() );
+        
+        for( int i = 0; i < threads; i++ )
+        {
+            Node nd = (Node) m_session.getItem( "/writer"+i );
+            
+            assertEquals( saves, nd.getNodes().getSize() );
+            assertEquals( saves-1, nd.getNode( "child"+(saves-1) ).getProperty( "a" ).getLong() );
+            assertEquals( "writer"+i, nd.getNode( "child0" ).getProperty( "b" ).getString() );
+        }
+    }
+    
+    /**
+     *  Removes a whole tree at once, and checks that its UUIDs and references
+     *  are gone too.
+     */
+    public void testRemoveTree() throws Exception
+    {
+        Node target = m_session.getRootNode().addNode("target");
+        target.addMixin("mix:referenceable");
+        m_session.save();
+        
+        Node tree = m_session.getRootNode().addNode("tree");
+        List<String> uuids = new ArrayList<String>();
+        
+        for( int i = 0; i < 10; i++ )
+        {
+            Node child = tree.addNode("child"+i);
+            
+            for( int j = 0; j < 10; j++ )
+            {
+                Node leaf = child.addNode("leaf"+j);
+                leaf.addMixin("mix:referenceable");
+                leaf.setProperty("ref", target);
+                leaf.setProperty("refs", new Value[] { m_session.getValueFactory().createValue(target) });
+                leaf.setProperty("data", new ByteArrayInputStream(new byte[2048]));
+            }
+        }
+        
+        m_session.save();
+        
+        for( int i = 0; i < 10; i++ )
+        {
+            uuids.add( tree.getNode("child"+i+"/leaf"+i).getUUID() );
+        }
+        
+        assertEquals( 200, target.getReferences().getSize() );
+        
+        tree.remove();
+        m_session.save();
+        
+        assertFalse( m_session.itemExists("/tree") );
+        assertEquals( 0, target.getReferences().getSize() );
+        
+        for( String uuid : uuids )
+        {
+            try
+            {
+                m_session.getNodeByUUID( uuid );
+                fail("Found a removed Node "+uuid);
+            }
+            catch( ItemNotFoundException e ) {}
+        }
+        
+        Node again = m_session.getRootNode().addNode("tree");
+        again.addNode("child0");
+        m_session.save();
+        
+        assertEquals( 1, ((Node)m_session.getItem("/tree")).getNodes().getSize() );
+        assertFalse( m_session.itemExists("/tree/child0/leaf0") );
+    }
+    
+    /**
+     *  Moves a whole tree, and checks that the properties, UUIDs and references
+     *  went along.
+     */
+    public void testMoveTree() throws Exception
+    {
+        Node target = m_session.getRootNode().addNode("target");
+        target.addMixin("mix:referenceable");
+        m_session.save();
+        
+        Node tree = m_session.getRootNode().addNode("tree");
+        tree.addNode("first");
+        
+        for( int i = 0; i < 5; i++ )
+        {
+            Node leaf = tree.addNode("child"+i).addNode("leaf");
+            leaf.addMixin("mix:referenceable");
+            leaf.setProperty("ref", target);
+            leaf.setProperty("refs", new Value[] { m_session.getValueFactory().createValue(target) });
+            leaf.setProperty("data", new ByteArrayInputStream(new byte[2048]));
+            leaf.setProperty("name", "leaf"+i);
+        }
+        
+        tree.addNode("last");
+        m_session.save();
+        
+        String uuid = tree.getNode("child2/leaf").getUUID();
+        
+        // An unsaved change before the move must end up in the new place.
+        tree.getNode("child2/leaf").setProperty("name", "changed");
+        m_session.move("/tree/child2", "/tree/last/moved");
+        m_session.save();
+        
+        SessionImpl s = getNewSession();
+        
+        try
+        {
+            assertFalse( s.itemExists("/tree/child2") );
+            assertFalse( s.itemExists("/tree/child2/leaf") );
+            
+            Node leaf = (Node)s.getItem("/tree/last/moved/leaf");
+            
+            assertEquals( "changed", leaf.getProperty("name").getString() );
+            assertEquals( 2048, leaf.getProperty("data").getLength() );
+            assertEquals( "/tree/last/moved/leaf", s.getNodeByUUID(uuid).getPath() );
+            assertEquals( "/target", leaf.getProperty("ref").getNode().getPath() );
+            assertEquals( 10, ((Node)s.getItem("/target")).getReferences().getSize() );
+            assertEquals( 6, ((Node)s.getItem("/tree")).getNodes().getSize() );
+            
+            boolean found = false;
+            
+            for( PropertyIterator i = ((Node)s.getItem("/target")).getReferences(); i.hasNext(); )
+            {
+                if( i.nextProperty().getPath().equals("/tree/last/moved/leaf/ref") ) found = true;
+            }
+            
+            assertTrue( "Reference not moved", found );
+        }
+        finally
+        {
+            s.logout();
+        }
+        
+        // The old place can be used again.
+        tree.addNode("child2").setProperty("name", "new");
+        m_session.save();
+        
+        assertEquals( "new", tree.getProperty("child2/name").getString() );
+        assertFalse( tree.hasNode("child2/leaf") );
+    }
+    
+    /**
+     *  A save which fails after the provider has moved a subtree must leave
+     *  the subtree where it was.
+     */
+    public void testMoveCancelled() throws Exception
+    {
+        Node w = m_session.getRootNode().addNode("w");
+        Node a = w.addNode("a");
+        a.addMixin("mix:referenceable");
+        a.setProperty("p", "v1");
+        m_session.save();
+        
+        String uuid = a.getUUID();
+        
+        m_session.move("/w/a", "/w/b");
+        
+        // Missing the mandatory properties.
+        w.addNode("res", "nt:resource");
+        
+        try
+        {
+            m_session.save();
+            fail("Saved an incomplete nt:resource");
+        }
+        catch( ConstraintViolationException e ) {} // Expected
+        
+        m_session.refresh( false );
+        
+        SessionImpl s = getNewSession();
+        
+        try
+        {
+            assertTrue( "/w/a", s.itemExists("/w/a") );
+            assertFalse( "/w/b", s.itemExists("/w/b") );
+            assertEquals( "v1", ((Property)s.getItem("/w/a/p")).getString() );
+            assertEquals( "/w/a", s.getNodeByUUID( uuid ).getPath() );
+            assertEquals( 1, ((Node)s.getItem("/w")).getNodes().getSize() );
+            
+            // The move can still be saved.
+            s.move("/w/a", "/w/b");
+            s.save();
+            
+            assertEquals( "v1", ((Property)s.getItem("/w/b/p")).getString() );
+            assertFalse( s.itemExists("/w/a") );
+            assertEquals( "/w/b", s.getNodeByUUID( uuid ).getPath() );
+        }
+        finally
+        {
+            s.logout();
+        }
+    }
+    
+    /**
+     *  Removes a property file behind the back of the provider, and checks that
+     *  the cached listing notices it.  Skipped with the packed layout, which has
+     *  no separate property files.
+     */
+    public void testExternalChange() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("external");
+        nd.setProperty("keep", "foo");
+        nd.setProperty("gone", "bar");
+        m_session.save();
+        
+        SessionImpl s = getNewSession();
+        assertEquals( 3, ((Node)s.getItem("/external")).getProperties().getSize() );
+        s.logout();
+        
+        File info = findFile( new File( m_repository.getProperty("priha.provider.fileprovider.directory") ), "gone.info" );
+        
+        if( info == null ) return;
+        
+        assertTrue( info.delete() );
+        new File( info.getParentFile(), "gone.data" ).delete();
+        
+        // Longer than the default listingCheckInterval
+        Thread.sleep( 1100 );
+        
+        s = getNewSession();
+        
+        try
+        {
+            Node nd2 = (Node)s.getItem("/external");
+            
+            assertEquals( 2, nd2.getProperties().getSize() );
+            assertFalse( nd2.hasProperty("gone") );
+        }
+        finally
+        {
+            s.logout();
+        }
+    }
+    
+    /**
+     *  Adds a property file behind the back of the provider, and checks that
+     *  it can be read.  The file is copied from another Node, with the path in
+     *  it changed.  Skipped with the packed layout.
+     */
+    public void testExternalAddition() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("external");
+        nd.setProperty("keep", "foo");
+        m_session.getRootNode().addNode("source").setProperty("added", "bar");
+        m_session.save();
+        
+        SessionImpl s = getNewSession();
+        assertFalse( s.itemExists("/external/added") );
+        s.logout();
+        
+        File dir  = new File( m_repository.getProperty("priha.provider.fileprovider.directory") );
+        File info = findFile( dir, "added.info" );
+        
+        if( info == null ) return;
+        
+        File target = findFile( dir, "keep.info" ).getParentFile();
+        
+        InputStream in = new FileInputStream( info );
+        Properties props = FastPropertyStore.load( in );
+        in.close();
+        
+        props.setProperty( "path", "/external/added" );
+        
+        OutputStream out = new FileOutputStream( new File( target, "added.info" ) );
+        FastPropertyStore.store( out, props );
+        out.close();
+        
+        in  = new FileInputStream( new File( info.getParentFile(), "added.data" ) );
+        out = new FileOutputStream( new File( target, "added.data" ) );
+        FileUtil.copyContents( in, out );
+        in.close();
+        out.close();
+        
+        // Longer than the default listingCheckInterval
+        Thread.sleep( 1100 );
+        
+        s = getNewSession();
+        
+        try
+        {
+            assertTrue( s.itemExists("/external/added") );
+            assertEquals( "bar", ((Property)s.getItem("/external/added")).getString() );
+            assertEquals( 3, ((Node)s.getItem("/external")).getProperties().getSize() );
+        }
+        finally
+        {
+            s.logout();
+        }
+    }
+    
+    /**
+     *  Opens a packed workspace with the files layout, and another fanout, 
+     *  which must fail, since the Nodes would not be found.
+     */
+    public void testLayoutMismatch() throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty( "directory", "/tmp/priha/layouttest/" );
+        props.setProperty( "layout", "packed" );
+        
+        FileProvider p = new FileProvider();
+        p.start( m_repository, props );
+        p.stop( m_repository );
+        
+        props.setProperty( "layout", "files" );
+        
+        try
+        {
+            p = new FileProvider();
+            p.start( m_repository, props );
+            p.stop( m_repository );
+            fail("Opened a packed workspace with the files layout");
+        }
+        catch( ConfigurationException e ) {} // Expected
+        
+        props.setProperty( "layout", "packed" );
+        props.setProperty( "fanout", "16" );
+        
+        try
+        {
+            p = new FileProvider();
+            p.start( m_repository, props );
+            p.stop( m_repository );
+            fail("Opened a workspace without fanout with a fanout of 16");
+        }
+        catch( ConfigurationException e ) {} // Expected
+        
+        // The failed starts must not leave the directory locked.
+        props.setProperty( "fanout", "0" );
+        
+        p = new FileProvider();
+        p.start( m_repository, props );
+        p.stop( m_repository );
+    }
+    
+    /**
+     *  Once a save with a move has been finished, the move is on disk and 
+     *  nothing may undo it, even if the save is then cancelled.
+     */
+    public void testCancelAfterFinish() throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty( "directory", "/tmp/priha/canceltest/" );
+        
+        WorkspaceImpl ws = m_session.getWorkspace();
+        Path a = PathFactory.getPath( "/a" );
+        Path b = PathFactory.getPath( "/b" );
+        
+        FileProvider p = new FileProvider();
+        p.start( m_repository, props );
+        
+        try
+        {
+            ValueContainer type = new ValueContainer( m_session.getValueFactory().createValue( "nt:unstructured", 
+                                                                                               PropertyType.NAME ) );
+            
+            StoreTransaction tx = p.storeStarted( ws );
+            p.addNode( tx, Path.ROOT, null );
+            p.putPropertyValue( tx, Path.ROOT.resolve( JCRConstants.Q_JCR_PRIMARYTYPE ), type );
+            p.addNode( tx, a, null );
+            p.putPropertyValue( tx, a.resolve( JCRConstants.Q_JCR_PRIMARYTYPE ), type );
+            p.putPropertyValue( tx, PathFactory.getPath( "/a/x" ), 
+                                new ValueContainer( m_session.getValueFactory().createValue("v") ) );
+            p.storeFinished( tx );
+            
+            tx = p.storeStarted( ws );
+            p.move( tx, a, b );
+            p.storeFinished( tx );
+            p.storeCancelled( tx );
+            
+            assertTrue( "/b", p.itemExists( ws, b, ItemType.NODE ) );
+            assertFalse( "/a", p.itemExists( ws, a, ItemType.NODE ) );
+            assertEquals( "v", p.getPropertyValue( ws, PathFactory.getPath( "/b/x" ) ).getValue().getString() );
+            
+            tx = p.storeStarted( ws );
+            p.remove( tx, b );
+            p.storeFinished( tx );
+        }
+        finally
+        {
+            p.stop( m_repository );
+        }
+    }
+    
+    private static File findFile( File dir, String name )
+    {
+        File[] files = dir.listFiles();
+        
+        if( files == null ) return null;
+        
+        for( File f : files )
+        {
+            if( f.getName().equals( name ) ) return f;
+            
+            File found = f.isDirectory() ? findFile( f, name ) : null;
+            
+            if( found != null ) return found;
+        }
+        
+        return null;
+    }
+    
     public static Test suite()
     {
         return new TestSuite( FileProviderTest.class );
@@ -17,10 +17,28 @@
  */
 package org.priha.providers;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Properties;
+
 import javax.jcr.*;
 import javax.jcr.lock.LockException;
 import javax.jcr.nodetype.ConstraintViolationException;
 import javax.jcr.nodetype.NoSuchNodeTypeException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
 import javax.jcr.version.VersionException;
 
 import junit.framework.Test;
@@ -29,8 +47,10 @@ import junit.framework.TestSuite;
 
 import org.priha.RepositoryManager;
 import org.priha.TestUtil;
+import org.priha.core.NodeImpl;
 import org.priha.core.RepositoryImpl;
 import org.priha.core.SessionImpl;
+import org.priha.core.binary.SpoolBinarySource;
 
 public class JdbcProviderTest extends TestCase
 {
@@ -152,6 +172,780 @@ public class JdbcProviderTest extends TestCase
         assertEquals("foo-a",nda.getProperty("x").getString());
         assertEquals("foo-b",nda.getProperty("X").getString());
     }   
+    
+    /**
+     *  Adds, updates, reorders and removes a lot of Items in a single save, which
+     *  the provider sends to the database in batches.
+     */
+    public void testBatchedSave() throws Exception
+    {
+        Node root = m_session.getRootNode().addNode("batch", "nt:unstructured");
+
+        for( int i = 0; i < 100; i++ )
+        {
+            Node nd = root.addNode("node"+i);
+            nd.setProperty("x", i);
+            nd.setProperty("y", "gone");
+            nd.addNode("child");
+        }
+
+        root.setProperty("x", "first");
+
+        m_session.save();
+
+        for( int i = 0; i < 100; i += 2 )
+        {
+            Node nd = root.getNode("node"+i);
+            nd.setProperty("x", -i);
+            nd.getProperty("y").remove();
+            nd.getNode("child").remove();
+        }
+
+        root.setProperty("x", "second");
+        root.addNode("last");
+        root.orderBefore("node99", "node0");
+
+        m_session.save();
+
+        SessionImpl s = (SessionImpl)m_session.getRepository().login(new SimpleCredentials("foo",new char[0]));
+
+        try
+        {
+            Node nd = (Node)s.getItem("/batch");
+
+            assertEquals( "second", nd.getProperty("x").getString() );
+
+            NodeIterator ni = nd.getNodes();
+            assertEquals( 101, ni.getSize() );
+            assertEquals( "node99", ni.nextNode().getName() );
+            assertEquals( "node0", ni.nextNode().getName() );
+
+            Node n0 = nd.getNode("node0");
+            Node n1 = nd.getNode("node1");
+            assertEquals( 0, n0.getProperty("x").getLong() );
+            assertFalse( n0.hasProperty("y") );
+            assertFalse( n0.hasNode("child") );
+            assertEquals( 1, n1.getProperty("x").getLong() );
+            assertEquals( "gone", n1.getProperty("y").getString() );
+            assertTrue( n1.hasNode("child") );
+            assertEquals( -98, nd.getNode("node98").getProperty("x").getLong() );
+        }
+        finally
+        {
+            s.logout();
+        }
+    }
+
+    /**
+     *  Removes and re-creates Nodes whose ids have been cached.
+     */
+    public void testNodeIdCache() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("a").addNode("b");
+        nd.setProperty("x", "old");
+        m_session.save();
+
+        SessionImpl s = (SessionImpl)m_session.getRepository().login(new SimpleCredentials("foo",new char[0]));
+
+        try
+        {
+            assertEquals( "old", s.getRootNode().getNode("a/b").getProperty("x").getString() );
+
+            m_session.getRootNode().getNode("a").remove();
+            m_session.save();
+
+            s.refresh(false);
+            assertFalse( s.itemExists("/a/b") );
+            assertFalse( s.itemExists("/a/b/x") );
+
+            m_session.getRootNode().addNode("a").addNode("b").setProperty("y", "new");
+            m_session.save();
+
+            s.refresh(false);
+            Node nd2 = s.getRootNode().getNode("a/b");
+            assertEquals( "new", nd2.getProperty("y").getString() );
+            assertFalse( nd2.hasProperty("x") );
+        }
+        finally
+        {
+            s.logout();
+        }
+    }
+
+    /**
+     *  Loads a Node with all of its properties at once, and then checks that
+     *  they no longer need the database.
+     */
+    public void testBulkRead() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("bulk", "nt:unstructured");
+        nd.addMixin("mix:referenceable");
+        
+        for( int i = 0; i < 20; i++ )
+        {
+            nd.setProperty("p"+i, i);
+        }
+        
+        nd.setProperty("multi", new String[] { "a", "b", "c" });
+        nd.setProperty("binary", new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+        m_session.save();
+        
+        String uuid = nd.getUUID();
+        
+        SessionImpl s = (SessionImpl)m_session.getRepository().login(new SimpleCredentials("foo",new char[0]));
+        Connection c = DriverManager.getConnection("jdbc:hsqldb:file:/tmp/testdb", "sa", "");
+        
+        try
+        {
+            Node nd2 = (Node)s.getItem("/bulk");
+            
+            //
+            //  Pull the rug from under the provider; everything must
+            //  now come from the Session.
+            //
+            Statement st = c.createStatement();
+            st.execute("UPDATE propertyvalues SET parent = -parent WHERE parent = (SELECT id FROM nodes WHERE path = '/bulk')");
+            st.close();
+            
+            assertEquals( uuid, nd2.getUUID() );
+            assertTrue( nd2.isNodeType("mix:referenceable") );
+            assertEquals( "nt:unstructured", nd2.getPrimaryNodeType().getName() );
+            
+            for( int i = 0; i < 20; i++ )
+            {
+                assertEquals( i, nd2.getProperty("p"+i).getLong() );
+            }
+            
+            Value[] v = nd2.getProperty("multi").getValues();
+            assertEquals( 3, v.length );
+            assertEquals( "c", v[2].getString() );
+            assertEquals( 3, nd2.getProperty("binary").getLength() );
+        }
+        finally
+        {
+            Statement st = c.createStatement();
+            st.execute("UPDATE propertyvalues SET parent = -parent WHERE parent < 0");
+            st.close();
+            c.close();
+            s.logout();
+        }
+    }
+    
+    /**
+     *  Loads a subtree with one query, and then traverses it without the database.
+     */
+    public void testSubtreePrefetch() throws Exception
+    {
+        Node tree = m_session.getRootNode().addNode("tree");
+        
+        for( int i = 0; i < 5; i++ )
+        {
+            Node child = tree.addNode("child"+i);
+            child.setProperty("x", i);
+            
+            for( int j = 0; j < 5; j++ )
+            {
+                child.addNode("grandchild"+j).setProperty("y", "value"+j);
+            }
+        }
+        
+        m_session.save();
+        
+        SessionImpl s = (SessionImpl)m_session.getRepository().login(new SimpleCredentials("foo",new char[0]));
+        Connection c = DriverManager.getConnection("jdbc:hsqldb:file:/tmp/testdb", "sa", "");
+        
+        try
+        {
+            NodeImpl nd = (NodeImpl)s.getItem("/tree");
+            s.prefetch( nd.getInternalPath() );
+            
+            //
+            //  Hide the children from the provider.
+            //
+            Statement st = c.createStatement();
+            st.execute("UPDATE propertyvalues SET parent = -parent WHERE parent IN (SELECT id FROM nodes WHERE path LIKE '/tree/%')");
+            st.execute("UPDATE nodes SET parent = -parent WHERE path LIKE '/tree/%'");
+            st.close();
+            
+            NodeIterator ni = nd.getNodes();
+            assertEquals( 5, ni.getSize() );
+            
+            for( int i = 0; i < 5; i++ )
+            {
+                Node child = ni.nextNode();
+                assertEquals( "child"+i, child.getName() );
+                assertEquals( i, child.getProperty("x").getLong() );
+                
+                NodeIterator gi = child.getNodes();
+                assertEquals( 5, gi.getSize() );
+                
+                for( int j = 0; j < 5; j++ )
+                {
+                    Node grandChild = gi.nextNode();
+                    assertEquals( "value"+j, grandChild.getProperty("y").getString() );
+                }
+            }
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            s.exportSystemView( "/tree", out, true, false );
+            assertEquals( 31, out.toString("UTF-8").split("<sv:node ").length - 1 );
+            
+            st = c.createStatement();
+            st.execute("UPDATE nodes SET parent = -parent WHERE parent < 0");
+            st.execute("UPDATE propertyvalues SET parent = -parent WHERE parent < 0");
+            st.close();
+            
+            //
+            //  A save anywhere makes the Session read the lists again.
+            //
+            tree.addNode("child5");
+            m_session.save();
+            
+            assertEquals( 6, nd.getNodes().getSize() );
+        }
+        finally
+        {
+            Statement st = c.createStatement();
+            st.execute("UPDATE nodes SET parent = -parent WHERE parent < 0");
+            st.execute("UPDATE propertyvalues SET parent = -parent WHERE parent < 0");
+            st.close();
+            c.close();
+            s.logout();
+        }
+    }
+    
+    private static void assertQuery( Session s, String query, String... expected ) throws RepositoryException
+    {
+        QueryResult qr = s.getWorkspace().getQueryManager().createQuery( query, Query.XPATH ).execute();
+        
+        List<String> paths = new ArrayList<String>();
+        
+        for( NodeIterator i = qr.getNodes(); i.hasNext(); )
+        {
+            paths.add( i.nextNode().getPath() );
+        }
+        
+        assertEquals( query, Arrays.asList( expected ), paths );
+    }
+    
+    public void testQueryPushdown() throws Exception
+    {
+        Node q = m_session.getRootNode().addNode("q");
+        q.addNode("b").setProperty("x", "foo");
+        Node a = q.addNode("a");
+        a.setProperty("x", "bar");
+        a.addNode("d").setProperty("x", "foo");
+        q.addNode("c").setProperty("y", 1);
+        
+        m_session.save();
+        
+        SessionImpl s = (SessionImpl)m_session.getRepository().login(new SimpleCredentials("foo",new char[0]));
+        Connection c = DriverManager.getConnection("jdbc:hsqldb:file:/tmp/testdb", "sa", "");
+        
+        try
+        {
+            assertQuery( s, "/jcr:root/q//*[@x]", "/q/b", "/q/a", "/q/a/d" );
+            assertQuery( s, "//element(*,nt:unstructured)[@x='foo']", "/q/b", "/q/a/d" );
+            assertQuery( s, "/jcr:root/q/*", "/q/b", "/q/a", "/q/c" );
+            assertQuery( s, "/jcr:root/q//d", "/q/a/d" );
+            assertQuery( s, "/jcr:root/q//*[@x='bar' or not(@x)]", "/q/a", "/q/c" );
+            assertQuery( s, "/jcr:root/q//*[@x and @y]" );
+            assertQuery( s, "/jcr:root/q//*[@x] order by @x", "/q/a", "/q/b", "/q/a/d" );
+            
+            //
+            //  Move a Node where the SQL query cannot find it.
+            //
+            Statement st = c.createStatement();
+            st.execute("UPDATE nodes SET path = '/elsewhere' WHERE path = '/q/a/d'");
+            st.close();
+            
+            assertQuery( s, "/jcr:root/q//*[@x]", "/q/b", "/q/a" );
+            
+            st = c.createStatement();
+            st.execute("UPDATE nodes SET path = '/q/a/d' WHERE path = '/elsewhere'");
+            st.close();
+            
+            //
+            //  Unsaved changes are seen as well.
+            //
+            s.getRootNode().getNode("q/c").setProperty("x", "foo");
+            
+            QueryResult qr = s.getWorkspace().getQueryManager().createQuery( "/jcr:root/q//*[@x='foo']", Query.XPATH ).execute();
+            
+            assertEquals( 3, qr.getNodes().getSize() );
+        }
+        finally
+        {
+            c.close();
+            s.logout();
+        }
+    }
+    
+    private static long nodeId( Connection c, String path ) throws Exception
+    {
+        PreparedStatement ps = c.prepareStatement("SELECT id FROM nodes WHERE path = ?");
+        ps.setString( 1, path );
+        ResultSet rs = ps.executeQuery();
+        
+        long id = rs.next() ? rs.getLong(1) : -1;
+        
+        rs.close();
+        ps.close();
+        
+        return id;
+    }
+    
+    /**
+     *  Moves a subtree, and checks that the rows were updated in place instead
+     *  of being copied.
+     */
+    public void testMoveTree() throws Exception
+    {
+        Node target = m_session.getRootNode().addNode("target");
+        target.addMixin("mix:referenceable");
+        m_session.save();
+        
+        Node tree = m_session.getRootNode().addNode("tree");
+        Node leaf = tree.addNode("a").addNode("b").addNode("leaf");
+        leaf.addMixin("mix:referenceable");
+        leaf.setProperty("ref", target);
+        leaf.setProperty("data", new ByteArrayInputStream(new byte[4096]));
+        leaf.setProperty("name", "leaf");
+        tree.addNode("other");
+        m_session.save();
+        
+        String uuid = leaf.getUUID();
+        Connection c = DriverManager.getConnection("jdbc:hsqldb:file:/tmp/testdb", "sa", "");
+        
+        try
+        {
+            long id = nodeId( c, "/tree/a/b/leaf" );
+            
+            leaf.setProperty("name", "changed");
+            m_session.move("/tree/a", "/tree/other/moved");
+            m_session.save();
+            
+            assertEquals( id, nodeId( c, "/tree/other/moved/b/leaf" ) );
+            assertEquals( -1, nodeId( c, "/tree/a/b/leaf" ) );
+            assertEquals( -1, nodeId( c, "/tree/a" ) );
+            
+            SessionImpl s = (SessionImpl)m_session.getRepository().login(new SimpleCredentials("foo",new char[0]));
+            
+            try
+            {
+                Node nd = s.getNodeByUUID( uuid );
+                
+                assertEquals( "/tree/other/moved/b/leaf", nd.getPath() );
+                assertEquals( "changed", nd.getProperty("name").getString() );
+                assertEquals( 4096, nd.getProperty("data").getLength() );
+                assertEquals( "/target", nd.getProperty("ref").getNode().getPath() );
+                assertEquals( "/tree/other/moved/b/leaf/ref", 
+                              ((Node)s.getItem("/target")).getReferences().nextProperty().getPath() );
+                assertFalse( s.itemExists("/tree/a") );
+                assertEquals( 1, ((Node)s.getItem("/tree")).getNodes().getSize() );
+            }
+            finally
+            {
+                s.logout();
+            }
+        }
+        finally
+        {
+            c.close();
+        }
+    }
+    
+    /**
+     *  Moves a Node in a save which then fails, and checks that the ids looked up
+     *  during the save did not leak to the other Sessions.
+     */
+    public void testMoveCancelled() throws Exception
+    {
+        Node w = m_session.getRootNode().addNode("w");
+        Node a = w.addNode("a");
+        a.setProperty("p", "v1");
+        m_session.save();
+        
+        m_session.move("/w/a", "/w/b");
+        
+        // Missing the mandatory properties.
+        w.addNode("res", "nt:resource");
+        
+        try
+        {
+            m_session.save();
+            fail("Saved an incomplete nt:resource");
+        }
+        catch( ConstraintViolationException e ) {} // Expected
+        
+        m_session.refresh( false );
+        
+        SessionImpl s = (SessionImpl)m_session.getRepository().login(new SimpleCredentials("foo",new char[0]));
+        
+        try
+        {
+            assertTrue( "/w/a", s.itemExists("/w/a") );
+            assertFalse( "/w/b", s.itemExists("/w/b") );
+            assertFalse( "/w/b/p", s.itemExists("/w/b/p") );
+            assertEquals( "v1", ((Property)s.getItem("/w/a/p")).getString() );
+            assertEquals( 1, ((Node)s.getItem("/w")).getNodes().getSize() );
+        }
+        finally
+        {
+            s.logout();
+        }
+    }
+    
+    /**
+     *  Stores multi-valued properties of every type, and reads them back
+     *  in a new Session.
+     */
+    public void testMultiValueTypes() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("multi", "nt:unstructured");
+        nd.addMixin("mix:referenceable");
+        m_session.save();
+        
+        ValueFactory vf = m_session.getValueFactory();
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis( 1234567890123L );
+        
+        nd.setProperty("longs", new Value[] { vf.createValue(0L), vf.createValue(-1L), vf.createValue(Long.MAX_VALUE), vf.createValue(Long.MIN_VALUE) });
+        nd.setProperty("doubles", new Value[] { vf.createValue(1.5), vf.createValue(-0.25) });
+        nd.setProperty("dates", new Value[] { vf.createValue(cal) });
+        nd.setProperty("booleans", new Value[] { vf.createValue(true), vf.createValue(false) });
+        nd.setProperty("names", new Value[] { vf.createValue("jcr:content", PropertyType.NAME), vf.createValue("foo", PropertyType.NAME) });
+        nd.setProperty("paths", new Value[] { vf.createValue("/jcr:system/foo", PropertyType.PATH) });
+        nd.setProperty("refs", new Value[] { vf.createValue(nd) });
+        nd.setProperty("tags", new String[] { "", UTF8_NAME, "tag" });
+        nd.setProperty("empty", new String[0]);
+        nd.setProperty("binaries", new Value[] { vf.createValue(new ByteArrayInputStream(new byte[] { 1, 2, 3 })) });
+        m_session.save();
+        
+        SessionImpl s = (SessionImpl)m_session.getRepository().login(new SimpleCredentials("foo",new char[0]));
+        
+        try
+        {
+            Node nd2 = (Node)s.getItem("/multi");
+            
+            Value[] v = nd2.getProperty("longs").getValues();
+            assertEquals( PropertyType.LONG, v[0].getType() );
+            assertEquals( 0L, v[0].getLong() );
+            assertEquals( -1L, v[1].getLong() );
+            assertEquals( Long.MAX_VALUE, v[2].getLong() );
+            assertEquals( Long.MIN_VALUE, v[3].getLong() );
+            
+            v = nd2.getProperty("doubles").getValues();
+            assertEquals( 1.5, v[0].getDouble() );
+            assertEquals( -0.25, v[1].getDouble() );
+            
+            v = nd2.getProperty("dates").getValues();
+            assertEquals( PropertyType.DATE, v[0].getType() );
+            assertEquals( cal.getTimeInMillis(), v[0].getDate().getTimeInMillis() );
+            
+            v = nd2.getProperty("booleans").getValues();
+            assertTrue( v[0].getBoolean() );
+            assertFalse( v[1].getBoolean() );
+            
+            v = nd2.getProperty("names").getValues();
+            assertEquals( PropertyType.NAME, v[0].getType() );
+            assertEquals( "jcr:content", v[0].getString() );
+            assertEquals( "foo", v[1].getString() );
+            
+            v = nd2.getProperty("paths").getValues();
+            assertEquals( PropertyType.PATH, v[0].getType() );
+            assertEquals( "/jcr:system/foo", v[0].getString() );
+            
+            v = nd2.getProperty("refs").getValues();
+            assertEquals( PropertyType.REFERENCE, v[0].getType() );
+            assertEquals( nd.getUUID(), v[0].getString() );
+            
+            v = nd2.getProperty("tags").getValues();
+            assertEquals( 3, v.length );
+            assertEquals( "", v[0].getString() );
+            assertEquals( UTF8_NAME, v[1].getString() );
+            assertEquals( "tag", v[2].getString() );
+            
+            assertEquals( 0, nd2.getProperty("empty").getValues().length );
+            
+            v = nd2.getProperty("binaries").getValues();
+            assertContent( new byte[] { 1, 2, 3 }, v[0].getStream() );
+        }
+        finally
+        {
+            s.logout();
+        }
+    }
+    
+    /**
+     *  Reads multi-valued properties which an older version stored with Java
+     *  serialization, and checks that they are converted when saved.
+     */
+    public void testLegacyMultiValue() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("legacy", "nt:unstructured");
+        nd.setProperty("tags", new String[] { "x" });
+        nd.setProperty("names", new Value[] { m_session.getValueFactory().createValue("foo", PropertyType.NAME) });
+        m_session.save();
+        
+        Connection c = DriverManager.getConnection("jdbc:hsqldb:file:/tmp/testdb", "sa", "");
+        SessionImpl s = null;
+        
+        try
+        {
+            String parent = "(SELECT id FROM nodes WHERE path = '/legacy')";
+            PreparedStatement ps = c.prepareStatement("UPDATE propertyvalues SET propval = ? WHERE name = ? AND parent = "+parent);
+            ps.setBytes( 1, legacyFormat( "a", UTF8_NAME, "c" ) );
+            ps.setString( 2, "tags" );
+            ps.executeUpdate();
+            ps.setBytes( 1, legacyFormat( "jcr:content", "bar" ) );
+            ps.setString( 2, "names" );
+            ps.executeUpdate();
+            ps.close();
+            
+            s = (SessionImpl)m_session.getRepository().login(new SimpleCredentials("foo",new char[0]));
+            
+            Node nd2 = (Node)s.getItem("/legacy");
+            Value[] v = nd2.getProperty("tags").getValues();
+            assertEquals( 3, v.length );
+            assertEquals( UTF8_NAME, v[1].getString() );
+            
+            v = nd2.getProperty("names").getValues();
+            assertEquals( PropertyType.NAME, v[0].getType() );
+            assertEquals( "jcr:content", v[0].getString() );
+            assertEquals( "bar", v[1].getString() );
+            
+            nd2.setProperty("tags", new String[] { "a", "b" });
+            s.save();
+            
+            Statement st = c.createStatement();
+            ResultSet rs = st.executeQuery("SELECT propval FROM propertyvalues WHERE name = 'tags' AND parent = "+parent);
+            assertTrue( rs.next() );
+            assertTrue( "not converted", ValueCodec.isEncoded( rs.getBytes(1)[0] & 0xFF ) );
+            st.close();
+        }
+        finally
+        {
+            c.close();
+            if( s != null ) s.logout();
+        }
+    }
+    
+    /**
+     *  Converts the old rows at startup.
+     */
+    public void testMigrateValues() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("legacy", "nt:unstructured");
+        nd.setProperty("tags", new String[] { "x" });
+        m_session.save();
+        
+        Connection c = DriverManager.getConnection("jdbc:hsqldb:file:/tmp/testdb", "sa", "");
+        
+        try
+        {
+            String where = " WHERE name = 'tags' AND parent = (SELECT id FROM nodes WHERE path = '/legacy')";
+            PreparedStatement ps = c.prepareStatement("UPDATE propertyvalues SET propval = ?"+where);
+            ps.setBytes( 1, legacyFormat( "a", "b" ) );
+            ps.executeUpdate();
+            ps.close();
+            
+            Properties props = new Properties();
+            props.setProperty( JdbcProvider.PROP_CONNECTIONURL, "jdbc:hsqldb:file:/tmp/testdb" );
+            props.setProperty( JdbcProvider.PROP_DRIVERCLASS, "org.hsqldb.jdbcDriver" );
+            props.setProperty( JdbcProvider.PROP_USERNAME, "sa" );
+            props.setProperty( JdbcProvider.PROP_PASSWORD, "" );
+            props.setProperty( JdbcProvider.PROP_MIGRATE_VALUES, "true" );
+            
+            JdbcProvider p = new JdbcProvider();
+            p.start( (RepositoryImpl)m_session.getRepository(), props );
+            p.stop( (RepositoryImpl)m_session.getRepository() );
+            
+            Statement st = c.createStatement();
+            ResultSet rs = st.executeQuery("SELECT propval FROM propertyvalues"+where);
+            assertTrue( rs.next() );
+            assertTrue( "not converted", ValueCodec.isEncoded( rs.getBytes(1)[0] & 0xFF ) );
+            st.close();
+            
+            SessionImpl s = (SessionImpl)m_session.getRepository().login(new SimpleCredentials("foo",new char[0]));
+            
+            try
+            {
+                assertEquals( "b", s.getRootNode().getNode("legacy").getProperty("tags").getValues()[1].getString() );
+            }
+            finally
+            {
+                s.logout();
+            }
+        }
+        finally
+        {
+            c.close();
+        }
+    }
+    
+    private static byte[] legacyFormat( String... values ) throws Exception
+    {
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        ObjectOutputStream oo = new ObjectOutputStream( ba );
+        
+        oo.writeInt( values.length );
+        
+        for( String v : values )
+        {
+            byte[] b = v.getBytes("UTF-8");
+            oo.writeInt( b.length );
+            oo.write( b );
+        }
+        
+        oo.flush();
+        
+        return ba.toByteArray();
+    }
+    
+    private static byte[] makeBinary( int size, int seed )
+    {
+        byte[] b = new byte[size];
+        
+        for( int i = 0; i < size; i++ ) b[i] = (byte)(i * seed);
+        
+        return b;
+    }
+    
+    private static void assertContent( byte[] expected, InputStream in ) throws Exception
+    {
+        try
+        {
+            for( int i = 0; i < expected.length; i++ )
+            {
+                assertEquals( "byte "+i, expected[i], (byte)in.read() );
+            }
+            
+            assertEquals( "too long", -1, in.read() );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    /**
+     *  Writes and reads binaries which are streamed through temporary
+     *  files instead of the heap.
+     */
+    public void testLargeBinary() throws Exception
+    {
+        byte[] big   = makeBinary( 300*1024, 7 );
+        byte[] big2  = makeBinary( 100*1024, 3 );
+        byte[] small = makeBinary( 100, 5 );
+        
+        Node nd = m_session.getRootNode().addNode("binaries");
+        nd.setProperty("big", new ByteArrayInputStream(big));
+        nd.setProperty("small", new ByteArrayInputStream(small));
+        nd.setProperty("multi", new Value[] { m_session.getValueFactory().createValue(new ByteArrayInputStream(big2)),
+                                              m_session.getValueFactory().createValue(new ByteArrayInputStream(small)) });
+        m_session.save();
+        
+        SessionImpl s = (SessionImpl)m_session.getRepository().login(new SimpleCredentials("foo",new char[0]));
+        
+        try
+        {
+            Node nd2 = (Node)s.getItem("/binaries");
+            
+            assertEquals( big.length, nd2.getProperty("big").getLength() );
+            assertContent( big, nd2.getProperty("big").getStream() );
+            assertContent( small, nd2.getProperty("small").getStream() );
+            
+            Value[] v = nd2.getProperty("multi").getValues();
+            assertContent( big2, v[0].getStream() );
+            assertContent( small, v[1].getStream() );
+            
+            nd.setProperty("big", new ByteArrayInputStream(big2));
+            m_session.save();
+            
+            s.refresh(false);
+            assertContent( big2, s.getRootNode().getNode("binaries").getProperty("big").getStream() );
+        }
+        finally
+        {
+            s.logout();
+        }
+    }
+    
+    /**
+     *  The spool file is deleted once the source and its clones are disposed,
+     *  or once they are no longer reachable.
+     */
+    public void testSpoolDispose() throws Exception
+    {
+        byte[] big = makeBinary( 1000, 7 );
+        
+        SpoolBinarySource sbs   = new SpoolBinarySource( new ByteArrayInputStream(big), -1, null );
+        SpoolBinarySource clone = sbs.clone();
+        File              f     = sbs.getFile();
+        
+        sbs.dispose();
+        sbs.dispose();
+        
+        assertTrue( "deleted too early", f.exists() );
+        assertContent( big, clone.getStream() );
+        
+        clone.dispose();
+        
+        assertFalse( "not deleted", f.exists() );
+        
+        f = new SpoolBinarySource( new ByteArrayInputStream(big), -1, null ).getFile();
+        
+        for( int i = 0; i < 100 && f.exists(); i++ )
+        {
+            System.gc();
+            Thread.sleep( 10 );
+            new SpoolBinarySource( new ByteArrayInputStream(big), -1, null ).dispose();
+        }
+        
+        assertFalse( "unreachable source not deleted", f.exists() );
+    }
+    
+    /**
+     *  Stores the same large binary twice with the blob store in use.
+     */
+    public void testBlobStore() throws Exception
+    {
+        RepositoryImpl rep = RepositoryManager.getRepository("jdbcblobs.properties");
+        SessionImpl s = rep.login(new SimpleCredentials("foo",new char[0]));
+        
+        try
+        {
+            byte[] blob = new byte[10*1024];
+            blob[5000] = 9;
+            
+            Node nd = s.getRootNode().addNode("blobs");
+            nd.setProperty("a", new ByteArrayInputStream(blob));
+            nd.setProperty("b", new Value[] { s.getValueFactory().createValue(new ByteArrayInputStream(blob)),
+                                              s.getValueFactory().createValue(new ByteArrayInputStream(new byte[10])) });
+            s.save();
+            
+            Node nd2 = (Node)s.getItem("/blobs");
+            InputStream in = nd2.getProperty("a").getStream();
+            in.skip(5000);
+            assertEquals( 9, in.read() );
+            in.close();
+            
+            assertEquals( blob.length, nd2.getProperty("b").getLengths()[0] );
+            assertEquals( 10, nd2.getProperty("b").getLengths()[1] );
+            // Both copies share a single blob, i.e. one directory besides "tmp".
+            assertEquals( 2, new File("/tmp/priha/jdbcblobs").list().length );
+            
+            nd2.remove();
+            s.save();
+        }
+        finally
+        {
+            s.logout();
+            TestUtil.emptyRepo(rep);
+        }
+    }
+    
     public static Test suite()
     {
         return new TestSuite( JdbcProviderTest.class );
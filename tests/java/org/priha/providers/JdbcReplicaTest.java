@@ -0,0 +1,287 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.providers;
+
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.jcr.Node;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.priha.RepositoryManager;
+import org.priha.TestUtil;
+import org.priha.core.RepositoryImpl;
+import org.priha.core.SessionImpl;
+import org.priha.util.FileUtil;
+
+/**
+ *  Tests the JdbcProvider with the reads going to a replica.  The replication
+ *  is done by copying the tables over whenever the tests want the replica to
+ *  catch up.
+ */
+public class JdbcReplicaTest extends TestCase
+{
+    private static final String PRIMARY = "jdbc:hsqldb:file:/tmp/testdb-primary";
+    private static final String REPLICA = "jdbc:hsqldb:file:/tmp/testdb-replica";
+    
+    private static final String[] TABLES = { "workspaces", "nodes", "propertyvalues" };
+    
+    private RepositoryImpl m_repository;
+    
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        
+        Class.forName( "org.hsqldb.jdbcDriver" );
+        m_repository = RepositoryManager.getRepository("jdbcreplica.properties");
+        
+        // Starts the provider, which creates the tables of the primary.
+        login().logout();
+        
+        replicate();
+    }
+    
+    public void tearDown() throws Exception
+    {
+        replicate();
+        
+        TestUtil.emptyRepo( m_repository );
+        
+        super.tearDown();
+    }
+    
+    private SessionImpl login() throws Exception
+    {
+        return m_repository.login( new SimpleCredentials("foo",new char[0]) );
+    }
+    
+    /**
+     *  Makes the replica an exact copy of the primary database.
+     */
+    private static void replicate() throws Exception
+    {
+        Connection from = DriverManager.getConnection( PRIMARY, "sa", "" );
+        Connection to   = DriverManager.getConnection( REPLICA, "sa", "" );
+        
+        try
+        {
+            createTables( to );
+            
+            Statement st = to.createStatement();
+            
+            for( int i = TABLES.length-1; i >= 0; i-- ) st.execute( "DELETE FROM "+TABLES[i] );
+            
+            st.close();
+            
+            for( String table : TABLES ) copy( from, to, table );
+        }
+        finally
+        {
+            from.close();
+            to.close();
+        }
+    }
+    
+    private static void createTables( Connection c ) throws Exception
+    {
+        try
+        {
+            c.createStatement().executeQuery( "SELECT COUNT(*) FROM nodes" ).close();
+            return;
+        }
+        catch( SQLException e )
+        {
+            // Not there yet
+        }
+        
+        InputStream in = JdbcProvider.class.getResourceAsStream( "/jdbc/HSQL Database Engine/setup.sql" );
+        
+        for( String sql : FileUtil.readContents( in, "UTF-8" ).split(";") )
+        {
+            if( sql.trim().length() == 0 ) continue;
+            
+            Statement st = c.createStatement();
+            st.execute( sql );
+            st.close();
+        }
+        
+        in.close();
+    }
+    
+    private static void copy( Connection from, Connection to, String table ) throws SQLException
+    {
+        ResultSet         rs   = from.createStatement().executeQuery( "SELECT * FROM "+table );
+        ResultSetMetaData meta = rs.getMetaData();
+        StringBuilder     cols = new StringBuilder();
+        StringBuilder     vals = new StringBuilder();
+        
+        for( int i = 1; i <= meta.getColumnCount(); i++ )
+        {
+            if( i > 1 )
+            {
+                cols.append( ',' );
+                vals.append( ',' );
+            }
+            
+            cols.append( meta.getColumnName(i) );
+            vals.append( '?' );
+        }
+        
+        PreparedStatement ps = to.prepareStatement( "INSERT INTO "+table+" ("+cols+") VALUES ("+vals+")" );
+        
+        while( rs.next() )
+        {
+            for( int i = 1; i <= meta.getColumnCount(); i++ ) ps.setObject( i, rs.getObject(i) );
+            
+            ps.executeUpdate();
+        }
+        
+        ps.close();
+        rs.close();
+    }
+    
+    private static long count( SessionImpl s, String xpath ) throws Exception
+    {
+        QueryManager mgr = s.getWorkspace().getQueryManager();
+        
+        return mgr.createQuery( xpath, Query.XPATH ).execute().getNodes().getSize();
+    }
+    
+    /**
+     *  Other Sessions read from the replica, but the Session which saved reads 
+     *  its own writes from the primary.  The items a Session has already read are 
+     *  cached in the Session, so the reads are made with queries.
+     */
+    public void testReadYourWrites() throws Exception
+    {
+        SessionImpl writer = login();
+        
+        try
+        {
+            writer.getRootNode().addNode("replicated").setProperty("x", "old");
+            writer.save();
+            
+            replicate();
+            
+            Node nd = writer.getRootNode().getNode("replicated");
+            nd.setProperty("x", "new");
+            nd.addNode("added");
+            writer.save();
+            
+            assertEquals( 1, count( writer, "/jcr:root/replicated/*" ) );
+            
+            SessionImpl reader = login();
+            
+            try
+            {
+                assertEquals( "old", reader.getRootNode().getProperty("replicated/x").getString() );
+                assertEquals( 0, count( reader, "/jcr:root/replicated/*" ) );
+            }
+            finally
+            {
+                reader.logout();
+            }
+            
+            replicate();
+            
+            reader = login();
+            
+            try
+            {
+                assertEquals( "new", reader.getRootNode().getProperty("replicated/x").getString() );
+                assertEquals( 1, count( reader, "/jcr:root/replicated/*" ) );
+            }
+            finally
+            {
+                reader.logout();
+            }
+        }
+        finally
+        {
+            writer.logout();
+        }
+    }
+    
+    /**
+     *  An item which has not reached the replica yet is found from the primary.
+     */
+    public void testNotYetReplicated() throws Exception
+    {
+        SessionImpl writer = login();
+        
+        try
+        {
+            Node nd = writer.getRootNode().addNode("fresh");
+            nd.addNode("child").setProperty("y", 42);
+            writer.save();
+        }
+        finally
+        {
+            writer.logout();
+        }
+        
+        SessionImpl reader = login();
+        
+        try
+        {
+            assertTrue( reader.itemExists("/fresh/child") );
+            assertEquals( 42, reader.getRootNode().getProperty("fresh/child/y").getLong() );
+            assertEquals( 1, reader.getRootNode().getNode("fresh").getNodes().getSize() );
+            
+            //
+            //  The reader can write under it, since the save checks the primary.
+            //
+            reader.getRootNode().getNode("fresh/child").addNode("grandchild");
+            reader.save();
+        }
+        finally
+        {
+            reader.logout();
+        }
+        
+        replicate();
+        
+        reader = login();
+        
+        try
+        {
+            assertTrue( reader.itemExists("/fresh/child/grandchild") );
+        }
+        finally
+        {
+            reader.logout();
+        }
+    }
+    
+    public static Test suite()
+    {
+        return new TestSuite( JdbcReplicaTest.class );
+    }
+}
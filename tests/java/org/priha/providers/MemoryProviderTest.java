@@ -0,0 +1,470 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.providers;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.priha.RepositoryManager;
+import org.priha.TestUtil;
+import org.priha.core.ItemType;
+import org.priha.core.RepositoryImpl;
+import org.priha.core.SessionImpl;
+import org.priha.core.WorkspaceImpl;
+import org.priha.core.values.ValueImpl;
+import org.priha.path.Path;
+import org.priha.util.QName;
+
+public class MemoryProviderTest extends TestCase
+{
+    private static final File JOURNAL_DIR = new File("/tmp/priha/memoryjournal");
+    
+    private RepositoryImpl m_repository;
+    private SessionImpl    m_session;
+    
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        
+        m_repository = RepositoryManager.getRepository("memorynocache.properties");
+        m_session = login();
+        
+        File[] files = JOURNAL_DIR.listFiles();
+        if( files != null ) for( File f : files ) f.delete();
+    }
+    
+    public void tearDown() throws Exception
+    {
+        m_session.logout();
+        
+        TestUtil.emptyRepo( m_repository );
+        
+        super.tearDown();
+    }
+    
+    private SessionImpl login() throws Exception
+    {
+        return m_repository.login( new SimpleCredentials("foo",new char[0]) );
+    }
+    
+    public void testChildren() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("parent");
+        nd.addNode("a");
+        nd.addNode("b").setProperty("x", "foo");
+        m_session.save();
+        
+        SessionImpl s = login();
+        
+        try
+        {
+            NodeIterator i = s.getRootNode().getNode("parent").getNodes();
+            
+            assertEquals( 2, i.getSize() );
+            assertEquals( "a", i.nextNode().getName() );
+            assertEquals( "b", i.nextNode().getName() );
+            
+            s.getRootNode().getNode("parent/a").remove();
+            s.getRootNode().getProperty("parent/b/x").remove();
+            s.save();
+        }
+        finally
+        {
+            s.logout();
+        }
+        
+        s = login();
+        
+        try
+        {
+            Node parent = s.getRootNode().getNode("parent");
+            
+            assertEquals( 1, parent.getNodes().getSize() );
+            assertFalse( parent.hasNode("a") );
+            assertFalse( parent.hasProperty("b/x") );
+        }
+        finally
+        {
+            s.logout();
+        }
+    }
+    
+    /**
+     *  Runs the provider directly, so that we can check what other threads see
+     *  while a save is still going on.
+     */
+    public void testSnapshots() throws Exception
+    {
+        final MemoryProvider p = new MemoryProvider();
+        p.start( m_repository, new Properties() );
+        
+        final WorkspaceImpl ws = m_session.getWorkspace();
+        final Path x = Path.ROOT.resolve( QName.valueOf("x") );
+        
+        StoreTransaction tx = p.storeStarted( ws );
+        p.addNode( tx, Path.ROOT, null );
+        p.putPropertyValue( tx, x, value("old") );
+        p.storeFinished( tx );
+        
+        long version = p.getVersion();
+        
+        tx = p.storeStarted( ws );
+        p.putPropertyValue( tx, x, value("new") );
+        p.addNode( tx, Path.ROOT.resolve( QName.valueOf("added") ), null );
+        
+        assertEquals( "writer", "new", p.getPropertyValue( ws, x ).getValue().getString() );
+        
+        final String[] seen = new String[2];
+        
+        Thread reader = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    seen[0] = p.getPropertyValue( ws, x ).getValue().getString();
+                    seen[1] = Integer.toString( p.listNodes( ws, Path.ROOT ).size() );
+                }
+                catch( Exception e )
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+        
+        reader.start();
+        reader.join( 10000 );
+        
+        assertFalse( "reader blocked", reader.isAlive() );
+        assertEquals( "reader value", "old", seen[0] );
+        assertEquals( "reader children", "0", seen[1] );
+        
+        p.storeFinished( tx );
+        
+        assertEquals( "new", p.getPropertyValue( ws, x ).getValue().getString() );
+        assertEquals( 1, p.listNodes( ws, Path.ROOT ).size() );
+        assertEquals( version+1, p.getVersion() );
+        
+        tx = p.storeStarted( ws );
+        p.remove( tx, x );
+        p.storeCancelled( tx );
+        
+        assertTrue( "cancelled", p.itemExists( ws, x, ItemType.PROPERTY ) );
+        assertEquals( version+1, p.getVersion() );
+    }
+    
+    private MemoryProvider startPersistent() throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty( "directory", JOURNAL_DIR.getAbsolutePath() );
+        
+        MemoryProvider p = new MemoryProvider();
+        p.start( m_repository, props );
+        
+        return p;
+    }
+    
+    /**
+     *  Simulates a crash by leaving the provider as it is, and removing its lock.
+     */
+    private static void crash()
+    {
+        new File( JOURNAL_DIR, ".prihalock" ).delete();
+    }
+    
+    private static Path path( String name )
+    {
+        return Path.ROOT.resolve( QName.valueOf( name ) );
+    }
+    
+    private void save( MemoryProvider p, String name, String value ) throws Exception
+    {
+        WorkspaceImpl ws = m_session.getWorkspace();
+        StoreTransaction tx = p.storeStarted( ws );
+        
+        p.addNode( tx, Path.ROOT, null );
+        p.putPropertyValue( tx, path(name), value(value) );
+        p.storeFinished( tx );
+    }
+    
+    private String read( MemoryProvider p, String name ) throws Exception
+    {
+        return p.getPropertyValue( m_session.getWorkspace(), path(name) ).getValue().getString();
+    }
+    
+    private String[] list( String prefix )
+    {
+        String[] names = JOURNAL_DIR.list();
+        int count = 0;
+        
+        for( String n : names ) if( n.startsWith( prefix ) ) names[count++] = n;
+        
+        String[] res = new String[count];
+        System.arraycopy( names, 0, res, 0, count );
+        return res;
+    }
+    
+    public void testJournalRecovery() throws Exception
+    {
+        MemoryProvider p = startPersistent();
+        WorkspaceImpl ws = m_session.getWorkspace();
+        
+        save( p, "x", "foo" );
+        save( p, "y", "bar" );
+        
+        StoreTransaction tx = p.storeStarted( ws );
+        p.addNode( tx, path("a"), null );
+        p.addNode( tx, path("a").resolve( QName.valueOf("c") ), null );
+        p.addNode( tx, path("a").resolve( QName.valueOf("b") ), null );
+        p.putPropertyValue( tx, path("a").resolve( QName.valueOf("multi") ), 
+                            new ValueContainer( new Value[] { m_session.getValueFactory().createValue( 1L ),
+                                                              m_session.getValueFactory().createValue( 2L ) },
+                                                PropertyType.LONG ) );
+        p.remove( tx, path("y") );
+        p.storeFinished( tx );
+        
+        //  A cancelled save must not end up in the journal.
+        tx = p.storeStarted( ws );
+        p.remove( tx, path("x") );
+        p.storeCancelled( tx );
+        
+        crash();
+        
+        p = startPersistent();
+        
+        assertEquals( "foo", read( p, "x" ) );
+        assertFalse( "y", p.itemExists( ws, path("y"), ItemType.PROPERTY ) );
+        assertEquals( "children", 2, p.listNodes( ws, path("a") ).size() );
+        assertEquals( "order", "b", p.listNodes( ws, path("a") ).get(1).getLastComponent().toString() );
+        
+        ValueContainer vc = p.getPropertyValue( ws, path("a").resolve( QName.valueOf("multi") ) );
+        assertEquals( PropertyType.LONG, vc.getType() );
+        assertEquals( 2, vc.getValues()[1].getLong() );
+        
+        p.stop( m_repository );
+    }
+    
+    /**
+     *  The snapshot replaces the journals before it, and the journal written after
+     *  it is replayed on top of it.
+     */
+    public void testSnapshot() throws Exception
+    {
+        MemoryProvider p = startPersistent();
+        
+        save( p, "x", "foo" );
+        p.snapshot();
+        save( p, "y", "bar" );
+        
+        assertEquals( "snapshots", 1, list("snapshot-").length );
+        assertEquals( "journals", 1, list("journal-").length );
+        
+        crash();
+        
+        p = startPersistent();
+        
+        assertEquals( "foo", read( p, "x" ) );
+        assertEquals( "bar", read( p, "y" ) );
+        
+        save( p, "x", "new" );
+        p.stop( m_repository );
+        
+        p = startPersistent();
+        
+        assertEquals( "new", read( p, "x" ) );
+        assertEquals( "bar", read( p, "y" ) );
+        assertEquals( "snapshots", 1, list("snapshot-").length );
+        
+        p.stop( m_repository );
+    }
+    
+    /**
+     *  A save which was torn during a crash is dropped, and the journal can be
+     *  appended to after that.
+     */
+    public void testTornJournal() throws Exception
+    {
+        MemoryProvider p = startPersistent();
+        
+        save( p, "x", "foo" );
+        crash();
+        
+        FileOutputStream out = new FileOutputStream( new File( JOURNAL_DIR, list("journal-")[0] ), true );
+        out.write( new byte[] { 0, 0, 1, 0, 42, 42 } );
+        out.close();
+        
+        p = startPersistent();
+        
+        assertEquals( "foo", read( p, "x" ) );
+        
+        save( p, "y", "bar" );
+        crash();
+        
+        p = startPersistent();
+        
+        assertEquals( "foo", read( p, "x" ) );
+        assertEquals( "bar", read( p, "y" ) );
+        
+        p.stop( m_repository );
+    }
+    
+    private MemoryProvider startOffHeap( boolean persistent ) throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty( "offHeap", "true" );
+        props.setProperty( "slabSize", "4096" );
+        if( persistent ) props.setProperty( "directory", JOURNAL_DIR.getAbsolutePath() );
+        
+        MemoryProvider p = new MemoryProvider();
+        p.start( m_repository, props );
+        
+        return p;
+    }
+    
+    private static byte[] bytes( int length )
+    {
+        byte[] b = new byte[length];
+        for( int i = 0; i < length; i++ ) b[i] = (byte)i;
+        return b;
+    }
+    
+    private void assertBinary( MemoryProvider p, String name, int length ) throws Exception
+    {
+        ValueContainer vc = p.getPropertyValue( m_session.getWorkspace(), path(name) );
+        
+        assertEquals( PropertyType.BINARY, vc.getType() );
+        
+        InputStream in = vc.getValue().getStream();
+        
+        for( int i = 0; i < length; i++ ) assertEquals( "byte "+i, (byte)i, (byte)in.read() );
+        assertEquals( "end", -1, in.read() );
+        
+        in.close();
+    }
+    
+    private void saveOffHeapValues( MemoryProvider p ) throws Exception
+    {
+        ValueFactory vf = m_session.getValueFactory();
+        StoreTransaction tx = p.storeStarted( m_session.getWorkspace() );
+        
+        p.addNode( tx, Path.ROOT, null );
+        p.putPropertyValue( tx, path("s"), value("foo") );
+        p.putPropertyValue( tx, path("multi"), 
+                            new ValueContainer( new Value[] { vf.createValue( 1L ), vf.createValue( 2L ) },
+                                                PropertyType.LONG ) );
+        p.putPropertyValue( tx, path("bin"), 
+                            new ValueContainer( (ValueImpl)vf.createValue( new ByteArrayInputStream( bytes(3000) ) ) ) );
+        p.storeFinished( tx );
+    }
+    
+    private void assertOffHeapValues( MemoryProvider p ) throws Exception
+    {
+        assertEquals( "foo", read( p, "s" ) );
+        
+        ValueContainer vc = p.getPropertyValue( m_session.getWorkspace(), path("multi") );
+        assertEquals( PropertyType.LONG, vc.getType() );
+        assertEquals( 2, vc.getValues()[1].getLong() );
+        
+        assertBinary( p, "bin", 3000 );
+        
+        //  Every read gets a stream of its own.
+        assertBinary( p, "bin", 3000 );
+    }
+    
+    public void testOffHeap() throws Exception
+    {
+        MemoryProvider p = startOffHeap( false );
+        
+        saveOffHeapValues( p );
+        
+        assertTrue( "off-heap", p.getOffHeapSize() > 0 );
+        assertOffHeapValues( p );
+        
+        p.stop( m_repository );
+    }
+    
+    /**
+     *  Rewriting the same values over and over must not use more and more memory.
+     */
+    public void testOffHeapCompaction() throws Exception
+    {
+        MemoryProvider p = startOffHeap( false );
+        
+        saveOffHeapValues( p );
+        
+        StringBuilder sb = new StringBuilder();
+        for( int i = 0; i < 500; i++ ) sb.append( 'x' );
+        
+        for( int i = 0; i < 1000; i++ )
+        {
+            save( p, "s"+(i % 10), sb.toString()+i );
+        }
+        
+        assertTrue( "grew to "+p.getOffHeapSize(), p.getOffHeapSize() < 100*1024 );
+        
+        assertOffHeapValues( p );
+        assertEquals( sb.toString()+"999", read( p, "s9" ) );
+        
+        p.stop( m_repository );
+    }
+    
+    public void testOffHeapRecovery() throws Exception
+    {
+        MemoryProvider p = startOffHeap( true );
+        
+        saveOffHeapValues( p );
+        crash();
+        
+        p = startOffHeap( true );
+        assertOffHeapValues( p );
+        
+        p.snapshot();
+        save( p, "s", "bar" );
+        p.stop( m_repository );
+        
+        p = startOffHeap( true );
+        assertEquals( "bar", read( p, "s" ) );
+        assertBinary( p, "bin", 3000 );
+        
+        p.stop( m_repository );
+    }
+    
+    private ValueContainer value( String s ) throws Exception
+    {
+        return new ValueContainer( (ValueImpl)m_session.getValueFactory().createValue( s ) );
+    }
+    
+    public static Test suite()
+    {
+        return new TestSuite( MemoryProviderTest.class );
+    }
+}
@@ -0,0 +1,48 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.priha.providers;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.priha.RepositoryManager;
+import org.priha.core.RepositoryImpl;
+
+/**
+ *  Runs the FileProvider tests against the packed layout.
+ */
+public class PackedFileProviderTest extends FileProviderTest
+{
+    /* The provider locks its directory, so the repository is shared by all tests. */
+    private static RepositoryImpl c_repository;
+
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        m_session.logout();
+
+        if( c_repository == null ) c_repository = RepositoryManager.getRepository("filepacked.properties");
+        m_repository = c_repository;
+        m_session = getNewSession();
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PackedFileProviderTest.class );
+    }
+}
@@ -0,0 +1,501 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.priha.providers;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.jcr.*;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.priha.RepositoryManager;
+import org.priha.TestUtil;
+import org.priha.core.ItemType;
+import org.priha.core.JCRConstants;
+import org.priha.core.RepositoryImpl;
+import org.priha.core.SessionImpl;
+import org.priha.core.WorkspaceImpl;
+import org.priha.path.Path;
+import org.priha.path.PathFactory;
+
+public class SegmentProviderTest extends TestCase
+{
+    /* The provider locks its directory, so the repository is shared by all tests. */
+    private static RepositoryImpl c_repository;
+
+    SessionImpl m_session;
+
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        if( c_repository == null ) c_repository = RepositoryManager.getRepository("segmentnocache.properties");
+        m_session = c_repository.login(new SimpleCredentials("foo",new char[0]));
+    }
+
+    public void tearDown() throws Exception
+    {
+        m_session.logout();
+
+        TestUtil.emptyRepo(c_repository);
+
+        super.tearDown();
+    }
+
+    private static final String UTF8_NAME = "\u00e5\u304f"; // HIRAGANA KU
+
+    public void testUTF8_1() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode(UTF8_NAME, "priha:referenceable");
+        nd.setProperty(UTF8_NAME, UTF8_NAME);
+
+        m_session.save();
+
+        Node nd2 = (Node)m_session.getItem("/"+UTF8_NAME);
+        Property p2 = nd2.getProperty(UTF8_NAME);
+
+        assertEquals(UTF8_NAME,nd2.getName());
+        assertEquals(UTF8_NAME,p2.getName());
+        assertEquals(UTF8_NAME,p2.getString());
+    }
+
+    public void testCase3() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("A");
+        nd.setProperty("x","foo-a");
+
+        Node nd2 = m_session.getRootNode().addNode("a");
+        nd2.setProperty("x","foo-b");
+
+        m_session.save();
+
+        assertFalse("same",nd.isSame(nd2));
+
+        Node nda = (Node) m_session.getItem("/A");
+        assertEquals("foo-a",nda.getProperty("x").getString());
+
+        Node ndb = (Node) m_session.getItem("/a");
+        assertEquals("foo-b",ndb.getProperty("x").getString());
+    }
+
+    public void testMultiValue() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("multi");
+        nd.setProperty("x", new String[] { "one", "two", "three" });
+        nd.setProperty("empty", new String[0]);
+
+        m_session.save();
+
+        Value[] v = ((Node)m_session.getItem("/multi")).getProperty("x").getValues();
+
+        assertEquals( 3, v.length );
+        assertEquals( "three", v[2].getString() );
+        assertEquals( 0, ((Node)m_session.getItem("/multi")).getProperty("empty").getValues().length );
+    }
+
+    public void testRemoveProperty() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("A");
+        nd.setProperty("x","foo-a");
+        m_session.save();
+
+        nd.getProperty("x").remove();
+        m_session.save();
+
+        assertFalse( ((Node)m_session.getItem("/A")).hasProperty("x") );
+    }
+
+    /**
+     *  Updates a value so many times that the segments roll over and get
+     *  compacted, then checks that everything survives a restart.
+     */
+    public void testReopen() throws Exception
+    {
+        Node nd = m_session.getRootNode().addNode("persistent", "nt:unstructured");
+        nd.addMixin("mix:referenceable");
+        nd.addNode("a");
+        nd.addNode("b");
+        nd.setProperty("binary", new ByteArrayInputStream(new byte[0]));
+        m_session.save();
+
+        String uuid = nd.getUUID();
+        byte[] blob = new byte[10*1024];
+
+        for( int i = 0; i < 300; i++ )
+        {
+            blob[0] = (byte)i;
+            nd.setProperty("binary", new ByteArrayInputStream(blob));
+            nd.setProperty("counter", i);
+            m_session.save();
+        }
+
+        nd.orderBefore("b", "a");
+        m_session.save();
+        m_session.logout();
+
+        c_repository.shutdown();
+        c_repository = RepositoryManager.getRepository("segmentnocache.properties");
+        m_session = c_repository.login(new SimpleCredentials("foo",new char[0]));
+
+        Node nd2 = m_session.getNodeByUUID(uuid);
+
+        assertEquals( "/persistent", nd2.getPath() );
+        assertEquals( 299, nd2.getProperty("counter").getLong() );
+        assertEquals( 299 & 0xff, nd2.getProperty("binary").getStream().read() );
+
+        NodeIterator ni = nd2.getNodes();
+        assertEquals( "b", ni.nextNode().getName() );
+        assertEquals( "a", ni.nextNode().getName() );
+    }
+
+    //
+    //  The rest of the tests use a provider of their own, so that they can
+    //  control the transactions and look at the segment files.
+    //
+
+    private static final String TEST_DIR = "/tmp/priha/segmenttest";
+
+    private SegmentProvider startProvider( long segmentSize ) throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty( "directory", TEST_DIR );
+        props.setProperty( "segmentSize", Long.toString(segmentSize) );
+
+        SegmentProvider p = new SegmentProvider();
+        p.start( c_repository, props );
+
+        return p;
+    }
+
+    private static void delete( File f )
+    {
+        File[] files = f.listFiles();
+
+        if( files != null )
+        {
+            for( File c : files ) delete( c );
+        }
+
+        f.delete();
+    }
+
+    private static File[] segments()
+    {
+        return new File( TEST_DIR, "workspaces/default" ).listFiles( new FilenameFilter()
+        {
+            public boolean accept( File dir, String name )
+            {
+                return name.endsWith(".log");
+            }
+        } );
+    }
+
+    private ValueContainer value( String s ) throws RepositoryException
+    {
+        return new ValueContainer( m_session.getValueFactory().createValue( s ) );
+    }
+
+    private String getString( SegmentProvider p, String path ) throws Exception
+    {
+        return p.getPropertyValue( m_session.getWorkspace(), PathFactory.getPath( path ) ).getValue().getString();
+    }
+
+    /**
+     *  Saves a single property, creating its Node if necessary.
+     */
+    private void save( SegmentProvider p, String node, String property, String value ) throws Exception
+    {
+        WorkspaceImpl ws = m_session.getWorkspace();
+        StoreTransaction tx = p.storeStarted( ws );
+
+        p.addNode( tx, Path.ROOT, null );
+        p.addNode( tx, PathFactory.getPath( node ), null );
+        p.putPropertyValue( tx, PathFactory.getPath( node+"/"+property ), value( value ) );
+
+        p.storeFinished( tx );
+    }
+
+    /**
+     *  Cancels a save while another one is still going on.  The cancel must
+     *  wait for the other save, and must not lose what it wrote.
+     */
+    public void testOverlappingSaves() throws Exception
+    {
+        delete( new File(TEST_DIR) );
+
+        final SegmentProvider p = startProvider( 1024*1024 );
+        final WorkspaceImpl ws = m_session.getWorkspace();
+
+        try
+        {
+            StoreTransaction tx = p.storeStarted( ws );
+
+            p.addNode( tx, Path.ROOT, null );
+            p.addNode( tx, PathFactory.getPath("/x"), null );
+            p.putPropertyValue( tx, PathFactory.getPath("/x/p"), value("v1") );
+
+            final Exception[] error = new Exception[1];
+
+            Thread other = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        StoreTransaction tx2 = p.storeStarted( ws );
+
+                        p.addNode( tx2, PathFactory.getPath("/y"), null );
+                        p.putPropertyValue( tx2, PathFactory.getPath("/x/q"), value("v2") );
+
+                        p.storeCancelled( tx2 );
+                    }
+                    catch( Exception e )
+                    {
+                        error[0] = e;
+                    }
+                }
+            };
+
+            other.start();
+            other.join( 500 );
+
+            assertTrue( "The other save did not wait", other.isAlive() );
+
+            p.storeFinished( tx );
+
+            other.join( 10000 );
+
+            assertFalse( "The other save did not finish", other.isAlive() );
+            assertNull( "error", error[0] );
+
+            assertTrue( "/x", p.itemExists( ws, PathFactory.getPath("/x"), ItemType.NODE ) );
+            assertFalse( "/y", p.itemExists( ws, PathFactory.getPath("/y"), ItemType.NODE ) );
+            assertFalse( "/x/q", p.itemExists( ws, PathFactory.getPath("/x/q"), ItemType.PROPERTY ) );
+            assertEquals( "v1", getString( p, "/x/p" ) );
+        }
+        finally
+        {
+            p.stop( c_repository );
+        }
+
+        SegmentProvider p2 = startProvider( 1024*1024 );
+
+        try
+        {
+            assertEquals( "after restart", "v1", getString( p2, "/x/p" ) );
+            assertFalse( "/y after restart", p2.itemExists( ws, PathFactory.getPath("/y"), ItemType.NODE ) );
+        }
+        finally
+        {
+            p2.stop( c_repository );
+        }
+    }
+
+    /**
+     *  Checks that a cancelled save puts back exactly what it changed, including
+     *  when it is nested in a save which finishes.
+     */
+    public void testCancel() throws Exception
+    {
+        delete( new File(TEST_DIR) );
+
+        SegmentProvider p = startProvider( 1024*1024 );
+        WorkspaceImpl ws = m_session.getWorkspace();
+
+        try
+        {
+            StoreTransaction tx = p.storeStarted( ws );
+
+            p.addNode( tx, Path.ROOT, null );
+            p.addNode( tx, PathFactory.getPath("/a"), null );
+            p.addNode( tx, PathFactory.getPath("/a/c1"), null );
+            p.addNode( tx, PathFactory.getPath("/a/c2"), null );
+            p.putPropertyValue( tx, PathFactory.getPath("/a/p"), value("v1") );
+            p.putPropertyValue( tx, PathFactory.getPath("/a/q"), value("v1") );
+            p.putPropertyValue( tx, PathFactory.getPath("/a/c1").resolve( JCRConstants.Q_JCR_UUID ), value("1234") );
+            p.storeFinished( tx );
+
+            StoreTransaction outer = p.storeStarted( ws );
+            p.addNode( outer, PathFactory.getPath("/b"), null );
+
+            StoreTransaction inner = p.storeStarted( ws );
+            p.putPropertyValue( inner, PathFactory.getPath("/a/p"), value("v2") );
+            p.remove( inner, PathFactory.getPath("/a/q") );
+            p.remove( inner, PathFactory.getPath("/a/c1") );
+            p.addNode( inner, PathFactory.getPath("/a/c3"), null );
+            p.reorderNodes( inner, PathFactory.getPath("/a"),
+                            Arrays.asList( PathFactory.getPath("/a/c3"), PathFactory.getPath("/a/c2") ) );
+            p.remove( inner, PathFactory.getPath("/b") );
+            p.storeCancelled( inner );
+
+            p.storeFinished( outer );
+
+            assertTrue( "/b", p.itemExists( ws, PathFactory.getPath("/b"), ItemType.NODE ) );
+            assertEquals( "p", "v1", getString( p, "/a/p" ) );
+            assertEquals( "q", "v1", getString( p, "/a/q" ) );
+            assertEquals( "uuid", PathFactory.getPath("/a/c1"), p.findByUUID( ws, "1234" ) );
+            assertFalse( "/a/c3", p.itemExists( ws, PathFactory.getPath("/a/c3"), ItemType.NODE ) );
+
+            List<Path> children = p.listNodes( ws, PathFactory.getPath("/a") );
+            assertEquals( "children", 2, children.size() );
+            assertEquals( "first", PathFactory.getPath("/a/c1"), children.get(0) );
+        }
+        finally
+        {
+            p.stop( c_repository );
+        }
+
+        p = startProvider( 1024*1024 );
+
+        try
+        {
+            assertTrue( "/b after restart", p.itemExists( ws, PathFactory.getPath("/b"), ItemType.NODE ) );
+            assertEquals( "p after restart", "v1", getString( p, "/a/p" ) );
+            assertEquals( "uuid after restart", PathFactory.getPath("/a/c1"), p.findByUUID( ws, "1234" ) );
+        }
+        finally
+        {
+            p.stop( c_repository );
+        }
+    }
+
+    /**
+     *  Overwrites a value until the old segments are mostly garbage, and waits
+     *  for the compactor to replace them.
+     */
+    public void testCompaction() throws Exception
+    {
+        delete( new File(TEST_DIR) );
+
+        SegmentProvider p = startProvider( 4096 );
+
+        try
+        {
+            StringBuilder sb = new StringBuilder();
+            for( int i = 0; i < 500; i++ ) sb.append( 'x' );
+
+            for( int i = 0; i < 200; i++ )
+            {
+                save( p, "/c", "value", sb.toString()+i );
+                save( p, "/c", "kept"+(i % 5), "k"+i );
+            }
+
+            for( int i = 0; i < 100 && segments().length > 2; i++ )
+            {
+                Thread.sleep( 100 );
+            }
+
+            assertTrue( "Not compacted: "+segments().length+" segments", segments().length <= 2 );
+
+            String last = "";
+            for( File f : segments() ) if( f.getName().compareTo( last ) > 0 ) last = f.getName();
+
+            assertTrue( "Segments did not roll over: "+last, last.compareTo("segment-00000010.log") > 0 );
+
+            assertEquals( sb.toString()+199, getString( p, "/c/value" ) );
+            assertEquals( "k197", getString( p, "/c/kept2" ) );
+        }
+        finally
+        {
+            p.stop( c_repository );
+        }
+
+        p = startProvider( 4096 );
+
+        try
+        {
+            assertEquals( "k199", getString( p, "/c/kept4" ) );
+            assertEquals( 6, p.listProperties( m_session.getWorkspace(), PathFactory.getPath("/c") ).size() );
+        }
+        finally
+        {
+            p.stop( c_repository );
+        }
+    }
+
+    /**
+     *  Appends a record which was cut short by a crash, and checks that it is
+     *  dropped on the next startup, and that the segment can still be written.
+     */
+    public void testTornRecord() throws Exception
+    {
+        delete( new File(TEST_DIR) );
+
+        SegmentProvider p = startProvider( 1024*1024 );
+
+        save( p, "/t", "p", "v1" );
+        save( p, "/t", "p", "v2" );
+
+        p.stop( c_repository );
+
+        File segment = segments()[0];
+        long length  = segment.length();
+
+        RandomAccessFile raf = new RandomAccessFile( segment, "rw" );
+
+        try
+        {
+            raf.seek( length );
+            raf.writeInt( 100 );
+            raf.write( new byte[] { 2, 0, 0, 0 } );
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        p = startProvider( 1024*1024 );
+
+        try
+        {
+            assertEquals( "truncated", length, segment.length() );
+            assertEquals( "v2", getString( p, "/t/p" ) );
+
+            save( p, "/t", "p", "v3" );
+        }
+        finally
+        {
+            p.stop( c_repository );
+        }
+
+        p = startProvider( 1024*1024 );
+
+        try
+        {
+            assertEquals( "v3", getString( p, "/t/p" ) );
+        }
+        finally
+        {
+            p.stop( c_repository );
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SegmentProviderTest.class );
+    }
+
+}
@@ -30,6 +30,13 @@ public class AllTests
         suite.addTest( PathUtilTest.suite() );
         suite.addTest( FastPropertyStoreTest.suite() );
         suite.addTest( ChangeStoreTest.suite() );
+        suite.addTest( UUIDIndexTest.suite() );
+        suite.addTest( BlobStoreTest.suite() );
+        suite.addTest( PoolTest.suite() );
+        suite.addTest( PersistentMapTest.suite() );
+        suite.addTest( SlabAllocatorTest.suite() );
+        suite.addTest( WeightedCacheTest.suite() );
+        suite.addTest( BloomFilterTest.suite() );
         return suite;
     }
 }
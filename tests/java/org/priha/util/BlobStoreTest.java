@@ -0,0 +1,185 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.priha.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class BlobStoreTest extends TestCase
+{
+    File      m_dir;
+    BlobStore m_store;
+
+    protected void setUp() throws Exception
+    {
+        m_dir = File.createTempFile( "prihatest", ".blobs" );
+        m_dir.delete();
+
+        m_store = new BlobStore( m_dir, false );
+    }
+
+    protected void tearDown() throws Exception
+    {
+        delete( m_dir );
+    }
+
+    private static void delete( File f )
+    {
+        File[] files = f.listFiles();
+
+        if( files != null )
+        {
+            for( File c : files ) delete( c );
+        }
+
+        f.delete();
+    }
+
+    private static byte[] blob( int size, int seed )
+    {
+        byte[] ba = new byte[size];
+
+        for( int i = 0; i < size; i++ ) ba[i] = (byte)(i*seed);
+
+        return ba;
+    }
+
+    private static byte[] read( InputStream in ) throws Exception
+    {
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            FileUtil.copyContents( in, out );
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    public void testDeduplicate() throws Exception
+    {
+        BlobStore.Changes c = new BlobStore.Changes();
+
+        String a = m_store.put( new ByteArrayInputStream( blob( 10000, 3 ) ) );
+        String b = m_store.put( new ByteArrayInputStream( blob( 10000, 3 ) ) );
+        String d = m_store.put( new ByteArrayInputStream( blob( 10000, 5 ) ) );
+
+        assertEquals( a, b );
+        assertFalse( a.equals( d ) );
+
+        c.added( a );
+        c.added( b );
+        c.added( d );
+        m_store.acquire( c );
+
+        assertEquals( 2, m_store.getReferenceCount( a ) );
+        assertEquals( 1, m_store.getReferenceCount( d ) );
+        assertEquals( 10000, m_store.get( a ).getLength() );
+        assertEquals( blob( 10000, 3 )[9999], read( m_store.get( a ).getStream() )[9999] );
+    }
+
+    public void testRelease() throws Exception
+    {
+        BlobStore.Changes c = new BlobStore.Changes();
+
+        String a = m_store.put( new ByteArrayInputStream( blob( 100, 3 ) ) );
+        c.added( a );
+        c.added( m_store.put( new ByteArrayInputStream( blob( 100, 3 ) ) ) );
+        m_store.acquire( c );
+
+        c.removed( a );
+        m_store.release( c );
+
+        assertTrue( m_store.contains( a ) );
+        assertEquals( 1, m_store.getReferenceCount( a ) );
+
+        c.removed( a );
+        m_store.release( c );
+
+        assertFalse( m_store.contains( a ) );
+    }
+
+    /**
+     *  Storing the stream of an existing blob must not need to read it again.
+     */
+    public void testPutOwnStream() throws Exception
+    {
+        BlobStore.Changes c = new BlobStore.Changes();
+
+        String a = m_store.put( new ByteArrayInputStream( blob( 100, 7 ) ) );
+        c.added( a );
+        m_store.acquire( c );
+
+        InputStream in = m_store.get( a ).getStream();
+
+        assertEquals( a, m_store.put( in ) );
+
+        c.added( a );
+        m_store.acquire( c );
+
+        assertEquals( 2, m_store.getReferenceCount( a ) );
+    }
+
+    public void testCancel() throws Exception
+    {
+        BlobStore.Changes c = new BlobStore.Changes();
+
+        String a = m_store.put( new ByteArrayInputStream( blob( 100, 3 ) ) );
+        c.added( a );
+        m_store.cancel( c );
+
+        assertFalse( m_store.contains( a ) );
+    }
+
+    /**
+     *  Blobs which were stored but never acquired, e.g. because of a crash, are garbage.
+     *  The ones which are being stored are not.
+     */
+    public void testCollectGarbage() throws Exception
+    {
+        BlobStore.Changes c = new BlobStore.Changes();
+
+        String used    = m_store.put( new ByteArrayInputStream( blob( 100, 3 ) ) );
+        String garbage = m_store.put( new ByteArrayInputStream( blob( 100, 9 ) ) );
+
+        c.added( used );
+        m_store.acquire( c );
+
+        m_store = new BlobStore( m_dir, false );
+
+        String pinned = m_store.put( new ByteArrayInputStream( blob( 100, 5 ) ) );
+
+        assertEquals( 1, m_store.collectGarbage() );
+        assertTrue( m_store.contains( used ) );
+        assertTrue( m_store.contains( pinned ) );
+        assertFalse( m_store.contains( garbage ) );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BlobStoreTest.class );
+    }
+}
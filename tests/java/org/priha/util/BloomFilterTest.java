@@ -0,0 +1,67 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class BloomFilterTest extends TestCase
+{
+    public void testNoFalseNegatives()
+    {
+        BloomFilter f = new BloomFilter( 100, 0.01 );
+        
+        for( int i = 0; i < 10000; i++ ) f.add( "item"+i );
+        
+        for( int i = 0; i < 10000; i++ ) assertTrue( "item"+i, f.mightContain( "item"+i ) );
+        
+        //  A few are lost as false positives.
+        int size = f.size();
+        assertEquals( "duplicates", 10000, size, 300 );
+        
+        f.add( "item5" );
+        assertEquals( "re-added", size, f.size() );
+    }
+    
+    /**
+     *  The filter grows from a tiny start, and still keeps the false positive
+     *  rate around twice the rate of the first stage.
+     */
+    public void testFalsePositives()
+    {
+        BloomFilter f = new BloomFilter( 100, 0.01 );
+        
+        for( int i = 0; i < 100000; i++ ) f.add( "item"+i );
+        
+        int falsePositives = 0;
+        
+        for( int i = 0; i < 100000; i++ ) 
+        {
+            if( f.mightContain( "other"+i ) ) falsePositives++;
+        }
+        
+        assertTrue( "too many false positives: "+falsePositives, falsePositives < 2500 );
+        assertTrue( "too big: "+f.getSizeInBytes(), f.getSizeInBytes() < 1024*1024 );
+    }
+    
+    public static Test suite()
+    {
+        return new TestSuite( BloomFilterTest.class );
+    }
+}
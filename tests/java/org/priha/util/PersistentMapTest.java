@@ -0,0 +1,143 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class PersistentMapTest extends TestCase
+{
+    /**
+     *  A key with a bad hash code, so that we get collisions.
+     */
+    private static class Key
+    {
+        final int m_id;
+
+        Key( int id )
+        {
+            m_id = id;
+        }
+
+        public int hashCode()
+        {
+            return m_id % 7;
+        }
+
+        public boolean equals( Object o )
+        {
+            return o instanceof Key && ((Key)o).m_id == m_id;
+        }
+    }
+
+    public void testPlusMinus() throws Exception
+    {
+        PersistentMap<String,Integer> a = PersistentMap.empty();
+        PersistentMap<String,Integer> b = a.plus( "foo", 1 ).plus( "bar", 2 );
+
+        assertEquals( 0, a.size() );
+        assertNull( a.get( "foo" ) );
+        assertEquals( 2, b.size() );
+        assertEquals( Integer.valueOf(1), b.get( "foo" ) );
+        assertEquals( Integer.valueOf(2), b.get( "bar" ) );
+
+        PersistentMap<String,Integer> c = b.plus( "foo", 3 ).minus( "bar" );
+
+        assertEquals( 1, c.size() );
+        assertEquals( Integer.valueOf(3), c.get( "foo" ) );
+        assertFalse( c.containsKey( "bar" ) );
+        assertEquals( Integer.valueOf(1), b.get( "foo" ) );
+        assertTrue( b.containsKey( "bar" ) );
+
+        assertSame( c, c.minus( "nothere" ) );
+        assertTrue( c.minus( "foo" ).isEmpty() );
+    }
+
+    public void testCollisions() throws Exception
+    {
+        PersistentMap<Key,Integer> m = PersistentMap.empty();
+
+        for( int i = 0; i < 100; i++ )
+        {
+            m = m.plus( new Key(i), i );
+        }
+
+        assertEquals( 100, m.size() );
+
+        for( int i = 0; i < 100; i += 2 )
+        {
+            m = m.minus( new Key(i) );
+        }
+
+        assertEquals( 50, m.size() );
+
+        for( int i = 0; i < 100; i++ )
+        {
+            assertEquals( "key "+i, i % 2 == 1, m.containsKey( new Key(i) ) );
+        }
+    }
+
+    /**
+     *  Checks against a HashMap with random operations.
+     */
+    public void testRandom() throws Exception
+    {
+        Random rnd = new Random( 42 );
+        HashMap<Integer,Integer> ref = new HashMap<Integer,Integer>();
+        PersistentMap<Integer,Integer> m = PersistentMap.empty();
+
+        for( int i = 0; i < 20000; i++ )
+        {
+            Integer key = rnd.nextInt( 5000 ) * 65537;
+
+            if( rnd.nextInt( 3 ) == 0 )
+            {
+                ref.remove( key );
+                m = m.minus( key );
+            }
+            else
+            {
+                ref.put( key, i );
+                m = m.plus( key, i );
+            }
+        }
+
+        assertEquals( ref.size(), m.size() );
+
+        int count = 0;
+        for( Iterator<Map.Entry<Integer,Integer>> i = m.iterator(); i.hasNext(); )
+        {
+            Map.Entry<Integer,Integer> e = i.next();
+            assertEquals( ref.get( e.getKey() ), e.getValue() );
+            count++;
+        }
+
+        assertEquals( ref.size(), count );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PersistentMapTest.class );
+    }
+}
@@ -0,0 +1,375 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.priha.util.Pool.PoolExhaustedException;
+import org.priha.util.Pool.Poolable;
+import org.priha.util.Pool.PoolableFactory;
+
+public class PoolTest extends TestCase
+{
+    /**
+     *  A Poolable which can be marked broken.
+     */
+    private static class Dummy extends Poolable
+    {
+        boolean m_valid = true;
+        boolean m_disposed;
+
+        public Dummy( Pool p )
+        {
+            super( p );
+        }
+
+        @Override
+        public boolean isValid()
+        {
+            return m_valid;
+        }
+
+        @Override
+        public void dispose()
+        {
+            m_disposed = true;
+        }
+    }
+
+    private static class DummyFactory implements PoolableFactory
+    {
+        public Poolable newPoolable( Pool p )
+        {
+            return new Dummy( p );
+        }
+    }
+
+    Pool m_pool;
+
+    protected void setUp() throws Exception
+    {
+        m_pool = new Pool( new DummyFactory() );
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_pool.dispose();
+    }
+
+    public void testMaxSize() throws Exception
+    {
+        m_pool.setMaxSize( 2 );
+
+        Poolable a = m_pool.get( 100 );
+        Poolable b = m_pool.get( 100 );
+
+        try
+        {
+            m_pool.get( 100 );
+            fail("Pool grew past its size");
+        }
+        catch( PoolExhaustedException e ) {}
+
+        assertEquals( 2, m_pool.size() );
+        assertEquals( 1, m_pool.getTimeoutCount() );
+        assertEquals( 1, m_pool.getWaitCount() );
+
+        a.release();
+
+        assertSame( a, m_pool.get( 100 ) );
+        assertNotSame( a, b );
+        assertEquals( 2, m_pool.getCreatedCount() );
+    }
+
+    /**
+     *  Threads waiting for an object get it in the order they started waiting.
+     */
+    public void testFairness() throws Exception
+    {
+        m_pool.setMaxSize( 1 );
+
+        Poolable p = m_pool.get( 100 );
+
+        final List<Integer> order = Collections.synchronizedList( new ArrayList<Integer>() );
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for( int i = 0; i < 5; i++ )
+        {
+            final int n = i;
+            Thread t = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Poolable o = m_pool.get( 10000 );
+                        order.add( n );
+                        o.release();
+                    }
+                    catch( Exception e )
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            };
+
+            t.start();
+            threads.add( t );
+
+            while( m_pool.getWaitCount() <= i ) Thread.sleep( 1 );
+        }
+
+        p.release();
+
+        for( Thread t : threads ) t.join();
+
+        assertEquals( "[0, 1, 2, 3, 4]", order.toString() );
+        assertEquals( 1, m_pool.size() );
+    }
+
+    public void testValidation() throws Exception
+    {
+        Dummy a = (Dummy) m_pool.get( 100 );
+        a.release();
+
+        a.m_valid = false;
+
+        Dummy b = (Dummy) m_pool.get( 100 );
+
+        assertNotSame( a, b );
+        assertTrue( a.m_disposed );
+        assertEquals( 1, m_pool.getInvalidCount() );
+        assertEquals( 1, m_pool.size() );
+    }
+
+    public void testIdleEviction() throws Exception
+    {
+        m_pool.setMaxIdleTime( 10 );
+        m_pool.setValidationInterval( -1 );
+
+        Dummy a = (Dummy) m_pool.get( 100 );
+        Dummy b = (Dummy) m_pool.get( 100 );
+        a.release();
+
+        Thread.sleep( 50 );
+        m_pool.evict();
+
+        assertTrue( a.m_disposed );
+        assertEquals( 1, m_pool.size() );
+        assertEquals( 0, m_pool.getIdleCount() );
+
+        b.release();
+        m_pool.evict();
+
+        assertFalse( "evicted too early", b.m_disposed );
+        assertEquals( 1, m_pool.getIdleCount() );
+    }
+
+    /**
+     *  Idle objects are validated in the background, too.
+     */
+    public void testIdleValidation() throws Exception
+    {
+        m_pool.setValidationInterval( 0 );
+
+        Dummy a = (Dummy) m_pool.get( 100 );
+        a.release();
+        a.m_valid = false;
+
+        m_pool.evict();
+
+        assertTrue( a.m_disposed );
+        assertEquals( 0, m_pool.size() );
+    }
+
+    public void testLeakDetection() throws Exception
+    {
+        m_pool.setLeakThreshold( 10 );
+
+        Poolable a = m_pool.get( 100 );
+
+        Thread.sleep( 50 );
+        m_pool.evict();
+        m_pool.evict();
+
+        assertEquals( 1, m_pool.getLeakCount() );
+
+        a.release();
+        a.release();
+
+        assertEquals( 1, m_pool.getIdleCount() );
+    }
+
+    /**
+     *  A pooled connection to an embedded H2 database.
+     */
+    private static class H2Connection extends Poolable
+    {
+        Connection m_conn;
+
+        public H2Connection( Pool p ) throws SQLException
+        {
+            super( p );
+            m_conn = DriverManager.getConnection( "jdbc:h2:mem:pooltest", "sa", "" );
+        }
+
+        @Override
+        public boolean isValid() throws SQLException
+        {
+            if( m_conn.isClosed() ) return false;
+
+            m_conn.createStatement().executeQuery( "SELECT 1" ).close();
+
+            return true;
+        }
+
+        @Override
+        public void dispose() throws SQLException
+        {
+            m_conn.close();
+        }
+    }
+
+    private static Pool createH2Pool( int size ) throws Exception
+    {
+        Class.forName( "org.h2.Driver" );
+
+        Pool pool = new Pool( new PoolableFactory()
+        {
+            public Poolable newPoolable( Pool p ) throws SQLException
+            {
+                return new H2Connection( p );
+            }
+        });
+
+        pool.setMaxSize( size );
+        pool.setValidationInterval( 0 );
+
+        return pool;
+    }
+
+    /**
+     *  Runs queries from many more threads than there are connections.
+     */
+    public void testH2Load() throws Exception
+    {
+        final Pool pool = createH2Pool( 4 );
+        final List<Exception> errors = Collections.synchronizedList( new ArrayList<Exception>() );
+        final int[] maxSize = new int[1];
+
+        // Keeps the in-memory database alive.
+        H2Connection keeper = (H2Connection) pool.get( 1000 );
+        keeper.m_conn.createStatement().execute( "CREATE TABLE counter (n INT)" );
+        keeper.m_conn.createStatement().execute( "INSERT INTO counter VALUES (0)" );
+        keeper.release();
+
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for( int i = 0; i < 16; i++ )
+        {
+            Thread t = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for( int j = 0; j < 100; j++ )
+                        {
+                            H2Connection c = (H2Connection) pool.get( 10000 );
+
+                            try
+                            {
+                                c.m_conn.createStatement().execute( "UPDATE counter SET n = n + 1" );
+
+                                synchronized( maxSize )
+                                {
+                                    maxSize[0] = Math.max( maxSize[0], pool.getActiveCount() );
+                                }
+                            }
+                            finally
+                            {
+                                c.release();
+                            }
+                        }
+                    }
+                    catch( Exception e )
+                    {
+                        errors.add( e );
+                    }
+                }
+            };
+
+            t.start();
+            threads.add( t );
+        }
+
+        for( Thread t : threads ) t.join();
+
+        assertEquals( errors.toString(), 0, errors.size() );
+        assertTrue( "pool grew to "+maxSize[0], maxSize[0] <= 4 );
+        assertTrue( pool.size() <= 4 );
+        assertEquals( 1601, pool.getBorrowCount() );
+        assertEquals( 0, pool.getTimeoutCount() );
+
+        H2Connection c = (H2Connection) pool.get( 1000 );
+        ResultSet rs = c.m_conn.createStatement().executeQuery( "SELECT n FROM counter" );
+        rs.next();
+        assertEquals( 1600, rs.getInt( 1 ) );
+        c.m_conn.createStatement().execute( "DROP TABLE counter" );
+        c.release();
+
+        pool.dispose();
+    }
+
+    /**
+     *  A connection which has been closed under the pool is replaced.
+     */
+    public void testH2BrokenConnection() throws Exception
+    {
+        Pool pool = createH2Pool( 2 );
+
+        H2Connection a = (H2Connection) pool.get( 1000 );
+        a.m_conn.close();
+        a.release();
+
+        H2Connection b = (H2Connection) pool.get( 1000 );
+
+        assertNotSame( a, b );
+        assertTrue( b.isValid() );
+        assertEquals( 1, pool.getInvalidCount() );
+        assertEquals( 1, pool.size() );
+
+        b.release();
+        pool.dispose();
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PoolTest.class );
+    }
+}
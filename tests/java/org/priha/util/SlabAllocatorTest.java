@@ -0,0 +1,115 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.priha.util.SlabAllocator.Block;
+
+public class SlabAllocatorTest extends TestCase
+{
+    private static byte[] bytes( int length, int seed )
+    {
+        byte[] b = new byte[length];
+        for( int i = 0; i < length; i++ ) b[i] = (byte)(i+seed);
+        return b;
+    }
+    
+    private static void assertBytes( byte[] expected, Block b )
+    {
+        ByteBuffer buf = b.getBuffer();
+        byte[] res = new byte[buf.remaining()];
+        buf.get( res );
+        
+        assertEquals( "length", expected.length, b.getLength() );
+        assertTrue( "content", Arrays.equals( expected, res ) );
+    }
+    
+    public void testAllocate()
+    {
+        SlabAllocator a = new SlabAllocator( 1024 );
+        
+        Block b1 = a.allocate( bytes(100,1) );
+        Block b2 = a.allocate( bytes(200,2) );
+        Block b3 = a.allocate( bytes(200,3) );
+        
+        assertBytes( bytes(100,1), b1 );
+        assertBytes( bytes(200,2), b2 );
+        assertBytes( bytes(200,3), b3 );
+        assertEquals( "one slab", 1024, a.getCapacity() );
+        
+        //  The buffers are independent of each other.
+        b1.getBuffer().position( 50 );
+        assertBytes( bytes(100,1), b1 );
+    }
+    
+    public void testLarge()
+    {
+        SlabAllocator a = new SlabAllocator( 1024 );
+        
+        Block b = a.allocate( bytes(5000,7) );
+        
+        assertBytes( bytes(5000,7), b );
+        assertEquals( "own slab", 5000, a.getCapacity() );
+        
+        a.release( b );
+        assertEquals( 5000, a.getGarbage() );
+    }
+    
+    public void testCompact()
+    {
+        SlabAllocator a = new SlabAllocator( 1024 );
+        ArrayList<Block> live = new ArrayList<Block>();
+        
+        for( int i = 0; i < 100; i++ )
+        {
+            Block b = a.allocate( bytes(200,i) );
+            
+            if( i % 4 == 0 ) 
+                live.add( b );
+            else
+                a.release( b );
+        }
+        
+        assertTrue( "needs", a.needsCompaction() );
+        long before = a.getCapacity();
+        
+        assertTrue( "dropped", a.compact( live ) > 0 );
+        assertTrue( "smaller", a.getCapacity() < before/2 );
+        assertFalse( "still needs", a.needsCompaction() );
+        
+        for( int i = 0; i < live.size(); i++ )
+        {
+            assertBytes( bytes(200,i*4), live.get(i).getMoved() );
+        }
+        
+        //  The old blocks can still be read by someone who holds them.
+        assertBytes( bytes(200,0), live.get(0) );
+    }
+    
+    public static Test suite()
+    {
+        return new TestSuite( SlabAllocatorTest.class );
+    }
+}
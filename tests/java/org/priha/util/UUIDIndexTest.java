@@ -0,0 +1,405 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package org.priha.util;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.UUID;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class UUIDIndexTest extends TestCase
+{
+    File      m_file;
+    UUIDIndex m_index;
+
+    protected void setUp() throws Exception
+    {
+        m_file = File.createTempFile( "prihatest", ".idx" );
+        m_file.delete();
+        m_file.deleteOnExit();
+
+        m_index = new UUIDIndex( m_file );
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_index.close();
+        m_file.delete();
+    }
+
+    public void testPutGet() throws Exception
+    {
+        String uuid = UUID.randomUUID().toString();
+
+        assertNull( m_index.get( uuid ) );
+
+        m_index.put( uuid, new String[] { "/foo/bar", "/\u3041" } );
+
+        String[] v = m_index.get( uuid );
+
+        assertEquals( 2, v.length );
+        assertEquals( "/foo/bar", v[0] );
+        assertEquals( "/\u3041", v[1] );
+
+        m_index.put( uuid, new String[] { "/gobble" } );
+
+        assertEquals( "/gobble", m_index.get( uuid )[0] );
+        assertEquals( 1, m_index.size() );
+    }
+
+    public void testRemove() throws Exception
+    {
+        String uuid = UUID.randomUUID().toString();
+
+        m_index.put( uuid, new String[] { "/foo" } );
+        m_index.remove( uuid );
+
+        assertNull( m_index.get( uuid ) );
+        assertEquals( 0, m_index.size() );
+
+        m_index.put( uuid, new String[] { "/bar" } );
+
+        assertEquals( "/bar", m_index.get( uuid )[0] );
+    }
+
+    /**
+     *  JCR does not require jcr:uuid to be an actual UUID.
+     */
+    public void testNonUUIDKey() throws Exception
+    {
+        m_index.put( "not-an-uuid", new String[] { "/foo" } );
+        m_index.put( "not-an-uuid-either", new String[] { "/bar" } );
+
+        assertEquals( "/foo", m_index.get( "not-an-uuid" )[0] );
+        assertEquals( "/bar", m_index.get( "not-an-uuid-either" )[0] );
+    }
+
+    /**
+     *  Adds enough UUIDs to make the table grow, then checks they are all there
+     *  after reopening.
+     */
+    public void testGrowAndReopen() throws Exception
+    {
+        String[] uuids = new String[5000];
+
+        for( int i = 0; i < uuids.length; i++ )
+        {
+            uuids[i] = UUID.randomUUID().toString();
+            m_index.put( uuids[i], new String[] { "/node"+i } );
+        }
+
+        for( int i = 0; i < uuids.length; i += 2 )
+        {
+            m_index.remove( uuids[i] );
+        }
+
+        m_index.close();
+        m_index = new UUIDIndex( m_file );
+
+        assertEquals( uuids.length/2, m_index.size() );
+
+        for( int i = 0; i < uuids.length; i++ )
+        {
+            if( i % 2 == 0 )
+                assertNull( uuids[i], m_index.get( uuids[i] ) );
+            else
+                assertEquals( "/node"+i, m_index.get( uuids[i] )[0] );
+        }
+    }
+
+    /**
+     *  Rewrites the same UUIDs over and over, so that the garbage gets compacted.
+     */
+    public void testCompaction() throws Exception
+    {
+        String a = UUID.randomUUID().toString();
+        String b = UUID.randomUUID().toString();
+
+        for( int i = 0; i < 20000; i++ )
+        {
+            m_index.put( a, new String[] { "/a"+i } );
+            m_index.put( b, new String[] { "/b"+i, "/c"+i } );
+        }
+
+        assertTrue( "not compacted: "+m_file.length(), m_file.length() < 1024*1024 );
+        assertEquals( "/a19999", m_index.get( a )[0] );
+        assertEquals( "/c19999", m_index.get( b )[1] );
+    }
+
+    /**
+     *  The compaction is spread over several updates, and the index can be
+     *  used while it runs.
+     */
+    public void testIncrementalCompaction() throws Exception
+    {
+        String[] uuids = startCompaction();
+
+        for( int i = 0; i < uuids.length; i++ )
+        {
+            assertEquals( "/node"+i, m_index.get( uuids[i] )[0] );
+        }
+
+        String added = UUID.randomUUID().toString();
+
+        m_index.put( added, new String[] { "/added" } );
+        m_index.remove( uuids[0] );
+
+        for( int i = 0; i < 100 && m_index.isCompacting(); i++ )
+        {
+            m_index.put( added, new String[] { "/added"+i } );
+        }
+
+        assertFalse( "still compacting", m_index.isCompacting() );
+        assertNull( m_index.get( uuids[0] ) );
+        assertEquals( "/node1", m_index.get( uuids[1] )[0] );
+        assertEquals( uuids.length, m_index.size() );
+
+        m_index.close();
+        m_index = new UUIDIndex( m_file );
+
+        assertEquals( uuids.length, m_index.size() );
+        assertNull( m_index.get( uuids[0] ) );
+        assertEquals( "/node1", m_index.get( uuids[1] )[0] );
+    }
+
+    /**
+     *  A crash in the middle of a compaction leaves the old file, which is
+     *  rebuilt when opened.
+     */
+    public void testInterruptedCompaction() throws Exception
+    {
+        String[] uuids = startCompaction();
+
+        m_index.remove( uuids[0] );
+
+        UUIDIndex crashed = m_index;
+
+        assertTrue( new File( m_file.getPath()+".tmp" ).exists() );
+
+        m_index = new UUIDIndex( m_file );
+
+        assertFalse( new File( m_file.getPath()+".tmp" ).exists() );
+        assertEquals( uuids.length-1, m_index.size() );
+        assertNull( m_index.get( uuids[0] ) );
+
+        for( int i = 1; i < uuids.length; i++ )
+        {
+            assertEquals( "/node"+i, m_index.get( uuids[i] )[0] );
+        }
+
+        crashed.close();
+    }
+
+    /**
+     *  A crash between the two renames on a platform which does not rename
+     *  over an existing file leaves only the old file.
+     */
+    public void testInterruptedReplace() throws Exception
+    {
+        String uuid = UUID.randomUUID().toString();
+
+        m_index.put( uuid, new String[] { "/foo" } );
+        m_index.close();
+
+        File old = new File( m_file.getPath()+".old" );
+        old.deleteOnExit();
+
+        assertTrue( m_file.renameTo( old ) );
+
+        m_index = new UUIDIndex( m_file );
+
+        assertFalse( old.exists() );
+        assertEquals( "/foo", m_index.get( uuid )[0] );
+    }
+
+    /**
+     *  Adds some UUIDs, then rewrites one of them until a compaction starts.
+     */
+    private String[] startCompaction() throws Exception
+    {
+        String[] uuids = new String[300];
+
+        for( int i = 0; i < uuids.length; i++ )
+        {
+            uuids[i] = UUID.randomUUID().toString();
+            m_index.put( uuids[i], new String[] { "/node"+i } );
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        while( sb.length() < 10000 ) sb.append( "/garbage" );
+
+        for( int i = 0; !m_index.isCompacting(); i++ )
+        {
+            assertTrue( "did not start compacting", i < 1000 );
+            m_index.put( uuids[0], new String[] { "/node0", sb.toString() } );
+        }
+
+        return uuids;
+    }
+
+    /**
+     *  An index which was not closed is rebuilt when opened.
+     */
+    public void testUncleanOpen() throws Exception
+    {
+        String uuid = UUID.randomUUID().toString();
+
+        m_index.put( uuid, new String[] { "/foo" } );
+
+        UUIDIndex crashed = m_index;
+
+        m_index = new UUIDIndex( m_file );
+
+        assertEquals( 1, m_index.size() );
+        assertEquals( "/foo", m_index.get( uuid )[0] );
+
+        crashed.close();
+    }
+
+    /**
+     *  More values than fit in a short, and a value longer than writeUTF() takes.
+     */
+    public void testLargeRecord() throws Exception
+    {
+        String uuid = UUID.randomUUID().toString();
+
+        String[] values = new String[70000];
+
+        for( int i = 0; i < values.length; i++ ) values[i] = "/n"+i;
+
+        StringBuilder sb = new StringBuilder();
+
+        while( sb.length() < 70000 ) sb.append( "/\u3041" );
+
+        values[1] = sb.toString();
+
+        m_index.put( uuid, values );
+        m_index.close();
+        m_index = new UUIDIndex( m_file );
+
+        String[] v = m_index.get( uuid );
+
+        assertEquals( 70000, v.length );
+        assertEquals( "/n0", v[0] );
+        assertEquals( sb.toString(), v[1] );
+        assertEquals( "/n69999", v[69999] );
+    }
+
+    /**
+     *  A crash may leave a slot pointing past the end of the file.  The index
+     *  is still rebuilt, without that UUID.
+     */
+    public void testSlotPastEnd() throws Exception
+    {
+        String uuid = UUID.randomUUID().toString();
+
+        m_index.put( uuid, new String[] { "/foo" } );
+        m_index.close();
+
+        RandomAccessFile raf = new RandomAccessFile( m_file, "rw" );
+
+        try
+        {
+            raf.seek( 20 );      // clean
+            raf.writeInt( 0 );
+
+            long slot = -1;
+
+            for( long i = 0; slot < 0; i++ )
+            {
+                raf.seek( 64+i*24+16 );
+                if( raf.readLong() == 0 ) slot = i;
+            }
+
+            raf.seek( 64+slot*24 );
+            raf.writeLong( 1 );
+            raf.writeLong( 2 );
+            raf.writeLong( raf.length()+1000 );
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        m_index = new UUIDIndex( m_file );
+
+        assertEquals( 1, m_index.size() );
+        assertEquals( "/foo", m_index.get( uuid )[0] );
+    }
+
+    /**
+     *  An index written by version 1, with a single record in the first slot,
+     *  is converted when opened.
+     */
+    public void testOldFormat() throws Exception
+    {
+        m_index.close();
+
+        String uuid = UUID.randomUUID().toString();
+        UUID   key  = UUID.fromString( uuid );
+        long   data = 64+1024*24;
+
+        RandomAccessFile raf = new RandomAccessFile( m_file, "rw" );
+
+        try
+        {
+            raf.setLength( 0 );
+            raf.writeInt( 0x50524958 );
+            raf.writeInt( 1 );       // version
+            raf.writeInt( 1024 );    // capacity
+            raf.writeInt( 1 );       // count
+            raf.writeInt( 1 );       // used
+            raf.writeInt( 1 );       // clean
+            raf.writeLong( data+4+2+2+4 );
+            raf.writeLong( 0 );      // garbage
+
+            raf.seek( 64 );
+            raf.writeLong( key.getMostSignificantBits() );
+            raf.writeLong( key.getLeastSignificantBits() );
+            raf.writeLong( data );
+
+            raf.seek( data );
+            raf.writeInt( 2+2+4 );
+            raf.writeShort( 1 );
+            raf.writeUTF( "/foo" );
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        m_index = new UUIDIndex( m_file );
+
+        assertEquals( "/foo", m_index.get( uuid )[0] );
+
+        m_index.put( uuid, new String[] { "/foo", "/bar" } );
+        m_index.close();
+        m_index = new UUIDIndex( m_file );
+
+        assertEquals( "/bar", m_index.get( uuid )[1] );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( UUIDIndexTest.class );
+    }
+}
@@ -0,0 +1,102 @@
+/*
+    Priha - A JSR-170 implementation library.
+
+    Copyright (C) 2007-2009 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    Licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at 
+    
+      http://www.apache.org/licenses/LICENSE-2.0 
+      
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License. 
+ */
+package org.priha.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class WeightedCacheTest extends TestCase
+{
+    public void testPutGet()
+    {
+        WeightedCache<String,String> c = new WeightedCache<String,String>( 10000, 100 );
+        
+        c.put( "a", "foo", 10 );
+        c.put( "b", "bar", 20 );
+        
+        assertEquals( "foo", c.get("a") );
+        assertEquals( "bar", c.get("b") );
+        assertNull( c.get("c") );
+        assertEquals( 30, c.getWeight() );
+        
+        c.put( "a", "new", 15 );
+        assertEquals( "new", c.get("a") );
+        assertEquals( 35, c.getWeight() );
+        
+        c.remove( "b" );
+        assertNull( c.get("b") );
+        assertFalse( c.containsKey("b") );
+        assertEquals( 15, c.getWeight() );
+        
+        assertEquals( 3, c.getHits() );
+        assertEquals( 2, c.getMisses() );
+    }
+    
+    public void testWeightLimit()
+    {
+        WeightedCache<Integer,String> c = new WeightedCache<Integer,String>( 10000, 100 );
+        
+        for( int i = 0; i < 1000; i++ )
+        {
+            c.put( i, "x", 100 );
+            assertTrue( "weight "+c.getWeight(), c.getWeight() <= 10000 );
+        }
+        
+        assertTrue( "size "+c.size(), c.size() <= 100 );
+        assertTrue( "empty", c.size() > 50 );
+        
+        c.put( -1, "huge", 20000 );
+        assertNull( "too heavy", c.get(-1) );
+    }
+    
+    /**
+     *  Reading through lots of items once must not throw out the ones which
+     *  are used all the time.
+     */
+    public void testScanResistance()
+    {
+        WeightedCache<Integer,String> c = new WeightedCache<Integer,String>( 100*100, 100 );
+        
+        for( int round = 0; round < 10; round++ )
+        {
+            for( int i = 0; i < 50; i++ )
+            {
+                if( c.get( i ) == null ) c.put( i, "hot", 100 );
+            }
+        }
+        
+        for( int i = 1000; i < 11000; i++ )
+        {
+            if( c.get( i ) == null ) c.put( i, "scan", 100 );
+            
+            //  Use the hot ones now and then.
+            if( i % 100 == 0 ) for( int j = 0; j < 50; j++ ) c.get( j );
+        }
+        
+        int hot = 0;
+        for( int i = 0; i < 50; i++ ) if( c.containsKey( i ) ) hot++;
+        
+        assertTrue( "only "+hot+" hot items left", hot >= 45 );
+    }
+    
+    public static Test suite()
+    {
+        return new TestSuite( WeightedCacheTest.class );
+    }
+}